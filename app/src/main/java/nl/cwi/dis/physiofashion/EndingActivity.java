@@ -9,11 +9,15 @@ import android.widget.Button;
 import android.widget.Toast;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Locale;
+import java.util.stream.Collectors;
 
+import nl.cwi.dis.physiofashion.audio.PreparedPlayerCache;
+import nl.cwi.dis.physiofashion.device.DeviceClient;
 import nl.cwi.dis.physiofashion.experiment.Experiment;
+import nl.cwi.dis.physiofashion.experiment.ResponseTable;
 import nl.cwi.dis.physiofashion.experiment.UserResponse;
+import nl.cwi.dis.physiofashion.session.SessionStore;
 
 /**
  * This activity is the final activity, displayed to the user after all trials have been completed.
@@ -33,10 +37,18 @@ public class EndingActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_ending);
 
-        // Get experiment data from intent and log user responses to system log
+        // Get experiment data of the session given in the intent
         Intent intent = this.getIntent();
-        Experiment experiment = intent.getParcelableExtra("experiment");
+        String sessionId = intent.getStringExtra(SessionStore.EXTRA_SESSION_ID);
+        SessionStore sessionStore = SessionStore.getInstance(this);
+        Experiment experiment = sessionStore.get(sessionId);
+
+        // Produce the results from the responses persisted in the journal of the session and log
+        // them to system log
+        Log.d(LOG_TAG, "Responses read from journal: " + sessionStore.replayJournal(sessionId));
+
         this.logResponses(experiment.getResponses());
+        Log.d(LOG_TAG, "Responses: " + experiment.getResponses().getSummary());
 
         // Get system's download directory
         File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
@@ -50,6 +62,34 @@ public class EndingActivity extends AppCompatActivity {
             Toast.makeText(this, "Could not save experiment file", Toast.LENGTH_LONG).show();
         }
 
+        // Write the temperature readings recorded during the session next to the responses
+        DeviceClient client = DeviceClient.getInstance(this);
+        String telemetryPath = experiment.writeTelemetryToFile(
+                downloadDir,
+                experiment.getHostnames().stream().map(client::getTelemetryRecorder).collect(Collectors.toList())
+        );
+        Log.d(LOG_TAG, "Telemetry written to: " + telemetryPath);
+
+        // Write the request latencies of all devices, so that the link quality can be reviewed
+        String latencyPath = experiment.writeLatencyToFile(
+                downloadDir,
+                experiment.getHostnames().stream().map(client::getLatencyHistograms).collect(Collectors.toList())
+        );
+        Log.d(LOG_TAG, "Latencies written to: " + latencyPath);
+
+        // Once the results have been written, the session no longer needs to be restorable.
+        // Otherwise its journal is kept, so the responses can still be recovered.
+        if (savePath != null) {
+            sessionStore.close(sessionId);
+        }
+
+        // The session is over, stop the shared device client and close its connections
+        DeviceClient.shutdown();
+
+        // Release the audio files which were prepared but not played
+        PreparedPlayerCache audioCache = PreparedPlayerCache.getInstance();
+        audioCache.logStatistics();
+        audioCache.releaseAll();
 
         // Install handler for button which returns to main entry point
         final Button returnToStart = findViewById(R.id.return_to_start);
@@ -65,13 +105,14 @@ public class EndingActivity extends AppCompatActivity {
 
     /**
      * Logs user responses from experiment config to the system log
-     * @param responses An ArrayList of UserResponse objects to log
+     * @param responses The table of user responses to log
      */
-    private void logResponses(ArrayList<UserResponse> responses) {
-        for (UserResponse response : responses) {
+    private void logResponses(ResponseTable responses) {
+        for (int i = 0; i < responses.size(); i++) {
+            UserResponse response = responses.getResponse(i);
             String formattedResponse = String.format(
                     Locale.ENGLISH,
-                    "%.2f, %.2f, %d, %d",
+                    "%d, %d, %d, %d",
                     response.getStimulusStarted(),
                     response.getStimulusFelt(),
                     response.getTemperatureFelt(),
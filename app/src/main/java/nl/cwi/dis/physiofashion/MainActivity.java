@@ -4,6 +4,7 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -20,17 +21,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
-import com.android.volley.Request;
-import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
-
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
 
+import nl.cwi.dis.physiofashion.audio.AudioLatencyCalibration;
+import nl.cwi.dis.physiofashion.device.DeviceClient;
+import nl.cwi.dis.physiofashion.device.LatencyHistogram;
 import nl.cwi.dis.physiofashion.experiment.Experiment;
 import nl.cwi.dis.physiofashion.experiment.ExperimentParser;
 import nl.cwi.dis.physiofashion.experiment.ExternalCondition;
+import nl.cwi.dis.physiofashion.session.SessionStore;
 
 /**
  * This activity is the main entry point of the app. It makes sure that the app has permission to
@@ -41,11 +44,16 @@ import nl.cwi.dis.physiofashion.experiment.ExternalCondition;
 public class MainActivity extends AppCompatActivity {
     private static final String LOG_TAG = "MainActivity";
     private static final int STORAGE_PERMISSION_REQUEST = 1;
+    private static final int HEALTH_CHECK_PROBES = 20;
+    private static final int CALIBRATION_TONES = 20;
 
     private Button nextButton;
     private ToggleButton externalConditionToggle;
     private EditText participantText;
     private EditText conditionText;
+    private Button checkDevicesButton;
+    private Button calibrateAudioButton;
+    private TextView healthPanel;
 
     /**
      * Called when the activity is first instantiated. Checks whether the app has permission to
@@ -105,6 +113,9 @@ public class MainActivity extends AppCompatActivity {
         externalConditionToggle = findViewById(R.id.external_condition_toggle);
         participantText = findViewById(R.id.participant_text);
         conditionText = findViewById(R.id.condition_text);
+        checkDevicesButton = findViewById(R.id.check_devices_button);
+        calibrateAudioButton = findViewById(R.id.calibrate_audio_button);
+        healthPanel = findViewById(R.id.health_panel);
 
         // Parse experiment and get ExperimentParser object
         ExperimentParser experimentParser = this.parseExperiment();
@@ -154,6 +165,39 @@ public class MainActivity extends AppCompatActivity {
         // Install TextWatcher for all text fields in the UI
         this.watchTextFieldChanges();
 
+        // Install click handler for 'Check devices' button, which probes every host repeatedly
+        // and shows the resulting latencies
+        ArrayList<String> checkedHostnames = experimentParser.getHostnames();
+        this.showDeviceHealth(checkedHostnames);
+
+        checkDevicesButton.setOnClickListener((View v) -> {
+            if (checkedHostnames.isEmpty()) {
+                return;
+            }
+
+            checkDevicesButton.setEnabled(false);
+            int[] remaining = { checkedHostnames.size() };
+
+            for (String hostname : checkedHostnames) {
+                this.probeHost(hostname, HEALTH_CHECK_PROBES, () -> {
+                    this.showDeviceHealth(checkedHostnames);
+                    remaining[0]--;
+
+                    // Only allow a new check once the probes of all hosts have completed
+                    if (remaining[0] == 0) {
+                        checkDevicesButton.setEnabled(true);
+                    }
+                });
+            }
+        });
+
+        // Install click handler for 'Calibrate audio' button, which measures the output latency of
+        // both audio engines on this device
+        calibrateAudioButton.setOnClickListener((View v) -> {
+            calibrateAudioButton.setEnabled(false);
+            this.calibrateAudio();
+        });
+
         // Install click handler for 'Next' button
         nextButton.setOnClickListener((View v) -> {
             nextButton.setEnabled(false);
@@ -167,30 +211,143 @@ public class MainActivity extends AppCompatActivity {
                     (externalCondition == null) ? null : externalConditionToggle.getText().toString()
             );
 
-            // Get hostname of thermalwear endpoint and make sure it is available
-            String hostname = experimentParser.getHostname();
-            this.checkHost(hostname, () -> {
-                // Host responded successfully, create intent for TemperatureChangeActivity and pass experiment data
-                Intent nextActivity = new Intent(this, TemperatureChangeActivity.class);
-                nextActivity.putExtra("experiment", experiment);
+            this.startTrials(experiment, null);
+        });
 
-                // Start next activity
-                nextButton.setEnabled(true);
-                startActivity(nextActivity);
-            }, () -> {
-                // Could not communicate with thermalwear endpoint, show error message
-                Toast errorToast = Toast.makeText(
-                        this,
-                        "Could not communicate with host " + hostname,
-                        Toast.LENGTH_LONG
-                );
-
-                errorToast.show();
-                nextButton.setEnabled(true);
-            });
+        // Offer to continue a session that was interrupted by a crash of the app or the tablet
+        this.offerResume();
+    }
+
+    /**
+     * Makes sure that all thermalwear endpoints of the given experiment are available and starts
+     * its current trial. A new session is opened for the experiment unless the ID of an existing
+     * session is given.
+     *
+     * @param experiment The experiment to run
+     * @param sessionId ID of the session the experiment belongs to, or `null` for a new session
+     */
+    private void startTrials(Experiment experiment, String sessionId) {
+        // Get hostnames of thermalwear endpoints and make sure they are available
+        ArrayList<String> hostnames = experiment.getHostnames();
+        DeviceClient client = DeviceClient.getInstance(this);
+
+        // The check resolves the hostnames, which counts towards the time to the first setpoint
+        client.startSession();
+
+        this.checkHosts(hostnames, () -> {
+            // Open connections to all hosts so the first trial does not have to wait for them
+            for (String hostname : hostnames) {
+                client.warmUp(hostname);
+            }
+
+            // Host responded successfully, register the session and create intent for
+            // TemperatureChangeActivity, passing only the ID of the session
+            String id = (sessionId != null) ? sessionId : SessionStore.getInstance(this).open(experiment);
+
+            Intent nextActivity = new Intent(this, TemperatureChangeActivity.class);
+            nextActivity.putExtra(SessionStore.EXTRA_SESSION_ID, id);
+
+            // Start next activity
+            nextButton.setEnabled(true);
+            startActivity(nextActivity);
+        }, () -> {
+            // Could not communicate with thermalwear endpoint, show error message
+            Toast errorToast = Toast.makeText(
+                    this,
+                    "Could not communicate with hosts " + hostnames,
+                    Toast.LENGTH_LONG
+            );
+
+            errorToast.show();
+            nextButton.setEnabled(true);
         });
     }
 
+    /**
+     * Looks for a session which was not finished in an earlier run of the app. If there is one,
+     * its experiment is rebuilt from its snapshot and journal, and the user is asked whether to
+     * continue it at the first trial without a response, to postpone the decision or to discard
+     * the session. A session which cannot be rebuilt is set aside rather than deleted, and the
+     * responses in its journal are saved to the download directory.
+     */
+    private void offerResume() {
+        SessionStore store = SessionStore.getInstance(this);
+        String sessionId = store.findUnfinished();
+
+        if (sessionId == null) {
+            return;
+        }
+
+        // Rebuild the experiment and measure how long the recovery takes
+        long startedAt = SystemClock.elapsedRealtimeNanos();
+        Experiment experiment = store.resume(sessionId);
+        double recoveryMs = (SystemClock.elapsedRealtimeNanos() - startedAt) / 1e6;
+
+        if (experiment == null) {
+            Log.e(LOG_TAG, "Could not recover session " + sessionId + ", setting it aside");
+
+            // Keep the files of the session, but save whatever responses can still be read
+            File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+            String savePath = store.setAside(sessionId, downloadDir);
+
+            String saved = (savePath != null)
+                    ? "The responses given before the interruption have been saved to " + savePath + "."
+                    : "No responses of the session could be saved.";
+
+            new AlertDialog.Builder(this)
+                    .setTitle("Unfinished session")
+                    .setMessage("An interrupted session could not be recovered and has been set aside. " + saved)
+                    .setPositiveButton("OK", null)
+                    .show();
+            return;
+        }
+
+        int trialCount = experiment.getTrials().size();
+        int nextTrial = experiment.getCurrentTrialIndex();
+
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "Recovered session %s at trial %d of %d in %.1fms",
+                sessionId,
+                nextTrial + 1,
+                trialCount,
+                recoveryMs
+        ));
+
+        String progress = (nextTrial < trialCount)
+                ? "It can be continued at trial " + (nextTrial + 1) + " of " + trialCount + "."
+                : "All " + trialCount + " trials have been completed, but the results have not been saved yet.";
+
+        new AlertDialog.Builder(this)
+                .setTitle("Unfinished session")
+                .setMessage(String.format(
+                        Locale.ENGLISH,
+                        "The session of participant %s was interrupted. %s\n\nThe session was recovered in %.1fms.",
+                        experiment.getParticipantId(),
+                        progress,
+                        recoveryMs
+                ))
+                .setPositiveButton("Continue", (dialogInterface, i) -> {
+                    // Show the values of the recovered session, which also enables the 'Next' button
+                    participantText.setText(experiment.getParticipantId());
+                    conditionText.setText(String.valueOf(experiment.getCounterBalance()));
+
+                    if (nextTrial < trialCount) {
+                        nextButton.setEnabled(false);
+                        this.startTrials(experiment, sessionId);
+                    } else {
+                        // Nothing left to do but write the results
+                        Intent nextActivity = new Intent(this, EndingActivity.class);
+                        nextActivity.putExtra(SessionStore.EXTRA_SESSION_ID, sessionId);
+
+                        startActivity(nextActivity);
+                    }
+                })
+                .setNeutralButton("Later", null)
+                .setNegativeButton("Discard", (dialogInterface, i) -> store.close(sessionId))
+                .show();
+    }
+
     /**
      * This method adds TextWatchers to the main text input fields to make sure the fields have a
      * value before the 'Next' button is enabled.
@@ -227,27 +384,147 @@ public class MainActivity extends AppCompatActivity {
         void apply();
     }
 
+    /**
+     * This method checks whether all of the given hostnames are reachable. The checks are run in
+     * parallel and `successFunction` is invoked once all hosts have responded, `errorFunction` as
+     * soon as one of them failed.
+     *
+     * @param hostnames Hostnames to check
+     * @param successFunction Callback which is invoked on success
+     * @param errorFunction Callback which is invoked in case of error
+     */
+    private void checkHosts(ArrayList<String> hostnames, VoidFunction successFunction, VoidFunction errorFunction) {
+        // Fail straight away if the experiment does not specify any hosts
+        if (hostnames.isEmpty()) {
+            Log.e(LOG_TAG, "Experiment does not specify any hosts");
+            errorFunction.apply();
+            return;
+        }
+
+        int[] remaining = { hostnames.size() };
+        boolean[] failed = { false };
+
+        for (String hostname : hostnames) {
+            this.checkHost(hostname, () -> {
+                remaining[0]--;
+
+                if (remaining[0] == 0 && !failed[0]) {
+                    successFunction.apply();
+                }
+            }, () -> {
+                if (!failed[0]) {
+                    failed[0] = true;
+                    errorFunction.apply();
+                }
+            });
+        }
+    }
+
     /**
      * This method checks whether the given hostname is reachable and delivers the right response.
+     * The check reads the temperature through the device's shared reader, so it does not add a
+     * request of its own if a read is already outstanding.
      *
      * @param hostname Hostname to check
      * @param successFunction Callback which is invoked on success
      * @param errorFunction Callback which is invoked in case of error
      */
     private void checkHost(String hostname, VoidFunction successFunction, VoidFunction errorFunction) {
-        // Specific endpoint to check
-        String url = hostname + "/api/temperature";
-
-        // Create string request
-        StringRequest testRequest = new StringRequest(Request.Method.GET, url, response ->
-            successFunction.apply()
-        , error -> {
+        DeviceClient client = DeviceClient.getInstance(this);
+        LatencyHistogram histogram = client.getLatencyHistogram(hostname, DeviceClient.ENDPOINT_CHECK);
+        long sentAt = SystemClock.elapsedRealtimeNanos();
+
+        // Read temperature from the device's endpoint
+        client.getTemperatureReader(hostname).read(temperature -> {
+            histogram.record(SystemClock.elapsedRealtimeNanos() - sentAt);
+            successFunction.apply();
+        }, error -> {
+            histogram.recordError();
             Log.e(LOG_TAG, "Could not communicate with host " + hostname + ": " + error);
             errorFunction.apply();
         });
+    }
+
+    /**
+     * Checks the given host the given number of times in a row, so that its latency histograms
+     * fill up before the session starts. Failed checks are counted as errors and do not stop the
+     * probing.
+     *
+     * @param hostname Hostname to probe
+     * @param probes Number of remaining checks
+     * @param doneFunction Callback which is invoked once all checks have completed
+     */
+    private void probeHost(String hostname, int probes, VoidFunction doneFunction) {
+        if (probes <= 0) {
+            doneFunction.apply();
+            return;
+        }
+
+        VoidFunction next = () -> this.probeHost(hostname, probes - 1, doneFunction);
+        this.checkHost(hostname, next, next);
+    }
+
+    /**
+     * Plays test tones through both audio engines, one after the other, and shows the measured
+     * latency distributions. The corrections are stored by the calibration and applied to the
+     * start time of all subsequent clips played with the respective engine.
+     */
+    private void calibrateAudio() {
+        AudioLatencyCalibration calibration = new AudioLatencyCalibration(this);
+
+        calibration.run(AudioLatencyCalibration.ENGINE_MEDIAPLAYER, CALIBRATION_TONES, mediaPlayerResult ->
+            calibration.run(AudioLatencyCalibration.ENGINE_PCM, CALIBRATION_TONES, pcmResult -> {
+                calibrateAudioButton.setEnabled(true);
+
+                new AlertDialog.Builder(this)
+                        .setTitle("Audio latency")
+                        .setMessage(mediaPlayerResult + "\n\n" + pcmResult + "\n\nThe median latency of each engine is subtracted from the start time of its clips on this device.")
+                        .setPositiveButton("OK", null)
+                        .show();
+            })
+        );
+    }
+
+    /**
+     * Renders the state of the circuit breaker, a summary of the latency histogram of every
+     * endpoint and the clock offset of the given hosts into the health panel.
+     *
+     * @param hostnames Hostnames to show
+     */
+    private void showDeviceHealth(ArrayList<String> hostnames) {
+        DeviceClient client = DeviceClient.getInstance(this);
+        StringBuilder builder = new StringBuilder();
+
+        for (String hostname : hostnames) {
+            builder.append(hostname)
+                    .append(" (")
+                    .append(client.getCircuitBreaker(hostname).getState())
+                    .append(")\n");
+
+            Map<String, LatencyHistogram> histograms = client.getLatencyHistograms(hostname);
+
+            if (histograms.isEmpty()) {
+                builder.append("  no requests yet\n");
+            }
+
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                builder.append("  ")
+                        .append(entry.getKey())
+                        .append(": ")
+                        .append(entry.getValue().getSummary())
+                        .append("\n");
+            }
+
+            builder.append("  clock: ")
+                    .append(client.getClockSync(hostname))
+                    .append("\n");
+
+            builder.append("  address: ")
+                    .append(client.getHostResolver().describe(hostname))
+                    .append("\n");
+        }
 
-        // Add request to queue
-        Volley.newRequestQueue(this).add(testRequest);
+        healthPanel.setText(builder.toString().trim());
     }
 
     /**
@@ -8,6 +8,7 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import nl.cwi.dis.physiofashion.experiment.Experiment;
+import nl.cwi.dis.physiofashion.session.SessionStore;
 
 /**
  * This activity is used to give the user a pause in between trials. This pause comes in two forms,
@@ -27,9 +28,11 @@ public class PauseActivity extends AppCompatActivity {
 
         Intent intent = this.getIntent();
 
-        // Get experiment config and whether the activity should show a countdown from the intent
+        // Get experiment config of the session and whether the activity should show a countdown
+        // from the intent
         boolean noCountdown = intent.getBooleanExtra("noCountdown", false);
-        Experiment experiment = intent.getParcelableExtra("experiment");
+        String sessionId = intent.getStringExtra(SessionStore.EXTRA_SESSION_ID);
+        Experiment experiment = SessionStore.getInstance(this).get(sessionId);
 
         final TextView countdownLabel = findViewById(R.id.countdown_label);
         final TextView waitLabel = findViewById(R.id.wait_message);
@@ -65,9 +68,9 @@ public class PauseActivity extends AppCompatActivity {
 
         // Install click handler for 'Continue' button
         continueButton.setOnClickListener(v -> {
-            // Initialise intent for launching TemperatureChangeActivity and pass experiment config
+            // Initialise intent for launching TemperatureChangeActivity and pass session
             Intent nextActivity = new Intent(this, TemperatureChangeActivity.class);
-            nextActivity.putExtra("experiment", experiment);
+            nextActivity.putExtra(SessionStore.EXTRA_SESSION_ID, sessionId);
 
             startActivity(nextActivity);
         });
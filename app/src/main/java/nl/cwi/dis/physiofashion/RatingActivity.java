@@ -8,6 +8,7 @@ import android.widget.Button;
 import nl.cwi.dis.physiofashion.experiment.Experiment;
 import nl.cwi.dis.physiofashion.experiment.Trial;
 import nl.cwi.dis.physiofashion.experiment.UserResponse;
+import nl.cwi.dis.physiofashion.session.SessionStore;
 import nl.cwi.dis.physiofashion.views.LikertScale;
 
 public class RatingActivity extends AppCompatActivity {
@@ -19,9 +20,10 @@ public class RatingActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_rating);
 
-        // Get experiment data from intent
+        // Get experiment data of the session given in the intent
         Intent intent = this.getIntent();
-        Experiment experiment = intent.getParcelableExtra("experiment");
+        String sessionId = intent.getStringExtra(SessionStore.EXTRA_SESSION_ID);
+        Experiment experiment = SessionStore.getInstance(this).get(sessionId);
 
         final LikertScale temperatureScale = findViewById(R.id.temperature_scale);
         final LikertScale comfortScale = findViewById(R.id.comfort_scale);
@@ -37,8 +39,12 @@ public class RatingActivity extends AppCompatActivity {
             currentResponse.setTemperatureFelt(temperatureScale.getProgress());
             currentResponse.setComfortLevel(comfortScale.getProgress());
 
-            // Increment current trial index
+            // Persist the completed response, increment current trial index and save the session
+            SessionStore sessionStore = SessionStore.getInstance(this);
+            sessionStore.commitTrial(sessionId, experiment.getCurrentTrialIndex());
             experiment.incrementCurrentTrial();
+            sessionStore.checkpoint(sessionId);
+
             // Get next trial
             Trial nextTrial = experiment.getCurrentTrial();
 
@@ -60,8 +66,8 @@ public class RatingActivity extends AppCompatActivity {
                 nextActivity = new Intent(this, TemperatureChangeActivity.class);
             }
 
-            // Pass experiment to intent and launch next activity
-            nextActivity.putExtra("experiment", experiment);
+            // Pass session to intent and launch next activity
+            nextActivity.putExtra(SessionStore.EXTRA_SESSION_ID, sessionId);
             startActivity(nextActivity);
         });
     }
@@ -2,41 +2,71 @@ package nl.cwi.dis.physiofashion;
 
 import android.content.Intent;
 import android.media.MediaPlayer;
-import android.os.CountDownTimer;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import com.android.volley.VolleyError;
 
 import java.io.File;
 import java.io.IOException;
 
+import nl.cwi.dis.physiofashion.audio.AudioLatencyCalibration;
+import nl.cwi.dis.physiofashion.audio.PcmAudioEngine;
+import nl.cwi.dis.physiofashion.audio.PcmClip;
+import nl.cwi.dis.physiofashion.audio.PcmClipCache;
+import nl.cwi.dis.physiofashion.audio.PreparedPlayerCache;
+import nl.cwi.dis.physiofashion.device.CircuitBreaker;
+import nl.cwi.dis.physiofashion.device.DeviceClient;
+import nl.cwi.dis.physiofashion.device.SetpointSequencer;
 import nl.cwi.dis.physiofashion.experiment.Experiment;
+import nl.cwi.dis.physiofashion.experiment.HandlerScheduler;
 import nl.cwi.dis.physiofashion.experiment.HeatingElement;
+import nl.cwi.dis.physiofashion.experiment.HeatingElementGroup;
+import nl.cwi.dis.physiofashion.experiment.SessionClock;
 import nl.cwi.dis.physiofashion.experiment.Trial;
+import nl.cwi.dis.physiofashion.experiment.TrialPipeline;
+import nl.cwi.dis.physiofashion.experiment.TrialStateMachine;
+import nl.cwi.dis.physiofashion.session.SessionStore;
 
 /**
  * This activity is responsible for running the current trial as specified in the experiment
  * configuration. The configuration dictates the control of the heating element, whether an audio
  * file should be played during the trial and logs all user input. At the end, it will redirect
- * the user to an activity where they will rate their experience.
+ * the user to an activity where they will rate their experience. The flow of the trial is driven by
+ * a TrialStateMachine running on the main thread, for which this activity carries out the actions
+ * on the heating elements, the audio player and the UI.
  */
-public class TemperatureChangeActivity extends AppCompatActivity {
+public class TemperatureChangeActivity extends AppCompatActivity implements TrialStateMachine.Delegate {
     private static final String LOG_TAG = "TemperatureChangeActivity";
 
     private Button feelItButton;
     private TextView tempChangeLabel;
     private TextView countdownLabel;
 
+    private String sessionId;
     private Experiment experiment;
-    private HeatingElement heatingElement;
+    private HeatingElementGroup heatingElement;
     private MediaPlayer audioPlayer;
+    private PcmClip pcmClip;
+    private PcmAudioEngine pcmEngine;
+    private SetpointSequencer sequencer;
+    private HeatingElement.WatchHandle targetWatch;
+    private HeatingElement.WatchHandle baselineWatch;
+    private TrialStateMachine machine;
+
+    private boolean baselineReturnStarted;
 
-    private boolean feelItButtonPressed;
+    private final CircuitBreaker.HealthListener healthListener = (hostname, state) ->
+            runOnUiThread(() -> this.showDeviceHealth(hostname, state));
 
     /**
      * Sets up the UI and installs events handlers for UI elements.
@@ -46,9 +76,11 @@ public class TemperatureChangeActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_temperature_change);
 
-        // Retrieve experiment data from intent and log current trial to the system log
+        // Retrieve experiment data of the session given in the intent and log current trial to the
+        // system log
         Intent intent = this.getIntent();
-        experiment = intent.getParcelableExtra("experiment");
+        sessionId = intent.getStringExtra(SessionStore.EXTRA_SESSION_ID);
+        experiment = SessionStore.getInstance(this).get(sessionId);
         this.logCurrentTrial();
 
         feelItButton = findViewById(R.id.feel_it_button);
@@ -71,29 +103,108 @@ public class TemperatureChangeActivity extends AppCompatActivity {
         final TextView trialCounter = findViewById(R.id.trial_counter);
         trialCounter.setText(msg);
 
+        // The trial runs in real time on the main thread. Without a stimulus period, the stimulus
+        // lasts until the target temperature has been reached and the audio clip has been played.
+        Trial currentTrial = experiment.getCurrentTrial();
+        boolean timedStimulus = currentTrial.hasWaveform() || experiment.getStimulusPeriod() != 0;
+
+        machine = new TrialStateMachine(
+                new HandlerScheduler(),
+                this,
+                timedStimulus ? this.getStimulusDuration() : 0,
+                currentTrial.hasAudio()
+        );
+
         // Install handler for 'I feel it' button
-        feelItButtonPressed = false;
-        feelItButton.setOnClickListener(v -> {
-            tempChangeLabel.setText(R.string.pressed_stimulus);
-            feelItButton.setEnabled(false);
-            feelItButtonPressed = true;
-
-            // Store timestamp when the button was pressed
-            experiment.getCurrentUserResponse().setStimulusFelt(
-                    System.currentTimeMillis() / 1000.0
-            );
-        });
+        feelItButton.setOnClickListener(v -> machine.pressFeelIt());
+
+        // Prepare the audio files of this and the upcoming trials during the adaptation
+        if (experiment.isPcmAudio()) {
+            PcmClipCache.getInstance().setCapacity(Math.max(PcmClipCache.DEFAULT_CAPACITY, experiment.getAudioPrefetch() + 1));
+        } else {
+            PreparedPlayerCache.getInstance().setCapacity(experiment.getAudioPrefetch() + 1);
+        }
+
+        this.prefetchAudio(experiment.getCurrentTrialIndex());
+
+        // Initialise heating elements and set baseline temperature
+        heatingElement = new HeatingElementGroup(this, experiment.getHostnames(), experiment.getBaselineTemp());
+        heatingElement.setStreamingEnabled(experiment.isTemperatureStreaming());
+        heatingElement.setUdpTelemetry(experiment.isUdpTelemetry());
+        heatingElement.setCurrentTrial(experiment.getCurrentTrialIndex());
+        heatingElement.setCommandPolicy(experiment.getCommandPolicy());
+
+        machine.start();
+    }
+
+    /**
+     * Starts informing the experimenter when a heating element becomes unavailable, as long as the
+     * activity is visible.
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        DeviceClient.getInstance(this).addHealthListener(healthListener);
+    }
+
+    /**
+     * Stops listening for changes of device health once the activity is no longer visible, e.g.
+     * because the rating activity has been started. The activity stays on the back stack, so
+     * otherwise every trial would leave a listener behind.
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        DeviceClient.getInstance(this).removeHealthListener(healthListener);
+    }
+
+    /**
+     * Stops the trial, which also stops the waveform, the audio and the temperature watches.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        machine.stop();
+    }
+
+    /**
+     * Shows a toast when a heating element has become unavailable or available again.
+     *
+     * @param hostname Hostname of the heating element
+     * @param state New state of the circuit breaker of the heating element
+     */
+    private void showDeviceHealth(String hostname, CircuitBreaker.State state) {
+        if (state == CircuitBreaker.State.OPEN) {
+            Toast.makeText(this, "Heating element not responding: " + hostname, Toast.LENGTH_LONG).show();
+        } else if (state == CircuitBreaker.State.CLOSED) {
+            Toast.makeText(this, "Heating element available again: " + hostname, Toast.LENGTH_SHORT).show();
+        }
+    }
 
-        // Initialise heating element and set baseline temperature
-        heatingElement = new HeatingElement(this, experiment.getHostname(), experiment.getBaselineTemp());
-        this.setBaselineTemperature();
+    /**
+     * Shows a dialog informing the experimenter that a setpoint could not be set, even after
+     * retrying, and offers to retry the failed step.
+     *
+     * @param message Description of the failed step
+     * @param error The error of the last attempt
+     * @param retry Step to run again if the experimenter chooses to retry
+     */
+    private void showDeviceError(String message, VolleyError error, Runnable retry) {
+        Log.e(LOG_TAG, message + ": " + error);
+
+        new AlertDialog.Builder(this)
+                .setTitle("Heating element")
+                .setMessage(message + ". Please check the connection to the heating element and retry.")
+                .setCancelable(false)
+                .setPositiveButton("Retry", (dialogInterface, i) -> retry.run())
+                .show();
     }
 
     /**
      * This method logs the current trial to the system log
      */
     private void logCurrentTrial() {
-        Log.d(LOG_TAG, "Host: " + experiment.getHostname());
+        Log.d(LOG_TAG, "Hosts: " + experiment.getHostnames());
         Log.d(LOG_TAG, "Participant: " + experiment.getParticipantId());
         Log.d(LOG_TAG, "Counterbalance: " + experiment.getCounterBalance());
         Log.d(LOG_TAG, "Num trials: " + experiment.getTrials().size());
@@ -102,144 +213,386 @@ public class TemperatureChangeActivity extends AppCompatActivity {
         Log.d(LOG_TAG, "Trial: " + trial.getExternalCondition() + " " + trial.getCondition() + " " + trial.getIntensity() + " " + trial.getAudioFile());
     }
 
-    /**
-     * Set the heating element to the configured baseline temperature
-     */
-    private void setBaselineTemperature() {
-        Log.d(LOG_TAG, "Setting baseline temperature: " + experiment.getBaselineTemp());
-
-        // Return to baseline and then call method `pauseForAdaptation()`
-        heatingElement.returnToBaseline(
-            this::pauseForAdaptation
-        , (error) ->
-            Log.e(LOG_TAG, "Could not set adaptation setpoint: " + error)
-        );
+    @Override
+    public void onPhaseChanged(TrialStateMachine.Phase phase) {
+        if (phase == TrialStateMachine.Phase.BASELINE) {
+            Log.d(LOG_TAG, "Setting baseline temperature: " + experiment.getBaselineTemp());
+        } else if (phase == TrialStateMachine.Phase.RATING) {
+            this.launchRatingActivity();
+        }
     }
 
-    /**
-     * Pauses the app for the user to adapt to the current temperature for the amount of time
-     * configured in the experiment config
-     */
-    private void pauseForAdaptation() {
-        Log.d(LOG_TAG, "Pausing for adaptation for " + experiment.getAdaptationPeriod() + " seconds");
+    @Override
+    public void onCountdown(long remainingMs) {
+        if (remainingMs == 0) {
+            countdownLabel.setText(R.string.zero);
+            return;
+        }
 
-        // Create countdown timer and set it to the time given in the experiment config
-        CountDownTimer countdown = new CountDownTimer(experiment.getAdaptationPeriod() * 1000, 1000) {
-            @Override
-            public void onTick(long millisUntilFinished) {
-                // Update countdown label on each tick
-                String msg = getApplicationContext().getString(R.string.number, millisUntilFinished / 1000);
-                countdownLabel.setText(msg);
-            }
+        String msg = getApplicationContext().getString(R.string.number, remainingMs / 1000);
+        countdownLabel.setText(msg);
+    }
 
-            @Override
-            public void onFinish() {
-                // Set countdown label to zero after countdown has expired
-                countdownLabel.setText(R.string.zero);
-            }
-        }.start();
+    @Override
+    public void returnToBaseline(HeatingElement.SuccessCallback onSuccess, HeatingElement.ErrorCallback onError) {
+        heatingElement.returnToBaseline(onSuccess, onError);
+    }
 
-        // Create new handler and call `setTargetTemperature` after the adaptation time given in the
-        // experiment config
-        new Handler().postDelayed(() -> {
-            countdown.cancel();
-            setTargetTemperature();
-        }, experiment.getAdaptationPeriod() * 1000);
+    @Override
+    public long getAdaptationMs() {
+        long adaptationMs = experiment.getAdaptationPeriod() * 1000;
+
+        // With pipelined transitions, credit the time the heating element already spent at
+        // baseline after the previous trial. The first trial always adapts for the full period.
+        if (experiment.isPipelinedTransitions() && experiment.getCurrentTrialIndex() > 0) {
+            long timeAtBaseline = TrialPipeline.getInstance().takeTimeAtBaseline();
+            adaptationMs = Math.max(0, adaptationMs - timeAtBaseline);
+
+            Log.d(LOG_TAG, "Crediting " + timeAtBaseline + "ms already spent at baseline");
+        }
+
+        return adaptationMs;
     }
 
-    /**
-     * Sets the heating element to the target temperature specified in the experiment config for the
-     * current trial. If the experiment file specifies a stimulus period, continue after the period
-     * has elapsed, otherwise continue after the target temperature has been reached.
-     */
-    private void setTargetTemperature() {
-        // Get current trial
+    @Override
+    public void startStimulus(HeatingElement.SuccessCallback onStarted, HeatingElement.ErrorCallback onError) {
         Trial currentTrial = experiment.getCurrentTrial();
 
+        // Play back the waveform if the trial has one
+        if (currentTrial.hasWaveform()) {
+            sequencer = heatingElement.runWaveform(
+                    currentTrial.getCondition(),
+                    currentTrial.getWaveform(),
+                    onStarted,
+                    () -> Log.d(LOG_TAG, "Waveform finished: " + sequencer.getJitterSummary()),
+                    onError
+            );
+
+            return;
+        }
+
         // Go to target temperature. The target is given by a condition (`heat` or `cool`) and an
-        // intensity (a temperature delta). The method invokes a callback once the request has
-        // returned successfully.
+        // intensity (a temperature delta).
         heatingElement.gotoTargetTemperature(
                 currentTrial.getCondition(),
                 currentTrial.getIntensity(),
-                () -> {
-                    // Log time when stimulus was started
-                    experiment.getCurrentUserResponse().setStimulusStarted(
-                            System.currentTimeMillis() / 1000.0
-                    );
-
-                    // If the stimulus period is 0 call method to pause until temperature has been
-                    // reached, otherwise call method which waits until stimulus period has passed.
-                    if (experiment.getStimulusPeriod() == 0) {
-                        this.pauseUntilTargetReached();
-                    } else {
-                        this.pauseForStimulus();
-                    }
-                },
-                (error) -> Log.e(LOG_TAG, "Could not set target setpoint: " + error)
+                onStarted,
+                onError
         );
     }
 
-    /**
-     * Instructs the app to pause until a given target temperature has been reached. This method
-     * should only be called in conjunction with a call to `gotoTargetTemperature()`.
-     */
-    private void pauseUntilTargetReached() {
+    @Override
+    public void onStimulusStarted(long durationMs) {
+        // Log time when stimulus was started
+        experiment.getCurrentUserResponse().setStimulusStarted(this.getStimulusOnset());
+
+        // Without a stimulus period, the participant is asked to wait for the target temperature
+        if (durationMs == 0) {
+            return;
+        }
+
+        feelItButton.setEnabled(true);
+
+        // Adjust the label depending on whether the current trial has audio
+        if (!experiment.getCurrentTrial().hasAudio()) {
+            tempChangeLabel.setText(R.string.wait_stimulus);
+        } else {
+            tempChangeLabel.setText(R.string.playing_audio);
+        }
+    }
+
+    @Override
+    public void awaitTarget(HeatingElement.SuccessCallback onReached, HeatingElement.ErrorCallback onError) {
         // Update the UI label informing the user to wait
         tempChangeLabel.setText(R.string.wait_temperature);
 
         // Get current trial
         Trial currentTrial = experiment.getCurrentTrial();
 
-        // Wait for the temperature to `heat`/`cool` with the given delta and a timeout of 10s
-        heatingElement.onTemperatureReached(currentTrial.getCondition(), currentTrial.getIntensity(), 10000, temp -> {
-            // Temperature was reached, start audio file
-            Log.d(LOG_TAG, "Target temperature reached, playing audio file");
+        // Size the timeout from the predicted time until the target is reached, falling back to
+        // 10s as long as the thermal model has not been fitted yet
+        long timeoutMs = heatingElement.estimateTimeout(currentTrial.getCondition(), currentTrial.getIntensity(), 10000);
+        Log.d(LOG_TAG, "Waiting for target temperature with a timeout of " + timeoutMs + "ms");
+
+        // Wait for the temperature to `heat`/`cool` with the given delta
+        targetWatch = heatingElement.onTemperatureReached(currentTrial.getCondition(), currentTrial.getIntensity(), timeoutMs, temp -> {
+            // Temperature was reached or the wait timed out, start audio file either way
+            if (temp == -1) {
+                Log.w(LOG_TAG, "Target temperature not reached within " + timeoutMs + "ms, playing audio file");
+            } else {
+                Log.d(LOG_TAG, "Target temperature reached, playing audio file");
+            }
+
             tempChangeLabel.setText(R.string.playing_audio);
             feelItButton.setEnabled(true);
 
-            // Load audio file and play it
-            loadAudioFile();
+            onReached.apply();
+        }, onError::apply);
+    }
+
+    @Override
+    public long prepareAudio() {
+        if (!experiment.getCurrentTrial().hasAudio()) {
+            return -1;
+        }
+
+        if (experiment.isPcmAudio()) {
+            pcmClip = PcmClipCache.getInstance().get(this.getAudioPath(experiment.getCurrentTrial()).getAbsolutePath());
+            return (pcmClip == null) ? -1 : this.getAudioStartTime(pcmClip.getDurationMs());
+        }
+
+        this.loadAudioFile();
+        return (audioPlayer == null) ? -1 : this.getAudioStartTime(audioPlayer.getDuration());
+    }
+
+    @Override
+    public void playAudio(long atNs, HeatingElement.SuccessCallback onFinished) {
+        if (experiment.isPcmAudio()) {
+            this.playPcmAudio(atNs, onFinished);
+            return;
+        }
+
+        if (audioPlayer == null) {
+            onFinished.apply();
+            return;
+        }
+
+        // Stop the player and release it after the clip has finished
+        audioPlayer.setOnCompletionListener(mp -> {
+            Log.d(LOG_TAG, "Clip finished playing");
+
+            this.releaseAudio();
+            onFinished.apply();
+        });
+
+        // The media player cannot be started at a given time, so start it with a timer
+        long delayMs = Math.max(0, (atNs - SystemClock.elapsedRealtimeNanos()) / 1_000_000);
+
+        new Handler().postDelayed(() -> {
+            // The stimulus may have ended in the meantime
+            if (audioPlayer == null) {
+                return;
+            }
+
             audioPlayer.start();
+            experiment.getCurrentUserResponse().setAudioOnset(experiment.getSessionClock().now());
+        }, delayMs);
+    }
 
-            // Stop the player and release it after the clip has finished
-            audioPlayer.setOnCompletionListener(mp -> {
+    /**
+     * Plays the decoded clip of the current trial with the PCM audio engine, such that its first
+     * frame is heard at the given time. The time the first frame was actually presented is stored
+     * with the response of the user.
+     *
+     * @param atNs Time as returned by `SystemClock.elapsedRealtimeNanos()` at which the clip should start
+     * @param onFinished Callback invoked once the clip has finished playing
+     */
+    private void playPcmAudio(long atNs, HeatingElement.SuccessCallback onFinished) {
+        if (pcmClip == null) {
+            onFinished.apply();
+            return;
+        }
+
+        pcmEngine = new PcmAudioEngine(pcmClip, atNs, new PcmAudioEngine.Listener() {
+            @Override
+            public void onOnset(long onsetNs, long errorNs) {
+                Log.d(LOG_TAG, "Clip started " + (errorNs / 1000) + "us from target");
+
+                SessionClock clock = experiment.getSessionClock();
+                experiment.getCurrentUserResponse().setAudioOnset(clock.toSessionTime(onsetNs));
+            }
+
+            @Override
+            public void onFinished() {
                 Log.d(LOG_TAG, "Clip finished playing");
 
-                audioPlayer.stop();
-                audioPlayer.release();
+                pcmEngine = null;
+                onFinished.apply();
+            }
+        });
+
+        pcmEngine.start();
+    }
+
+    @Override
+    public void onStimulusEnded() {
+        // Stop waveform playback if it is still running
+        if (sequencer != null) {
+            sequencer.stop();
+        }
+
+        // Stop and release audio player if current trial had audio
+        this.releaseAudio();
+
+        // The stimulus is over, so prepare the next trial while the participant responds
+        if (experiment.isPipelinedTransitions()) {
+            this.startPipelinedTransition();
+        }
+
+        this.prefetchAudio(experiment.getCurrentTrialIndex() + 1);
+    }
+
+    @Override
+    public void onStimulusFelt(long timeNs) {
+        tempChangeLabel.setText(R.string.pressed_stimulus);
+        feelItButton.setEnabled(false);
+
+        // Store timestamp when the button was pressed
+        SessionClock clock = experiment.getSessionClock();
+        experiment.getCurrentUserResponse().setStimulusFelt(clock.toSessionTime(timeNs));
+    }
+
+    @Override
+    public void onDeviceError(String message, VolleyError error, Runnable retry) {
+        // A waveform which could not be started is started again from the beginning on retry
+        if (sequencer != null) {
+            sequencer.stop();
+        }
+
+        this.showDeviceError(message, error, retry);
+    }
+
+    @Override
+    public void onStopped() {
+        // Stop waveform playback and the audio if they are still running
+        if (sequencer != null) {
+            sequencer.stop();
+        }
+
+        this.releaseAudio();
+
+        // Stop watching the temperature. The return to baseline is only left running once the
+        // rating has been started, as the next trial credits it against its adaptation period
+        if (targetWatch != null) {
+            targetWatch.cancel();
+            targetWatch = null;
+        }
+
+        if (baselineWatch != null && machine.getPhase() != TrialStateMachine.Phase.RATING) {
+            baselineWatch.cancel();
+            baselineWatch = null;
+        }
+    }
+
+    /**
+     * Returns the session time at which the last setpoint change took effect on the first
+     * heating element. If the elements report when they apply a setpoint, their time is mapped
+     * onto the tablet's clock, otherwise the arrival of the acknowledgement is used.
+     *
+     * @return Onset of the stimulus in nanoseconds of session time
+     */
+    private long getStimulusOnset() {
+        SessionClock clock = experiment.getSessionClock();
+        HeatingElementGroup.DispatchReport dispatch = heatingElement.getLastDispatch();
+
+        if (dispatch == null) {
+            return clock.now();
+        }
 
-                // Wait for user interaction
-                waitForButtonPress();
-            });
-        }, error -> {});
+        return clock.toSessionTime(dispatch.getOnsetTime());
     }
 
     /**
-     * Loads the audio file for the current trial and prepares it.
+     * Loads the audio file for the current trial and prepares it. The player prepared in the
+     * background is used if there is one, otherwise the file is loaded on the spot.
      */
     private void loadAudioFile() {
-        // Get current trial and init audio player object
+        // Get current trial and resolve its audio file
         Trial currentTrial = experiment.getCurrentTrial();
-        audioPlayer = new MediaPlayer();
+        File audioPath = this.getAudioPath(currentTrial);
 
-        // Load audio file from storage
-        File experimentDir = new File(Environment.getExternalStorageDirectory(), getResources().getString(R.string.app_name));
-        File audioPath = new File(experimentDir, currentTrial.getAudioFile());
+        audioPlayer = PreparedPlayerCache.getInstance().take(audioPath.getAbsolutePath());
+
+        if (audioPlayer != null) {
+            Log.d(LOG_TAG, "Using audio file prepared in background: " + audioPath.getAbsolutePath());
+            return;
+        }
 
         // Set up player
         try {
             Log.d(LOG_TAG, "Loading audio file from: " + audioPath.getAbsolutePath());
-            audioPlayer.setDataSource(audioPath.getAbsolutePath());
-            audioPlayer.prepare();
+            audioPlayer = PreparedPlayerCache.preparePlayer(audioPath.getAbsolutePath());
         } catch (IOException ioe) {
             Log.e(LOG_TAG, "Could not prepare audio file: " + ioe);
         }
     }
 
+    /**
+     * Starts preparing the audio files of the trials from the given index onwards in the
+     * background, up to the number of trials given by the experiment config beyond the current
+     * one.
+     *
+     * @param fromIndex Index of the first trial to prepare
+     */
+    private void prefetchAudio(int fromIndex) {
+        int toIndex = Math.min(experiment.getTrials().size(), experiment.getCurrentTrialIndex() + 1 + experiment.getAudioPrefetch());
+
+        for (int i = fromIndex; i < toIndex; i++) {
+            Trial trial = experiment.getTrials().get(i);
+
+            if (!trial.hasAudio()) {
+                continue;
+            }
+
+            // Decoded clips are kept for the session, prepared players only until they are used
+            String path = this.getAudioPath(trial).getAbsolutePath();
+
+            if (experiment.isPcmAudio()) {
+                PcmClipCache.getInstance().prefetch(path);
+            } else {
+                PreparedPlayerCache.getInstance().prefetch(path);
+            }
+        }
+    }
+
+    /**
+     * Stops and releases the audio player and stops the PCM audio engine, if any.
+     */
+    private void releaseAudio() {
+        if (audioPlayer != null) {
+            audioPlayer.stop();
+            audioPlayer.release();
+            audioPlayer = null;
+        }
+
+        if (pcmEngine != null) {
+            pcmEngine.stop();
+            pcmEngine = null;
+        }
+    }
+
+    /**
+     * Returns the location of the audio file of the given trial in external storage.
+     *
+     * @param trial The trial
+     * @return Path of the audio file
+     */
+    private File getAudioPath(Trial trial) {
+        File experimentDir = new File(Environment.getExternalStorageDirectory(), getResources().getString(R.string.app_name));
+        return new File(experimentDir, trial.getAudioFile());
+    }
+
+    /**
+     * Returns the duration of the stimulus. This is the stimulus period given in the experiment
+     * config or, if there is none, the duration of the waveform of the current trial.
+     *
+     * @return Stimulus duration in milliseconds
+     */
+    private int getStimulusDuration() {
+        Trial currentTrial = experiment.getCurrentTrial();
+
+        if (experiment.getStimulusPeriod() == 0 && currentTrial.hasWaveform()) {
+            return (int) Math.round(currentTrial.getWaveform().getDuration() * 1000);
+        }
+
+        return experiment.getStimulusPeriod() * 1000;
+    }
+
     /**
      * Returns the start time for an audio clip with the given length based on clip alignment,
-     * stimulus length and alignment correction given in the experiment config.
+     * stimulus length and alignment correction given in the experiment config. The output latency
+     * measured for the audio engine on this device, if any, is subtracted, so that the clip is
+     * heard at the intended time.
      *
      * @param audioDuration Duration of the audio clip we want to play
      * @return The calculated clip start time, factoring in experiment config
@@ -249,8 +602,9 @@ public class TemperatureChangeActivity extends AppCompatActivity {
 
         // Get clip alignment, stimulus length and clip alignment from experiment config
         String clipAlignment = experiment.getClipAlignment();
-        int stimulusDuration = experiment.getStimulusPeriod() * 1000;
-        int alignmentCorrection = (int)Math.round(experiment.getAlignmentCorrection() * 1000);
+        int stimulusDuration = this.getStimulusDuration();
+        double latencyCorrection = AudioLatencyCalibration.getCorrectionMs(this, experiment.getAudioEngine());
+        int alignmentCorrection = (int)Math.round(experiment.getAlignmentCorrection() * 1000 - latencyCorrection);
 
         // Calculate start time based on clip length and experiment config
         if (audioDuration > stimulusDuration) {
@@ -266,91 +620,43 @@ public class TemperatureChangeActivity extends AppCompatActivity {
     }
 
     /**
-     * Pauses the app for the time given by the experiment file and plays the audio clip associated
-     * with the current trial if available.
+     * Starts the transition to the next trial right after the stimulus has ended. The heating
+     * element is returned to baseline and the time it settles there is passed to the pipeline, so
+     * that the next trial can credit it against its adaptation period.
      */
-    private void pauseForStimulus() {
-        Trial currentTrial = experiment.getCurrentTrial();
-        feelItButton.setEnabled(true);
-
-        // Adjust the label depending on whether the current trial has audio
-        if (!currentTrial.hasAudio()) {
-            tempChangeLabel.setText(R.string.wait_stimulus);
-        } else {
-            tempChangeLabel.setText(R.string.playing_audio);
-        }
-
-        Log.d(LOG_TAG, "Pausing for stimulus for " + experiment.getStimulusPeriod() + " seconds");
-
-        // Load audio file and start playing it after the calculated time if trial has audio
-        if (currentTrial.hasAudio()) {
-            this.loadAudioFile();
-            int startTimeMs = this.getAudioStartTime(audioPlayer.getDuration());
-
-            Log.d(LOG_TAG, "Starting audio playback after " + startTimeMs + "ms");
-            new Handler().postDelayed(audioPlayer::start, startTimeMs);
+    private void startPipelinedTransition() {
+        if (baselineReturnStarted) {
+            return;
         }
 
-        // Show countdown during the stimulus period
-        CountDownTimer countdown = new CountDownTimer(experiment.getStimulusPeriod() * 1000, 1000) {
-            @Override
-            public void onTick(long millisUntilFinished) {
-                // Update countdown label after each tick
-                String msg = getApplicationContext().getString(R.string.number, millisUntilFinished / 1000);
-                countdownLabel.setText(msg);
-            }
+        TrialPipeline pipeline = TrialPipeline.getInstance();
+        baselineReturnStarted = true;
+        pipeline.setBaselineRequested();
 
-            @Override
-            public void onFinish() {
-                // Set countdown to zero after countdown has expired
-                countdownLabel.setText(R.string.zero);
+        // Return to baseline and watch the temperature until it has settled there
+        long startedAt = SystemClock.elapsedRealtime();
+        heatingElement.returnToBaseline(() -> {
+            // The trial may have been stopped before the baseline setpoint was acknowledged
+            if (machine.isStopped() && machine.getPhase() != TrialStateMachine.Phase.RATING) {
+                return;
             }
-        }.start();
 
-        // Stop and release audio player and call method to wait for user input after stimulus
-        // period has elapsed
-        new Handler().postDelayed(() -> {
-            Log.d(LOG_TAG, "Stimulus wait period passed");
-            countdown.cancel();
+            long timeoutMs = heatingElement.estimateTimeout("baseline", 0, 30000);
 
-            // Stop and release audio player if current trial had audio
-            if (audioPlayer != null) {
-                audioPlayer.stop();
-                audioPlayer.release();
-            }
-
-            // Wait for user interaction
-            waitForButtonPress();
-        }, experiment.getStimulusPeriod() * 1000);
-    }
+            baselineWatch = heatingElement.onTemperatureReached("baseline", 0, timeoutMs, temp -> {
+                if (temp == -1) {
+                    Log.w(LOG_TAG, "Baseline temperature not reached within " + timeoutMs + "ms");
+                    return;
+                }
 
-    /**
-     * Checks whether the user has pressed the 'I feel it button' already and launches the rating
-     * activity if so. Otherwise it keeps waiting for the user to press the button. Moreover, if
-     * the current trial has had an audio file associated to it, the next activity is launched
-     * directly.
-     */
-    private void waitForButtonPress() {
-        // IF the current trial has an audio file, launch the next activity directly
-        if (experiment.getCurrentTrial().hasAudio()) {
-            experiment.getCurrentUserResponse().setStimulusFelt(
-                    System.currentTimeMillis() / 1000.0
+                Log.d(LOG_TAG, "Baseline temperature reached after " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+                pipeline.setBaselineReached();
+            }, error ->
+                Log.e(LOG_TAG, "Could not watch baseline temperature: " + error)
             );
-            launchRatingActivity();
-        }
-
-        // Check whether the button was pressed before
-        if (feelItButtonPressed) {
-            launchRatingActivity();
-        } else {
-            // Install new handler that waits for the button press and logs the timestamp
-            feelItButton.setOnClickListener(v -> {
-                experiment.getCurrentUserResponse().setStimulusFelt(
-                        System.currentTimeMillis() / 1000.0
-                );
-                launchRatingActivity();
-            });
-        }
+        }, error ->
+            Log.e(LOG_TAG, "Could not return to baseline temperature: " + error)
+        );
     }
 
     /**
@@ -358,12 +664,17 @@ public class TemperatureChangeActivity extends AppCompatActivity {
      * user will rate their experience during the trial.
      */
     private void launchRatingActivity() {
-        // Return the heating element to baseline temperature
-        heatingElement.returnToBaseline(() ->
-            Log.d(LOG_TAG, "Returned to baseline temperature")
-        , error ->
-            Log.e(LOG_TAG, "Could not return to baseline temperature: " + error)
-        );
+        // Return the heating element to baseline temperature, unless that has happened already at
+        // the end of the stimulus
+        if (!baselineReturnStarted) {
+            baselineReturnStarted = true;
+
+            heatingElement.returnToBaseline(() ->
+                Log.d(LOG_TAG, "Returned to baseline temperature")
+            , error ->
+                Log.e(LOG_TAG, "Could not return to baseline temperature: " + error)
+            );
+        }
 
         Intent ratingIntent;
 
@@ -374,8 +685,9 @@ public class TemperatureChangeActivity extends AppCompatActivity {
             ratingIntent = new Intent(this, ManikinRatingActivity.class);
         }
 
-        // Pass experiment config to next activity and launch it
-        ratingIntent.putExtra("experiment", experiment);
+        // Save the timestamps of the trial, pass the session to next activity and launch it
+        SessionStore.getInstance(this).checkpoint(sessionId);
+        ratingIntent.putExtra(SessionStore.EXTRA_SESSION_ID, sessionId);
         startActivity(ratingIntent);
     }
 
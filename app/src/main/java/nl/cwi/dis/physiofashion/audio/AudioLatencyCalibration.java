@@ -0,0 +1,444 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaPlayer;
+import android.media.MediaTimestamp;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class measures the delay between asking a playback engine to start a clip and the clip
+ * actually leaving the audio output of the tablet. It plays a short test tone a number of times
+ * through the given engine and takes the time its first frame was presented from the timestamps
+ * of the audio output. For the media player, the latency is measured from the call to `start()`;
+ * for the PCM audio engine, which schedules its clips, it is the difference between the requested
+ * and the actual onset.
+ *
+ * The median latency of a calibration run is stored per engine and device model in the shared
+ * preferences of the app, and is subtracted from the start time of every clip by
+ * TemperatureChangeActivity. Until an engine has been calibrated on a device, its correction is
+ * zero.
+ */
+public class AudioLatencyCalibration {
+    private static final String LOG_TAG = "AudioLatencyCalibration";
+    private static final String PREFERENCES = "audio_latency";
+
+    public static final String ENGINE_MEDIAPLAYER = "mediaplayer";
+    public static final String ENGINE_PCM = "pcm";
+
+    private static final int TONE_SAMPLE_RATE = 48000;
+    private static final int TONE_FREQUENCY = 1000;
+    private static final int TONE_MS = 200;
+    private static final int TONE_RAMP_MS = 5;
+
+    private static final long PCM_LEAD_TIME_MS = 200;
+    private static final long PAUSE_MS = 300;
+    private static final long TIMESTAMP_POLL_MS = 10;
+    private static final long TIMESTAMP_TIMEOUT_MS = 1000;
+
+    /**
+     * Type definition for a callback receiving the result of a calibration run.
+     */
+    @FunctionalInterface
+    public interface ResultCallback {
+        void apply(Result result);
+    }
+
+    /**
+     * Type definition for a callback receiving a single latency measurement.
+     */
+    @FunctionalInterface
+    private interface LatencyCallback {
+        void apply(long latencyNs);
+    }
+
+    /**
+     * The distribution of latencies measured for one engine on one device model.
+     */
+    public static class Result {
+        private final String engine;
+        private final String model;
+        private final long[] latencies;
+        private final int failures;
+
+        /**
+         * Initialises a new result from the given measurements.
+         *
+         * @param engine Name of the playback engine
+         * @param model Device model the latencies were measured on
+         * @param latencies Measured latencies in nanoseconds, in any order
+         * @param failures Number of tones for which no onset could be measured
+         */
+        Result(String engine, String model, long[] latencies, int failures) {
+            this.engine = engine;
+            this.model = model;
+            this.latencies = latencies.clone();
+            this.failures = failures;
+
+            Arrays.sort(this.latencies);
+        }
+
+        /**
+         * Get the name of the playback engine.
+         *
+         * @return Name of the engine
+         */
+        public String getEngine() {
+            return engine;
+        }
+
+        /**
+         * Get the number of latencies measured.
+         *
+         * @return Number of measurements
+         */
+        public int getCount() {
+            return latencies.length;
+        }
+
+        /**
+         * Get the number of tones for which no onset could be measured.
+         *
+         * @return Number of failed measurements
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * Returns the latency below which the given fraction of all measured latencies lies,
+         * using the nearest-rank method.
+         *
+         * @param percentile Percentile between 0 and 1
+         * @return Latency in nanoseconds, or 0 if nothing has been measured
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+
+            int rank = (int) Math.ceil(percentile * latencies.length);
+            return latencies[Math.max(0, Math.min(latencies.length - 1, rank - 1))];
+        }
+
+        /**
+         * Get the mean of all measured latencies.
+         *
+         * @return Mean latency in nanoseconds, or 0 if nothing has been measured
+         */
+        public double getMean() {
+            return latencies.length == 0 ? 0 : Arrays.stream(latencies).average().orElse(0);
+        }
+
+        /**
+         * Get the correction for clip start times. This is the median latency, which is not
+         * thrown off by the occasional tone that was delayed by the system.
+         *
+         * @return Correction in milliseconds
+         */
+        public double getCorrectionMs() {
+            return this.getValueAtPercentile(0.5) / 1e6;
+        }
+
+        /**
+         * Returns a one-line summary of the distribution.
+         *
+         * @return Human-readable summary, latencies in milliseconds
+         */
+        @Override
+        public String toString() {
+            return String.format(
+                    Locale.ENGLISH,
+                    "%s on %s: n=%d failed=%d min=%.1f p50=%.1f p95=%.1f max=%.1f mean=%.1fms",
+                    engine,
+                    model,
+                    latencies.length,
+                    failures,
+                    this.getValueAtPercentile(0) / 1e6,
+                    this.getValueAtPercentile(0.5) / 1e6,
+                    this.getValueAtPercentile(0.95) / 1e6,
+                    this.getValueAtPercentile(1) / 1e6,
+                    this.getMean() / 1e6
+            );
+        }
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final PcmClip tone;
+
+    /**
+     * Initialises a new calibration.
+     *
+     * @param context Context used to store the tone for the media player and the corrections
+     */
+    public AudioLatencyCalibration(Context context) {
+        this.context = context.getApplicationContext();
+        this.handler = new Handler(Looper.getMainLooper());
+        this.tone = createTone();
+    }
+
+    /**
+     * Returns the stored latency correction of the given engine on this device model.
+     *
+     * @param context Context used to access the shared preferences
+     * @param engine Name of the playback engine
+     * @return Correction in milliseconds, or 0 if the engine has not been calibrated
+     */
+    public static double getCorrectionMs(Context context, String engine) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        return preferences.getFloat(getPreferenceKey(engine), 0);
+    }
+
+    /**
+     * Plays the test tone the given number of times through the given engine and stores the
+     * resulting correction. Must be called on the main thread; the callback is invoked on the
+     * main thread once all tones have been played.
+     *
+     * @param engine Name of the playback engine, `mediaplayer` or `pcm`
+     * @param tones Number of tones to play
+     * @param onDone Callback receiving the measured distribution
+     */
+    public void run(String engine, int tones, ResultCallback onDone) {
+        Log.d(LOG_TAG, "Calibrating " + engine + " with " + tones + " tones");
+        this.measureNext(engine, tones, new ArrayList<>(), new int[] { 0 }, onDone);
+    }
+
+    /**
+     * Measures the next tone of a calibration run, or completes the run if no tones remain.
+     *
+     * @param engine Name of the playback engine
+     * @param remaining Number of tones still to be played
+     * @param latencies Latencies measured so far
+     * @param failures Number of failed measurements so far
+     * @param onDone Callback receiving the measured distribution
+     */
+    private void measureNext(String engine, int remaining, List<Long> latencies, int[] failures, ResultCallback onDone) {
+        if (remaining <= 0) {
+            long[] values = latencies.stream().mapToLong(Long::longValue).toArray();
+            Result result = new Result(engine, Build.MODEL, values, failures[0]);
+
+            Log.d(LOG_TAG, result.toString());
+            this.store(result);
+            onDone.apply(result);
+
+            return;
+        }
+
+        // Leave a pause between tones, so that each one starts from an idle output
+        LatencyCallback onMeasured = latencyNs -> {
+            latencies.add(latencyNs);
+            handler.postDelayed(() -> this.measureNext(engine, remaining - 1, latencies, failures, onDone), PAUSE_MS);
+        };
+
+        Runnable onFailed = () -> {
+            failures[0]++;
+            handler.postDelayed(() -> this.measureNext(engine, remaining - 1, latencies, failures, onDone), PAUSE_MS);
+        };
+
+        if (engine.compareTo(ENGINE_PCM) == 0) {
+            this.measurePcm(onMeasured, onFailed);
+        } else {
+            this.measureMediaPlayer(onMeasured, onFailed);
+        }
+    }
+
+    /**
+     * Plays the tone once with the PCM audio engine and measures how far its onset was from the
+     * requested time.
+     *
+     * @param onMeasured Callback receiving the latency
+     * @param onFailed Callback invoked if the onset could not be measured
+     */
+    private void measurePcm(LatencyCallback onMeasured, Runnable onFailed) {
+        long targetNs = SystemClock.elapsedRealtimeNanos() + PCM_LEAD_TIME_MS * 1_000_000;
+        long[] errorNs = { Long.MIN_VALUE };
+
+        new PcmAudioEngine(tone, targetNs, new PcmAudioEngine.Listener() {
+            @Override
+            public void onOnset(long onsetNs, long error) {
+                errorNs[0] = error;
+            }
+
+            @Override
+            public void onFinished() {
+                if (errorNs[0] == Long.MIN_VALUE) {
+                    onFailed.run();
+                } else {
+                    onMeasured.apply(errorNs[0]);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Plays the tone once with a media player and measures the time from calling `start()` until
+     * its first frame was presented.
+     *
+     * @param onMeasured Callback receiving the latency
+     * @param onFailed Callback invoked if the onset could not be measured
+     */
+    private void measureMediaPlayer(LatencyCallback onMeasured, Runnable onFailed) {
+        MediaPlayer player;
+
+        try {
+            player = PreparedPlayerCache.preparePlayer(this.getToneFile().getAbsolutePath());
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, "Could not prepare test tone: " + ioe);
+            onFailed.run();
+            return;
+        }
+
+        long startedAt = SystemClock.elapsedRealtimeNanos();
+        player.start();
+
+        this.pollMediaTimestamp(player, startedAt, onMeasured, onFailed);
+    }
+
+    /**
+     * Reads the timestamp of the given player until playback has advanced, and derives the time
+     * the first frame was presented from it. The player is released afterwards.
+     *
+     * @param player The playing media player
+     * @param startedAt Time `start()` was called
+     * @param onMeasured Callback receiving the latency
+     * @param onFailed Callback invoked if the player did not report a timestamp in time
+     */
+    private void pollMediaTimestamp(MediaPlayer player, long startedAt, LatencyCallback onMeasured, Runnable onFailed) {
+        MediaTimestamp timestamp = player.getTimestamp();
+
+        if (timestamp != null && timestamp.getMediaClockRate() > 0 && timestamp.getAnchorMediaTimeUs() > 0) {
+            // The anchor maps a position in the clip to the time it was presented, on the
+            // monotonic clock
+            long clockOffset = SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+            long onsetNs = timestamp.getAnchorSytemNanoTime() + clockOffset
+                    - Math.round(timestamp.getAnchorMediaTimeUs() * 1000 / timestamp.getMediaClockRate());
+
+            player.release();
+            onMeasured.apply(onsetNs - startedAt);
+
+            return;
+        }
+
+        if (SystemClock.elapsedRealtimeNanos() - startedAt > TIMESTAMP_TIMEOUT_MS * 1_000_000) {
+            Log.w(LOG_TAG, "Media player did not report a timestamp");
+
+            player.release();
+            onFailed.run();
+
+            return;
+        }
+
+        handler.postDelayed(() -> this.pollMediaTimestamp(player, startedAt, onMeasured, onFailed), TIMESTAMP_POLL_MS);
+    }
+
+    /**
+     * Stores the correction of the given result for its engine and this device model.
+     *
+     * @param result The result of a calibration run
+     */
+    private void store(Result result) {
+        if (result.getCount() == 0) {
+            Log.w(LOG_TAG, "No latencies measured, keeping previous correction");
+            return;
+        }
+
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+                .edit()
+                .putFloat(getPreferenceKey(result.getEngine()), (float) result.getCorrectionMs())
+                .apply();
+    }
+
+    /**
+     * Returns the file holding the test tone for the media player, writing it if it does not
+     * exist yet.
+     *
+     * @return The tone as a WAV file
+     * @throws IOException If the file could not be written
+     */
+    private File getToneFile() throws IOException {
+        File file = new File(context.getCacheDir(), "calibration_tone.wav");
+
+        if (!file.exists()) {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(toWav(tone));
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Returns the key under which the correction of the given engine on this device model is
+     * stored.
+     */
+    private static String getPreferenceKey(String engine) {
+        return engine + "@" + Build.MANUFACTURER + " " + Build.MODEL;
+    }
+
+    /**
+     * Creates the test tone, a sine wave whose beginning and end are faded, so that it starts
+     * without a click.
+     *
+     * @return The tone
+     */
+    static PcmClip createTone() {
+        int frames = TONE_SAMPLE_RATE * TONE_MS / 1000;
+        int rampFrames = TONE_SAMPLE_RATE * TONE_RAMP_MS / 1000;
+        short[] samples = new short[frames];
+
+        for (int i = 0; i < frames; i++) {
+            double envelope = Math.min(1, Math.min(i, frames - 1 - i) / (double) rampFrames);
+            double value = Math.sin(2 * Math.PI * TONE_FREQUENCY * i / TONE_SAMPLE_RATE);
+
+            samples[i] = (short) Math.round(envelope * value * Short.MAX_VALUE * 0.5);
+        }
+
+        return new PcmClip(samples, TONE_SAMPLE_RATE, 1);
+    }
+
+    /**
+     * Encodes the given clip as a 16-bit PCM WAV file.
+     *
+     * @param clip The clip
+     * @return Contents of the WAV file
+     */
+    static byte[] toWav(PcmClip clip) {
+        short[] samples = clip.getSamples();
+        int dataSize = samples.length * 2;
+        int blockAlign = clip.getChannelCount() * 2;
+
+        ByteBuffer buffer = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        // RIFF header, format chunk and data chunk
+        buffer.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(36 + dataSize).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        buffer.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16).putShort((short) 1)
+                .putShort((short) clip.getChannelCount())
+                .putInt(clip.getSampleRate())
+                .putInt(clip.getSampleRate() * blockAlign)
+                .putShort((short) blockAlign)
+                .putShort((short) 16);
+        buffer.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(dataSize);
+
+        for (short sample : samples) {
+            buffer.putShort(sample);
+        }
+
+        return buffer.array();
+    }
+}
@@ -0,0 +1,256 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Plays a decoded clip on a streaming audio track such that its first frame is heard at a given
+ * time. The track starts right away with silence, and the clip is placed at the frame which the
+ * track will play at the target time. Where that frame is, is taken from the timestamps of the
+ * audio output (frame position and the time it was presented) as soon as the track reports them,
+ * and estimated from the start of the track until then. The onset is therefore positioned by
+ * frame count rather than by a timer, and does not depend on the scheduling of the main thread or
+ * on the start-up latency of a player.
+ *
+ * Once the clip has started playing, the time its first frame was actually presented is computed
+ * from a timestamp and reported to the listener. All times are in nanoseconds as returned by
+ * `SystemClock.elapsedRealtimeNanos()`. Listener callbacks arrive on the main thread.
+ */
+public class PcmAudioEngine {
+    private static final String LOG_TAG = "PcmAudioEngine";
+
+    /**
+     * Duration of the chunks of silence written before the onset. Shorter chunks allow the onset
+     * to be placed more accurately once timestamps are available.
+     */
+    private static final int SILENCE_CHUNK_MS = 5;
+    private static final int CLIP_CHUNK_MS = 20;
+    private static final long POLL_INTERVAL_MS = 5;
+
+    /**
+     * Listener receiving the onset and the end of playback.
+     */
+    public interface Listener {
+        /**
+         * Called once the time the first frame of the clip was presented is known.
+         *
+         * @param onsetNs Presentation time of the first frame
+         * @param errorNs Difference between the actual and the target onset
+         */
+        void onOnset(long onsetNs, long errorNs);
+
+        /**
+         * Called once the clip has finished playing or playback was stopped.
+         */
+        void onFinished();
+    }
+
+    private final PcmClip clip;
+    private final long targetNs;
+    private final Listener listener;
+    private final Handler handler;
+    private final Thread thread;
+    private final AudioTimestamp timestamp;
+
+    private volatile boolean stopped;
+
+    /**
+     * Initialises a new engine for the given clip. Playback does not start until `start()` is
+     * called.
+     *
+     * @param clip The clip to play
+     * @param targetNs Time at which the first frame of the clip should be heard
+     * @param listener Listener receiving the onset and the end of playback
+     */
+    public PcmAudioEngine(PcmClip clip, long targetNs, Listener listener) {
+        this.clip = clip;
+        this.targetNs = targetNs;
+        this.listener = listener;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.timestamp = new AudioTimestamp();
+
+        this.thread = new Thread(this::run, "PcmAudioEngine");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the track and the thread writing to it.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops playback. The listener is still notified that playback has finished.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns the frame of a track which is presented at the given time, given a timestamp of the
+     * track.
+     *
+     * @param timeNs The time
+     * @param stampFrame Frame position of the timestamp
+     * @param stampNs Presentation time of the frame of the timestamp
+     * @param sampleRate Sample rate of the track in Hz
+     * @return The frame presented at the given time
+     */
+    static long frameAt(long timeNs, long stampFrame, long stampNs, int sampleRate) {
+        return stampFrame + Math.round((timeNs - stampNs) * (double) sampleRate / 1e9);
+    }
+
+    /**
+     * Returns the time at which the given frame of a track is presented, given a timestamp of the
+     * track.
+     *
+     * @param frame The frame
+     * @param stampFrame Frame position of the timestamp
+     * @param stampNs Presentation time of the frame of the timestamp
+     * @param sampleRate Sample rate of the track in Hz
+     * @return Presentation time of the frame
+     */
+    static long timeOfFrame(long frame, long stampFrame, long stampNs, int sampleRate) {
+        return stampNs + Math.round((frame - stampFrame) * 1e9 / sampleRate);
+    }
+
+    /**
+     * Reads a timestamp from the track and converts its time to the clock of `elapsedRealtimeNanos`.
+     *
+     * @return Presentation time of `timestamp.framePosition`, or -1 if the track has no timestamp yet
+     */
+    private long readTimestamp(AudioTrack track) {
+        if (!track.getTimestamp(timestamp)) {
+            return -1;
+        }
+
+        // Timestamps are given on the monotonic clock, which stops during deep sleep
+        long clockOffset = SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+        return timestamp.nanoTime + clockOffset;
+    }
+
+    /**
+     * Plays the clip. Runs on the engine thread.
+     */
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        int sampleRate = clip.getSampleRate();
+        int channels = clip.getChannelCount();
+
+        short[] silence = new short[sampleRate * SILENCE_CHUNK_MS / 1000 * channels];
+        long written = 0;
+        long onsetFrame;
+        AudioTrack track = null;
+
+        try {
+            track = this.createTrack(sampleRate, channels);
+            track.play();
+            long playedAt = SystemClock.elapsedRealtimeNanos();
+
+            // Write silence until the frame presented at the target time has been reached. The
+            // frame is re-estimated after every chunk, since timestamps only become available
+            // some time after the track has started.
+            while (true) {
+                long stampNs = this.readTimestamp(track);
+                long targetFrame = stampNs < 0
+                        ? frameAt(targetNs, 0, playedAt, sampleRate)
+                        : frameAt(targetNs, timestamp.framePosition, stampNs, sampleRate);
+
+                if (stopped || targetFrame <= written) {
+                    onsetFrame = written;
+                    break;
+                }
+
+                int frames = (int) Math.min(silence.length / channels, targetFrame - written);
+                track.write(silence, 0, frames * channels, AudioTrack.WRITE_BLOCKING);
+                written += frames;
+            }
+
+            // Write the clip in chunks, so that playback can be stopped
+            short[] samples = clip.getSamples();
+            int chunk = sampleRate * CLIP_CHUNK_MS / 1000 * channels;
+
+            for (int offset = 0; offset < samples.length && !stopped; offset += chunk) {
+                track.write(samples, offset, Math.min(chunk, samples.length - offset), AudioTrack.WRITE_BLOCKING);
+            }
+
+            long endFrame = onsetFrame + clip.getFrameCount();
+            boolean onsetReported = false;
+
+            // Report the onset once a timestamp is available and wait for the clip to be played
+            while (!stopped) {
+                long stampNs = this.readTimestamp(track);
+
+                if (!onsetReported && stampNs >= 0) {
+                    long onsetNs = timeOfFrame(onsetFrame, timestamp.framePosition, stampNs, sampleRate);
+                    onsetReported = true;
+
+                    Log.d(LOG_TAG, String.format(
+                            Locale.ENGLISH,
+                            "Clip onset at frame %d, %.2fms from target",
+                            onsetFrame,
+                            (onsetNs - targetNs) / 1e6
+                    ));
+
+                    handler.post(() -> listener.onOnset(onsetNs, onsetNs - targetNs));
+                }
+
+                if ((track.getPlaybackHeadPosition() & 0xFFFFFFFFL) >= endFrame) {
+                    break;
+                }
+
+                SystemClock.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Could not play clip: " + e);
+        } finally {
+            // Releasing the track also stops it
+            if (track != null) {
+                track.release();
+            }
+
+            handler.post(listener::onFinished);
+        }
+    }
+
+    /**
+     * Creates a streaming track for 16-bit PCM with the given format.
+     */
+    private AudioTrack createTrack(int sampleRate, int channels) {
+        int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+
+        AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channelMask)
+                        .build())
+                .setBufferSizeInBytes(minBufferSize)
+                .setTransferMode(AudioTrack.MODE_STREAM);
+
+        // The low latency path can only be requested from API 26 on, older versions use the
+        // default path, whose latency is covered by the calibration of the engine
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+        }
+
+        return builder.build();
+    }
+}
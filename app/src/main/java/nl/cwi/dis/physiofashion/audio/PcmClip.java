@@ -0,0 +1,184 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * An audio clip decoded to 16-bit PCM in memory. Samples of all channels are interleaved. Clips
+ * are immutable, so a decoded clip can be played any number of times.
+ */
+public class PcmClip {
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private final short[] samples;
+    private final int sampleRate;
+    private final int channelCount;
+
+    /**
+     * Initialises a new clip from the given samples.
+     *
+     * @param samples Interleaved 16-bit samples
+     * @param sampleRate Sample rate in Hz
+     * @param channelCount Number of channels
+     */
+    public PcmClip(short[] samples, int sampleRate, int channelCount) {
+        this.samples = samples;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+    }
+
+    /**
+     * Decodes the first audio track of the file at the given path, e.g. an `.m4a` file, to PCM.
+     * Blocks until the entire file has been decoded.
+     *
+     * @param path Absolute path of the audio file
+     * @return The decoded clip
+     * @throws IOException If the file could not be read or contains no audio track
+     */
+    public static PcmClip decode(String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+
+        try {
+            extractor.setDataSource(path);
+
+            // Find the first audio track of the file
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+
+            if (format == null) {
+                throw new IOException("No audio track in " + path);
+            }
+
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            short[] samples = new short[sampleRate * channelCount];
+            int sampleCount = 0;
+            boolean inputDone = false;
+
+            while (true) {
+                // Feed the decoder with compressed samples until the end of the track
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+
+                    if (inputIndex >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(inputIndex), 0);
+
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                // Collect the decoded samples
+                int outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (outputIndex >= 0) {
+                    ByteBuffer output = codec.getOutputBuffer(outputIndex);
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+
+                    ShortBuffer pcm = output.order(ByteOrder.nativeOrder()).asShortBuffer();
+                    int count = pcm.remaining();
+
+                    if (sampleCount + count > samples.length) {
+                        samples = Arrays.copyOf(samples, Math.max(samples.length * 2, sampleCount + count));
+                    }
+
+                    pcm.get(samples, sampleCount, count);
+                    sampleCount += count;
+
+                    codec.releaseOutputBuffer(outputIndex, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+
+            return new PcmClip(Arrays.copyOf(samples, sampleCount), sampleRate, channelCount);
+        } finally {
+            if (codec != null) {
+                codec.stop();
+                codec.release();
+            }
+
+            extractor.release();
+        }
+    }
+
+    /**
+     * Get the interleaved samples of the clip. The array must not be modified.
+     *
+     * @return The samples
+     */
+    public short[] getSamples() {
+        return samples;
+    }
+
+    /**
+     * Get the sample rate of the clip.
+     *
+     * @return Sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the number of channels of the clip.
+     *
+     * @return Number of channels
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Get the length of the clip in frames, i.e. in samples per channel.
+     *
+     * @return Number of frames
+     */
+    public int getFrameCount() {
+        return samples.length / channelCount;
+    }
+
+    /**
+     * Get the duration of the clip.
+     *
+     * @return Duration in milliseconds
+     */
+    public int getDurationMs() {
+        return (int) (this.getFrameCount() * 1000L / sampleRate);
+    }
+}
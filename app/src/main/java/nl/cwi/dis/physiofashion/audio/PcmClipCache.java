@@ -0,0 +1,136 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class holds audio clips decoded to PCM, so that each clip is only decoded once per session.
+ * Clips are decoded one after another on a background thread. The cache holds at most a fixed
+ * number of clips; when a further clip is prefetched, the clip which was used least recently is
+ * evicted. As decoded clips are immutable, a clip stays in the cache after it has been played and
+ * can be played again by a later trial. There is a single, process-wide cache.
+ */
+public class PcmClipCache {
+    private static final String LOG_TAG = "PcmClipCache";
+    public static final int DEFAULT_CAPACITY = 4;
+
+    private static PcmClipCache instance;
+
+    private final ExecutorService executor;
+    private final LinkedHashMap<String, Future<PcmClip>> clips;
+    private int capacity;
+
+    /**
+     * Initialises a new cache and its background thread.
+     *
+     * @param capacity Maximum number of clips held
+     */
+    private PcmClipCache(int capacity) {
+        this.executor = Executors.newSingleThreadExecutor();
+        this.capacity = capacity;
+
+        // Iterate from the least to the most recently used clip
+        this.clips = new LinkedHashMap<>(capacity + 1, 0.75f, true);
+    }
+
+    /**
+     * Returns the shared cache, creating it if it does not exist yet.
+     *
+     * @return The shared cache
+     */
+    public static synchronized PcmClipCache getInstance() {
+        if (instance == null) {
+            instance = new PcmClipCache(DEFAULT_CAPACITY);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Sets the maximum number of clips held, evicting clips if there are more.
+     *
+     * @param capacity Maximum number of clips, at least one
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.evict();
+    }
+
+    /**
+     * Starts decoding the audio file at the given path in the background, unless the cache
+     * already holds it.
+     *
+     * @param path Absolute path of the audio file
+     */
+    public synchronized void prefetch(String path) {
+        // Looking up the clip marks it as recently used
+        if (clips.get(path) != null) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "Decoding audio file in background: " + path);
+
+        clips.put(path, executor.submit(() -> PcmClip.decode(path)));
+        this.evict();
+    }
+
+    /**
+     * Returns the decoded clip for the audio file at the given path, decoding it first if it has
+     * not been prefetched and waiting for the decoder if it is still running. Returns `null` if
+     * the file could not be decoded.
+     *
+     * @param path Absolute path of the audio file
+     * @return The decoded clip or `null`
+     */
+    public PcmClip get(String path) {
+        Future<PcmClip> clip;
+
+        synchronized (this) {
+            clip = clips.get(path);
+        }
+
+        try {
+            if (clip != null) {
+                return clip.get();
+            }
+
+            Log.d(LOG_TAG, "Decoding audio file from: " + path);
+            return PcmClip.decode(path);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Could not decode audio file " + path + ": " + e);
+
+            // Do not keep failed clips around
+            synchronized (this) {
+                clips.remove(path);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Removes all clips from the cache.
+     */
+    public synchronized void clear() {
+        clips.clear();
+    }
+
+    /**
+     * Evicts the least recently used clips until the cache is within its capacity. Must be called
+     * while holding the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Future<PcmClip>>> it = clips.entrySet().iterator();
+
+        while (clips.size() > capacity && it.hasNext()) {
+            Log.d(LOG_TAG, "Evicting decoded audio file: " + it.next().getKey());
+            it.remove();
+        }
+    }
+}
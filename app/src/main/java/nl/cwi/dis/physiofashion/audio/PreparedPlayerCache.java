@@ -0,0 +1,247 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class keeps a small number of media players whose audio files have been loaded and whose
+ * codecs have been set up ahead of time, so that starting a clip at the onset of a stimulus does
+ * not have to wait for file I/O. Players are prepared one after another on a background thread.
+ * The cache holds at most a fixed number of players; when a further file is prefetched, the
+ * player which was used least recently is evicted and released. Players taken from the cache are
+ * owned by the caller.
+ *
+ * Players are always released on the background thread, in the order they were evicted and only
+ * once their preparation has finished, so no player is leaked or released while it is still being
+ * prepared. As the activities of subsequent trials are separate instances, there is a single,
+ * process-wide cache.
+ */
+public class PreparedPlayerCache {
+    private static final String LOG_TAG = "PreparedPlayerCache";
+    public static final int DEFAULT_CAPACITY = 2;
+
+    /**
+     * Type definition for a function creating a prepared media player for an audio file.
+     */
+    @FunctionalInterface
+    public interface Preparer {
+        MediaPlayer prepare(String path) throws IOException;
+    }
+
+    private static PreparedPlayerCache instance;
+
+    private final ExecutorService executor;
+    private final Preparer preparer;
+    private final LinkedHashMap<String, Future<MediaPlayer>> players;
+    private int capacity;
+
+    private int prefetched;
+    private int hits;
+    private int misses;
+    private int evictions;
+
+    /**
+     * Initialises a new cache preparing players with the given function on the given executor.
+     *
+     * @param capacity Maximum number of players held
+     * @param preparer Function creating prepared players
+     * @param executor Executor with a single thread on which players are prepared and released
+     */
+    PreparedPlayerCache(int capacity, Preparer preparer, ExecutorService executor) {
+        this.capacity = capacity;
+        this.preparer = preparer;
+        this.executor = executor;
+
+        // Iterate from the least to the most recently used player
+        this.players = new LinkedHashMap<>(capacity + 1, 0.75f, true);
+    }
+
+    /**
+     * Returns the shared cache, creating it if it does not exist yet.
+     *
+     * @return The shared cache
+     */
+    public static synchronized PreparedPlayerCache getInstance() {
+        if (instance == null) {
+            instance = new PreparedPlayerCache(
+                    DEFAULT_CAPACITY,
+                    PreparedPlayerCache::preparePlayer,
+                    Executors.newSingleThreadExecutor()
+            );
+        }
+
+        return instance;
+    }
+
+    /**
+     * Creates a new media player for the given audio file and prepares it. Blocks until the file
+     * has been loaded.
+     *
+     * @param path Absolute path of the audio file
+     * @return The prepared media player
+     * @throws IOException If the file could not be loaded
+     */
+    public static MediaPlayer preparePlayer(String path) throws IOException {
+        MediaPlayer player = new MediaPlayer();
+
+        try {
+            player.setDataSource(path);
+            player.prepare();
+        } catch (IOException ioe) {
+            player.release();
+            throw ioe;
+        }
+
+        return player;
+    }
+
+    /**
+     * Sets the maximum number of players held, evicting players if there are more.
+     *
+     * @param capacity Maximum number of players, at least one
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.evict();
+    }
+
+    /**
+     * Starts preparing a player for the audio file at the given path in the background, unless
+     * the cache already holds one. Evicts the least recently used player if the cache is full.
+     *
+     * @param path Absolute path of the audio file
+     */
+    public synchronized void prefetch(String path) {
+        // Looking up the player marks it as recently used
+        if (players.get(path) != null) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "Preparing audio file in background: " + path);
+
+        players.put(path, executor.submit(() -> preparer.prepare(path)));
+        prefetched++;
+
+        this.evict();
+    }
+
+    /**
+     * Returns whether a player for the audio file at the given path has finished preparing, so
+     * that taking it does not block.
+     *
+     * @param path Absolute path of the audio file
+     * @return Whether a prepared player is ready
+     */
+    public synchronized boolean isReady(String path) {
+        Future<MediaPlayer> player = players.get(path);
+        return player != null && player.isDone();
+    }
+
+    /**
+     * Removes the player prepared for the audio file at the given path from the cache and returns
+     * it, waiting for its preparation to finish if necessary. The caller takes ownership of the
+     * player. If no player has been prefetched for the file or its preparation failed, `null` is
+     * returned.
+     *
+     * @param path Absolute path of the audio file
+     * @return The prepared media player or `null`
+     */
+    public MediaPlayer take(String path) {
+        Future<MediaPlayer> player;
+
+        synchronized (this) {
+            player = players.remove(path);
+
+            if (player == null) {
+                misses++;
+                return null;
+            }
+
+            hits++;
+        }
+
+        // Wait outside the lock, so other files can be prefetched in the meantime
+        try {
+            return player.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(LOG_TAG, "Could not prepare audio file in background: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Releases all players held by the cache.
+     */
+    public synchronized void releaseAll() {
+        for (Future<MediaPlayer> player : new ArrayList<>(players.values())) {
+            this.release(player);
+        }
+
+        players.clear();
+    }
+
+    /**
+     * Get the number of players held, including those still being prepared.
+     *
+     * @return Number of players
+     */
+    public synchronized int size() {
+        return players.size();
+    }
+
+    /**
+     * Logs the number of prefetched files, hits, misses and evictions.
+     */
+    public synchronized void logStatistics() {
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "%d prefetched, %d hits, %d misses, %d evicted",
+                prefetched,
+                hits,
+                misses,
+                evictions
+        ));
+    }
+
+    /**
+     * Evicts the least recently used players until the cache is within its capacity. Must be
+     * called while holding the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Future<MediaPlayer>>> it = players.entrySet().iterator();
+
+        while (players.size() > capacity && it.hasNext()) {
+            Map.Entry<String, Future<MediaPlayer>> eldest = it.next();
+            it.remove();
+
+            Log.d(LOG_TAG, "Evicting prepared audio file: " + eldest.getKey());
+            this.release(eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Releases the given player on the background thread once its preparation has finished,
+     * without blocking the caller.
+     */
+    private void release(Future<MediaPlayer> player) {
+        executor.submit(() -> {
+            try {
+                player.get().release();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(LOG_TAG, "Discarded audio file could not be prepared: " + e);
+            }
+        });
+    }
+}
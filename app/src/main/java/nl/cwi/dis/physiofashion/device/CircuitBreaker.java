@@ -0,0 +1,155 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * This class tracks the health of a single device. After a number of consecutive failed
+ * commands, the breaker opens and further commands fail immediately instead of piling up on an
+ * unreachable device. Once the open period has elapsed, a single probe command is let through:
+ * if it succeeds, the breaker closes again, otherwise it stays open for another period. Every
+ * change of state is reported to a listener, so it can be surfaced in the UI.
+ */
+public class CircuitBreaker {
+    private static final String LOG_TAG = "CircuitBreaker";
+
+    /**
+     * States of the breaker. `CLOSED` means the device is healthy, `OPEN` that it is considered
+     * unavailable and `HALF_OPEN` that a probe is being sent to it.
+     */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Type definition for a listener which is notified when the health of a device changes.
+     */
+    @FunctionalInterface
+    public interface HealthListener {
+        void onHealthChanged(String hostname, State state);
+    }
+
+    private final String hostname;
+    private final HealthListener listener;
+
+    private int failureThreshold;
+    private long openDurationMs;
+
+    private State state;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    /**
+     * Initialises a new, closed breaker for the device at the given hostname.
+     *
+     * @param hostname Hostname of the device
+     * @param listener Listener notified of changes of state, may be `null`
+     */
+    CircuitBreaker(String hostname, HealthListener listener) {
+        this.hostname = hostname;
+        this.listener = listener;
+        this.failureThreshold = CommandPolicy.DEFAULT_BREAKER_THRESHOLD;
+        this.openDurationMs = CommandPolicy.DEFAULT_BREAKER_OPEN_MS;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Sets the number of consecutive failures after which the breaker opens and the time it
+     * stays open.
+     *
+     * @param failureThreshold Number of consecutive failures
+     * @param openDurationMs Open time in milliseconds
+     */
+    public synchronized void configure(int failureThreshold, long openDurationMs) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * Get the current state of the breaker.
+     *
+     * @return The current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns whether a command may be sent to the device. While the breaker is open, commands
+     * are rejected until the open period has elapsed, after which a single probe is allowed.
+     *
+     * @return Whether a command may be sent
+     */
+    public boolean allowRequest() {
+        State changed = null;
+        boolean allowed;
+
+        synchronized (this) {
+            if (state == State.OPEN && SystemClock.elapsedRealtime() - openedAt >= openDurationMs) {
+                state = State.HALF_OPEN;
+                changed = state;
+            }
+
+            if (state == State.HALF_OPEN) {
+                allowed = !probeInFlight;
+                probeInFlight = true;
+            } else {
+                allowed = state == State.CLOSED;
+            }
+        }
+
+        this.notifyListener(changed);
+        return allowed;
+    }
+
+    /**
+     * Records a successful command, which closes the breaker.
+     */
+    public void recordSuccess() {
+        State changed = null;
+
+        synchronized (this) {
+            consecutiveFailures = 0;
+            probeInFlight = false;
+
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                changed = state;
+            }
+        }
+
+        this.notifyListener(changed);
+    }
+
+    /**
+     * Records a failed command. The breaker opens if the probe failed or the number of
+     * consecutive failures has reached the threshold.
+     */
+    public void recordFailure() {
+        State changed = null;
+
+        synchronized (this) {
+            consecutiveFailures++;
+            probeInFlight = false;
+
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                state = State.OPEN;
+                openedAt = SystemClock.elapsedRealtime();
+                changed = state;
+            }
+        }
+
+        this.notifyListener(changed);
+    }
+
+    private void notifyListener(State changed) {
+        if (changed == null) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "Health of " + hostname + " changed to " + changed);
+
+        if (listener != null) {
+            listener.onHealthChanged(hostname, changed);
+        }
+    }
+}
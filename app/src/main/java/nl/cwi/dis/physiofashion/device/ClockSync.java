@@ -0,0 +1,267 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.util.Locale;
+
+/**
+ * Estimates the offset and drift of the clock of a single device relative to the monotonic clock
+ * of the tablet, in the style of NTP. Every request whose response carries the device's time is
+ * a probe: with the tablet times `t0` and `t2` at which the request was sent and the response
+ * arrived and the device time `t1` in between, the offset is `t1 - (t0 + t2) / 2` and is off by
+ * at most half the round trip time. Probes are therefore grouped into buckets of a few seconds
+ * and only the probe with the shortest round trip of every bucket is kept. Offset and drift are
+ * then fitted by least squares through the kept probes whose round trip is close to the shortest
+ * one seen, so that probes delayed by queueing or retransmissions do not distort the estimate.
+ *
+ * All tablet times are in nanoseconds as returned by `SystemClock.elapsedRealtimeNanos()`, all
+ * device times in microseconds.
+ */
+public class ClockSync {
+    private static final long BUCKET_NS = 2_000_000_000L;
+    private static final int MAX_BUCKETS = 64;
+    private static final int MIN_PROBES_FOR_DRIFT = 4;
+    private static final long MIN_SPAN_FOR_DRIFT_NS = 10_000_000_000L;
+    private static final double RTT_TOLERANCE = 2.0;
+
+    private final long[] bucketTimes;
+    private final long[] bucketOffsets;
+    private final long[] bucketRtts;
+    private int nextBucket;
+    private int bucketCount;
+
+    private long currentBucket;
+    private long currentTime;
+    private long currentOffset;
+    private long currentRtt;
+    private int probes;
+
+    private boolean synced;
+    private double referenceTime;
+    private double offset;
+    private double drift;
+    private long uncertainty;
+
+    /**
+     * Initialises a new estimator without any probes.
+     */
+    public ClockSync() {
+        this.bucketTimes = new long[MAX_BUCKETS];
+        this.bucketOffsets = new long[MAX_BUCKETS];
+        this.bucketRtts = new long[MAX_BUCKETS];
+        this.currentBucket = -1;
+    }
+
+    /**
+     * Adds a probe, i.e. a request which was answered with the time of the device.
+     *
+     * @param sentNs Tablet time at which the request was sent
+     * @param deviceTimeUs Device time contained in the response
+     * @param receivedNs Tablet time at which the response arrived
+     */
+    public synchronized void addProbe(long sentNs, long deviceTimeUs, long receivedNs) {
+        long rtt = receivedNs - sentNs;
+
+        if (rtt < 0) {
+            return;
+        }
+
+        long midpoint = sentNs + rtt / 2;
+        long probeOffset = deviceTimeUs * 1000 - midpoint;
+        long bucket = midpoint / BUCKET_NS;
+
+        // Move the best probe of the previous bucket into the history once a new bucket starts
+        if (bucket != currentBucket) {
+            this.closeBucket();
+            currentBucket = bucket;
+            currentRtt = Long.MAX_VALUE;
+        }
+
+        // Only the probe with the shortest round trip of a bucket is kept
+        if (rtt < currentRtt) {
+            currentTime = midpoint;
+            currentOffset = probeOffset;
+            currentRtt = rtt;
+        }
+
+        probes++;
+        this.estimate();
+    }
+
+    private void closeBucket() {
+        if (currentBucket < 0) {
+            return;
+        }
+
+        bucketTimes[nextBucket] = currentTime;
+        bucketOffsets[nextBucket] = currentOffset;
+        bucketRtts[nextBucket] = currentRtt;
+
+        nextBucket = (nextBucket + 1) % MAX_BUCKETS;
+        bucketCount = Math.min(MAX_BUCKETS, bucketCount + 1);
+    }
+
+    /**
+     * Fits offset and drift through the probes kept in the history and the current bucket.
+     */
+    private void estimate() {
+        // Shortest round trip over all kept probes, which bounds the achievable accuracy
+        long minRtt = currentRtt;
+        for (int i = 0; i < bucketCount; i++) {
+            minRtt = Math.min(minRtt, bucketRtts[i]);
+        }
+
+        long maxRtt = (long) (minRtt * RTT_TOLERANCE) + 1;
+
+        // Means of time and offset over the probes whose round trip is close to the shortest
+        int count = 0;
+        double sumTime = 0;
+        double sumOffset = 0;
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        long bestOffset = currentOffset;
+
+        for (int i = 0; i <= bucketCount; i++) {
+            long time = i < bucketCount ? bucketTimes[i] : currentTime;
+            long probeOffset = i < bucketCount ? bucketOffsets[i] : currentOffset;
+            long rtt = i < bucketCount ? bucketRtts[i] : currentRtt;
+
+            if (rtt == minRtt) {
+                bestOffset = probeOffset;
+            }
+
+            if (rtt > maxRtt) {
+                continue;
+            }
+
+            count++;
+            sumTime += time;
+            sumOffset += probeOffset;
+            firstTime = Math.min(firstTime, time);
+            lastTime = Math.max(lastTime, time);
+        }
+
+        synced = true;
+        uncertainty = minRtt / 2;
+
+        // Without enough probes spread over time, the drift cannot be told apart from noise
+        if (count < MIN_PROBES_FOR_DRIFT || lastTime - firstTime < MIN_SPAN_FOR_DRIFT_NS) {
+            referenceTime = currentTime;
+            offset = bestOffset;
+            drift = 0;
+            return;
+        }
+
+        double meanTime = sumTime / count;
+        double meanOffset = sumOffset / count;
+        double covariance = 0;
+        double variance = 0;
+
+        for (int i = 0; i <= bucketCount; i++) {
+            long time = i < bucketCount ? bucketTimes[i] : currentTime;
+            long probeOffset = i < bucketCount ? bucketOffsets[i] : currentOffset;
+            long rtt = i < bucketCount ? bucketRtts[i] : currentRtt;
+
+            if (rtt > maxRtt) {
+                continue;
+            }
+
+            covariance += (time - meanTime) * (probeOffset - meanOffset);
+            variance += (time - meanTime) * (time - meanTime);
+        }
+
+        referenceTime = meanTime;
+        offset = meanOffset;
+        drift = variance > 0 ? covariance / variance : 0;
+    }
+
+    /**
+     * Get whether at least one probe has been received, so that device times can be mapped.
+     *
+     * @return Whether the clock of the device is synchronised
+     */
+    public synchronized boolean isSynchronized() {
+        return synced;
+    }
+
+    /**
+     * Maps a device time onto the monotonic clock of the tablet.
+     *
+     * @param deviceTimeUs Time on the device's clock in microseconds
+     * @return The corresponding tablet time in nanoseconds, or -1 if not synchronised
+     */
+    public synchronized long toLocalNanos(long deviceTimeUs) {
+        if (!synced) {
+            return -1;
+        }
+
+        // Solve device = local + offset + drift * (local - reference) for local
+        double device = deviceTimeUs * 1000.0;
+        return Math.round((device - offset + drift * referenceTime) / (1 + drift));
+    }
+
+    /**
+     * Maps a tablet time onto the clock of the device.
+     *
+     * @param localNs Time on the tablet's monotonic clock in nanoseconds
+     * @return The corresponding device time in microseconds, or -1 if not synchronised
+     */
+    public synchronized long toDeviceMicros(long localNs) {
+        if (!synced) {
+            return -1;
+        }
+
+        return Math.round((localNs + offset + drift * (localNs - referenceTime)) / 1000.0);
+    }
+
+    /**
+     * Get the offset of the device clock relative to the tablet at the given tablet time.
+     *
+     * @param localNs Time on the tablet's monotonic clock in nanoseconds
+     * @return Device time minus tablet time in nanoseconds
+     */
+    public synchronized double getOffset(long localNs) {
+        return offset + drift * (localNs - referenceTime);
+    }
+
+    /**
+     * Get the rate at which the device clock drifts relative to the tablet.
+     *
+     * @return Drift in parts per million, positive if the device clock runs fast
+     */
+    public synchronized double getDriftPpm() {
+        return drift * 1e6;
+    }
+
+    /**
+     * Get the maximum error of mapped times, i.e. half the shortest round trip seen.
+     *
+     * @return Uncertainty in nanoseconds
+     */
+    public synchronized long getUncertainty() {
+        return uncertainty;
+    }
+
+    /**
+     * Get the number of probes received so far.
+     *
+     * @return Number of probes
+     */
+    public synchronized int getProbeCount() {
+        return probes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (!synced) {
+            return "not synchronised";
+        }
+
+        return String.format(
+                Locale.ENGLISH,
+                "offset=%.3fms drift=%.1fppm uncertainty=%.2fms probes=%d",
+                offset / 1e6,
+                drift * 1e6,
+                uncertainty / 1e6,
+                probes
+        );
+    }
+}
@@ -0,0 +1,327 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * This class sends idempotent commands, such as absolute setpoints, to a single device. A command
+ * which fails with a network error, a timeout or a server error is retried after an exponentially
+ * growing, jittered backoff, up to the number of retries given by the command policy. If a
+ * command has not been answered after the configured latency percentile of previous commands, a
+ * duplicate request is sent and whichever response arrives first wins. All commands go through
+ * the circuit breaker of the device, so commands to a device which keeps failing fail immediately.
+ */
+public class CommandExecutor {
+    private static final String LOG_TAG = "CommandExecutor";
+    private static final int LATENCY_WINDOW_SIZE = 64;
+
+    /**
+     * Type definition for a function creating a new request for a command. A command may be sent
+     * more than once, so a fresh request is created for every attempt.
+     */
+    @FunctionalInterface
+    public interface RequestFactory {
+        Request<String> create(Response.Listener<String> onResponse, Response.ErrorListener onError);
+    }
+
+    private final DeviceClient client;
+    private final String hostname;
+    private final CircuitBreaker breaker;
+    private final LatencyWindow latencies;
+    private final Handler handler;
+    private final Random random;
+
+    private volatile CommandPolicy policy;
+
+    private int commands;
+    private int retries;
+    private int hedges;
+    private int failures;
+
+    /**
+     * Initialises a new executor for the device at the given hostname.
+     *
+     * @param client Device client used to send requests
+     * @param hostname Hostname of the device
+     * @param policy Retry, hedging and circuit breaker settings
+     */
+    public CommandExecutor(DeviceClient client, String hostname, CommandPolicy policy) {
+        this.client = client;
+        this.hostname = hostname;
+        this.breaker = client.getCircuitBreaker(hostname);
+        this.latencies = new LatencyWindow(LATENCY_WINDOW_SIZE);
+        this.handler = new Handler(Looper.getMainLooper());
+        this.random = new Random();
+
+        this.setPolicy(policy);
+    }
+
+    /**
+     * Sets the retry, hedging and circuit breaker settings used for subsequent commands.
+     *
+     * @param policy The command policy
+     */
+    public void setPolicy(CommandPolicy policy) {
+        this.policy = policy;
+        breaker.configure(policy.getBreakerThreshold(), policy.getBreakerOpenMs());
+    }
+
+    /**
+     * Sends a command to the given endpoint of the device. Invokes `onSuccess` with the response
+     * of the first request which succeeded, `onError` with the last error once all retries have
+     * failed, or with a DeviceUnavailableError if the circuit breaker of the device is open. The
+     * latency of every request is recorded in the histogram of the endpoint.
+     *
+     * @param endpoint Name of the endpoint, one of the `ENDPOINT_` constants of DeviceClient
+     * @param factory Function creating the requests for the command
+     * @param onSuccess Callback invoked on success
+     * @param onError Callback invoked on error
+     */
+    public void execute(String endpoint, RequestFactory factory, Response.Listener<String> onSuccess, Response.ErrorListener onError) {
+        synchronized (this) {
+            commands++;
+        }
+
+        LatencyHistogram histogram = client.getLatencyHistogram(hostname, endpoint);
+        new Command(histogram, factory, onSuccess, onError).send();
+    }
+
+    /**
+     * Returns whether a failed request should be retried, i.e. whether it failed on the network,
+     * timed out or failed on the server. Requests rejected by the device are not retried.
+     *
+     * @param error The error of the request
+     * @return Whether the request should be retried
+     */
+    private static boolean isRetryable(VolleyError error) {
+        return error.networkResponse == null || error.networkResponse.statusCode >= 500;
+    }
+
+    /**
+     * Logs the number of commands sent to the device, as well as the number of retries, hedged
+     * requests and failed commands.
+     */
+    public synchronized void logStatistics() {
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "%s: %d commands, %d retries, %d hedged, %d failed",
+                hostname,
+                commands,
+                retries,
+                hedges,
+                failures
+        ));
+    }
+
+    /**
+     * A single command, which may be sent several times until it succeeds or runs out of retries.
+     * The requests of a command may be sent from any thread, but their callbacks arrive on the
+     * main thread.
+     */
+    private class Command {
+        private final LatencyHistogram histogram;
+        private final RequestFactory factory;
+        private final Response.Listener<String> onSuccess;
+        private final Response.ErrorListener onError;
+        private final ArrayList<Attempt> inFlight;
+        private final Runnable hedgeTask = this::hedge;
+
+        private int retry;
+        private boolean done;
+
+        Command(LatencyHistogram histogram, RequestFactory factory, Response.Listener<String> onSuccess, Response.ErrorListener onError) {
+            this.histogram = histogram;
+            this.factory = factory;
+            this.onSuccess = onSuccess;
+            this.onError = onError;
+            this.inFlight = new ArrayList<>();
+        }
+
+        /**
+         * Sends the next attempt of the command and schedules a duplicate request for it if
+         * hedging is enabled and enough latencies are known.
+         */
+        void send() {
+            if (!breaker.allowRequest()) {
+                this.fail(new DeviceUnavailableError(hostname));
+                return;
+            }
+
+            CommandPolicy currentPolicy = policy;
+
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+
+                this.sendRequest(currentPolicy);
+            }
+
+            if (currentPolicy.isHedgingEnabled()) {
+                long percentile = latencies.getPercentile(currentPolicy.getHedgePercentile());
+
+                if (percentile >= 0) {
+                    handler.postDelayed(hedgeTask, Math.max(currentPolicy.getMinHedgeDelayMs(), percentile));
+                }
+            }
+        }
+
+        /**
+         * Sends a duplicate request if the command has not been answered yet.
+         */
+        private void hedge() {
+            synchronized (this) {
+                if (done || inFlight.isEmpty()) {
+                    return;
+                }
+
+                this.sendRequest(policy);
+            }
+
+            synchronized (CommandExecutor.this) {
+                hedges++;
+            }
+        }
+
+        /**
+         * Creates a request for the command and adds it to the queue. Must be called while
+         * holding the lock of the command.
+         *
+         * @param currentPolicy Policy providing the request timeout
+         */
+        private void sendRequest(CommandPolicy currentPolicy) {
+            Attempt attempt = new Attempt();
+            attempt.request = factory.create(attempt::onResponse, attempt::onError);
+
+            // Retries are handled here, so the request itself is only sent once
+            attempt.request.setRetryPolicy(new DefaultRetryPolicy(currentPolicy.getRequestTimeoutMs(), 0, 1));
+
+            inFlight.add(attempt);
+            client.add(hostname, attempt.request);
+        }
+
+        /**
+         * Handles the response to one of the requests of the command. The first response
+         * completes the command and cancels all other requests.
+         */
+        private void onResponse(Attempt attempt, String response) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+
+                done = true;
+                inFlight.remove(attempt);
+
+                for (Attempt other : inFlight) {
+                    other.request.cancel();
+                }
+                inFlight.clear();
+            }
+
+            long latency = SystemClock.elapsedRealtimeNanos() - attempt.sentAt;
+            histogram.record(latency);
+            latencies.add(latency / 1_000_000);
+
+            handler.removeCallbacks(hedgeTask);
+            breaker.recordSuccess();
+
+            onSuccess.onResponse(response);
+        }
+
+        /**
+         * Handles the failure of one of the requests of the command. As long as a duplicate is
+         * still outstanding, its result is awaited, otherwise the command is retried after a
+         * backoff or fails.
+         */
+        private void onError(Attempt attempt, VolleyError error) {
+            histogram.recordError();
+            breaker.recordFailure();
+            client.onRequestFailed(hostname, error);
+
+            long backoff;
+
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+
+                inFlight.remove(attempt);
+                if (!inFlight.isEmpty()) {
+                    return;
+                }
+
+                if (!isRetryable(error) || retry >= policy.getMaxRetries()) {
+                    backoff = -1;
+                } else {
+                    retry++;
+
+                    // Full jitter on the upper half of the backoff, so retries of several
+                    // devices do not line up
+                    long base = policy.getBackoff(retry);
+                    backoff = base / 2 + (long) (random.nextDouble() * (base / 2.0));
+                }
+            }
+
+            handler.removeCallbacks(hedgeTask);
+
+            if (backoff < 0) {
+                this.fail(error);
+                return;
+            }
+
+            synchronized (CommandExecutor.this) {
+                retries++;
+            }
+
+            Log.d(LOG_TAG, "Retrying command to " + hostname + " in " + backoff + "ms after: " + error);
+            handler.postDelayed(this::send, backoff);
+        }
+
+        /**
+         * Completes the command with the given error.
+         */
+        private void fail(VolleyError error) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+
+                done = true;
+            }
+
+            synchronized (CommandExecutor.this) {
+                failures++;
+            }
+
+            onError.onErrorResponse(error);
+        }
+
+        /**
+         * A single request sent for the command, together with the time it was created.
+         */
+        private class Attempt {
+            private final long sentAt = SystemClock.elapsedRealtimeNanos();
+            private Request<String> request;
+
+            void onResponse(String response) {
+                Command.this.onResponse(this, response);
+            }
+
+            void onError(VolleyError error) {
+                Command.this.onError(this, error);
+            }
+        }
+    }
+}
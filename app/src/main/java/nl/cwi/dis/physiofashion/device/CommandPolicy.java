@@ -0,0 +1,238 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * This class holds the settings of the command layer which sends setpoints to the heating
+ * elements: how often and after which delay failed commands are retried, after which latency
+ * percentile a duplicate request is sent, and after how many consecutive failures a device is
+ * considered unavailable. Also note that this class extends the Parcelable interface, so its
+ * instances can be passed between activities as part of the experiment.
+ */
+public class CommandPolicy implements Parcelable {
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 2000;
+    public static final int DEFAULT_REQUEST_TIMEOUT_MS = 2500;
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    public static final long DEFAULT_MIN_HEDGE_DELAY_MS = 50;
+    public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+    public static final long DEFAULT_BREAKER_OPEN_MS = 5000;
+
+    public static final Parcelable.Creator<CommandPolicy> CREATOR = new Parcelable.Creator<CommandPolicy>() {
+        @Override
+        public CommandPolicy createFromParcel(Parcel in) {
+            return new CommandPolicy(in);
+        }
+
+        @Override
+        public CommandPolicy[] newArray(int size) {
+            return new CommandPolicy[size];
+        }
+    };
+
+    private int maxRetries;
+    private long initialBackoffMs;
+    private long maxBackoffMs;
+    private int requestTimeoutMs;
+    private double hedgePercentile;
+    private long minHedgeDelayMs;
+    private int breakerThreshold;
+    private long breakerOpenMs;
+
+    /**
+     * Construct a new CommandPolicy object from an existing Parcel object.
+     *
+     * @param in Parcel object to construct policy from
+     */
+    private CommandPolicy(Parcel in) {
+        this.maxRetries = in.readInt();
+        this.initialBackoffMs = in.readLong();
+        this.maxBackoffMs = in.readLong();
+        this.requestTimeoutMs = in.readInt();
+        this.hedgePercentile = in.readDouble();
+        this.minHedgeDelayMs = in.readLong();
+        this.breakerThreshold = in.readInt();
+        this.breakerOpenMs = in.readLong();
+    }
+
+    /**
+     * Initialise a new policy with default settings.
+     */
+    public CommandPolicy() {
+        this(
+                DEFAULT_MAX_RETRIES,
+                DEFAULT_INITIAL_BACKOFF_MS,
+                DEFAULT_MAX_BACKOFF_MS,
+                DEFAULT_REQUEST_TIMEOUT_MS,
+                DEFAULT_HEDGE_PERCENTILE,
+                DEFAULT_MIN_HEDGE_DELAY_MS,
+                DEFAULT_BREAKER_THRESHOLD,
+                DEFAULT_BREAKER_OPEN_MS
+        );
+    }
+
+    /**
+     * Initialise a new policy with the given settings.
+     *
+     * @param maxRetries Number of times a failed command is retried
+     * @param initialBackoffMs Delay before the first retry in milliseconds, doubled for every further retry
+     * @param maxBackoffMs Maximum delay before a retry in milliseconds
+     * @param requestTimeoutMs Time after which a single request times out in milliseconds
+     * @param hedgePercentile Latency percentile after which a duplicate request is sent, or 0 to disable hedging
+     * @param minHedgeDelayMs Minimum time before a duplicate request is sent in milliseconds
+     * @param breakerThreshold Number of consecutive failures after which the device is considered unavailable
+     * @param breakerOpenMs Time in milliseconds for which commands to an unavailable device fail immediately
+     */
+    public CommandPolicy(int maxRetries, long initialBackoffMs, long maxBackoffMs, int requestTimeoutMs, double hedgePercentile, long minHedgeDelayMs, int breakerThreshold, long breakerOpenMs) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.hedgePercentile = hedgePercentile;
+        this.minHedgeDelayMs = minHedgeDelayMs;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerOpenMs = breakerOpenMs;
+    }
+
+    /**
+     * Write the object to a parcel.
+     *
+     * @param dest Destination parcel
+     * @param flags Flags, ignored
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(maxRetries);
+        dest.writeLong(initialBackoffMs);
+        dest.writeLong(maxBackoffMs);
+        dest.writeInt(requestTimeoutMs);
+        dest.writeDouble(hedgePercentile);
+        dest.writeLong(minHedgeDelayMs);
+        dest.writeInt(breakerThreshold);
+        dest.writeLong(breakerOpenMs);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Write the object to a snapshot of the experiment it belongs to.
+     *
+     * @param out Destination of the snapshot
+     * @throws IOException If the snapshot could not be written
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(maxRetries);
+        out.writeLong(initialBackoffMs);
+        out.writeLong(maxBackoffMs);
+        out.writeInt(requestTimeoutMs);
+        out.writeDouble(hedgePercentile);
+        out.writeLong(minHedgeDelayMs);
+        out.writeInt(breakerThreshold);
+        out.writeLong(breakerOpenMs);
+    }
+
+    /**
+     * Read an object written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @return The policy
+     * @throws IOException If the snapshot could not be read
+     */
+    public static CommandPolicy readSnapshot(DataInput in) throws IOException {
+        return new CommandPolicy(
+                in.readInt(),
+                in.readLong(),
+                in.readLong(),
+                in.readInt(),
+                in.readDouble(),
+                in.readLong(),
+                in.readInt(),
+                in.readLong()
+        );
+    }
+
+    /**
+     * Get the number of times a failed command is retried.
+     *
+     * @return Maximum number of retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Computes the delay before the given retry. The delay grows exponentially from the initial
+     * backoff up to the maximum backoff.
+     *
+     * @param retry Number of the retry, starting at 1
+     * @return Delay in milliseconds
+     */
+    public long getBackoff(int retry) {
+        long backoff = initialBackoffMs << Math.min(retry - 1, 20);
+        return Math.min(maxBackoffMs, backoff);
+    }
+
+    /**
+     * Get the time after which a single request times out.
+     *
+     * @return Request timeout in milliseconds
+     */
+    public int getRequestTimeoutMs() {
+        return requestTimeoutMs;
+    }
+
+    /**
+     * Returns whether duplicate requests should be sent for slow commands.
+     *
+     * @return Whether hedging is enabled
+     */
+    public boolean isHedgingEnabled() {
+        return hedgePercentile > 0 && hedgePercentile < 1;
+    }
+
+    /**
+     * Get the latency percentile after which a duplicate request is sent.
+     *
+     * @return Percentile between 0 and 1
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Get the minimum time before a duplicate request is sent.
+     *
+     * @return Minimum hedge delay in milliseconds
+     */
+    public long getMinHedgeDelayMs() {
+        return minHedgeDelayMs;
+    }
+
+    /**
+     * Get the number of consecutive failures after which the device is considered unavailable.
+     *
+     * @return Circuit breaker threshold
+     */
+    public int getBreakerThreshold() {
+        return breakerThreshold;
+    }
+
+    /**
+     * Get the time for which commands to an unavailable device fail immediately, before a single
+     * command is let through to probe the device.
+     *
+     * @return Open time of the circuit breaker in milliseconds
+     */
+    public long getBreakerOpenMs() {
+        return breakerOpenMs;
+    }
+}
@@ -0,0 +1,64 @@
+package nl.cwi.dis.physiofashion.device;
+
+/**
+ * A compiled list of setpoint commands, each with the time it is due relative to the start of the
+ * schedule. Schedules are created ahead of time from a waveform, so that executing them only
+ * involves waiting for the next deadline and sending a setpoint. Offsets are non-decreasing.
+ */
+public class CommandSchedule {
+    private final long[] offsetsNs;
+    private final float[] setpoints;
+
+    /**
+     * Initialises a new schedule from parallel arrays of offsets and setpoints.
+     *
+     * @param offsetsNs Time each command is due in nanoseconds after the start of the schedule
+     * @param setpoints Setpoint of each command in degrees
+     */
+    public CommandSchedule(long[] offsetsNs, float[] setpoints) {
+        if (offsetsNs.length != setpoints.length) {
+            throw new IllegalArgumentException("Offsets and setpoints need to be of equal length");
+        }
+
+        this.offsetsNs = offsetsNs;
+        this.setpoints = setpoints;
+    }
+
+    /**
+     * Get the number of commands in the schedule.
+     *
+     * @return Number of commands
+     */
+    public int size() {
+        return offsetsNs.length;
+    }
+
+    /**
+     * Get the time the command at the given index is due.
+     *
+     * @param index Index of the command
+     * @return Offset from the start of the schedule in nanoseconds
+     */
+    public long getOffset(int index) {
+        return offsetsNs[index];
+    }
+
+    /**
+     * Get the setpoint of the command at the given index.
+     *
+     * @param index Index of the command
+     * @return Setpoint in degrees
+     */
+    public float getSetpoint(int index) {
+        return setpoints[index];
+    }
+
+    /**
+     * Get the time the last command is due, i.e. the duration of the schedule.
+     *
+     * @return Duration in nanoseconds
+     */
+    public long getDuration() {
+        return offsetsNs.length == 0 ? 0 : offsetsNs[offsetsNs.length - 1];
+    }
+}
@@ -0,0 +1,387 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.ByteArrayPool;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.NoCache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class is the process-wide client used for all communication with heating elements. Instead
+ * of every activity setting up its own request queue, all requests go through a single queue
+ * which is created on first use and kept alive for the entire session. This way, the dispatcher
+ * threads are shared and HTTP connections to a device are kept alive and pooled per hostname, so
+ * that subsequent requests do not need to pay for a new TCP connection. At the end of a session,
+ * `shutdown()` should be called to cancel outstanding requests and stop the dispatcher threads.
+ * There are enough dispatcher threads to send a setpoint to every element of a group of heating
+ * elements at the same time.
+ */
+public class DeviceClient {
+    private static final String LOG_TAG = "DeviceClient";
+    private static final int NETWORK_THREAD_POOL_SIZE = 8;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int RESPONSE_BUFFER_POOL_BYTES = 64 * 1024;
+    private static final int WARM_CONNECTIONS_PER_HOST = 2;
+
+    public static final String ENDPOINT_SETPOINT = "setpoint";
+    public static final String ENDPOINT_TEMPERATURE = "temperature";
+    public static final String ENDPOINT_CHECK = "check";
+
+    private static DeviceClient instance;
+
+    private RequestQueue queue;
+    private HostResolver resolver;
+    private volatile long sessionStartedAt;
+    private Set<String> streamingUnsupported;
+    private Map<String, TemperatureReader> temperatureReaders;
+    private Map<String, TelemetryRecorder> telemetryRecorders;
+    private Map<String, ThermalModel> thermalModels;
+    private Map<String, CircuitBreaker> circuitBreakers;
+    private Map<String, CommandExecutor> commandExecutors;
+    private Map<String, SetpointWriter> setpointWriters;
+    private Map<String, ClockSync> clockSyncs;
+    private List<CircuitBreaker.HealthListener> healthListeners;
+    private Map<String, Map<String, LatencyHistogram>> latencyHistograms;
+
+    /**
+     * Initialises the request queue and starts its dispatcher threads. Responses are not cached, as
+     * the data returned by a heating element is only meaningful at the time it is requested.
+     */
+    private DeviceClient() {
+        // Keep connections alive after a request has completed, so they are returned to the
+        // connection pool and reused by the next request to the same host
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS_PER_HOST));
+
+        // Requests are sent to the cached addresses of the devices instead of their hostnames
+        this.resolver = new HostResolver();
+
+        // Response bodies are read into buffers from a shared pool, which is large enough for all
+        // dispatcher threads, so reading a response does not allocate a new buffer each time
+        BasicNetwork network = new BasicNetwork(new HurlStack(resolver), new ByteArrayPool(RESPONSE_BUFFER_POOL_BYTES));
+
+        this.queue = new RequestQueue(new NoCache(), network, NETWORK_THREAD_POOL_SIZE);
+        this.queue.start();
+
+        this.streamingUnsupported = ConcurrentHashMap.newKeySet();
+        this.temperatureReaders = new ConcurrentHashMap<>();
+        this.telemetryRecorders = new ConcurrentHashMap<>();
+        this.thermalModels = new ConcurrentHashMap<>();
+        this.circuitBreakers = new ConcurrentHashMap<>();
+        this.commandExecutors = new ConcurrentHashMap<>();
+        this.setpointWriters = new ConcurrentHashMap<>();
+        this.clockSyncs = new ConcurrentHashMap<>();
+        this.healthListeners = new CopyOnWriteArrayList<>();
+        this.latencyHistograms = new ConcurrentHashMap<>();
+        this.sessionStartedAt = -1;
+    }
+
+    /**
+     * Returns the shared device client, creating it if it does not exist yet or if it has been
+     * shut down before.
+     *
+     * @param context Context, only used to make sure we are called from within the app
+     * @return The shared device client
+     */
+    public static synchronized DeviceClient getInstance(Context context) {
+        if (instance == null) {
+            Log.d(LOG_TAG, "Starting device client");
+            instance = new DeviceClient();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Stops the shared device client, cancelling all outstanding requests and stopping the
+     * dispatcher threads. A subsequent call to `getInstance()` creates a new client.
+     */
+    public static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "Shutting down device client");
+
+        for (TemperatureReader reader : instance.temperatureReaders.values()) {
+            reader.logStatistics();
+        }
+
+        for (CommandExecutor executor : instance.commandExecutors.values()) {
+            executor.logStatistics();
+        }
+
+        for (SetpointWriter writer : instance.setpointWriters.values()) {
+            writer.logStatistics();
+        }
+
+        instance.resolver.logStatistics();
+
+        for (Map.Entry<String, Map<String, LatencyHistogram>> host : instance.latencyHistograms.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> histogram : host.getValue().entrySet()) {
+                Log.d(LOG_TAG, "Latency of " + histogram.getKey() + " on " + host.getKey() + ": " + histogram.getValue().getSummary());
+            }
+        }
+
+        for (Map.Entry<String, ClockSync> clock : instance.clockSyncs.entrySet()) {
+            Log.d(LOG_TAG, "Clock of " + clock.getKey() + ": " + clock.getValue());
+        }
+
+        for (Map.Entry<String, ThermalModel> model : instance.thermalModels.entrySet()) {
+            Log.d(LOG_TAG, "Thermal model of " + model.getKey() + ": " + model.getValue());
+        }
+
+        instance.queue.cancelAll(request -> true);
+        instance.queue.stop();
+        instance = null;
+    }
+
+    /**
+     * Adds a request for the device at the given hostname to the shared queue. The request is
+     * tagged with the hostname, so that all requests to a single device can be cancelled at once.
+     *
+     * @param hostname Hostname of the device the request is addressed to
+     * @param request The request to send
+     * @param <T> Type of the parsed response
+     * @return The request that was passed in
+     */
+    public <T> Request<T> add(String hostname, Request<T> request) {
+        request.setTag(hostname);
+        request.setShouldCache(false);
+
+        return queue.add(request);
+    }
+
+    /**
+     * Handles a failed request to the device at the given hostname. If the request failed on the
+     * network rather than on the device, the cached address of the device may be outdated, so it
+     * is resolved again with the next request.
+     *
+     * @param hostname Hostname of the device
+     * @param error The error of the request
+     */
+    void onRequestFailed(String hostname, VolleyError error) {
+        if (error != null && error.networkResponse == null) {
+            resolver.invalidate(hostname);
+        }
+    }
+
+    /**
+     * Opens connections to the device at the given hostname ahead of time, by sending a few
+     * temperature reads at once. The connections are kept alive, so the first setpoints of the
+     * session do not have to wait for a connection to be established. The responses are ignored.
+     *
+     * @param hostname Hostname of the device
+     */
+    public void warmUp(String hostname) {
+        for (int i = 0; i < WARM_CONNECTIONS_PER_HOST; i++) {
+            this.add(hostname, new TemperatureRequest(
+                    hostname,
+                    (temperature, deviceTimeUs) -> {},
+                    error -> Log.w(LOG_TAG, "Could not warm up connection to " + hostname + ": " + error)
+            ));
+        }
+    }
+
+    /**
+     * Marks the start of the session, from which the time to the first acknowledged setpoint of
+     * every device is measured.
+     */
+    public void startSession() {
+        sessionStartedAt = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Get the time at which the session was started.
+     *
+     * @return Start time in nanoseconds, as returned by `SystemClock.elapsedRealtimeNanos()`, or
+     * -1 if the session has not been started
+     */
+    public long getSessionStartedAt() {
+        return sessionStartedAt;
+    }
+
+    /**
+     * Get the resolver which caches the addresses of all devices.
+     *
+     * @return The host resolver
+     */
+    public HostResolver getHostResolver() {
+        return resolver;
+    }
+
+    /**
+     * Cancels all outstanding requests to the device at the given hostname.
+     *
+     * @param hostname Hostname of the device
+     */
+    public void cancelAll(String hostname) {
+        queue.cancelAll(hostname);
+    }
+
+    /**
+     * Returns the temperature reader for the device at the given hostname. All temperature reads
+     * for a device should go through this reader, so that concurrent reads are coalesced.
+     *
+     * @param hostname Hostname of the device
+     * @return The temperature reader for the device
+     */
+    public TemperatureReader getTemperatureReader(String hostname) {
+        return temperatureReaders.computeIfAbsent(hostname, host -> new TemperatureReader(this, host));
+    }
+
+    /**
+     * Returns the telemetry recorder for the device at the given hostname, which holds every
+     * temperature reading received from the device during the session. Every sample is also
+     * passed on to the thermal model of the device.
+     *
+     * @param hostname Hostname of the device
+     * @return The telemetry recorder for the device
+     */
+    public TelemetryRecorder getTelemetryRecorder(String hostname) {
+        return telemetryRecorders.computeIfAbsent(hostname, host -> {
+            TelemetryRecorder recorder = new TelemetryRecorder();
+            recorder.setListener(this.getThermalModel(host));
+
+            return recorder;
+        });
+    }
+
+    /**
+     * Returns the thermal model of the device at the given hostname, which is fitted from the
+     * telemetry of the device.
+     *
+     * @param hostname Hostname of the device
+     * @return The thermal model for the device
+     */
+    public ThermalModel getThermalModel(String hostname) {
+        return thermalModels.computeIfAbsent(hostname, host -> new ThermalModel());
+    }
+
+    /**
+     * Returns whether a temperature stream should be attempted for the device at the given
+     * hostname, i.e. whether the device has not rejected a stream request before.
+     *
+     * @param hostname Hostname of the device
+     * @return Whether the device may support temperature streaming
+     */
+    public boolean isStreamingSupported(String hostname) {
+        return !streamingUnsupported.contains(hostname);
+    }
+
+    /**
+     * Remembers that the device at the given hostname does not support temperature streaming, so
+     * subsequent trials fall back to polling straight away.
+     *
+     * @param hostname Hostname of the device
+     */
+    public void setStreamingUnsupported(String hostname) {
+        streamingUnsupported.add(hostname);
+    }
+
+    /**
+     * Returns the circuit breaker tracking the health of the device at the given hostname.
+     *
+     * @param hostname Hostname of the device
+     * @return The circuit breaker for the device
+     */
+    public CircuitBreaker getCircuitBreaker(String hostname) {
+        return circuitBreakers.computeIfAbsent(hostname, host -> new CircuitBreaker(host, this::notifyHealthChanged));
+    }
+
+    /**
+     * Returns the executor through which commands to the device at the given hostname are sent.
+     * The executor is created with the default command policy.
+     *
+     * @param hostname Hostname of the device
+     * @return The command executor for the device
+     */
+    public CommandExecutor getCommandExecutor(String hostname) {
+        return commandExecutors.computeIfAbsent(hostname, host -> new CommandExecutor(this, host, new CommandPolicy()));
+    }
+
+    /**
+     * Returns the estimator of the clock offset between the tablet and the device at the given
+     * hostname. It is fed by every temperature read answered with the device's time.
+     *
+     * @param hostname Hostname of the device
+     * @return The clock estimator for the device
+     */
+    public ClockSync getClockSync(String hostname) {
+        return clockSyncs.computeIfAbsent(hostname, host -> new ClockSync());
+    }
+
+    /**
+     * Returns the writer through which setpoints for the device at the given hostname are sent.
+     * The writer remembers the last setpoint acknowledged by the device for the entire session,
+     * so setpoints are deduplicated across activities.
+     *
+     * @param hostname Hostname of the device
+     * @return The setpoint writer for the device
+     */
+    public SetpointWriter getSetpointWriter(String hostname) {
+        return setpointWriters.computeIfAbsent(hostname, host -> new SetpointWriter(this, host));
+    }
+
+    /**
+     * Adds a listener which is notified whenever a device becomes unavailable or available again.
+     * The listener may be invoked on any thread.
+     *
+     * @param listener The listener to add
+     */
+    public void addHealthListener(CircuitBreaker.HealthListener listener) {
+        healthListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with `addHealthListener()`.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeHealthListener(CircuitBreaker.HealthListener listener) {
+        healthListeners.remove(listener);
+    }
+
+    private void notifyHealthChanged(String hostname, CircuitBreaker.State state) {
+        for (CircuitBreaker.HealthListener listener : healthListeners) {
+            listener.onHealthChanged(hostname, state);
+        }
+    }
+
+    /**
+     * Returns the histogram of request latencies to the given endpoint of the device at the given
+     * hostname. Latencies are measured from the time a request is handed to the queue until its
+     * response is delivered, i.e. as seen by the app.
+     *
+     * @param hostname Hostname of the device
+     * @param endpoint Name of the endpoint, one of the `ENDPOINT_` constants
+     * @return The latency histogram for the endpoint of the device
+     */
+    public LatencyHistogram getLatencyHistogram(String hostname, String endpoint) {
+        return this.getLatencyHistograms(hostname).computeIfAbsent(endpoint, e -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns the latency histograms of all endpoints of the device at the given hostname which
+     * have been used so far, ordered by endpoint name.
+     *
+     * @param hostname Hostname of the device
+     * @return Map from endpoint name to latency histogram
+     */
+    public Map<String, LatencyHistogram> getLatencyHistograms(String hostname) {
+        return latencyHistograms.computeIfAbsent(hostname, host -> new ConcurrentSkipListMap<>());
+    }
+}
@@ -0,0 +1,18 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.android.volley.VolleyError;
+
+/**
+ * Error passed to the error callback of a command which was not sent because the circuit breaker
+ * of the device is open, i.e. the device has failed too many commands in a row.
+ */
+public class DeviceUnavailableError extends VolleyError {
+    /**
+     * Initialises a new error for the device at the given hostname.
+     *
+     * @param hostname Hostname of the device
+     */
+    public DeviceUnavailableError(String hostname) {
+        super("Device unavailable: " + hostname);
+    }
+}
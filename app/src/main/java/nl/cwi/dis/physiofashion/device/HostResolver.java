@@ -0,0 +1,180 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.toolbox.HurlStack;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the hostnames of devices once and rewrites the URLs of all requests to use the cached
+ * address, so that connections to `.local` hostnames do not pay for an mDNS lookup every time.
+ * The cache is kept for the entire session. If a request fails on the network, the address of
+ * its host is invalidated and resolved again with the next request, in case the device has been
+ * given a new address. Requests to hosts which cannot be resolved are passed on unchanged, as are
+ * HTTPS requests, whose certificates are issued for the hostname rather than the address.
+ */
+public class HostResolver implements HurlStack.UrlRewriter {
+    private static final String LOG_TAG = "HostResolver";
+
+    /**
+     * The cached address of a host, together with the time it took to resolve it.
+     */
+    private static class Resolution {
+        final String address;
+        final long durationNs;
+
+        Resolution(String address, long durationNs) {
+            this.address = address;
+            this.durationNs = durationNs;
+        }
+    }
+
+    private final Map<String, Resolution> cache;
+
+    private int lookups;
+    private int failures;
+    private int invalidations;
+
+    /**
+     * Initialises a new resolver with an empty cache.
+     */
+    public HostResolver() {
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Replaces the host of the given URL with its cached address, resolving it first if it is
+     * not cached yet. Runs on the network threads, so resolving may block.
+     *
+     * @param originalUrl URL of a request
+     * @return The URL with the host replaced by its address, or the original URL if the host
+     * could not be resolved
+     */
+    @Override
+    public String rewriteUrl(String originalUrl) {
+        URL url;
+
+        try {
+            url = new URL(originalUrl);
+        } catch (MalformedURLException mue) {
+            return originalUrl;
+        }
+
+        if (!url.getProtocol().equals("http")) {
+            return originalUrl;
+        }
+
+        String address = this.resolve(url.getHost());
+        if (address == null || address.equals(url.getHost())) {
+            return originalUrl;
+        }
+
+        // Swap the host for the address, leaving scheme, port, path and query untouched
+        int hostStart = originalUrl.indexOf(url.getHost(), url.getProtocol().length());
+        return originalUrl.substring(0, hostStart) + address + originalUrl.substring(hostStart + url.getHost().length());
+    }
+
+    /**
+     * Returns the address of the given host, resolving it if it is not cached yet.
+     *
+     * @param host Name of the host, without scheme and port
+     * @return Literal address, or `null` if the host could not be resolved
+     */
+    public String resolve(String host) {
+        Resolution cached = cache.get(host);
+        if (cached != null) {
+            return cached.address;
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        try {
+            InetAddress inetAddress = InetAddress.getByName(host);
+            String literal = inetAddress.getHostAddress();
+
+            // IPv6 addresses need brackets to be used in a URL
+            if (inetAddress instanceof Inet6Address) {
+                literal = "[" + literal + "]";
+            }
+
+            long duration = SystemClock.elapsedRealtimeNanos() - start;
+            cache.put(host, new Resolution(literal, duration));
+
+            synchronized (this) {
+                lookups++;
+            }
+
+            Log.d(LOG_TAG, String.format(Locale.ENGLISH, "Resolved %s to %s in %.1fms", host, literal, duration / 1e6));
+            return literal;
+        } catch (UnknownHostException uhe) {
+            synchronized (this) {
+                failures++;
+            }
+
+            Log.w(LOG_TAG, "Could not resolve " + host + ": " + uhe);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the cached address of the host of the given device, so it is resolved again with
+     * the next request.
+     *
+     * @param hostname Hostname of the device, including scheme and port
+     */
+    public void invalidate(String hostname) {
+        try {
+            if (cache.remove(new URL(hostname).getHost()) != null) {
+                synchronized (this) {
+                    invalidations++;
+                }
+            }
+        } catch (MalformedURLException mue) {
+            Log.w(LOG_TAG, "Invalid hostname " + hostname);
+        }
+    }
+
+    /**
+     * Returns a description of the cached address of the given device.
+     *
+     * @param hostname Hostname of the device, including scheme and port
+     * @return The address and the time it took to resolve it, or "unresolved"
+     */
+    public String describe(String hostname) {
+        Resolution resolution;
+
+        try {
+            resolution = cache.get(new URL(hostname).getHost());
+        } catch (MalformedURLException mue) {
+            resolution = null;
+        }
+
+        if (resolution == null) {
+            return "unresolved";
+        }
+
+        return String.format(Locale.ENGLISH, "%s (resolved in %.1fms)", resolution.address, resolution.durationNs / 1e6);
+    }
+
+    /**
+     * Logs the number of lookups, failed lookups and invalidated addresses.
+     */
+    public synchronized void logStatistics() {
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "%d lookups, %d failed, %d invalidated",
+                lookups,
+                failures,
+                invalidations
+        ));
+    }
+}
@@ -0,0 +1,190 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts a single numeric field from a JSON response directly from its bytes, without decoding
+ * the response into a string or building a JSONObject. The scanner does not validate the rest of
+ * the document, it only looks for the first occurrence of the key and parses the number following
+ * it. Numbers with at most 15 significant digits and a small exponent, which covers everything a
+ * heating element sends, are converted exactly without allocating. Longer numbers fall back to
+ * `Double.parseDouble()`.
+ */
+public class JsonNumberScanner {
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final byte[] key;
+
+    /**
+     * Initialises a new scanner for the field with the given name.
+     *
+     * @param fieldName Name of the field, without quotes
+     */
+    public JsonNumberScanner(String fieldName) {
+        this.key = ("\"" + fieldName + "\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value of the field in the given JSON document.
+     *
+     * @param data Bytes of the JSON document
+     * @return The value of the field, or NaN if the field is missing or not a number
+     */
+    public double scan(byte[] data) {
+        return data == null ? Double.NaN : this.scan(data, 0, data.length);
+    }
+
+    /**
+     * Returns the value of the field in the given range of bytes holding a JSON document.
+     *
+     * @param data Buffer holding the JSON document
+     * @param offset Index of the first byte of the document
+     * @param length Length of the document in bytes
+     * @return The value of the field, or NaN if the field is missing or not a number
+     */
+    public double scan(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int position = this.indexOfKey(data, offset, end);
+
+        if (position < 0) {
+            return Double.NaN;
+        }
+
+        // Skip over the colon separating key and value and the whitespace around it
+        position = skipWhitespace(data, position + key.length, end);
+        if (position >= end || data[position] != ':') {
+            return Double.NaN;
+        }
+
+        position = skipWhitespace(data, position + 1, end);
+        return parseNumber(data, position, end);
+    }
+
+    /**
+     * Finds the first occurrence of the quoted key in the given range.
+     *
+     * @return Index of the opening quote of the key, or -1 if it does not occur
+     */
+    private int indexOfKey(byte[] data, int start, int end) {
+        outer:
+        for (int i = start; i <= end - key.length; i++) {
+            for (int j = 0; j < key.length; j++) {
+                if (data[i + j] != key[j]) {
+                    continue outer;
+                }
+            }
+
+            return i;
+        }
+
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] data, int position, int end) {
+        while (position < end && (data[position] == ' ' || data[position] == '\t' || data[position] == '\n' || data[position] == '\r')) {
+            position++;
+        }
+
+        return position;
+    }
+
+    /**
+     * Parses a JSON number starting at the given position. The mantissa is accumulated as a long
+     * and scaled by an exact power of ten, which is correctly rounded as long as both fit into
+     * the 53 bits of a double.
+     *
+     * @param data Buffer holding the number
+     * @param start Index of the first character of the number
+     * @param end Index beyond the last byte that may belong to the number
+     * @return The parsed number, or NaN if there is no number at the position
+     */
+    static double parseNumber(byte[] data, int start, int end) {
+        int position = start;
+        boolean negative = false;
+
+        if (position < end && (data[position] == '-' || data[position] == '+')) {
+            negative = data[position] == '-';
+            position++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDigit = false;
+
+        // Integer part
+        while (position < end && data[position] >= '0' && data[position] <= '9') {
+            if (mantissa != 0 || data[position] != '0') {
+                digits++;
+            }
+
+            if (digits <= MAX_FAST_DIGITS) {
+                mantissa = mantissa * 10 + (data[position] - '0');
+            }
+
+            seenDigit = true;
+            position++;
+        }
+
+        // Fractional part
+        if (position < end && data[position] == '.') {
+            position++;
+
+            while (position < end && data[position] >= '0' && data[position] <= '9') {
+                if (mantissa != 0 || data[position] != '0') {
+                    digits++;
+                }
+
+                if (digits <= MAX_FAST_DIGITS) {
+                    mantissa = mantissa * 10 + (data[position] - '0');
+                    scale--;
+                }
+
+                seenDigit = true;
+                position++;
+            }
+        }
+
+        if (!seenDigit) {
+            return Double.NaN;
+        }
+
+        // Exponent
+        if (position < end && (data[position] == 'e' || data[position] == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+
+            if (position < end && (data[position] == '-' || data[position] == '+')) {
+                negativeExponent = data[position] == '-';
+                position++;
+            }
+
+            int exponent = 0;
+            boolean seenExponentDigit = false;
+
+            while (position < end && data[position] >= '0' && data[position] <= '9') {
+                exponent = Math.min(10000, exponent * 10 + (data[position] - '0'));
+                seenExponentDigit = true;
+                position++;
+            }
+
+            if (!seenExponentDigit) {
+                return Double.NaN;
+            }
+
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        // Digits were dropped or the power of ten is not exact, so let the JDK round correctly
+        if (digits > MAX_FAST_DIGITS || scale < -22 || scale > 22) {
+            return Double.parseDouble(new String(data, start, position - start, StandardCharsets.US_ASCII));
+        }
+
+        double value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+}
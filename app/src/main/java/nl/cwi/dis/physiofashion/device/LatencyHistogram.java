@@ -0,0 +1,213 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.util.Locale;
+
+/**
+ * A histogram of request latencies with fixed, log-linear buckets, in the style of HdrHistogram.
+ * Latencies are kept in microseconds. Below 32us every value has a bucket of its own, above that
+ * every power of two is split into 32 buckets, so that every latency is represented with an error
+ * of at most about 3% up to one minute. The buckets are allocated once, so recording a latency
+ * neither allocates nor boxes. Failed requests are counted separately.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_TRACKABLE_US = 60_000_000L;
+
+    /**
+     * Type definition for a consumer of the non-empty buckets of the histogram.
+     */
+    @FunctionalInterface
+    public interface BucketConsumer {
+        void accept(long lowerBoundUs, long upperBoundUs, long count);
+    }
+
+    private final long[] counts;
+
+    private long count;
+    private long errors;
+    private long sumUs;
+    private long minUs;
+    private long maxUs;
+
+    /**
+     * Initialises a new, empty histogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new long[bucketIndex(MAX_TRACKABLE_US) + 1];
+        this.minUs = Long.MAX_VALUE;
+    }
+
+    /**
+     * Computes the index of the bucket holding the given latency.
+     *
+     * @param valueUs Latency in microseconds
+     * @return Index of the bucket
+     */
+    static int bucketIndex(long valueUs) {
+        if (valueUs < SUB_BUCKET_COUNT) {
+            return (int) Math.max(0, valueUs);
+        }
+
+        // Position of the highest bit determines the power of two, the following bits the bucket
+        int highestBit = 63 - Long.numberOfLeadingZeros(valueUs);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int subBucket = (int) (valueUs >> shift);
+
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * Computes the smallest latency held by the bucket at the given index.
+     *
+     * @param index Index of the bucket
+     * @return Lower bound in microseconds, inclusive
+     */
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+        return subBucket << shift;
+    }
+
+    /**
+     * Computes the smallest latency beyond the bucket at the given index.
+     *
+     * @param index Index of the bucket
+     * @return Upper bound in microseconds, exclusive
+     */
+    static long upperBound(int index) {
+        int shift = Math.max(0, index / SUB_BUCKET_COUNT - 1);
+        return lowerBound(index) + (1L << shift);
+    }
+
+    /**
+     * Records the latency of a successful request. Latencies beyond one minute are counted in the
+     * last bucket.
+     *
+     * @param latencyNs Latency in nanoseconds
+     */
+    public synchronized void record(long latencyNs) {
+        long valueUs = Math.min(MAX_TRACKABLE_US, Math.max(0, latencyNs / 1000));
+
+        counts[bucketIndex(valueUs)]++;
+        count++;
+        sumUs += valueUs;
+        minUs = Math.min(minUs, valueUs);
+        maxUs = Math.max(maxUs, valueUs);
+    }
+
+    /**
+     * Counts a failed request.
+     */
+    public synchronized void recordError() {
+        errors++;
+    }
+
+    /**
+     * Get the number of latencies recorded.
+     *
+     * @return Number of successful requests
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of failed requests.
+     *
+     * @return Number of errors
+     */
+    public synchronized long getErrorCount() {
+        return errors;
+    }
+
+    /**
+     * Get the mean of all recorded latencies.
+     *
+     * @return Mean latency in microseconds, or 0 if nothing has been recorded
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sumUs / count;
+    }
+
+    /**
+     * Get the smallest recorded latency.
+     *
+     * @return Minimum latency in microseconds, or 0 if nothing has been recorded
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : minUs;
+    }
+
+    /**
+     * Get the largest recorded latency.
+     *
+     * @return Maximum latency in microseconds
+     */
+    public synchronized long getMax() {
+        return maxUs;
+    }
+
+    /**
+     * Returns the latency below which the given fraction of all recorded latencies lies. The
+     * result is the largest value of the bucket holding the percentile, but never larger than the
+     * maximum recorded latency.
+     *
+     * @param percentile Percentile between 0 and 1
+     * @return Latency in microseconds, or 0 if nothing has been recorded
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile * count));
+        long cumulative = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+
+            if (cumulative >= target) {
+                return Math.max(minUs, Math.min(maxUs, upperBound(i) - 1));
+            }
+        }
+
+        return maxUs;
+    }
+
+    /**
+     * Passes all non-empty buckets to the given consumer, from the lowest to the highest latency.
+     *
+     * @param consumer Consumer receiving the buckets
+     */
+    public synchronized void forEachBucket(BucketConsumer consumer) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                consumer.accept(lowerBound(i), upperBound(i), counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the histogram with count, errors and the main percentiles.
+     *
+     * @return Human-readable summary, latencies in milliseconds
+     */
+    public synchronized String getSummary() {
+        return String.format(
+                Locale.ENGLISH,
+                "n=%d err=%d p50=%.1f p95=%.1f p99=%.1f max=%.1fms",
+                count,
+                errors,
+                this.getValueAtPercentile(0.5) / 1e3,
+                this.getValueAtPercentile(0.95) / 1e3,
+                this.getValueAtPercentile(0.99) / 1e3,
+                maxUs / 1e3
+        );
+    }
+}
@@ -0,0 +1,56 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.util.Arrays;
+
+/**
+ * A sliding window over the most recent request latencies of a device, from which percentiles
+ * are computed. Percentiles are only reported once the window holds enough samples to be
+ * meaningful.
+ */
+class LatencyWindow {
+    private static final int MIN_SAMPLES = 10;
+
+    private final long[] samples;
+    private int next;
+    private int size;
+
+    /**
+     * Initialises a new window holding up to the given number of latencies.
+     *
+     * @param capacity Number of latencies kept
+     */
+    LatencyWindow(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    /**
+     * Adds a latency to the window, replacing the oldest one if the window is full.
+     *
+     * @param latencyMs Latency in milliseconds
+     */
+    synchronized void add(long latencyMs) {
+        samples[next] = latencyMs;
+        next = (next + 1) % samples.length;
+
+        if (size < samples.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Computes the given percentile over the latencies in the window.
+     *
+     * @param percentile Percentile between 0 and 1
+     * @return The latency at the percentile in milliseconds, or -1 if there are too few samples
+     */
+    synchronized long getPercentile(double percentile) {
+        if (size < MIN_SAMPLES) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(size - 1, (int) Math.ceil(size * percentile) - 1)];
+    }
+}
@@ -0,0 +1,120 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Request sending an absolute setpoint to the endpoint `/api/setpoint` of a heating element. The
+ * JSON bodies of all setpoints between 0 and 100 degrees at a resolution of a hundredth of a
+ * degree are encoded once, on first use, and shared by all requests, so that sending a setpoint
+ * does not format or encode anything. The response body is not decoded, only the optional field
+ * `timestamp`, the device's clock in microseconds at which the setpoint was applied, is read from
+ * its bytes. Setpoints are sent ahead of any queued temperature reads.
+ */
+public class SetpointRequest extends Request<String> {
+    private static final JsonNumberScanner TIMESTAMP = new JsonNumberScanner("timestamp");
+    private static final int MAX_CACHED_CENTIDEGREES = 100 * 100;
+    private static final AtomicReferenceArray<byte[]> PAYLOADS = new AtomicReferenceArray<>(MAX_CACHED_CENTIDEGREES + 1);
+
+    private final Response.Listener<String> listener;
+    private final byte[] payload;
+    private volatile long deviceTimeUs;
+
+    /**
+     * Initialises a new request setting the device at the given hostname to the given setpoint.
+     *
+     * @param hostname Hostname of the heating element
+     * @param setpoint The setpoint in degrees
+     * @param listener Callback invoked on success
+     * @param errorListener Callback invoked on error
+     */
+    public SetpointRequest(String hostname, double setpoint, Response.Listener<String> listener, Response.ErrorListener errorListener) {
+        super(Method.PUT, hostname + "/api/setpoint", errorListener);
+
+        this.listener = listener;
+        this.payload = encode(setpoint);
+        this.deviceTimeUs = -1;
+    }
+
+    /**
+     * Get the time of the device at which it applied the setpoint. Only available once the
+     * response has been delivered.
+     *
+     * @return Time of the device in microseconds, or -1 if it sent none
+     */
+    public long getDeviceTimeUs() {
+        return deviceTimeUs;
+    }
+
+    /**
+     * Returns the JSON body for the given setpoint, taking it from the cache if possible. Whole
+     * degrees are written without decimals, as before fractional setpoints were supported, all
+     * others with two decimals.
+     *
+     * @param setpoint The setpoint in degrees
+     * @return The encoded body, which must not be modified
+     */
+    static byte[] encode(double setpoint) {
+        long centidegrees = Math.round(setpoint * 100);
+
+        // Setpoints outside of the cached range are encoded on every call
+        if (centidegrees < 0 || centidegrees > MAX_CACHED_CENTIDEGREES) {
+            return format(centidegrees).getBytes(StandardCharsets.UTF_8);
+        }
+
+        int index = (int) centidegrees;
+        byte[] payload = PAYLOADS.get(index);
+
+        // Concurrent callers may both encode the payload, but they produce identical arrays
+        if (payload == null) {
+            payload = format(centidegrees).getBytes(StandardCharsets.UTF_8);
+            PAYLOADS.set(index, payload);
+        }
+
+        return payload;
+    }
+
+    private static String format(long centidegrees) {
+        if (centidegrees % 100 == 0) {
+            return "{ \"setpoint\": " + (centidegrees / 100) + " }";
+        }
+
+        return String.format(Locale.ENGLISH, "{ \"setpoint\": %.2f }", centidegrees / 100.0);
+    }
+
+    @Override
+    public String getBodyContentType() {
+        return "application/json";
+    }
+
+    @Override
+    public byte[] getBody() {
+        return payload;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return Priority.IMMEDIATE;
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+        double timestamp = TIMESTAMP.scan(response.data);
+        if (!Double.isNaN(timestamp)) {
+            deviceTimeUs = (long) timestamp;
+        }
+
+        // Apart from the timestamp, only the status of the response matters
+        return Response.success("", null);
+    }
+
+    @Override
+    protected void deliverResponse(String response) {
+        listener.onResponse(response);
+    }
+}
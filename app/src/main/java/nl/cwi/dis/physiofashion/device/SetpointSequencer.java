@@ -0,0 +1,186 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class executes a command schedule on a dedicated high-priority thread. Every command is
+ * due at an absolute deadline derived from the start time, so delays of one command do not
+ * accumulate over the schedule. The thread sleeps until shortly before each deadline and then
+ * spins for the remainder, which keeps the deviation from the deadline in the order of
+ * microseconds. The deviation of every executed command is recorded as jitter.
+ */
+public class SetpointSequencer {
+    private static final String LOG_TAG = "SetpointSequencer";
+    private static final long SPIN_THRESHOLD_NS = 500_000;
+
+    /**
+     * Type definition for the receiver of the commands of the schedule.
+     */
+    @FunctionalInterface
+    public interface CommandSink {
+        void send(int index, double setpoint);
+    }
+
+    /**
+     * Type definition for a callback invoked on the sequencer thread after the last command.
+     */
+    @FunctionalInterface
+    public interface CompletionCallback {
+        void apply();
+    }
+
+    private final CommandSchedule schedule;
+    private final CommandSink sink;
+    private final long[] jitterNs;
+    private final Thread thread;
+
+    private volatile boolean stopped;
+    private volatile int executed;
+    private CompletionCallback onComplete;
+
+    /**
+     * Initialises a new sequencer for the given schedule. Commands are not executed until
+     * `start()` is called.
+     *
+     * @param schedule The schedule to execute
+     * @param sink Receiver of the commands
+     */
+    public SetpointSequencer(CommandSchedule schedule, CommandSink sink) {
+        this.schedule = schedule;
+        this.sink = sink;
+        this.jitterNs = new long[schedule.size()];
+
+        this.thread = new Thread(this::run, LOG_TAG);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Sets a callback which is invoked on the sequencer thread once all commands were executed.
+     * It is not invoked if the sequencer is stopped before.
+     *
+     * @param onComplete Callback invoked after the last command
+     */
+    public void setOnComplete(CompletionCallback onComplete) {
+        this.onComplete = onComplete;
+    }
+
+    /**
+     * Starts executing the schedule. The first command is due immediately.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops executing the schedule. Commands which have not been executed yet are discarded.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Executes all commands of the schedule at their deadlines. Runs on the sequencer thread.
+     */
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < schedule.size(); i++) {
+            long deadline = start + schedule.getOffset(i);
+
+            // Sleep until shortly before the deadline, then spin for the rest
+            long remaining;
+            while (!stopped && (remaining = deadline - System.nanoTime()) > 0) {
+                if (remaining > SPIN_THRESHOLD_NS) {
+                    LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NS);
+                } else {
+                    Thread.yield();
+                }
+            }
+
+            if (stopped) {
+                return;
+            }
+
+            jitterNs[i] = System.nanoTime() - deadline;
+            sink.send(i, schedule.getSetpoint(i));
+            executed = i + 1;
+        }
+
+        Log.d(LOG_TAG, this.getJitterSummary());
+
+        if (onComplete != null) {
+            onComplete.apply();
+        }
+    }
+
+    /**
+     * Get the number of commands executed so far.
+     *
+     * @return Number of executed commands
+     */
+    public int getExecutedCount() {
+        return executed;
+    }
+
+    /**
+     * Get the deviation of the command at the given index from its deadline.
+     *
+     * @param index Index of an executed command
+     * @return Jitter in nanoseconds
+     */
+    public long getJitter(int index) {
+        return jitterNs[index];
+    }
+
+    /**
+     * Get the maximum deviation of any executed command from its deadline.
+     *
+     * @return Maximum jitter in nanoseconds
+     */
+    public long getMaxJitter() {
+        long max = 0;
+
+        for (int i = 0; i < executed; i++) {
+            max = Math.max(max, jitterNs[i]);
+        }
+
+        return max;
+    }
+
+    /**
+     * Returns a summary of the jitter of all executed commands, with mean, 95th percentile and
+     * maximum.
+     *
+     * @return Human-readable jitter summary
+     */
+    public String getJitterSummary() {
+        int count = executed;
+
+        if (count == 0) {
+            return "No commands executed";
+        }
+
+        long[] sorted = Arrays.copyOf(jitterNs, count);
+        Arrays.sort(sorted);
+
+        double mean = Arrays.stream(sorted).average().orElse(0);
+        long p95 = sorted[Math.min(count - 1, (int) Math.ceil(count * 0.95) - 1)];
+
+        return String.format(
+                Locale.ENGLISH,
+                "%d commands, jitter mean %.1fus, p95 %.1fus, max %.1fus",
+                count,
+                mean / 1e3,
+                p95 / 1e3,
+                sorted[count - 1] / 1e3
+        );
+    }
+}
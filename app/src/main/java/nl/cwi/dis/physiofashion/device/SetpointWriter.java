@@ -0,0 +1,315 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * This class makes sure that setpoints reach a single device in the order they were requested,
+ * without redundant writes. At most one setpoint command is in flight per device. A setpoint
+ * requested while another one is in flight is held back and sent once the outstanding command has
+ * completed; if yet another setpoint is requested in the meantime, it replaces the held back one,
+ * so only the latest setpoint is written (last writer wins). Setpoints equal to the one the device
+ * has last acknowledged, or to one already on its way, are not sent again. Callers whose setpoint
+ * was skipped, coalesced or superseded are notified together with the write that made it
+ * obsolete.
+ *
+ * After a failed write the state of the device is unknown, so the next setpoint is always sent.
+ */
+public class SetpointWriter {
+    private static final String LOG_TAG = "SetpointWriter";
+
+    // Response passed to callers whose setpoint was skipped, as no request was sent for it
+    public static final String SKIPPED = "skipped";
+
+    /**
+     * Type definition for the channel through which setpoint commands are sent to the device.
+     */
+    @FunctionalInterface
+    interface CommandSink {
+        void execute(CommandExecutor.RequestFactory factory, Response.Listener<String> onSuccess, Response.ErrorListener onError);
+    }
+
+    /**
+     * A setpoint to be written, together with everybody waiting for it to be acknowledged.
+     */
+    private static class Write {
+        final double setpoint;
+        final CommandExecutor.RequestFactory factory;
+        final ArrayList<Response.Listener<String>> onSuccess = new ArrayList<>();
+        final ArrayList<Response.ErrorListener> onError = new ArrayList<>();
+
+        Write(double setpoint, CommandExecutor.RequestFactory factory) {
+            this.setpoint = setpoint;
+            this.factory = factory;
+        }
+
+        void addWaiter(Response.Listener<String> success, Response.ErrorListener error) {
+            onSuccess.add(success);
+            onError.add(error);
+        }
+
+        void addWaiters(Write other) {
+            onSuccess.addAll(other.onSuccess);
+            onError.addAll(other.onError);
+        }
+    }
+
+    private final DeviceClient client;
+    private final String hostname;
+    private final CommandSink commands;
+    private final Executor callbacks;
+
+    private double acknowledged;
+    private Write inFlight;
+    private Write pending;
+
+    private int requested;
+    private int sent;
+    private int skipped;
+    private int coalesced;
+    private int superseded;
+
+    private long firstSentAt;
+    private long firstAckedAt;
+
+    /**
+     * Initialises a new writer sending setpoints through the command executor of the device at
+     * the given hostname.
+     *
+     * @param client Device client providing the command executor
+     * @param hostname Hostname of the device
+     */
+    SetpointWriter(DeviceClient client, String hostname) {
+        this(
+                client,
+                hostname,
+                (factory, onSuccess, onError) -> client.getCommandExecutor(hostname).execute(DeviceClient.ENDPOINT_SETPOINT, factory, onSuccess, onError),
+                new Handler(Looper.getMainLooper())::post
+        );
+    }
+
+    /**
+     * Initialises a new writer sending setpoints through the given sink.
+     *
+     * @param client Device client providing the start of the session
+     * @param hostname Hostname of the device
+     * @param commands Sink the setpoint commands are sent to
+     * @param callbacks Executor on which the callers of skipped setpoints are notified
+     */
+    SetpointWriter(DeviceClient client, String hostname, CommandSink commands, Executor callbacks) {
+        this.client = client;
+        this.hostname = hostname;
+        this.commands = commands;
+        this.callbacks = callbacks;
+        this.acknowledged = Double.NaN;
+        this.firstSentAt = -1;
+        this.firstAckedAt = -1;
+    }
+
+    /**
+     * Requests the device to go to the given setpoint. Invokes `onSuccess` once the device has
+     * acknowledged this setpoint or a later one, `onError` with the error if that write failed.
+     * The factory is only called if the setpoint is actually sent. If the setpoint is skipped,
+     * because the device already runs at it, `onSuccess` receives `SKIPPED` as response.
+     *
+     * @param setpoint The setpoint in degrees
+     * @param factory Function creating the requests for the setpoint
+     * @param onSuccess Callback invoked on success
+     * @param onError Callback invoked on error
+     */
+    public void write(double setpoint, CommandExecutor.RequestFactory factory, Response.Listener<String> onSuccess, Response.ErrorListener onError) {
+        Write toSend = null;
+
+        synchronized (this) {
+            requested++;
+
+            if (inFlight == null) {
+                // Nothing to do if the device already runs at this setpoint
+                if (setpoint == acknowledged) {
+                    skipped++;
+                    callbacks.execute(() -> onSuccess.onResponse(SKIPPED));
+                    return;
+                }
+
+                inFlight = new Write(setpoint, factory);
+                inFlight.addWaiter(onSuccess, onError);
+                toSend = inFlight;
+            } else if (setpoint == inFlight.setpoint) {
+                // The setpoint is already on its way, and anything held back is now obsolete
+                if (pending != null) {
+                    inFlight.addWaiters(pending);
+                    pending = null;
+                    superseded++;
+                }
+
+                inFlight.addWaiter(onSuccess, onError);
+                coalesced++;
+            } else if (pending != null && setpoint == pending.setpoint) {
+                pending.addWaiter(onSuccess, onError);
+                coalesced++;
+            } else {
+                // Hold the setpoint back until the outstanding one has completed, replacing
+                // whatever was held back before
+                Write next = new Write(setpoint, factory);
+
+                if (pending != null) {
+                    next.addWaiters(pending);
+                    superseded++;
+                }
+
+                next.addWaiter(onSuccess, onError);
+                pending = next;
+            }
+        }
+
+        if (toSend != null) {
+            this.send(toSend);
+        }
+    }
+
+    /**
+     * Sends the given write through the command executor.
+     */
+    private void send(Write write) {
+        synchronized (this) {
+            sent++;
+
+            if (firstSentAt < 0) {
+                firstSentAt = SystemClock.elapsedRealtimeNanos();
+            }
+        }
+
+        commands.execute(
+                write.factory,
+                response -> this.complete(write, response, null),
+                error -> this.complete(write, null, error)
+        );
+    }
+
+    /**
+     * Handles the result of the outstanding write, notifies its waiters and sends the setpoint
+     * held back in the meantime, if any.
+     */
+    private void complete(Write write, String response, VolleyError error) {
+        Write next;
+
+        synchronized (this) {
+            acknowledged = error == null ? write.setpoint : Double.NaN;
+
+            if (error == null && firstAckedAt < 0) {
+                firstAckedAt = SystemClock.elapsedRealtimeNanos();
+            }
+
+            next = pending;
+            pending = null;
+            inFlight = next;
+        }
+
+        if (next != null) {
+            this.send(next);
+        }
+
+        for (int i = 0; i < write.onSuccess.size(); i++) {
+            if (error == null) {
+                write.onSuccess.get(i).onResponse(response);
+            } else {
+                write.onError.get(i).onErrorResponse(error);
+            }
+        }
+    }
+
+    /**
+     * Get the setpoint the device has last acknowledged.
+     *
+     * @return The setpoint, or NaN if it is unknown
+     */
+    public synchronized double getAcknowledgedSetpoint() {
+        return acknowledged;
+    }
+
+    /**
+     * Get the number of setpoints requested by callers.
+     *
+     * @return Number of requested setpoints
+     */
+    public synchronized int getRequested() {
+        return requested;
+    }
+
+    /**
+     * Get the number of setpoint commands actually sent to the device.
+     *
+     * @return Number of sent setpoints
+     */
+    public synchronized int getSent() {
+        return sent;
+    }
+
+    /**
+     * Get the number of writes which were saved, i.e. requested setpoints which were skipped,
+     * coalesced with an outstanding one or superseded by a later one.
+     *
+     * @return Number of saved writes
+     */
+    public synchronized int getSaved() {
+        return skipped + coalesced + superseded;
+    }
+
+    /**
+     * Get the time from the start of the session until the device acknowledged its first
+     * setpoint. This includes resolving the hostname and opening a connection, unless this was
+     * done ahead of time.
+     *
+     * @return Time to the first setpoint in nanoseconds, or -1 if it is not known
+     */
+    public synchronized long getTimeToFirstSetpoint() {
+        long sessionStartedAt = client.getSessionStartedAt();
+
+        if (sessionStartedAt < 0 || firstAckedAt < 0) {
+            return -1;
+        }
+
+        return firstAckedAt - sessionStartedAt;
+    }
+
+    /**
+     * Get the time from sending the first setpoint until the device acknowledged it.
+     *
+     * @return Round trip of the first setpoint in nanoseconds, or -1 if it is not known
+     */
+    public synchronized long getFirstSetpointLatency() {
+        if (firstSentAt < 0 || firstAckedAt < 0) {
+            return -1;
+        }
+
+        return firstAckedAt - firstSentAt;
+    }
+
+    /**
+     * Logs the number of requested and sent setpoints, the reasons for writes saved and the
+     * time it took to get the first setpoint acknowledged.
+     */
+    public synchronized void logStatistics() {
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "%s: %d setpoints requested, %d sent, %d skipped, %d coalesced, %d superseded, first acknowledged %.1fms after session start (round trip %.1fms)",
+                hostname,
+                requested,
+                sent,
+                skipped,
+                coalesced,
+                superseded,
+                this.getTimeToFirstSetpoint() / 1e6,
+                this.getFirstSetpointLatency() / 1e6
+        ));
+    }
+}
@@ -0,0 +1,158 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Temperature stream which subscribes to the endpoint `/api/temperature/stream` of a heating
+ * element. The device is expected to keep the response open and write one sample per line as it
+ * is produced, either as server-sent events (`data: { "temperature": 32.1 }`) or as plain chunked
+ * lines of JSON. The response is read on a dedicated thread, so a single request replaces the
+ * entire polling loop. If the device stops sending samples for longer than the read timeout, the
+ * stream is considered broken and the listener is notified.
+ */
+public class SseTemperatureStream implements TemperatureStream {
+    private static final int CONNECT_TIMEOUT_MS = 2500;
+    private static final int READ_TIMEOUT_MS = 2500;
+
+    private final String url;
+    private final Listener listener;
+    private final Thread readerThread;
+
+    private volatile boolean closed;
+    private volatile HttpURLConnection connection;
+
+    /**
+     * Initialises a new stream for the device at the given hostname. The stream does not connect
+     * until `open()` is called.
+     *
+     * @param hostname Hostname of the heating element
+     * @param listener Listener receiving samples and errors
+     */
+    public SseTemperatureStream(String hostname, Listener listener) {
+        this.url = hostname + "/api/temperature/stream";
+        this.listener = listener;
+
+        this.readerThread = new Thread(this::readStream, "SseTemperatureStream");
+        this.readerThread.setDaemon(true);
+    }
+
+    @Override
+    public void open() {
+        readerThread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        // Disconnecting unblocks the reader thread if it is waiting for data
+        HttpURLConnection conn = connection;
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Connects to the device and reads samples line by line until the stream is closed or breaks
+     * down. Runs on the reader thread.
+     */
+    private void readStream() {
+        HttpURLConnection conn = null;
+
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setRequestProperty("Accept", "text/event-stream");
+            connection = conn;
+
+            // Check whether the device offers a stream at all
+            int status = conn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD) {
+                throw new StreamingUnsupportedException("Device does not support temperature streaming");
+            } else if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response status " + status);
+            }
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+
+                // Pass every line that carries a sample on to the listener
+                while (!closed && (line = reader.readLine()) != null) {
+                    double temperature = parseSample(line);
+
+                    if (!Double.isNaN(temperature)) {
+                        listener.onSample(temperature);
+                    }
+                }
+            }
+
+            if (!closed) {
+                throw new EOFException("Device closed temperature stream");
+            }
+        } catch (IOException e) {
+            // Errors after the stream was closed are caused by closing it and not reported
+            if (!closed) {
+                listener.onError(e);
+            }
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Extracts the temperature from a single line of the stream. Lines either are server-sent
+     * event data lines or plain lines, holding a JSON object with the key `temperature` or a bare
+     * number. All other lines, such as event names, IDs and comments, yield NaN.
+     *
+     * @param line A line read from the stream
+     * @return The temperature contained in the line or NaN if there is none
+     */
+    static double parseSample(String line) {
+        String payload = line.startsWith("data:") ? line.substring(5).trim() : line.trim();
+
+        if (payload.isEmpty()) {
+            return Double.NaN;
+        }
+
+        // Find the start of the number, either after the `temperature` key or at the beginning
+        int start;
+        if (payload.charAt(0) == '{') {
+            int key = payload.indexOf("\"temperature\"");
+            if (key < 0) {
+                return Double.NaN;
+            }
+
+            start = payload.indexOf(':', key) + 1;
+        } else if (payload.charAt(0) == '-' || Character.isDigit(payload.charAt(0))) {
+            start = 0;
+        } else {
+            return Double.NaN;
+        }
+
+        // Skip whitespace in front of the number
+        while (start < payload.length() && Character.isWhitespace(payload.charAt(start))) {
+            start++;
+        }
+
+        // Collect all characters which can be part of a number
+        int end = start;
+        while (end < payload.length() && "+-.eE0123456789".indexOf(payload.charAt(end)) >= 0) {
+            end++;
+        }
+
+        try {
+            return Double.parseDouble(payload.substring(start, end));
+        } catch (NumberFormatException nfe) {
+            return Double.NaN;
+        }
+    }
+}
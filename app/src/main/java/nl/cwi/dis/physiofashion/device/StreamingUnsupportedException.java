@@ -0,0 +1,18 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.io.IOException;
+
+/**
+ * Exception passed to the listener of a temperature stream if the device does not offer the
+ * stream at all, as opposed to a stream which could not be opened or broke down.
+ */
+public class StreamingUnsupportedException extends IOException {
+    /**
+     * Initialises a new exception with the given message.
+     *
+     * @param message Description of the stream which is not supported
+     */
+    public StreamingUnsupportedException(String message) {
+        super(message);
+    }
+}
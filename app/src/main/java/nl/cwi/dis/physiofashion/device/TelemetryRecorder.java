@@ -0,0 +1,198 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.SystemClock;
+
+/**
+ * This class records every temperature reading received from a heating element together with a
+ * monotonic timestamp, the setpoint in effect at that time and the index of the current trial.
+ * Samples are stored in preallocated parallel arrays which are used as a ring buffer, i.e. once
+ * the capacity is exhausted, the oldest samples are overwritten. Recording a sample neither
+ * allocates nor boxes, so the recorder can run at high sample rates for an entire session. A
+ * listener can be attached which receives every sample as it is recorded.
+ */
+public class TelemetryRecorder {
+    public static final int DEFAULT_CAPACITY = 1 << 17;
+
+    /**
+     * Type definition for a consumer of recorded samples.
+     */
+    @FunctionalInterface
+    public interface SampleConsumer {
+        void accept(long timestampNs, float temperature, float setpoint, int trial);
+    }
+
+    private final long[] timestamps;
+    private final float[] temperatures;
+    private final float[] setpoints;
+    private final int[] trials;
+
+    private int next;
+    private int size;
+    private float currentSetpoint;
+    private int currentTrial;
+    private SampleConsumer listener;
+
+    /**
+     * Initialises a new recorder with the default capacity.
+     */
+    public TelemetryRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Initialises a new recorder which holds up to the given number of samples.
+     *
+     * @param capacity Maximum number of samples held by the recorder
+     */
+    public TelemetryRecorder(int capacity) {
+        this.timestamps = new long[capacity];
+        this.temperatures = new float[capacity];
+        this.setpoints = new float[capacity];
+        this.trials = new int[capacity];
+
+        this.currentSetpoint = Float.NaN;
+        this.currentTrial = -1;
+    }
+
+    /**
+     * Records a temperature reading, timestamped with the current monotonic clock.
+     *
+     * @param temperature The temperature reading
+     */
+    public void record(double temperature) {
+        this.record(SystemClock.elapsedRealtimeNanos(), temperature);
+    }
+
+    /**
+     * Records a temperature reading taken at the given time. If the recorder is full, the oldest
+     * sample is overwritten.
+     *
+     * @param timestampNs Monotonic timestamp of the reading in nanoseconds
+     * @param temperature The temperature reading
+     */
+    public synchronized void record(long timestampNs, double temperature) {
+        timestamps[next] = timestampNs;
+        temperatures[next] = (float) temperature;
+        setpoints[next] = currentSetpoint;
+        trials[next] = currentTrial;
+
+        next = (next + 1) % timestamps.length;
+        if (size < timestamps.length) {
+            size++;
+        }
+
+        if (listener != null) {
+            listener.accept(timestampNs, (float) temperature, currentSetpoint, currentTrial);
+        }
+    }
+
+    /**
+     * Sets a listener which receives every sample right after it has been recorded. The listener
+     * is invoked on the recording thread while the recorder is locked, so it should return quickly.
+     *
+     * @param listener Listener receiving the samples, or `null` to remove it
+     */
+    public synchronized void setListener(SampleConsumer listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the setpoint stored with subsequent samples.
+     *
+     * @param setpoint The setpoint of the heating element
+     */
+    public synchronized void setSetpoint(double setpoint) {
+        this.currentSetpoint = (float) setpoint;
+    }
+
+    /**
+     * Get the setpoint stored with subsequent samples.
+     *
+     * @return The setpoint, or NaN if none has been set yet
+     */
+    public synchronized float getSetpoint() {
+        return currentSetpoint;
+    }
+
+    /**
+     * Get the most recently recorded temperature reading.
+     *
+     * @return The latest temperature, or NaN if no sample has been recorded yet
+     */
+    public synchronized float getLatestTemperature() {
+        if (size == 0) {
+            return Float.NaN;
+        }
+
+        return temperatures[(next - 1 + temperatures.length) % temperatures.length];
+    }
+
+    /**
+     * Get the time at which the most recent temperature reading was taken.
+     *
+     * @return Monotonic timestamp of the latest reading in nanoseconds, or -1 if no sample has
+     * been recorded yet
+     */
+    public synchronized long getLatestTimestamp() {
+        if (size == 0) {
+            return -1;
+        }
+
+        return timestamps[(next - 1 + timestamps.length) % timestamps.length];
+    }
+
+    /**
+     * Sets the trial index stored with subsequent samples.
+     *
+     * @param trial Index of the current trial
+     */
+    public synchronized void setTrial(int trial) {
+        this.currentTrial = trial;
+    }
+
+    /**
+     * Get the number of samples currently held by the recorder.
+     *
+     * @return Number of samples
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the maximum number of samples held by the recorder.
+     *
+     * @return The capacity
+     */
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * Passes all samples to the given consumer, from oldest to newest.
+     *
+     * @param consumer Consumer receiving the samples
+     */
+    public synchronized void forEach(SampleConsumer consumer) {
+        this.forEach(-1, consumer);
+    }
+
+    /**
+     * Passes all samples recorded during the given trial to the given consumer, from oldest to
+     * newest. If `trial` is negative, all samples are passed on.
+     *
+     * @param trial Index of the trial, or a negative value for all samples
+     * @param consumer Consumer receiving the samples
+     */
+    public synchronized void forEach(int trial, SampleConsumer consumer) {
+        int first = (next - size + timestamps.length) % timestamps.length;
+
+        for (int i = 0; i < size; i++) {
+            int index = (first + i) % timestamps.length;
+
+            if (trial < 0 || trials[index] == trial) {
+                consumer.accept(timestamps[index], temperatures[index], setpoints[index], trials[index]);
+            }
+        }
+    }
+}
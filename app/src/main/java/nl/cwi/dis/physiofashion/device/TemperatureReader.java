@@ -0,0 +1,265 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * This class makes sure that at most one temperature read per device is in flight at any time.
+ * Callers requesting the temperature while a read is outstanding do not issue a request of their
+ * own, but are added as waiters and receive the result of the outstanding read. If the
+ * outstanding read has taken so long that its result would be stale, it is dropped and a fresh
+ * read is issued on behalf of all waiters. The number of issued, coalesced and dropped reads is
+ * kept for diagnostics. Every reading is added to the device's telemetry recorder.
+ */
+public class TemperatureReader {
+    private static final String LOG_TAG = "TemperatureReader";
+    private static final long MAX_READ_AGE_MS = 1000;
+
+    /**
+     * Type definition for the channel through which read requests are sent to the device.
+     */
+    interface RequestSink {
+        /**
+         * Sends the given request to the device.
+         *
+         * @param request The request
+         */
+        void add(Request<?> request);
+
+        /**
+         * Called when a request to the device has failed.
+         *
+         * @param error The error of the request
+         */
+        void onRequestFailed(VolleyError error);
+    }
+
+    /**
+     * A caller waiting for the result of the outstanding read.
+     */
+    private static class Waiter {
+        final Response.Listener<Double> onSuccess;
+        final Response.ErrorListener onError;
+
+        Waiter(Response.Listener<Double> onSuccess, Response.ErrorListener onError) {
+            this.onSuccess = onSuccess;
+            this.onError = onError;
+        }
+    }
+
+    private final String hostname;
+    private final RequestSink requests;
+    private final TelemetryRecorder recorder;
+    private final LatencyHistogram latencies;
+    private final ClockSync clock;
+    private final long maxReadAgeMs;
+
+    private Request<?> inFlight;
+    private long inFlightSince;
+    private int readGeneration;
+    private ArrayList<Waiter> waiters;
+
+    private int issuedReads;
+    private int coalescedReads;
+    private int droppedReads;
+
+    /**
+     * Initialises a new reader for the device at the given hostname.
+     *
+     * @param client Device client used to send requests
+     * @param hostname Hostname of the device
+     */
+    TemperatureReader(DeviceClient client, String hostname) {
+        this(
+                hostname,
+                new RequestSink() {
+                    @Override
+                    public void add(Request<?> request) {
+                        client.add(hostname, request);
+                    }
+
+                    @Override
+                    public void onRequestFailed(VolleyError error) {
+                        client.onRequestFailed(hostname, error);
+                    }
+                },
+                client.getTelemetryRecorder(hostname),
+                client.getLatencyHistogram(hostname, DeviceClient.ENDPOINT_TEMPERATURE),
+                client.getClockSync(hostname),
+                MAX_READ_AGE_MS
+        );
+    }
+
+    /**
+     * Initialises a new reader sending its requests to the given sink.
+     *
+     * @param hostname Hostname of the device
+     * @param requests Sink the read requests are sent to
+     * @param recorder Recorder every reading is added to
+     * @param latencies Histogram the latency of every read is recorded in
+     * @param clock Estimator of the device's clock, fed by reads answered with the device's time
+     * @param maxReadAgeMs Time in milliseconds after which an outstanding read is dropped
+     */
+    TemperatureReader(String hostname, RequestSink requests, TelemetryRecorder recorder, LatencyHistogram latencies, ClockSync clock, long maxReadAgeMs) {
+        this.hostname = hostname;
+        this.requests = requests;
+        this.recorder = recorder;
+        this.latencies = latencies;
+        this.clock = clock;
+        this.maxReadAgeMs = maxReadAgeMs;
+        this.waiters = new ArrayList<>();
+    }
+
+    /**
+     * Requests the current temperature from the device. If a read is already outstanding, the
+     * callbacks are invoked with its result instead of sending another request. Invokes `onSuccess`
+     * with the temperature on success, `onError` with the HTTP error otherwise, or with `null` if
+     * the response could not be parsed.
+     *
+     * @param onSuccess Callback invoked on success with the temperature as argument
+     * @param onError Callback invoked on error
+     */
+    public synchronized void read(Response.Listener<Double> onSuccess, Response.ErrorListener onError) {
+        waiters.add(new Waiter(onSuccess, onError));
+
+        if (inFlight != null) {
+            // Share the outstanding read if its result is still going to be fresh
+            if (SystemClock.elapsedRealtime() - inFlightSince <= maxReadAgeMs) {
+                coalescedReads++;
+                return;
+            }
+
+            // Drop stale read and send a new one for all waiters
+            Log.d(LOG_TAG, "Dropping stale temperature read to " + hostname);
+            inFlight.cancel();
+            droppedReads++;
+        }
+
+        this.send();
+    }
+
+    /**
+     * Sends a new read request to the device and marks it as the outstanding read.
+     */
+    private void send() {
+        // Number identifying this read, so results of dropped reads can be told apart
+        int generation = ++readGeneration;
+        long sentAt = SystemClock.elapsedRealtimeNanos();
+
+        // The temperature is read straight from the response bytes, without building a JSONObject
+        TemperatureRequest request = new TemperatureRequest(
+                hostname,
+                (temperature, deviceTimeUs) -> {
+                    long receivedAt = SystemClock.elapsedRealtimeNanos();
+                    latencies.record(receivedAt - sentAt);
+
+                    // Every read answered with the device's time doubles as clock probe
+                    if (deviceTimeUs >= 0) {
+                        clock.addProbe(sentAt, deviceTimeUs, receivedAt);
+                    }
+
+                    this.complete(generation, temperature, null);
+                },
+                error -> {
+                    latencies.recordError();
+                    requests.onRequestFailed(error);
+
+                    // Pass `null` as error if the response could not be parsed
+                    this.complete(generation, null, error instanceof ParseError ? null : error);
+                }
+        );
+
+        inFlight = request;
+        inFlightSince = SystemClock.elapsedRealtime();
+        issuedReads++;
+
+        requests.add(request);
+    }
+
+    /**
+     * Hands the result of a read to all waiters. Results of reads which are no longer the
+     * outstanding read are ignored.
+     *
+     * @param generation Number identifying the read that completed
+     * @param temperature The temperature read, or `null` on error
+     * @param error The HTTP error, if any
+     */
+    private void complete(int generation, Double temperature, VolleyError error) {
+        ArrayList<Waiter> completed;
+
+        synchronized (this) {
+            if (inFlight == null || generation != readGeneration) {
+                return;
+            }
+
+            completed = waiters;
+            waiters = new ArrayList<>();
+            inFlight = null;
+        }
+
+        // Record the reading once, no matter how many callers were waiting for it
+        if (temperature != null) {
+            recorder.record(temperature);
+        }
+
+        // Invoke callbacks outside of the lock, so they can issue new reads
+        for (Waiter waiter : completed) {
+            if (temperature != null) {
+                waiter.onSuccess.onResponse(temperature);
+            } else {
+                waiter.onError.onErrorResponse(error);
+            }
+        }
+    }
+
+    /**
+     * Get the number of read requests sent to the device.
+     *
+     * @return Number of issued reads
+     */
+    public synchronized int getIssuedReads() {
+        return issuedReads;
+    }
+
+    /**
+     * Get the number of reads which were answered by an outstanding read instead of a request of
+     * their own.
+     *
+     * @return Number of coalesced reads
+     */
+    public synchronized int getCoalescedReads() {
+        return coalescedReads;
+    }
+
+    /**
+     * Get the number of outstanding reads which were dropped because their result would have
+     * been stale.
+     *
+     * @return Number of dropped reads
+     */
+    public synchronized int getDroppedReads() {
+        return droppedReads;
+    }
+
+    /**
+     * Logs the read statistics of this device to the system log.
+     */
+    void logStatistics() {
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "Temperature reads for %s: %d issued, %d coalesced, %d dropped",
+                hostname,
+                this.getIssuedReads(),
+                this.getCoalescedReads(),
+                this.getDroppedReads()
+        ));
+    }
+}
@@ -0,0 +1,71 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+/**
+ * Request reading the current temperature from the endpoint `/api/temperature` of a heating
+ * element. Unlike a JsonObjectRequest, the response is neither decoded into a string nor parsed
+ * into a JSONObject; the field `temperature` is read straight from the response bytes, as is the
+ * optional field `timestamp`, the device's clock in microseconds. Responses without a numeric
+ * temperature are delivered as ParseError.
+ */
+public class TemperatureRequest extends Request<Double> {
+    private static final JsonNumberScanner TEMPERATURE = new JsonNumberScanner("temperature");
+    private static final JsonNumberScanner TIMESTAMP = new JsonNumberScanner("timestamp");
+
+    /**
+     * Type definition for a callback receiving the temperature and the time of the device.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Invoked with the temperature read from the device.
+         *
+         * @param temperature The temperature reading
+         * @param deviceTimeUs Time of the device in microseconds, or -1 if it sent none
+         */
+        void onTemperature(double temperature, long deviceTimeUs);
+    }
+
+    private final Listener listener;
+    private volatile long deviceTimeUs;
+
+    /**
+     * Initialises a new request for the device at the given hostname.
+     *
+     * @param hostname Hostname of the heating element
+     * @param listener Callback invoked with the temperature on success
+     * @param errorListener Callback invoked on error
+     */
+    public TemperatureRequest(String hostname, Listener listener, Response.ErrorListener errorListener) {
+        super(Method.GET, hostname + "/api/temperature", errorListener);
+
+        this.listener = listener;
+        this.deviceTimeUs = -1;
+    }
+
+    @Override
+    protected Response<Double> parseNetworkResponse(NetworkResponse response) {
+        double temperature = TEMPERATURE.scan(response.data);
+
+        if (Double.isNaN(temperature)) {
+            return Response.error(new ParseError(response));
+        }
+
+        double timestamp = TIMESTAMP.scan(response.data);
+        if (!Double.isNaN(timestamp)) {
+            deviceTimeUs = (long) timestamp;
+        }
+
+        // Responses are never cached, so no cache entry is needed
+        return Response.success(temperature, null);
+    }
+
+    @Override
+    protected void deliverResponse(Double temperature) {
+        listener.onTemperature(temperature, deviceTimeUs);
+    }
+}
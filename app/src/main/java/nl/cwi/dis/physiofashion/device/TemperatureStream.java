@@ -0,0 +1,50 @@
+package nl.cwi.dis.physiofashion.device;
+
+/**
+ * A subscription to temperature samples pushed by a heating element. Samples are delivered to a
+ * listener as they are produced by the device, on a thread owned by the stream. Once a stream has
+ * been closed, no more samples or errors are delivered to the listener.
+ */
+public interface TemperatureStream {
+    /**
+     * Type definition for a listener receiving temperature samples and stream errors.
+     */
+    interface Listener {
+        /**
+         * Invoked for every temperature sample received from the device.
+         *
+         * @param temperature The temperature reading
+         */
+        void onSample(double temperature);
+
+        /**
+         * Invoked for every temperature sample received from the device together with the time
+         * at which the device took it. By default, the time is ignored.
+         *
+         * @param temperature The temperature reading
+         * @param deviceTimeUs Time of the device in microseconds
+         */
+        default void onSample(double temperature, long deviceTimeUs) {
+            this.onSample(temperature);
+        }
+
+        /**
+         * Invoked if the stream could not be opened or broke down. No more samples are delivered
+         * after this method has been called. If the device does not offer the stream at all, the
+         * exception is a `StreamingUnsupportedException`.
+         *
+         * @param e The error that occurred
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * Starts receiving samples from the device.
+     */
+    void open();
+
+    /**
+     * Stops receiving samples and releases all resources held by the stream.
+     */
+    void close();
+}
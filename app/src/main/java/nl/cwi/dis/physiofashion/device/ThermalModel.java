@@ -0,0 +1,235 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.util.Locale;
+
+/**
+ * This class models how the temperature of a heating element follows its setpoint. The model is a
+ * first-order lag with a rate limit, i.e. the temperature approaches the setpoint at a rate
+ * proportional to the remaining gap (with time constant `tau`), but never faster than a maximum
+ * rate. Both parameters are fitted online from the telemetry of the device: the rate of change is
+ * estimated over windows of at least half a second, windows in which the model says the element
+ * is rate-limited update the maximum rate and all others update the time constant through a least
+ * squares fit with exponential forgetting. The model is used to predict when a target will be
+ * reached, from which timeouts and poll intervals are derived.
+ */
+public class ThermalModel implements TelemetryRecorder.SampleConsumer {
+    private static final double DEFAULT_TIME_CONSTANT_S = 8.0;
+    private static final double DEFAULT_MAX_RATE = 0.5;
+    private static final double MIN_TIME_CONSTANT_S = 0.5;
+    private static final double MAX_TIME_CONSTANT_S = 120.0;
+    private static final double MIN_MAX_RATE = 0.05;
+    private static final double MAX_MAX_RATE = 10.0;
+
+    private static final long MIN_FIT_INTERVAL_NS = 500_000_000L;
+    private static final double MIN_FIT_GAP = 0.2;
+    private static final double FORGETTING_FACTOR = 0.95;
+    private static final double RATE_SMOOTHING = 0.2;
+    private static final int MIN_FIT_SAMPLES = 5;
+
+    private static final double SETTLING_BAND = 0.1;
+    private static final double TIMEOUT_FACTOR = 1.5;
+    private static final long TIMEOUT_MARGIN_MS = 2000;
+    private static final long MIN_TIMEOUT_MS = 2000;
+    private static final long MAX_TIMEOUT_MS = 60000;
+
+    private double gain;
+    private double maxRate;
+    private double sxx;
+    private double sxy;
+    private int fitSamples;
+
+    private long anchorTime;
+    private float anchorTemp;
+    private float anchorSetpoint;
+    private boolean anchored;
+
+    /**
+     * Initialises a new model with default parameters, which are used for predictions until
+     * enough telemetry has been observed.
+     */
+    public ThermalModel() {
+        this.gain = 1 / DEFAULT_TIME_CONSTANT_S;
+        this.maxRate = DEFAULT_MAX_RATE;
+    }
+
+    /**
+     * Updates the model with a temperature sample. Samples without a setpoint are ignored and a
+     * change of setpoint starts a new fitting window.
+     *
+     * @param timestampNs Monotonic timestamp of the sample in nanoseconds
+     * @param temperature The temperature reading
+     * @param setpoint The setpoint in effect at the time of the reading
+     * @param trial Index of the trial, ignored
+     */
+    @Override
+    public synchronized void accept(long timestampNs, float temperature, float setpoint, int trial) {
+        if (Float.isNaN(setpoint) || Float.isNaN(temperature)) {
+            anchored = false;
+            return;
+        }
+
+        // Start a new window if there is none or the setpoint has changed since it started
+        if (!anchored || setpoint != anchorSetpoint || timestampNs < anchorTime) {
+            this.anchor(timestampNs, temperature, setpoint);
+            return;
+        }
+
+        long elapsed = timestampNs - anchorTime;
+        if (elapsed < MIN_FIT_INTERVAL_NS) {
+            return;
+        }
+
+        // Rate of change towards the setpoint over the window and the mean gap during the window
+        double gap = setpoint - (temperature + anchorTemp) / 2.0;
+        double rate = (temperature - anchorTemp) / (elapsed / 1e9) * Math.signum(gap);
+        gap = Math.abs(gap);
+
+        this.anchor(timestampNs, temperature, setpoint);
+
+        // Close to the setpoint the gap is dominated by noise
+        if (gap < MIN_FIT_GAP) {
+            return;
+        }
+
+        if (rate > maxRate) {
+            // Faster than the model allows, so the rate limit is at least this high
+            maxRate = Math.min(MAX_MAX_RATE, rate);
+        } else if (gain * gap > maxRate) {
+            // The model says the element is rate-limited, so refine the rate limit
+            if (rate > 0) {
+                maxRate = Math.max(MIN_MAX_RATE, maxRate + RATE_SMOOTHING * (rate - maxRate));
+            }
+        } else {
+            // Least squares fit of rate = gain * gap through the origin
+            sxx = FORGETTING_FACTOR * sxx + gap * gap;
+            sxy = FORGETTING_FACTOR * sxy + gap * rate;
+            fitSamples++;
+
+            if (sxy > 0) {
+                gain = Math.max(1 / MAX_TIME_CONSTANT_S, Math.min(1 / MIN_TIME_CONSTANT_S, sxy / sxx));
+            }
+        }
+    }
+
+    private void anchor(long timestampNs, float temperature, float setpoint) {
+        anchorTime = timestampNs;
+        anchorTemp = temperature;
+        anchorSetpoint = setpoint;
+        anchored = true;
+    }
+
+    /**
+     * Returns whether the time constant has been fitted from enough telemetry. Until then,
+     * predictions are based on default parameters.
+     *
+     * @return Whether the model has been fitted
+     */
+    public synchronized boolean isFitted() {
+        return fitSamples >= MIN_FIT_SAMPLES;
+    }
+
+    /**
+     * Get the fitted time constant of the heating element.
+     *
+     * @return Time constant in seconds
+     */
+    public synchronized double getTimeConstant() {
+        return 1 / gain;
+    }
+
+    /**
+     * Get the fitted maximum rate of change of the heating element.
+     *
+     * @return Maximum rate in degrees per second
+     */
+    public synchronized double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * Predicts how long it takes the temperature to reach the given target from the given
+     * temperature while the element is driven towards the given setpoint. While the gap to the
+     * setpoint is large, the temperature changes at the maximum rate, after that it decays
+     * exponentially. As an exponential decay never reaches the setpoint itself, targets within a
+     * small band around the setpoint count as reached once the temperature enters the band.
+     *
+     * @param temperature The current temperature
+     * @param setpoint The setpoint the element is driven towards
+     * @param target The temperature to reach
+     * @return Predicted time in seconds, 0 if the target has been reached already or infinity if the target lies beyond the setpoint
+     */
+    public synchronized double predictTimeToReach(double temperature, double setpoint, double target) {
+        double direction = Math.signum(setpoint - temperature);
+        double gap = Math.abs(setpoint - temperature);
+        double distance = (target - temperature) * direction;
+
+        if (distance <= 0) {
+            return 0;
+        }
+
+        // Remaining gap to the setpoint at the time the target is reached
+        double targetGap = gap - distance;
+        if (targetGap < -SETTLING_BAND) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        targetGap = Math.max(targetGap, SETTLING_BAND);
+        if (gap <= targetGap) {
+            return 0;
+        }
+
+        double time = 0;
+
+        // Rate-limited phase until the first-order rate drops below the maximum rate
+        double linearGap = maxRate / gain;
+        if (gap > linearGap) {
+            double endGap = Math.max(linearGap, targetGap);
+
+            time += (gap - endGap) / maxRate;
+            gap = endGap;
+        }
+
+        // Exponential phase for the rest of the way
+        if (gap > targetGap) {
+            time += Math.log(gap / targetGap) / gain;
+        }
+
+        return time;
+    }
+
+    /**
+     * Computes a timeout for reaching the given target, based on the predicted time plus a safety
+     * margin. If the model has not been fitted yet or the target cannot be reached, the given
+     * fallback is returned.
+     *
+     * @param temperature The current temperature
+     * @param setpoint The setpoint the element is driven towards
+     * @param target The temperature to reach
+     * @param fallbackMs Timeout in milliseconds used if there is no usable prediction
+     * @return Timeout in milliseconds
+     */
+    public long estimateTimeout(double temperature, double setpoint, double target, long fallbackMs) {
+        if (!this.isFitted() || Double.isNaN(temperature)) {
+            return fallbackMs;
+        }
+
+        double predicted = this.predictTimeToReach(temperature, setpoint, target);
+        if (Double.isInfinite(predicted)) {
+            return fallbackMs;
+        }
+
+        long timeout = Math.round(predicted * 1000 * TIMEOUT_FACTOR) + TIMEOUT_MARGIN_MS;
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.ENGLISH,
+                "tau %.2fs, max rate %.2f/s, %d fit samples",
+                1 / gain,
+                maxRate,
+                fitSamples
+        );
+    }
+}
@@ -0,0 +1,352 @@
+package nl.cwi.dis.physiofashion.device;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Temperature stream in which the heating element pushes fixed-size binary datagrams to the
+ * tablet over UDP. The stream binds a socket to an ephemeral port and asks the device to send
+ * samples there with `PUT /api/telemetry/udp`, the device is expected to reply to the address the
+ * request came from. Every datagram is 16 bytes in network byte order: a 32-bit sequence number,
+ * the 64-bit device timestamp in microseconds and the temperature as 32-bit float.
+ *
+ * UDP gives no delivery guarantees, so the stream tracks the sequence numbers of the datagrams in
+ * a sliding window. Gaps are counted as lost, datagrams arriving after a newer one are counted as
+ * reordered and dropped, so the listener only ever sees samples in order, and duplicates are
+ * discarded. If the device restarts, its sequence numbers and clock start over; this shows as a
+ * jump back beyond the window or as a timestamp older than the first sample of the stream, upon
+ * which tracking starts again from that datagram. Control commands keep going over HTTP.
+ * Receiving a sample neither allocates nor parses text.
+ */
+public class UdpTemperatureStream implements TemperatureStream {
+    private static final String LOG_TAG = "UdpTemperatureStream";
+
+    public static final int DATAGRAM_SIZE = 16;
+    public static final int DEFAULT_INTERVAL_MS = 20;
+
+    private static final int CONNECT_TIMEOUT_MS = 2500;
+    private static final int READ_TIMEOUT_MS = 2500;
+    private static final int REORDER_WINDOW = 64;
+
+    private final String url;
+    private final int intervalMs;
+    private final Listener listener;
+    private final Thread readerThread;
+
+    private final byte[] buffer;
+    private final ByteBuffer view;
+
+    private volatile boolean closed;
+    private volatile DatagramSocket socket;
+
+    private long highestSequence;
+    private long seenWindow;
+    private boolean started;
+
+    private long received;
+    private long lost;
+    private long reordered;
+    private long duplicates;
+    private long restarts;
+    private long firstDeviceTimestampUs;
+    private long lastDeviceTimestampUs;
+
+    /**
+     * Initialises a new stream for the device at the given hostname, sending a sample at the
+     * default interval. The stream does not subscribe until `open()` is called.
+     *
+     * @param hostname Hostname of the heating element
+     * @param listener Listener receiving samples and errors
+     */
+    public UdpTemperatureStream(String hostname, Listener listener) {
+        this(hostname, DEFAULT_INTERVAL_MS, listener);
+    }
+
+    /**
+     * Initialises a new stream for the device at the given hostname. The stream does not
+     * subscribe until `open()` is called.
+     *
+     * @param hostname Hostname of the heating element
+     * @param intervalMs Interval in milliseconds at which the device should send samples
+     * @param listener Listener receiving samples and errors
+     */
+    public UdpTemperatureStream(String hostname, int intervalMs, Listener listener) {
+        this.url = hostname + "/api/telemetry/udp";
+        this.intervalMs = intervalMs;
+        this.listener = listener;
+
+        this.buffer = new byte[DATAGRAM_SIZE];
+        this.view = ByteBuffer.wrap(buffer).order(ByteOrder.BIG_ENDIAN);
+
+        this.readerThread = new Thread(this::readStream, "UdpTemperatureStream");
+        this.readerThread.setDaemon(true);
+    }
+
+    @Override
+    public void open() {
+        readerThread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        // Closing the socket unblocks the reader thread if it is waiting for a datagram
+        DatagramSocket sock = socket;
+        if (sock != null) {
+            sock.close();
+        }
+    }
+
+    /**
+     * Binds the socket, subscribes to the device and receives datagrams until the stream is
+     * closed or no datagram arrives within the read timeout. Unsubscribes from the device before
+     * returning. Runs on the reader thread.
+     */
+    private void readStream() {
+        boolean subscribed = false;
+
+        try (DatagramSocket sock = new DatagramSocket()) {
+            sock.setSoTimeout(READ_TIMEOUT_MS);
+            socket = sock;
+
+            // Tell the device where to send its samples
+            this.subscribe(sock.getLocalPort());
+            subscribed = true;
+
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+            while (!closed) {
+                packet.setLength(buffer.length);
+                sock.receive(packet);
+
+                // Ignore datagrams which do not have the expected size
+                if (packet.getLength() != DATAGRAM_SIZE) {
+                    continue;
+                }
+
+                long sequence = view.getInt(0) & 0xFFFFFFFFL;
+                long timestampUs = view.getLong(4);
+                float temperature = view.getFloat(12);
+
+                if (this.accept(sequence, timestampUs)) {
+                    listener.onSample(temperature, timestampUs);
+                }
+            }
+        } catch (SocketTimeoutException ste) {
+            if (!closed) {
+                listener.onError(new IOException("No temperature datagram received for " + READ_TIMEOUT_MS + "ms", ste));
+            }
+        } catch (IOException e) {
+            // Errors after the stream was closed are caused by closing it and not reported
+            if (!closed) {
+                listener.onError(e);
+            }
+        } finally {
+            if (subscribed) {
+                this.unsubscribe();
+            }
+
+            this.logStatistics();
+        }
+    }
+
+    /**
+     * Asks the device to start sending samples to the given port of this tablet.
+     *
+     * @param port Local port the socket is bound to
+     */
+    private void subscribe(int port) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setRequestMethod("PUT");
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setDoOutput(true);
+
+            String body = String.format(Locale.ENGLISH, "{ \"port\": %d, \"intervalMs\": %d }", port, intervalMs);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+
+            // Check whether the device offers UDP telemetry at all
+            int status = conn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD) {
+                throw new StreamingUnsupportedException("Device does not support UDP telemetry");
+            } else if (status / 100 != 2) {
+                throw new IOException("Unexpected response status " + status);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Asks the device to stop sending samples. Failures are only logged, since the device stops
+     * on its own once it notices that nobody is listening.
+     */
+    private void unsubscribe() {
+        HttpURLConnection conn = null;
+
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setRequestMethod("DELETE");
+            conn.getResponseCode();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not unsubscribe from " + url + ": " + e);
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Tracks the sequence number of a received datagram and decides whether its sample should be
+     * delivered. Only datagrams newer than all previous ones are delivered. Sequence numbers
+     * skipped over are counted as lost until they arrive late, at which point they are counted as
+     * reordered instead. A datagram from before a restart of the device cannot be told apart from
+     * a reordered one, so a restart is only assumed if the sequence number jumps back beyond the
+     * window, or if the device timestamp lies before the first datagram since tracking started.
+     *
+     * @param sequence Sequence number of the datagram
+     * @param timestampUs Device timestamp of the datagram in microseconds
+     * @return Whether the sample should be passed on to the listener
+     */
+    synchronized boolean accept(long sequence, long timestampUs) {
+        long age = highestSequence - sequence;
+
+        if (started && sequence < highestSequence && (age >= REORDER_WINDOW || timestampUs < firstDeviceTimestampUs)) {
+            Log.w(LOG_TAG, url + ": sequence went back from " + highestSequence + " to " + sequence + ", assuming the device restarted");
+            started = false;
+            restarts++;
+        }
+
+        if (!started) {
+            started = true;
+            highestSequence = sequence;
+            seenWindow = 1;
+            received++;
+            firstDeviceTimestampUs = timestampUs;
+            lastDeviceTimestampUs = timestampUs;
+
+            return true;
+        }
+
+        if (sequence > highestSequence) {
+            long gap = sequence - highestSequence;
+
+            // Shift the window of seen sequence numbers and count everything skipped as lost
+            seenWindow = gap >= REORDER_WINDOW ? 1 : (seenWindow << gap) | 1;
+            lost += gap - 1;
+            highestSequence = sequence;
+            received++;
+            lastDeviceTimestampUs = timestampUs;
+
+            return true;
+        }
+
+        // Already seen
+        if ((seenWindow & (1L << age)) != 0) {
+            duplicates++;
+            return false;
+        }
+
+        // A datagram previously counted as lost has arrived late
+        seenWindow |= 1L << age;
+        lost--;
+        reordered++;
+        received++;
+
+        return false;
+    }
+
+    /**
+     * Get the number of distinct datagrams received.
+     *
+     * @return Number of datagrams received, including late ones
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * Get the number of datagrams which were skipped and have not arrived since.
+     *
+     * @return Number of lost datagrams
+     */
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    /**
+     * Get the number of datagrams which arrived after a newer one and were therefore dropped.
+     *
+     * @return Number of reordered datagrams
+     */
+    public synchronized long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * Get the number of datagrams which were received more than once.
+     *
+     * @return Number of duplicate datagrams
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Get the number of times the device was found to have restarted its sequence numbers.
+     *
+     * @return Number of restarts
+     */
+    public synchronized long getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * Get the device timestamp of the newest sample delivered.
+     *
+     * @return Timestamp in microseconds on the device's clock
+     */
+    public synchronized long getLastDeviceTimestampUs() {
+        return lastDeviceTimestampUs;
+    }
+
+    /**
+     * Logs the number of received, lost, reordered and duplicate datagrams, and the number of
+     * restarts of the device.
+     */
+    public synchronized void logStatistics() {
+        long expected = received + lost;
+
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "%s: %d received, %d lost (%.1f%%), %d reordered, %d duplicates, %d restarts",
+                url,
+                received,
+                lost,
+                expected == 0 ? 0 : 100.0 * lost / expected,
+                reordered,
+                duplicates,
+                restarts
+        ));
+    }
+}
@@ -4,6 +4,8 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -11,15 +13,21 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import nl.cwi.dis.physiofashion.device.CommandPolicy;
+import nl.cwi.dis.physiofashion.device.LatencyHistogram;
+import nl.cwi.dis.physiofashion.device.TelemetryRecorder;
+
 /**
  * This class encapsulates an experiment and should be initialised with an ExperimentParser object,
  * which extracts the data from a JSON file. This class provides accessor methods for all experiment
  * properties and has methods for storing user responses. It also has methods for writing the final
- * responses to a file on the device's storage. Also note that this class extends the Parcelable
- * interface, so its instances can be passed between activities.
+ * responses to a file on the device's storage. Activities share the experiment of a session through
+ * the SessionStore, which writes snapshots of it in the format of `writeSnapshot()`. This class
+ * also implements the Parcelable interface.
  */
 public class Experiment implements Parcelable {
     private static final String LOG_TAG = "Experiment";
@@ -37,11 +45,11 @@ public class Experiment implements Parcelable {
     };
 
     private ArrayList<Trial> trials;
-    private String hostname;
+    private ArrayList<String> hostnames;
     private String participantId;
     private int counterBalance;
     private int currentTrial;
-    private ArrayList<UserResponse> responses;
+    private ResponseTable responses;
     private int baselineTemp;
     private int adaptationPeriod;
     private int stimulusPeriod;
@@ -51,6 +59,13 @@ public class Experiment implements Parcelable {
     private ArrayList<Integer> breakAfter;
     private boolean hasExternalCondition;
     private String questionType;
+    private boolean temperatureStreaming;
+    private boolean pipelinedTransitions;
+    private CommandPolicy commandPolicy;
+    private boolean udpTelemetry;
+    private int audioPrefetch;
+    private String audioEngine;
+    private SessionClock sessionClock;
 
     /**
      * Construct a new Experiment object from an existing Parcel object.
@@ -61,13 +76,12 @@ public class Experiment implements Parcelable {
         this.trials = new ArrayList<>();
         in.readTypedList(this.trials, Trial.CREATOR);
 
-        this.hostname = in.readString();
+        this.hostnames = in.createStringArrayList();
         this.participantId = in.readString();
         this.counterBalance = in.readInt();
         this.currentTrial = in.readInt();
 
-        this.responses = new ArrayList<>();
-        in.readTypedList(this.responses, UserResponse.CREATOR);
+        this.responses = in.readParcelable(ResponseTable.class.getClassLoader());
 
         this.baselineTemp = in.readInt();
         this.adaptationPeriod = in.readInt();
@@ -82,6 +96,97 @@ public class Experiment implements Parcelable {
 
         this.hasExternalCondition = in.readInt() == 1;
         this.questionType = in.readString();
+        this.temperatureStreaming = in.readInt() == 1;
+        this.pipelinedTransitions = in.readInt() == 1;
+        this.commandPolicy = in.readParcelable(CommandPolicy.class.getClassLoader());
+        this.udpTelemetry = in.readInt() == 1;
+        this.sessionClock = in.readParcelable(SessionClock.class.getClassLoader());
+        this.audioPrefetch = in.readInt();
+        this.audioEngine = in.readString();
+    }
+
+    /**
+     * Construct a new Experiment object from a snapshot written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @throws IOException If the snapshot could not be read
+     */
+    private Experiment(DataInput in) throws IOException {
+        int trialCount = SnapshotIO.readLength(in);
+        this.trials = new ArrayList<>(trialCount);
+        for (int i = 0; i < trialCount; i++) {
+            this.trials.add(Trial.readSnapshot(in));
+        }
+
+        int hostnameCount = SnapshotIO.readLength(in);
+        this.hostnames = new ArrayList<>(hostnameCount);
+        for (int i = 0; i < hostnameCount; i++) {
+            this.hostnames.add(in.readUTF());
+        }
+
+        this.participantId = SnapshotIO.readString(in);
+        this.counterBalance = in.readInt();
+        this.currentTrial = in.readInt();
+
+        this.responses = ResponseTable.readSnapshot(in);
+        if (this.responses.size() != trialCount) {
+            throw new IOException("Snapshot has " + this.responses.size() + " responses for " + trialCount + " trials");
+        }
+
+        this.baselineTemp = in.readInt();
+        this.adaptationPeriod = in.readInt();
+        this.stimulusPeriod = in.readInt();
+
+        this.clipAlignment = SnapshotIO.readString(in);
+        this.alignmentCorrection = in.readDouble();
+
+        this.breakDuration = in.readInt();
+        int breakCount = SnapshotIO.readLength(in);
+        this.breakAfter = new ArrayList<>(breakCount);
+        for (int i = 0; i < breakCount; i++) {
+            this.breakAfter.add(in.readInt());
+        }
+
+        this.hasExternalCondition = in.readBoolean();
+        this.questionType = SnapshotIO.readString(in);
+        this.temperatureStreaming = in.readBoolean();
+        this.pipelinedTransitions = in.readBoolean();
+        this.commandPolicy = CommandPolicy.readSnapshot(in);
+        this.udpTelemetry = in.readBoolean();
+        this.sessionClock = SessionClock.readSnapshot(in);
+        this.audioPrefetch = in.readInt();
+        this.audioEngine = SnapshotIO.readString(in);
+    }
+
+    /**
+     * Construct a copy of the given experiment. The trials and settings never change once the
+     * experiment has been created and are shared with the original, the responses are copied.
+     *
+     * @param other The experiment to copy
+     */
+    private Experiment(Experiment other) {
+        this.trials = other.trials;
+        this.hostnames = other.hostnames;
+        this.participantId = other.participantId;
+        this.counterBalance = other.counterBalance;
+        this.currentTrial = other.currentTrial;
+        this.responses = other.responses.copy();
+        this.baselineTemp = other.baselineTemp;
+        this.adaptationPeriod = other.adaptationPeriod;
+        this.stimulusPeriod = other.stimulusPeriod;
+        this.clipAlignment = other.clipAlignment;
+        this.alignmentCorrection = other.alignmentCorrection;
+        this.breakDuration = other.breakDuration;
+        this.breakAfter = other.breakAfter;
+        this.hasExternalCondition = other.hasExternalCondition;
+        this.questionType = other.questionType;
+        this.temperatureStreaming = other.temperatureStreaming;
+        this.pipelinedTransitions = other.pipelinedTransitions;
+        this.commandPolicy = other.commandPolicy;
+        this.udpTelemetry = other.udpTelemetry;
+        this.sessionClock = other.sessionClock;
+        this.audioPrefetch = other.audioPrefetch;
+        this.audioEngine = other.audioEngine;
     }
 
     /**
@@ -95,11 +200,11 @@ public class Experiment implements Parcelable {
      */
     public Experiment(ExperimentParser experimentParser, String participantId, int counterBalance, String externalCondition) {
         this.trials = experimentParser.getShuffledTrials(externalCondition, counterBalance);
-        this.hostname = experimentParser.getHostname();
+        this.hostnames = experimentParser.getHostnames();
         this.participantId = participantId;
         this.counterBalance = counterBalance;
         this.currentTrial = 0;
-        this.responses = new ArrayList<>(trials.size());
+        this.responses = new ResponseTable(trials.size());
         this.baselineTemp = experimentParser.getBaselineTemperature();
         this.adaptationPeriod = experimentParser.getAdaptationPeriod();
         this.stimulusPeriod = experimentParser.getStimulusPeriod();
@@ -109,6 +214,15 @@ public class Experiment implements Parcelable {
         this.breakAfter = experimentParser.getPauseIndices();
         this.hasExternalCondition = experimentParser.getExternalCondition() != null;
         this.questionType = experimentParser.getQuestionType();
+        this.temperatureStreaming = experimentParser.getTemperatureStreaming();
+        this.pipelinedTransitions = experimentParser.getPipelinedTransitions();
+        this.commandPolicy = experimentParser.getCommandPolicy();
+        this.udpTelemetry = experimentParser.getUdpTelemetry();
+        this.audioPrefetch = experimentParser.getAudioPrefetch();
+        this.audioEngine = experimentParser.getAudioEngine();
+
+        // All timestamps of the session are relative to the moment the experiment is created
+        this.sessionClock = SessionClock.start();
     }
 
     /**
@@ -120,11 +234,11 @@ public class Experiment implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeTypedList(trials);
-        dest.writeString(hostname);
+        dest.writeStringList(hostnames);
         dest.writeString(participantId);
         dest.writeInt(counterBalance);
         dest.writeInt(currentTrial);
-        dest.writeTypedList(responses);
+        dest.writeParcelable(responses, flags);
         dest.writeInt(baselineTemp);
         dest.writeInt(adaptationPeriod);
         dest.writeInt(stimulusPeriod);
@@ -134,6 +248,13 @@ public class Experiment implements Parcelable {
         dest.writeList(breakAfter);
         dest.writeInt(hasExternalCondition ? 1 : 0);
         dest.writeString(questionType);
+        dest.writeInt(temperatureStreaming ? 1 : 0);
+        dest.writeInt(pipelinedTransitions ? 1 : 0);
+        dest.writeParcelable(commandPolicy, flags);
+        dest.writeInt(udpTelemetry ? 1 : 0);
+        dest.writeParcelable(sessionClock, flags);
+        dest.writeInt(audioPrefetch);
+        dest.writeString(audioEngine);
     }
 
     @Override
@@ -141,6 +262,73 @@ public class Experiment implements Parcelable {
         return 0;
     }
 
+    /**
+     * Write the experiment to a snapshot, from which it can be read back by `readSnapshot()`. The
+     * format only consists of the fields written here, in this order, so it does not depend on
+     * the version of Android or of the classes involved.
+     *
+     * @param out Destination of the snapshot
+     * @throws IOException If the snapshot could not be written
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(trials.size());
+        for (Trial trial : trials) {
+            trial.writeSnapshot(out);
+        }
+
+        out.writeInt(hostnames.size());
+        for (String hostname : hostnames) {
+            out.writeUTF(hostname);
+        }
+
+        SnapshotIO.writeString(out, participantId);
+        out.writeInt(counterBalance);
+        out.writeInt(currentTrial);
+        responses.writeSnapshot(out);
+        out.writeInt(baselineTemp);
+        out.writeInt(adaptationPeriod);
+        out.writeInt(stimulusPeriod);
+        SnapshotIO.writeString(out, clipAlignment);
+        out.writeDouble(alignmentCorrection);
+        out.writeInt(breakDuration);
+
+        out.writeInt(breakAfter.size());
+        for (int index : breakAfter) {
+            out.writeInt(index);
+        }
+
+        out.writeBoolean(hasExternalCondition);
+        SnapshotIO.writeString(out, questionType);
+        out.writeBoolean(temperatureStreaming);
+        out.writeBoolean(pipelinedTransitions);
+        commandPolicy.writeSnapshot(out);
+        out.writeBoolean(udpTelemetry);
+        sessionClock.writeSnapshot(out);
+        out.writeInt(audioPrefetch);
+        SnapshotIO.writeString(out, audioEngine);
+    }
+
+    /**
+     * Read an experiment written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @return The experiment
+     * @throws IOException If the snapshot could not be read
+     */
+    public static Experiment readSnapshot(DataInput in) throws IOException {
+        return new Experiment(in);
+    }
+
+    /**
+     * Returns a copy of the experiment in its current state, which is not affected by any
+     * further progress of the session. Copying is cheap, as only the responses are copied.
+     *
+     * @return The copy
+     */
+    public Experiment copy() {
+        return new Experiment(this);
+    }
+
     /**
      * Get list of trials.
      *
@@ -151,12 +339,21 @@ public class Experiment implements Parcelable {
     }
 
     /**
-     * Get hostname
+     * Get hostname of the first heating element
      *
      * @return The hostname
      */
     public String getHostname() {
-        return hostname;
+        return hostnames.isEmpty() ? null : hostnames.get(0);
+    }
+
+    /**
+     * Get hostnames of all heating elements
+     *
+     * @return The hostnames
+     */
+    public ArrayList<String> getHostnames() {
+        return hostnames;
     }
 
     /**
@@ -198,6 +395,18 @@ public class Experiment implements Parcelable {
         this.currentTrial++;
     }
 
+    /**
+     * Continue the experiment at the given trial after it has been restored in a new process.
+     * The session clock is carried over, so that the times of the remaining trials continue the
+     * times of the trials already completed.
+     *
+     * @param trial Index of the trial to continue with, at most the number of trials
+     */
+    public void resumeAt(int trial) {
+        this.currentTrial = Math.min(trial, this.trials.size());
+        this.sessionClock = this.sessionClock.resume();
+    }
+
     /**
      * Get current trial index.
      *
@@ -244,20 +453,21 @@ public class Experiment implements Parcelable {
         return breakDuration;
     }
 
+    /**
+     * Get the response to the current trial.
+     *
+     * @return The user response
+     */
     public UserResponse getCurrentUserResponse() {
-        if (this.currentTrial >= this.responses.size()) {
-            this.responses.add(new UserResponse());
-        }
-
-        return this.responses.get(this.currentTrial);
+        return this.responses.getResponse(this.currentTrial);
     }
 
     /**
-     * Get a list of user responses.
+     * Get the table holding the user responses to all trials.
      *
      * @return The user responses
      */
-    public ArrayList<UserResponse> getResponses() {
+    public ResponseTable getResponses() {
         return this.responses;
     }
 
@@ -316,31 +526,112 @@ public class Experiment implements Parcelable {
     }
 
     /**
-     * Writes the user responses to a CSV file at the given path. Returns the path and filename the
-     * file has been written to as a string or `null` on error.
+     * Get whether the temperature of the heating element should be streamed rather than polled.
+     *
+     * @return Whether temperature streaming is enabled
+     */
+    public boolean isTemperatureStreaming() {
+        return temperatureStreaming;
+    }
+
+    /**
+     * Get whether transitions between trials should be pipelined, i.e. whether the heating
+     * element returns to baseline while the participant rates the previous trial.
+     *
+     * @return Whether pipelined transitions are enabled
+     */
+    public boolean isPipelinedTransitions() {
+        return pipelinedTransitions;
+    }
+
+    /**
+     * Get the settings for retrying and hedging commands to the heating elements.
+     *
+     * @return The command policy
+     */
+    public CommandPolicy getCommandPolicy() {
+        return commandPolicy;
+    }
+
+    /**
+     * Get whether temperature samples should be pushed by the heating element over UDP rather
+     * than streamed over HTTP.
+     *
+     * @return Whether UDP telemetry is enabled
+     */
+    public boolean isUdpTelemetry() {
+        return udpTelemetry;
+    }
+
+    /**
+     * Get the number of upcoming trials whose audio files are prepared in the background.
+     *
+     * @return Number of audio files to prefetch
+     */
+    public int getAudioPrefetch() {
+        return audioPrefetch;
+    }
+
+    /**
+     * Get the engine audio clips are played with.
+     *
+     * @return Either `mediaplayer` or `pcm`
+     */
+    public String getAudioEngine() {
+        return audioEngine;
+    }
+
+    /**
+     * Get whether audio clips are decoded to PCM and played on an audio track with
+     * frame-accurate onsets, rather than with the media player.
+     *
+     * @return Whether the PCM audio engine is used
+     */
+    public boolean isPcmAudio() {
+        return audioEngine.compareTo("pcm") == 0;
+    }
+
+    /**
+     * Get the clock all timestamps of the session are taken from.
+     *
+     * @return The session clock
+     */
+    public SessionClock getSessionClock() {
+        return sessionClock;
+    }
+
+    /**
+     * Writes the user responses to a CSV file at the given path. Timestamps are written in
+     * nanoseconds of session time, and every line carries the wall clock time at which the session
+     * started. Returns the path and filename the file has been written to as a string or `null` on
+     * error.
      *
      * @param targetDir The target directory the file should be written to
      * @return The path of the file written or `null` on error
      */
     public String writeResponsesToFile(File targetDir) {
+        String sessionStart = this.sessionClock.getAnchorIso();
+
         // Map over all indices of the response and collect the string into an ArrayList
         ArrayList<String> lines = IntStream.range(0, this.trials.size()).mapToObj(i -> {
             // Get trial and corresponding response
             Trial trial = this.trials.get(i);
-            UserResponse response = this.responses.get(i);
+            UserResponse response = this.responses.getResponse(i);
 
             // Format line for each trial and response pair
             return String.format(
                     Locale.ENGLISH,
-                    "%d,\"%s\",\"%s\",%d,\"%s\",\"%s\",%.2f,%.2f,%d,%d,%d,%d\n",
+                    "%d,\"%s\",\"%s\",\"%s\",%d,\"%s\",\"%s\",%d,%d,%d,%d,%d,%d,%d\n",
                     i + 1,
                     this.participantId,
+                    sessionStart,
                     trial.getCondition(),
                     trial.getIntensity(),
                     trial.getExternalCondition(),
                     trial.getAudioFile(),
                     response.getStimulusStarted(),
                     response.getStimulusFelt(),
+                    response.getAudioOnset(),
                     response.getTemperatureFelt(),
                     response.getComfortLevel(),
                     response.getArousal(),
@@ -351,7 +642,7 @@ public class Experiment implements Parcelable {
         // Tentative filename for the output file
         String filename = this.participantId + ".csv";
         // Header for the CSV file
-        String header = "\"trialNum\",\"participant\",\"condition\",\"intensity\",\"externalCondition\",\"audioFile\",\"stimulusStarted\",\"stimulusFelt\",\"temperatureFelt\",\"comfortLevel\",\"arousal\",\"valence\"\n";
+        String header = "\"trialNum\",\"participant\",\"sessionStart\",\"condition\",\"intensity\",\"externalCondition\",\"audioFile\",\"stimulusStartedNs\",\"stimulusFeltNs\",\"audioOnsetNs\",\"temperatureFelt\",\"comfortLevel\",\"arousal\",\"valence\"\n";
         lines.add(0, header);
 
         Log.d(LOG_TAG, "Attempting to write responses to file: " + targetDir.getAbsolutePath() + File.separator + filename);
@@ -364,6 +655,111 @@ public class Experiment implements Parcelable {
         );
     }
 
+    /**
+     * Writes all temperature readings held by the given telemetry recorders to a CSV file in the
+     * given directory, next to the user responses. The recorders are expected in the same order as
+     * the hostnames of the heating elements. Each reading is written with the number of the trial
+     * it was recorded in, the hostname of the element, its timestamp in nanoseconds of session time
+     * and the setpoint in effect at the time. Returns the path and filename the file has been written to as
+     * a string or `null` on error.
+     *
+     * @param targetDir The target directory the file should be written to
+     * @param recorders The telemetry recorders of all heating elements
+     * @return The path of the file written or `null` on error
+     */
+    public String writeTelemetryToFile(File targetDir, List<TelemetryRecorder> recorders) {
+        ArrayList<String> lines = new ArrayList<>();
+
+        for (int i = 0; i < recorders.size(); i++) {
+            String hostname = this.hostnames.get(i);
+
+            // Format line for each recorded sample
+            recorders.get(i).forEach((timestampNs, temperature, setpoint, trial) -> lines.add(String.format(
+                    Locale.ENGLISH,
+                    "%d,\"%s\",\"%s\",%d,%.2f,%.2f\n",
+                    trial + 1,
+                    this.participantId,
+                    hostname,
+                    this.sessionClock.toSessionTime(timestampNs),
+                    temperature,
+                    setpoint
+            )));
+        }
+
+        // Tentative filename and header for the output file
+        String filename = this.participantId + "_telemetry.csv";
+        String header = "\"trialNum\",\"participant\",\"hostname\",\"timestampNs\",\"temperature\",\"setpoint\"\n";
+        lines.add(0, header);
+
+        Log.d(LOG_TAG, "Attempting to write telemetry to file: " + targetDir.getAbsolutePath() + File.separator + filename);
+
+        // Write file and return final path
+        return this.writeDataToFile(
+                filename,
+                targetDir,
+                lines
+        );
+    }
+
+    /**
+     * Writes the request latency histograms of all devices to a CSV file in the given directory.
+     * Every non-empty bucket of every endpoint becomes a line with its bounds in microseconds and
+     * its count, failed requests are written as one additional line per endpoint with empty
+     * bounds. The histograms are expected in the same order as the hostnames of the experiment.
+     *
+     * @param targetDir Directory the file should be written to
+     * @param histograms Latency histograms per endpoint, one map for each hostname
+     * @return The path to the file that was written or `null` on error
+     */
+    public String writeLatencyToFile(File targetDir, List<Map<String, LatencyHistogram>> histograms) {
+        ArrayList<String> lines = new ArrayList<>();
+
+        for (int i = 0; i < histograms.size(); i++) {
+            String hostname = this.hostnames.get(i);
+
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.get(i).entrySet()) {
+                String endpoint = entry.getKey();
+                LatencyHistogram histogram = entry.getValue();
+
+                // Format line for each non-empty bucket
+                histogram.forEachBucket((lowerBoundUs, upperBoundUs, count) -> lines.add(String.format(
+                        Locale.ENGLISH,
+                        "\"%s\",\"%s\",\"%s\",\"latency\",%d,%d,%d\n",
+                        this.participantId,
+                        hostname,
+                        endpoint,
+                        lowerBoundUs,
+                        upperBoundUs,
+                        count
+                )));
+
+                // Failed requests have no latency, so they go into a line of their own
+                lines.add(String.format(
+                        Locale.ENGLISH,
+                        "\"%s\",\"%s\",\"%s\",\"error\",,,%d\n",
+                        this.participantId,
+                        hostname,
+                        endpoint,
+                        histogram.getErrorCount()
+                ));
+            }
+        }
+
+        // Tentative filename and header for the output file
+        String filename = this.participantId + "_latency.csv";
+        String header = "\"participant\",\"hostname\",\"endpoint\",\"type\",\"lowerBoundUs\",\"upperBoundUs\",\"count\"\n";
+        lines.add(0, header);
+
+        Log.d(LOG_TAG, "Attempting to write latencies to file: " + targetDir.getAbsolutePath() + File.separator + filename);
+
+        // Write file and return final path
+        return this.writeDataToFile(
+                filename,
+                targetDir,
+                lines
+        );
+    }
+
     /**
      * Takes a filename and a directory and checks whether this filename exists in that directory.
      * If not, the filename is returned as it was passed in. Otherwise, the original filename is
@@ -13,6 +13,8 @@ import java.util.Collections;
 import java.util.Scanner;
 import java.util.stream.Collectors;
 
+import nl.cwi.dis.physiofashion.device.CommandPolicy;
+
 /**
  * Class responsible for interpreting a given file object as a JSON file and extract values
  * instrumental for running an experiment from it. Most importantly, it generates the shuffled list
@@ -75,6 +77,34 @@ public class ExperimentParser {
         return experiment.optString("hostname", null);
     }
 
+    /**
+     * Returns the hostnames of all heating elements used in the experiment. These are given as an
+     * array under the key `hostnames`. If there is no such key, the list only contains the value of
+     * the key `hostname`.
+     *
+     * @return The hostnames of all heating elements, or an empty list if there are none
+     */
+    public ArrayList<String> getHostnames() {
+        ArrayList<String> hostnames = new ArrayList<>();
+        JSONArray hostnameArray = experiment.optJSONArray("hostnames");
+
+        if (hostnameArray != null) {
+            // Add all hostnames given in the array
+            for (int i = 0; i < hostnameArray.length(); i++) {
+                try {
+                    hostnames.add(hostnameArray.getString(i));
+                } catch (JSONException je) {
+                    Log.e(LOG_TAG, "Could not parse hostnames field: " + je);
+                }
+            }
+        } else if (this.getHostname() != null) {
+            // Fall back to single hostname
+            hostnames.add(this.getHostname());
+        }
+
+        return hostnames;
+    }
+
     /**
      * Returns the baseline temperature given in the JSON.
      *
@@ -120,6 +150,84 @@ public class ExperimentParser {
         return experiment.optDouble("alignmentCorrection", 0);
     }
 
+    /**
+     * Returns whether the app should subscribe to the temperature stream of the heating element
+     * instead of polling its temperature.
+     *
+     * @return Whether temperature streaming is enabled, true by default
+     */
+    public boolean getTemperatureStreaming() {
+        return experiment.optBoolean("temperatureStreaming", true);
+    }
+
+    /**
+     * Returns whether the heating element should push its temperature as binary datagrams over
+     * UDP instead of streaming it over HTTP. Only takes effect if temperature streaming is
+     * enabled.
+     *
+     * @return Whether UDP telemetry is enabled, false by default
+     */
+    public boolean getUdpTelemetry() {
+        return experiment.optBoolean("udpTelemetry", false);
+    }
+
+    /**
+     * Returns the number of upcoming trials whose audio files are prepared in the background
+     * while the current trial is running, in addition to the audio file of the current trial.
+     *
+     * @return Number of audio files to prefetch, 1 by default
+     */
+    public int getAudioPrefetch() {
+        return Math.max(0, experiment.optInt("audioPrefetch", 1));
+    }
+
+    /**
+     * Returns the engine audio clips are played with. Either `mediaplayer`, which plays clips
+     * with the media player and starts them with a timer, or `pcm`, which decodes clips up front
+     * and positions their onset by frame count on an audio track.
+     *
+     * @return The audio engine, `mediaplayer` by default
+     */
+    public String getAudioEngine() {
+        return experiment.optString("audioEngine", "mediaplayer");
+    }
+
+    /**
+     * Parses the settings for sending commands to the heating elements from the optional object
+     * `deviceCommands`. Settings which are not given take their default values.
+     *
+     * @return The command policy
+     */
+    public CommandPolicy getCommandPolicy() {
+        JSONObject commands = experiment.optJSONObject("deviceCommands");
+
+        if (commands == null) {
+            return new CommandPolicy();
+        }
+
+        return new CommandPolicy(
+                commands.optInt("maxRetries", CommandPolicy.DEFAULT_MAX_RETRIES),
+                commands.optLong("initialBackoffMs", CommandPolicy.DEFAULT_INITIAL_BACKOFF_MS),
+                commands.optLong("maxBackoffMs", CommandPolicy.DEFAULT_MAX_BACKOFF_MS),
+                commands.optInt("requestTimeoutMs", CommandPolicy.DEFAULT_REQUEST_TIMEOUT_MS),
+                commands.optDouble("hedgePercentile", CommandPolicy.DEFAULT_HEDGE_PERCENTILE),
+                commands.optLong("minHedgeDelayMs", CommandPolicy.DEFAULT_MIN_HEDGE_DELAY_MS),
+                commands.optInt("breakerThreshold", CommandPolicy.DEFAULT_BREAKER_THRESHOLD),
+                commands.optLong("breakerOpenMs", CommandPolicy.DEFAULT_BREAKER_OPEN_MS)
+        );
+    }
+
+    /**
+     * Returns whether the heating element should return to baseline as soon as the stimulus ends
+     * and the time spent at baseline should count towards the adaptation period of the next
+     * trial.
+     *
+     * @return Whether pipelined transitions are enabled, false by default
+     */
+    public boolean getPipelinedTransitions() {
+        return experiment.optBoolean("pipelinedTransitions", false);
+    }
+
     /**
      * Tries to retrieve data from the field `externalCondition` in the JSON and returns it as an
      * object. If no such field could be found or if the JSON could not be parsed correctly, `null`
@@ -265,6 +373,64 @@ public class ExperimentParser {
         return result;
     }
 
+    /**
+     * Parses the setpoint trajectory of a trial. The key `type` selects the shape, which is one of
+     * `keyframes` (default), `ramp`, `pulse` or `sine`. Keyframes are given as an array of objects
+     * with the keys `time` in seconds and `delta` in degrees. A ramp needs `delta` and `duration`,
+     * a pulse train `delta`, `width`, `period` and optionally `count` and a sinusoid `amplitude`,
+     * `period`, `duration` and optionally `offset`. All shapes accept a time step `step` in seconds.
+     *
+     * @param waveformObject JSON object describing the waveform
+     * @return The parsed waveform
+     * @throws JSONException If a required key is missing, the type is unknown or the keyframes are invalid
+     */
+    private Waveform parseWaveform(JSONObject waveformObject) throws JSONException {
+        String type = waveformObject.optString("type", "keyframes");
+        double step = waveformObject.optDouble("step", Waveform.DEFAULT_STEP);
+
+        try {
+            switch (type) {
+                case "ramp":
+                    return Waveform.ramp(
+                            waveformObject.getDouble("delta"),
+                            waveformObject.getDouble("duration"),
+                            step
+                    );
+                case "pulse":
+                    return Waveform.pulses(
+                            waveformObject.getDouble("delta"),
+                            waveformObject.getDouble("width"),
+                            waveformObject.getDouble("period"),
+                            waveformObject.optInt("count", 1),
+                            step
+                    );
+                case "sine":
+                    return Waveform.sine(
+                            waveformObject.optDouble("offset", 0),
+                            waveformObject.getDouble("amplitude"),
+                            waveformObject.getDouble("period"),
+                            waveformObject.getDouble("duration"),
+                            step
+                    );
+                case "keyframes":
+                    JSONArray keyframeArray = waveformObject.getJSONArray("keyframes");
+                    ArrayList<double[]> keyframes = new ArrayList<>(keyframeArray.length());
+
+                    for (int i = 0; i < keyframeArray.length(); i++) {
+                        JSONObject keyframe = keyframeArray.getJSONObject(i);
+                        keyframes.add(new double[] { keyframe.getDouble("time"), keyframe.getDouble("delta") });
+                    }
+
+                    return Waveform.fromKeyframes(keyframes, step);
+                default:
+                    throw new JSONException("Unknown waveform type: " + type);
+            }
+        } catch (IllegalArgumentException iae) {
+            // Report invalid keyframes like any other parsing error
+            throw new JSONException("Invalid waveform: " + iae.getMessage());
+        }
+    }
+
     /**
      * This method extracts the trials from the experiment file under the key `trials` and returns
      * a shuffled list of trials, taking into account external conditions and counterbalance trials.
@@ -292,13 +458,18 @@ public class ExperimentParser {
                     // Get each trials object
                     JSONObject trialObject = (JSONObject) trials.get(i);
 
+                    // Parse setpoint trajectory if the trial has one
+                    JSONObject waveformObject = trialObject.optJSONObject("waveform");
+                    Waveform waveform = (waveformObject != null) ? this.parseWaveform(waveformObject) : null;
+
                     // Add trials as instance of Trial to list, with audio file, condition (`warm`
-                    // or `cool`) and intensity (temperature delta)
+                    // or `cool`), intensity (temperature delta) and optional waveform
                     initialTrials.add(new Trial(
                             trialObject.optString("audioFile", null),
                             trialObject.getString("condition"),
                             trialObject.optInt("intensity", 0),
-                            externalCondition
+                            externalCondition,
+                            waveform
                     ));
                 }
 
@@ -0,0 +1,31 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Scheduler running its tasks in real time on the main thread. Its clock is the monotonic clock
+ * of the tablet as returned by `SystemClock.elapsedRealtimeNanos()`, i.e. the clock the session
+ * clock is anchored to.
+ */
+public class HandlerScheduler implements Scheduler {
+    private final Handler handler;
+
+    /**
+     * Initialises a new scheduler posting to the main looper.
+     */
+    public HandlerScheduler() {
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        handler.postDelayed(task, delayMs);
+    }
+}
@@ -1,19 +1,25 @@
 package nl.cwi.dis.physiofashion.experiment;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.android.volley.Request;
-import com.android.volley.RequestQueue;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.JsonObjectRequest;
-import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
 
-import org.json.JSONException;
-
-import java.util.Timer;
-import java.util.TimerTask;
+import nl.cwi.dis.physiofashion.device.ClockSync;
+import nl.cwi.dis.physiofashion.device.CommandExecutor;
+import nl.cwi.dis.physiofashion.device.CommandPolicy;
+import nl.cwi.dis.physiofashion.device.DeviceClient;
+import nl.cwi.dis.physiofashion.device.SetpointRequest;
+import nl.cwi.dis.physiofashion.device.SetpointWriter;
+import nl.cwi.dis.physiofashion.device.SseTemperatureStream;
+import nl.cwi.dis.physiofashion.device.StreamingUnsupportedException;
+import nl.cwi.dis.physiofashion.device.TelemetryRecorder;
+import nl.cwi.dis.physiofashion.device.TemperatureStream;
+import nl.cwi.dis.physiofashion.device.ThermalModel;
+import nl.cwi.dis.physiofashion.device.UdpTemperatureStream;
 
 /**
  * This class acts as an interface to the heating element given by its hostname. It provides
@@ -22,6 +28,9 @@ import java.util.TimerTask;
  */
 public class HeatingElement {
     private static final String LOG_TAG = "HeatingElement";
+    private static final long MIN_POLL_INTERVAL_MS = 100;
+    private static final long MAX_POLL_INTERVAL_MS = 1000;
+    private static final double BASELINE_TOLERANCE = 0.2;
 
     /**
      * Type definition for a callback which takes a VolleyError.
@@ -47,15 +56,37 @@ public class HeatingElement {
         void apply(double temperature);
     }
 
-    private RequestQueue queue;
+    /**
+     * Type definition for a handle stopping a watch started by `onTemperatureReached()`.
+     */
+    @FunctionalInterface
+    public interface WatchHandle {
+        void cancel();
+    }
+
+    private DeviceClient client;
+    private TelemetryRecorder recorder;
+    private ThermalModel model;
+    private CommandExecutor commands;
+    private SetpointWriter setpoints;
+    private ClockSync clock;
+    private Handler mainHandler;
     private String hostname;
     private int baselineTemp;
+    private boolean streamingEnabled;
+    private boolean udpTelemetry;
+    private volatile long lastSetpointDispatchTime;
+    private volatile long lastSetpointAckTime;
+    private volatile long lastSetpointAppliedTime;
+    private volatile long lastSetpointChangeTime;
+    private volatile double previousSetpoint;
 
     /**
      * Initialises a new instance of a heating element at the given hostname with the given baseline
-     * temperature. An application context needs to be passed to setup a new request queue.
+     * temperature. Requests are sent through the shared device client, so that all instances
+     * reuse the same dispatcher threads and connections.
      *
-     * @param context Application context, needed to create request queue
+     * @param context Application context, needed to obtain the shared device client
      * @param hostname Hostname of the heating element
      * @param baselineTemp Desired baseline temperature of the heating element
      */
@@ -63,8 +94,97 @@ public class HeatingElement {
         this.hostname = hostname;
         this.baselineTemp = baselineTemp;
 
-        // Set up new request queue using application context
-        this.queue = Volley.newRequestQueue(context);
+        // Obtain the shared device client instead of setting up a new request queue
+        this.client = DeviceClient.getInstance(context);
+        this.recorder = client.getTelemetryRecorder(hostname);
+        this.model = client.getThermalModel(hostname);
+        this.commands = client.getCommandExecutor(hostname);
+        this.setpoints = client.getSetpointWriter(hostname);
+        this.clock = client.getClockSync(hostname);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.streamingEnabled = true;
+        this.lastSetpointChangeTime = -1;
+        this.previousSetpoint = Double.NaN;
+    }
+
+    /**
+     * Sets whether `onTemperatureReached()` should try to subscribe to the temperature stream of
+     * the device before falling back to polling. Enabled by default.
+     *
+     * @param streamingEnabled Whether temperature streaming should be used
+     */
+    public void setStreamingEnabled(boolean streamingEnabled) {
+        this.streamingEnabled = streamingEnabled;
+    }
+
+    /**
+     * Sets whether the temperature stream should consist of binary datagrams pushed by the
+     * device over UDP instead of server-sent events over HTTP. Setpoints are sent over HTTP
+     * either way. Disabled by default.
+     *
+     * @param udpTelemetry Whether UDP telemetry should be used
+     */
+    public void setUdpTelemetry(boolean udpTelemetry) {
+        this.udpTelemetry = udpTelemetry;
+    }
+
+    /**
+     * Sets how setpoint commands are retried and hedged, and after how many failures the heating
+     * element is considered unavailable.
+     *
+     * @param policy The command policy
+     */
+    public void setCommandPolicy(CommandPolicy policy) {
+        commands.setPolicy(policy);
+    }
+
+    /**
+     * Get the hostname of the heating element.
+     *
+     * @return The hostname
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Get the monotonic time at which the last setpoint request was dispatched to the device.
+     *
+     * @return Dispatch time in nanoseconds, as returned by `SystemClock.elapsedRealtimeNanos()`
+     */
+    public long getLastSetpointDispatchTime() {
+        return lastSetpointDispatchTime;
+    }
+
+    /**
+     * Get the monotonic time at which the last setpoint request was acknowledged by the device.
+     *
+     * @return Acknowledgement time in nanoseconds, as returned by `SystemClock.elapsedRealtimeNanos()`
+     */
+    public long getLastSetpointAckTime() {
+        return lastSetpointAckTime;
+    }
+
+    /**
+     * Get the monotonic time at which the device applied the last setpoint. If the device reports
+     * the time it applied the setpoint and its clock is synchronised, this is that time mapped
+     * onto the clock of the tablet, accurate to half a round trip. Otherwise it is the time the
+     * acknowledgement arrived.
+     *
+     * @return Time in nanoseconds, as returned by `SystemClock.elapsedRealtimeNanos()`
+     */
+    public long getLastSetpointAppliedTime() {
+        return lastSetpointAppliedTime;
+    }
+
+    /**
+     * Sets the index of the current trial, which is stored with all temperature readings recorded
+     * from now on.
+     *
+     * @param trial Index of the current trial
+     */
+    public void setCurrentTrial(int trial) {
+        recorder.setTrial(trial);
     }
 
     /**
@@ -98,6 +218,19 @@ public class HeatingElement {
         this.adjustSetpoint(targetTemp, onSuccess, onError);
     }
 
+    /**
+     * Heats/cools the heating element to the given absolute setpoint, which may be fractional.
+     * Invokes `onSuccess` callback if the request was successful, `onError` with the HTTP error
+     * otherwise.
+     *
+     * @param setpoint The desired setpoint in degrees
+     * @param onSuccess Callback invoked on success
+     * @param onError Callback invoked on error
+     */
+    public void gotoSetpoint(double setpoint, SuccessCallback onSuccess, ErrorCallback onError) {
+        this.adjustSetpoint(setpoint, onSuccess, onError);
+    }
+
     /**
      * Computes the effective target temperature by adding/subtracting `tempChange` from the
      * baseline temperature, based on the value of `condition` ("warm" or "cool"). If `condition`
@@ -130,66 +263,74 @@ public class HeatingElement {
      * @param onSuccess Callback invoked on success
      * @param onError Callback invoked on error
      */
-    private void adjustSetpoint(int targetTemp, SuccessCallback onSuccess, ErrorCallback onError) {
-        // Endpoint for adjusting the setpoint
-        String url = hostname + "/api/setpoint";
-
-        // Compile request
-        StringRequest adjustRequest = new StringRequest(
-                Request.Method.PUT,
-                url,
-                response -> onSuccess.apply(),
-                onError::apply
+    private void adjustSetpoint(double targetTemp, SuccessCallback onSuccess, ErrorCallback onError) {
+        // Setpoints go through the device's setpoint writer, which skips redundant setpoints and
+        // makes sure a newer setpoint is never overtaken by an older one. Setpoints are absolute
+        // and thus idempotent, so the command executor behind it retries and hedges them as
+        // needed. It creates a new request for every attempt, all of which share the pre-encoded
+        // body for the setpoint.
+        setpoints.write(targetTemp, (onResponse, onRequestError) -> new SetpointRequest(
+                hostname,
+                targetTemp,
+                onResponse,
+                onRequestError
         ) {
             @Override
-            public String getBodyContentType() {
-                // Set content type for request to application/json
-                return "application/json";
+            public byte[] getBody() {
+                // The body is requested by the network thread right before it is written, so this
+                // is the moment the setpoint is dispatched to the device
+                lastSetpointDispatchTime = SystemClock.elapsedRealtimeNanos();
+                return super.getBody();
             }
 
             @Override
-            public byte[] getBody() {
-                // Pass desired setpoint as JSON in the request body
-                return ("{ \"setpoint\": " + targetTemp + " }").getBytes();
+            protected void deliverResponse(String response) {
+                // Prefer the time reported by the device over the arrival of the acknowledgement,
+                // which lags behind by up to a full round trip
+                long deviceTimeUs = this.getDeviceTimeUs();
+                lastSetpointAppliedTime = deviceTimeUs >= 0 && clock.isSynchronized()
+                        ? clock.toLocalNanos(deviceTimeUs)
+                        : SystemClock.elapsedRealtimeNanos();
+
+                super.deliverResponse(response);
+            }
+        }, response -> {
+            lastSetpointAckTime = SystemClock.elapsedRealtimeNanos();
+
+            // No request was sent for a skipped setpoint, so none of the times above were taken.
+            // The device already runs at the setpoint, which therefore applies from now on
+            if (SetpointWriter.SKIPPED.equals(response)) {
+                lastSetpointDispatchTime = lastSetpointAckTime;
+                lastSetpointAppliedTime = lastSetpointAckTime;
+            }
+
+            // Remember when the element started moving away from the setpoint it was driven
+            // towards before, so that readings taken until then are not mistaken for current ones
+            double currentSetpoint = recorder.getSetpoint();
+            if ((float) targetTemp != currentSetpoint) {
+                previousSetpoint = currentSetpoint;
+                lastSetpointChangeTime = lastSetpointAppliedTime;
             }
-        };
 
-        // Add request to queue
-        queue.add(adjustRequest);
+            // Store new setpoint with subsequent temperature readings
+            recorder.setSetpoint(targetTemp);
+            onSuccess.apply();
+        }, onError::apply);
     }
 
     /**
      * Requests the current temperature from the heating element. If the temperature could be
      * requested successfully, the callback `onSuccess` is invoked with the current temperature as
      * argument, otherwise the callback `onError` is called with the specific HTTP error that
-     * occurred.
+     * occurred. If a temperature read for this device is already outstanding, no new request is
+     * sent and the callbacks receive the result of the outstanding read.
      *
      * @param onSuccess Callback invoked on success with the temperature as argument
      * @param onError Callback invoked on error
      */
     public void getTemperature(TemperatureCallback onSuccess, ErrorCallback onError) {
-        // Endpoint for requesting the current temperature
-        String url = hostname + "/api/temperature";
-
-        // Compile JSON request
-        JsonObjectRequest tempRequest = new JsonObjectRequest(
-                Request.Method.GET,
-                url,
-                null,
-                response -> {
-                    try {
-                        // Invoke success callback and pass temperature on success
-                        onSuccess.apply(response.getDouble("temperature"));
-                    } catch (JSONException je) {
-                        // Call error callback with `null` if JSON could not be parsed
-                        onError.apply(null);
-                    }
-                },
-                onError::apply
-        );
-
-        // Add request to queue
-        queue.add(tempRequest);
+        // Read through the device's reader, so concurrent callers share a single request
+        client.getTemperatureReader(hostname).read(onSuccess::apply, onError::apply);
     }
 
     /**
@@ -199,67 +340,260 @@ public class HeatingElement {
      * from the baseline temperature. Whether to add or subtract is determined by `condition` which
      * is usually either "heat", "cool" or "baseline". Moreover, a timeout in milliseconds needs to
      * be passed after which the operation times out. In that case `onSuccess` is invoked with the
-     * argument -1.
+     * argument -1. If streaming is enabled and supported by the device, temperature samples are
+     * pushed by the device, otherwise the temperature is polled. All callbacks are invoked on the
+     * main thread.
      *
      * @param condition Either "heat", "cool" or "baseline"
      * @param tempChange The desired temperature difference from baseline
      * @param timeoutMs Time in milliseconds after which the operation should time out
      * @param onSuccess Callback invoked on success with the latest temperature reading, or -1 in case of timeout
      * @param onError Callback invoked on error with the HTTP error
+     * @return Handle which stops the watch without invoking any callback, on the main thread
      */
-    public void onTemperatureReached(String condition, int tempChange, long timeoutMs, TemperatureCallback onSuccess, ErrorCallback onError) {
-        // Calculate timestamp at which to timeout
-        long timeoutAt = System.currentTimeMillis() + timeoutMs;
+    public WatchHandle onTemperatureReached(String condition, int tempChange, long timeoutMs, TemperatureCallback onSuccess, ErrorCallback onError) {
         // Compute target temperature from condition and temperature delta
         int targetTemp = this.computeTargetTemp(condition, tempChange);
 
-        Timer t = new Timer();
+        // Start watching the temperature until the target is reached or the timeout has elapsed
+        TemperatureWatch watch = new TemperatureWatch(condition, targetTemp, onSuccess, onError);
+        watch.start(timeoutMs);
 
-        // Schedule timer every 100ms and start immediately
-        t.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                // Check whether we should time out
-                if (System.currentTimeMillis() > timeoutAt) {
-                    // Call success callback with -1
-                    onSuccess.apply(-1);
-                    // Cancel timer
-                    t.cancel();
+        return watch::cancel;
+    }
+
+    /**
+     * Computes a timeout for waiting until the given target temperature is reached, based on the
+     * last temperature reading and the thermal model of the heating element. Readings are only
+     * recorded while the temperature is watched, so the last one may have been taken before the
+     * latest setpoint change. In that case the prediction starts from the setpoint the element was
+     * driven towards before the change instead. If the model has not seen enough telemetry yet or
+     * there is no usable starting temperature, the given fallback is returned.
+     *
+     * @param condition Either "heat", "cool" or "baseline"
+     * @param tempChange The desired temperature difference from baseline
+     * @param fallbackMs Timeout in milliseconds used if there is no usable prediction
+     * @return Timeout in milliseconds
+     */
+    public long estimateTimeout(String condition, int tempChange, long fallbackMs) {
+        int targetTemp = this.computeTargetTemp(condition, tempChange);
+        double temperature = recorder.getLatestTemperature();
+
+        // A reading from before the last setpoint change only reflects where the element was
+        // heading back then, which is where it is assumed to have settled
+        if (recorder.getLatestTimestamp() < lastSetpointChangeTime) {
+            temperature = previousSetpoint;
+        }
+
+        return model.estimateTimeout(temperature, targetTemp, targetTemp, fallbackMs);
+    }
+
+    /**
+     * Returns whether the given temperature reading satisfies the target for the given condition.
+     * When warming, the reading needs to be higher or equal to the target, when cooling lower or
+     * equal. When returning to baseline, the reading needs to be within +/- 0.2 degrees of target.
+     *
+     * @param condition Either "warm", "cool" or "baseline"
+     * @param targetTemp The target temperature
+     * @param temp The temperature reading
+     * @return Whether the target has been reached
+     */
+    private static boolean isTargetReached(String condition, double targetTemp, double temp) {
+        if (condition.compareTo("warm") == 0) {
+            return temp >= targetTemp;
+        } else if (condition.compareTo("cool") == 0) {
+            return temp <= targetTemp;
+        } else if (condition.compareTo("baseline") == 0) {
+            return Math.abs(temp - targetTemp) <= BASELINE_TOLERANCE;
+        }
+
+        return false;
+    }
+
+    /**
+     * This class watches the temperature of the heating element until a target is reached. It
+     * subscribes to the temperature stream of the device if possible and falls back to polling
+     * otherwise. When polling, a new request is only sent after the previous one has returned and
+     * the interval between requests is derived from the time the thermal model predicts until the
+     * target is reached, so polls are sparse far from the target and dense close to it.
+     * All state is only accessed on the main thread.
+     */
+    private class TemperatureWatch implements TemperatureStream.Listener {
+        private final String condition;
+        private final int targetTemp;
+        private final TemperatureCallback onSuccess;
+        private final ErrorCallback onError;
+
+        private final Runnable pollTask = this::poll;
+        private final Runnable timeoutTask = this::timeout;
+
+        private TemperatureStream stream;
+        private boolean finished;
+
+        TemperatureWatch(String condition, int targetTemp, TemperatureCallback onSuccess, ErrorCallback onError) {
+            this.condition = condition;
+            this.targetTemp = targetTemp;
+            this.onSuccess = onSuccess;
+            this.onError = onError;
+        }
+
+        /**
+         * Schedules the timeout and starts receiving temperature readings.
+         *
+         * @param timeoutMs Time in milliseconds after which the watch should time out
+         */
+        void start(long timeoutMs) {
+            mainHandler.postDelayed(timeoutTask, timeoutMs);
+
+            // Subscribe to the temperature stream if enabled and the device has not rejected it
+            // before, otherwise start polling right away
+            if (streamingEnabled && client.isStreamingSupported(hostname)) {
+                stream = udpTelemetry ? new UdpTemperatureStream(hostname, this) : new SseTemperatureStream(hostname, this);
+                stream.open();
+            } else {
+                poll();
+            }
+        }
+
+        @Override
+        public void onSample(double temperature) {
+            recorder.record(temperature);
+
+            // Samples arrive on the stream's reader thread
+            mainHandler.post(() -> this.evaluate(temperature));
+        }
+
+        @Override
+        public void onSample(double temperature, long deviceTimeUs) {
+            // Record the sample at the time the device took it if the clocks are synchronised
+            if (clock.isSynchronized()) {
+                recorder.record(clock.toLocalNanos(deviceTimeUs), temperature);
+            } else {
+                recorder.record(temperature);
+            }
+
+            mainHandler.post(() -> this.evaluate(temperature));
+        }
+
+        @Override
+        public void onError(Exception e) {
+            mainHandler.post(() -> {
+                if (finished) {
+                    return;
                 }
 
-                // Retrieve current temperature
-                getTemperature(temp -> {
-                    Log.d(LOG_TAG, "Waiting for temperature to approach " + targetTemp + ": " + temp);
-
-                    // If condition is to warm, check if we're higher or equal to target
-                    if (condition.compareTo("warm") == 0 && temp >= targetTemp) {
-                        // Call success callback with last temperature reading
-                        onSuccess.apply(temp);
-                        // Cancel timer
-                        t.cancel();
-                    // If condition is to cool, check if we're lower or equal to target
-                    } else if (condition.compareTo("cool") == 0 && temp <= targetTemp) {
-                        // Call success callback with last temperature reading
-                        onSuccess.apply(temp);
-                        // Cancel timer
-                        t.cancel();
-                    } else if (condition.compareTo("baseline") == 0) {
-                        // If we want to return to baseline, check whether the current temperature
-                        // is within baseline +/- 0.2 degrees
-                        if (temp >= targetTemp - 0.2 || temp <= targetTemp + 0.2) {
-                            // Call success callback with last temperature reading
-                            onSuccess.apply(temp);
-                            // Cancel timer
-                            t.cancel();
-                        }
-                    }
-                }, error -> {
-                    // Call error callback if we get a HTTP error
-                    onError.apply(error);
-                    // Cancel timer
-                    t.cancel();
-                });
+                Log.w(LOG_TAG, "Temperature stream failed, falling back to polling: " + e);
+
+                // Do not try to stream from this device again if it does not offer a stream
+                if (e instanceof StreamingUnsupportedException) {
+                    client.setStreamingUnsupported(hostname);
+                }
+
+                stream = null;
+                poll();
+            });
+        }
+
+        /**
+         * Requests the current temperature and schedules the next request once it has returned.
+         */
+        private void poll() {
+            if (finished) {
+                return;
             }
-        }, 0, 100);
+
+            getTemperature(temp -> {
+                this.evaluate(temp);
+
+                // Schedule next poll if the target has not been reached yet
+                if (!finished) {
+                    mainHandler.postDelayed(pollTask, this.nextPollInterval(temp));
+                }
+            }, error -> {
+                if (finished) {
+                    return;
+                }
+
+                // Call error callback if we get a HTTP error
+                this.finish();
+                onError.apply(error);
+            });
+        }
+
+        /**
+         * Checks the given temperature reading against the target and invokes the success
+         * callback if the target has been reached.
+         *
+         * @param temp The temperature reading
+         */
+        private void evaluate(double temp) {
+            if (finished) {
+                return;
+            }
+
+            Log.d(LOG_TAG, "Waiting for temperature to approach " + targetTemp + ": " + temp);
+
+            if (isTargetReached(condition, targetTemp, temp)) {
+                // Call success callback with last temperature reading
+                this.finish();
+                onSuccess.apply(temp);
+            }
+        }
+
+        /**
+         * Computes the delay until the next poll. The next poll is scheduled halfway to the time
+         * the thermal model predicts the target will be reached, but no earlier than the minimum
+         * and no later than the maximum poll interval.
+         *
+         * @param temp The latest temperature reading
+         * @return Delay in milliseconds until the next poll
+         */
+        private long nextPollInterval(double temp) {
+            double eta = model.predictTimeToReach(temp, targetTemp, targetTemp) * 1000;
+            long interval = Double.isInfinite(eta) ? MAX_POLL_INTERVAL_MS : (long) (eta / 2);
+
+            return Math.max(MIN_POLL_INTERVAL_MS, Math.min(MAX_POLL_INTERVAL_MS, interval));
+        }
+
+        /**
+         * Invokes the success callback with -1 if the target has not been reached in time.
+         */
+        private void timeout() {
+            if (finished) {
+                return;
+            }
+
+            Log.d(LOG_TAG, "Timed out waiting for temperature to approach " + targetTemp);
+
+            this.finish();
+            onSuccess.apply(-1);
+        }
+
+        /**
+         * Stops the watch before it has finished on its own, without invoking any callback.
+         */
+        void cancel() {
+            if (finished) {
+                return;
+            }
+
+            Log.d(LOG_TAG, "Cancelled waiting for temperature to approach " + targetTemp);
+            this.finish();
+        }
+
+        /**
+         * Stops the watch, i.e. cancels outstanding polls and the timeout and closes the stream.
+         */
+        private void finish() {
+            finished = true;
+
+            mainHandler.removeCallbacks(pollTask);
+            mainHandler.removeCallbacks(timeoutTask);
+
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        }
     }
 }
@@ -0,0 +1,454 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import nl.cwi.dis.physiofashion.device.CommandPolicy;
+import nl.cwi.dis.physiofashion.device.CommandSchedule;
+import nl.cwi.dis.physiofashion.device.SetpointSequencer;
+
+/**
+ * This class controls a group of heating elements, e.g. the different zones of a garment, as if
+ * they were a single heating element. Setpoints are handed to all elements at once, so that they
+ * are sent to the devices in parallel rather than one after the other. For every setpoint change
+ * the time each request was dispatched and acknowledged is kept in a DispatchReport, which allows
+ * the skew between the elements to be inspected. Waiting for a temperature to be reached only
+ * succeeds once all elements have reached it.
+ */
+public class HeatingElementGroup {
+    private static final String LOG_TAG = "HeatingElementGroup";
+
+    /**
+     * This class holds the dispatch and acknowledgement times of a setpoint change for every
+     * element of the group. All times are monotonic and given in nanoseconds.
+     */
+    public static class DispatchReport {
+        private final String[] hostnames;
+        private final long[] dispatchTimes;
+        private final long[] ackTimes;
+        private final long[] appliedTimes;
+
+        DispatchReport(List<HeatingElement> elements) {
+            int size = elements.size();
+
+            this.hostnames = new String[size];
+            this.dispatchTimes = new long[size];
+            this.ackTimes = new long[size];
+            this.appliedTimes = new long[size];
+
+            for (int i = 0; i < size; i++) {
+                HeatingElement element = elements.get(i);
+
+                hostnames[i] = element.getHostname();
+                dispatchTimes[i] = element.getLastSetpointDispatchTime();
+                ackTimes[i] = element.getLastSetpointAckTime();
+                appliedTimes[i] = element.getLastSetpointAppliedTime();
+            }
+        }
+
+        /**
+         * Get the hostname of the element at the given index.
+         *
+         * @param index Index of the element
+         * @return Hostname of the element
+         */
+        public String getHostname(int index) {
+            return hostnames[index];
+        }
+
+        /**
+         * Get the time the setpoint was dispatched to the element at the given index.
+         *
+         * @param index Index of the element
+         * @return Dispatch time in nanoseconds
+         */
+        public long getDispatchTime(int index) {
+            return dispatchTimes[index];
+        }
+
+        /**
+         * Get the time the setpoint was acknowledged by the element at the given index.
+         *
+         * @param index Index of the element
+         * @return Acknowledgement time in nanoseconds
+         */
+        public long getAckTime(int index) {
+            return ackTimes[index];
+        }
+
+        /**
+         * Get the time the setpoint was applied by the element at the given index, on the clock
+         * of the tablet.
+         *
+         * @param index Index of the element
+         * @return Application time in nanoseconds
+         */
+        public long getAppliedTime(int index) {
+            return appliedTimes[index];
+        }
+
+        /**
+         * Get the time the first element applied the setpoint, i.e. the onset of the change.
+         *
+         * @return Onset time in nanoseconds
+         */
+        public long getOnsetTime() {
+            long onset = Long.MAX_VALUE;
+
+            for (long time : appliedTimes) {
+                onset = Math.min(onset, time);
+            }
+
+            return onset;
+        }
+
+        /**
+         * Get the time between the first and the last element the setpoint was dispatched to.
+         *
+         * @return Dispatch skew in nanoseconds
+         */
+        public long getDispatchSkew() {
+            return spread(dispatchTimes);
+        }
+
+        /**
+         * Get the time between the first and the last element which acknowledged the setpoint.
+         *
+         * @return Acknowledgement skew in nanoseconds
+         */
+        public long getAckSkew() {
+            return spread(ackTimes);
+        }
+
+        private static long spread(long[] times) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+
+            for (long time : times) {
+                min = Math.min(min, time);
+                max = Math.max(max, time);
+            }
+
+            return max - min;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+
+            for (int i = 0; i < hostnames.length; i++) {
+                builder.append(String.format(
+                        Locale.ENGLISH,
+                        "%s: dispatched %d, acknowledged after %.1fms; ",
+                        hostnames[i],
+                        dispatchTimes[i],
+                        (ackTimes[i] - dispatchTimes[i]) / 1e6
+                ));
+            }
+
+            builder.append(String.format(
+                    Locale.ENGLISH,
+                    "dispatch skew %.2fms, ack skew %.2fms",
+                    this.getDispatchSkew() / 1e6,
+                    this.getAckSkew() / 1e6
+            ));
+
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Type definition for a function issuing a setpoint change on a single element.
+     */
+    @FunctionalInterface
+    private interface SetpointCommand {
+        void apply(HeatingElement element, HeatingElement.SuccessCallback onSuccess, HeatingElement.ErrorCallback onError);
+    }
+
+    private ArrayList<HeatingElement> elements;
+    private int baselineTemp;
+    private Handler mainHandler;
+    private DispatchReport lastDispatch;
+
+    /**
+     * Initialises a new group of heating elements at the given hostnames, all sharing the same
+     * baseline temperature.
+     *
+     * @param context Application context, needed to obtain the shared device client
+     * @param hostnames Hostnames of the heating elements
+     * @param baselineTemp Desired baseline temperature of the heating elements
+     */
+    public HeatingElementGroup(Context context, List<String> hostnames, int baselineTemp) {
+        this.elements = new ArrayList<>(hostnames.size());
+        this.baselineTemp = baselineTemp;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+
+        for (String hostname : hostnames) {
+            elements.add(new HeatingElement(context, hostname, baselineTemp));
+        }
+    }
+
+    /**
+     * Sets whether the elements should stream their temperature rather than being polled.
+     *
+     * @param streamingEnabled Whether temperature streaming should be used
+     */
+    public void setStreamingEnabled(boolean streamingEnabled) {
+        for (HeatingElement element : elements) {
+            element.setStreamingEnabled(streamingEnabled);
+        }
+    }
+
+    /**
+     * Sets whether the elements should push their temperature over UDP rather than streaming it
+     * over HTTP.
+     *
+     * @param udpTelemetry Whether UDP telemetry should be used
+     */
+    public void setUdpTelemetry(boolean udpTelemetry) {
+        for (HeatingElement element : elements) {
+            element.setUdpTelemetry(udpTelemetry);
+        }
+    }
+
+    /**
+     * Sets how setpoint commands to the elements are retried and hedged, and after how many
+     * failures an element is considered unavailable.
+     *
+     * @param policy The command policy
+     */
+    public void setCommandPolicy(CommandPolicy policy) {
+        for (HeatingElement element : elements) {
+            element.setCommandPolicy(policy);
+        }
+    }
+
+    /**
+     * Sets the index of the current trial for all elements.
+     *
+     * @param trial Index of the current trial
+     */
+    public void setCurrentTrial(int trial) {
+        for (HeatingElement element : elements) {
+            element.setCurrentTrial(trial);
+        }
+    }
+
+    /**
+     * Get the dispatch report of the last setpoint change acknowledged by all elements.
+     *
+     * @return The last dispatch report or `null` if there was none
+     */
+    public DispatchReport getLastDispatch() {
+        return lastDispatch;
+    }
+
+    /**
+     * Returns all heating elements to their baseline temperature. Invokes `onSuccess` once all
+     * elements have acknowledged the request, `onError` with the first HTTP error otherwise.
+     *
+     * @param onSuccess Callback invoked on success
+     * @param onError Callback invoked on error
+     */
+    public void returnToBaseline(HeatingElement.SuccessCallback onSuccess, HeatingElement.ErrorCallback onError) {
+        this.dispatch(HeatingElement::returnToBaseline, onSuccess, onError);
+    }
+
+    /**
+     * Heats/cools all heating elements to the given target temperature. Invokes `onSuccess` once
+     * all elements have acknowledged the request, `onError` with the first HTTP error otherwise.
+     *
+     * @param condition Either "heat" or "cool"
+     * @param tempChange The desired temperature difference from baseline
+     * @param onSuccess Callback invoked on success
+     * @param onError Callback invoked on error
+     */
+    public void gotoTargetTemperature(String condition, int tempChange, HeatingElement.SuccessCallback onSuccess, HeatingElement.ErrorCallback onError) {
+        this.dispatch(
+                (element, elementSuccess, elementError) -> element.gotoTargetTemperature(condition, tempChange, elementSuccess, elementError),
+                onSuccess,
+                onError
+        );
+    }
+
+    /**
+     * Computes a timeout for waiting until all elements have reached the given target
+     * temperature, i.e. the longest timeout estimated by any of the elements.
+     *
+     * @param condition Either "heat", "cool" or "baseline"
+     * @param tempChange The desired temperature difference from baseline
+     * @param fallbackMs Timeout in milliseconds used by elements without a usable prediction
+     * @return Timeout in milliseconds
+     */
+    public long estimateTimeout(String condition, int tempChange, long fallbackMs) {
+        long timeout = 0;
+
+        for (HeatingElement element : elements) {
+            timeout = Math.max(timeout, element.estimateTimeout(condition, tempChange, fallbackMs));
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Plays back a setpoint trajectory on all heating elements. The waveform is compiled into a
+     * command schedule before playback starts, with the deltas applied in the direction given by
+     * the condition. The schedule is executed by a sequencer on a dedicated thread, which sends
+     * each command to all elements at once. `onStarted` is invoked once all elements have
+     * acknowledged the first command and `onFinished` after the last command has been sent, both
+     * on the main thread. `onError` is invoked with the first HTTP error, also on the main thread. The returned sequencer
+     * can be used to stop playback and to retrieve jitter statistics.
+     *
+     * @param condition Either "warm" or "cool", selecting the direction of the deltas
+     * @param waveform The setpoint trajectory
+     * @param onStarted Callback invoked once the first command has been acknowledged
+     * @param onFinished Callback invoked once the last command has been sent
+     * @param onError Callback invoked on the first error
+     * @return The sequencer playing back the waveform
+     */
+    public SetpointSequencer runWaveform(String condition, Waveform waveform, HeatingElement.SuccessCallback onStarted, HeatingElement.SuccessCallback onFinished, HeatingElement.ErrorCallback onError) {
+        int direction = (condition.compareTo("cool") == 0) ? -1 : 1;
+        CommandSchedule schedule = waveform.compile(baselineTemp, direction);
+
+        Log.d(LOG_TAG, "Running waveform with " + schedule.size() + " commands over " + waveform.getDuration() + "s");
+
+        // Only report the first error of the entire waveform. Errors are reported on the main
+        // thread, so the flag does not need to be synchronised
+        boolean[] failed = { false };
+        HeatingElement.ErrorCallback onFirstError = error -> {
+            if (!failed[0]) {
+                failed[0] = true;
+                onError.apply(error);
+            }
+        };
+
+        // Send every command to all elements, reporting the start once the first one is
+        // acknowledged. The commands are sent right away on the sequencer thread, so that they
+        // leave at their deadlines, but a command which is rejected without being sent fails on
+        // that thread too. All results are therefore handed to the main thread before they reach
+        // the state of the dispatch
+        SetpointSequencer sequencer = new SetpointSequencer(schedule, (index, setpoint) -> this.dispatch(
+                (element, elementSuccess, elementError) -> element.gotoSetpoint(
+                        setpoint,
+                        () -> mainHandler.post(elementSuccess::apply),
+                        error -> mainHandler.post(() -> elementError.apply(error))
+                ),
+                (index == 0) ? onStarted : () -> {},
+                onFirstError
+        ));
+
+        sequencer.setOnComplete(() -> mainHandler.post(onFinished::apply));
+        sequencer.start();
+
+        return sequencer;
+    }
+
+    /**
+     * Waits until all heating elements have reached the given target temperature. Invokes
+     * `onSuccess` with the mean of the elements' last readings once all elements have reached the
+     * target, or with -1 if any of them timed out. Invokes `onError` with the first HTTP error.
+     * Once a timeout or an error has been reported, the watches of the other elements are
+     * cancelled, so that they do not keep streaming or polling after the trial has moved on.
+     *
+     * @param condition Either "heat", "cool" or "baseline"
+     * @param tempChange The desired temperature difference from baseline
+     * @param timeoutMs Time in milliseconds after which the operation should time out
+     * @param onSuccess Callback invoked on success with the mean temperature, or -1 in case of timeout
+     * @param onError Callback invoked on error with the HTTP error
+     * @return Handle to cancel the watches of all elements
+     */
+    public HeatingElement.WatchHandle onTemperatureReached(String condition, int tempChange, long timeoutMs, HeatingElement.TemperatureCallback onSuccess, HeatingElement.ErrorCallback onError) {
+        // Callbacks are invoked on the main thread, so the state does not need to be synchronised
+        int[] remaining = { elements.size() };
+        boolean[] finished = { false };
+        double[] sum = { 0 };
+        ArrayList<HeatingElement.WatchHandle> watches = new ArrayList<>();
+
+        for (HeatingElement element : elements) {
+            watches.add(element.onTemperatureReached(condition, tempChange, timeoutMs, temp -> {
+                if (finished[0]) {
+                    return;
+                }
+
+                // Report a timeout as soon as any element has timed out
+                if (temp == -1) {
+                    finished[0] = true;
+                    onSuccess.apply(-1);
+                    cancelAll(watches);
+                    return;
+                }
+
+                sum[0] += temp;
+                remaining[0]--;
+
+                if (remaining[0] == 0) {
+                    finished[0] = true;
+                    onSuccess.apply(sum[0] / elements.size());
+                }
+            }, error -> {
+                if (!finished[0]) {
+                    finished[0] = true;
+                    onError.apply(error);
+                    cancelAll(watches);
+                }
+            }));
+        }
+
+        // An element may have failed right away, before the watches of the others were started
+        if (finished[0]) {
+            cancelAll(watches);
+        }
+
+        return () -> cancelAll(watches);
+    }
+
+    /**
+     * Cancels the given watches. Watches which have finished already are not affected.
+     */
+    private static void cancelAll(List<HeatingElement.WatchHandle> watches) {
+        for (HeatingElement.WatchHandle watch : watches) {
+            watch.cancel();
+        }
+    }
+
+    /**
+     * Issues a setpoint change on all elements in one go, so that the requests are handed to the
+     * dispatcher threads together. Once all elements have acknowledged, a dispatch report is
+     * created and logged and `onSuccess` is invoked. The first error is passed to `onError`. The
+     * command must invoke its callbacks on the main thread.
+     *
+     * @param command Setpoint change to issue on every element
+     * @param onSuccess Callback invoked once all elements have acknowledged
+     * @param onError Callback invoked on the first error
+     */
+    private void dispatch(SetpointCommand command, HeatingElement.SuccessCallback onSuccess, HeatingElement.ErrorCallback onError) {
+        // The command must invoke its callbacks on the main thread, so the state does not need to
+        // be synchronised
+        int[] remaining = { elements.size() };
+        boolean[] failed = { false };
+
+        for (HeatingElement element : elements) {
+            command.apply(element, () -> {
+                remaining[0]--;
+
+                if (remaining[0] == 0 && !failed[0]) {
+                    lastDispatch = new DispatchReport(elements);
+                    Log.d(LOG_TAG, "Setpoint dispatched: " + lastDispatch);
+
+                    onSuccess.apply();
+                }
+            }, error -> {
+                if (!failed[0]) {
+                    failed[0] = true;
+                    onError.apply(error);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * This class holds the user responses to all trials of an experiment in columns of primitives, one
+ * array per property, which are allocated once for the number of trials. Timestamps are kept in
+ * nanoseconds of session time and are -1 until they are recorded, ratings are 0 until they are
+ * given. The response to a single trial is accessed through a UserResponse, which reads and writes
+ * the columns directly, so parcelling, exporting and summarising the responses works on whole
+ * columns. Also note that this class extends the Parcelable interface, so it can be written with
+ * the experiment.
+ */
+public class ResponseTable implements Parcelable {
+    public static final Parcelable.Creator<ResponseTable> CREATOR = new Parcelable.Creator<ResponseTable>() {
+        @Override
+        public ResponseTable createFromParcel(Parcel in) {
+            return new ResponseTable(in);
+        }
+
+        @Override
+        public ResponseTable[] newArray(int size) {
+            return new ResponseTable[size];
+        }
+    };
+
+    // Columns are accessed directly by UserResponse
+    final long[] stimulusStarted;
+    final long[] stimulusFelt;
+    final long[] audioOnset;
+    final int[] temperatureFelt;
+    final int[] comfortLevel;
+    final int[] arousal;
+    final int[] valence;
+
+    /**
+     * Construct a new ResponseTable object from an existing Parcel object.
+     *
+     * @param in Parcel object to construct the table from
+     */
+    private ResponseTable(Parcel in) {
+        this.stimulusStarted = in.createLongArray();
+        this.stimulusFelt = in.createLongArray();
+        this.audioOnset = in.createLongArray();
+        this.temperatureFelt = in.createIntArray();
+        this.comfortLevel = in.createIntArray();
+        this.arousal = in.createIntArray();
+        this.valence = in.createIntArray();
+    }
+
+    /**
+     * Construct a new ResponseTable object from a snapshot written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @throws IOException If the snapshot could not be read or its columns differ in length
+     */
+    private ResponseTable(DataInput in) throws IOException {
+        this.stimulusStarted = SnapshotIO.readLongs(in);
+        this.stimulusFelt = SnapshotIO.readLongs(in);
+        this.audioOnset = SnapshotIO.readLongs(in);
+        this.temperatureFelt = SnapshotIO.readInts(in);
+        this.comfortLevel = SnapshotIO.readInts(in);
+        this.arousal = SnapshotIO.readInts(in);
+        this.valence = SnapshotIO.readInts(in);
+
+        int size = this.size();
+        if (stimulusFelt.length != size || audioOnset.length != size || temperatureFelt.length != size
+                || comfortLevel.length != size || arousal.length != size || valence.length != size) {
+            throw new IOException("Response columns of snapshot differ in length");
+        }
+    }
+
+    /**
+     * Construct a copy of the given table, which does not change along with it.
+     *
+     * @param other The table to copy
+     */
+    private ResponseTable(ResponseTable other) {
+        this.stimulusStarted = other.stimulusStarted.clone();
+        this.stimulusFelt = other.stimulusFelt.clone();
+        this.audioOnset = other.audioOnset.clone();
+        this.temperatureFelt = other.temperatureFelt.clone();
+        this.comfortLevel = other.comfortLevel.clone();
+        this.arousal = other.arousal.clone();
+        this.valence = other.valence.clone();
+    }
+
+    /**
+     * Initialises a new table for the given number of trials, without any responses recorded.
+     *
+     * @param trialCount Number of trials of the experiment
+     */
+    public ResponseTable(int trialCount) {
+        this.stimulusStarted = new long[trialCount];
+        this.stimulusFelt = new long[trialCount];
+        this.audioOnset = new long[trialCount];
+        this.temperatureFelt = new int[trialCount];
+        this.comfortLevel = new int[trialCount];
+        this.arousal = new int[trialCount];
+        this.valence = new int[trialCount];
+
+        Arrays.fill(this.stimulusStarted, -1);
+        Arrays.fill(this.stimulusFelt, -1);
+        Arrays.fill(this.audioOnset, -1);
+    }
+
+    /**
+     * Write the object to a parcel.
+     *
+     * @param dest Destination parcel
+     * @param flags Flags, ignored
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLongArray(stimulusStarted);
+        dest.writeLongArray(stimulusFelt);
+        dest.writeLongArray(audioOnset);
+        dest.writeIntArray(temperatureFelt);
+        dest.writeIntArray(comfortLevel);
+        dest.writeIntArray(arousal);
+        dest.writeIntArray(valence);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Write the object to a snapshot of the experiment it belongs to.
+     *
+     * @param out Destination of the snapshot
+     * @throws IOException If the snapshot could not be written
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        SnapshotIO.writeLongs(out, stimulusStarted);
+        SnapshotIO.writeLongs(out, stimulusFelt);
+        SnapshotIO.writeLongs(out, audioOnset);
+        SnapshotIO.writeInts(out, temperatureFelt);
+        SnapshotIO.writeInts(out, comfortLevel);
+        SnapshotIO.writeInts(out, arousal);
+        SnapshotIO.writeInts(out, valence);
+    }
+
+    /**
+     * Read an object written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @return The table
+     * @throws IOException If the snapshot could not be read
+     */
+    public static ResponseTable readSnapshot(DataInput in) throws IOException {
+        return new ResponseTable(in);
+    }
+
+    /**
+     * Returns a copy of the table, which keeps the responses recorded so far.
+     *
+     * @return The copy
+     */
+    public ResponseTable copy() {
+        return new ResponseTable(this);
+    }
+
+    /**
+     * Get the number of trials the table holds responses for.
+     *
+     * @return Number of trials
+     */
+    public int size() {
+        return stimulusStarted.length;
+    }
+
+    /**
+     * Returns an accessor for the response to the trial at the given index. The accessor reads
+     * and writes the columns of this table.
+     *
+     * @param trial Index of the trial
+     * @return The response to the trial
+     */
+    public UserResponse getResponse(int trial) {
+        if (trial < 0 || trial >= this.size()) {
+            throw new IndexOutOfBoundsException("No trial " + trial + " in " + this.size() + " trials");
+        }
+
+        return new UserResponse(this, trial);
+    }
+
+    /**
+     * Returns the time between the start of the stimulus and the moment it was felt for all
+     * trials in which both have been recorded.
+     *
+     * @return Reaction times in nanoseconds, in the order of the trials
+     */
+    public long[] getReactionTimes() {
+        long[] reactionTimes = new long[this.size()];
+        int count = 0;
+
+        for (int i = 0; i < this.size(); i++) {
+            if (stimulusStarted[i] >= 0 && stimulusFelt[i] >= 0) {
+                reactionTimes[count++] = stimulusFelt[i] - stimulusStarted[i];
+            }
+        }
+
+        return Arrays.copyOf(reactionTimes, count);
+    }
+
+    /**
+     * Returns a one-line summary of the reaction times and ratings of all trials. Ratings are
+     * averaged over the trials which have been run, so that trials not reached yet, e.g. in a
+     * resumed session, do not count as rated with 0.
+     *
+     * @return Human-readable summary, times in milliseconds
+     */
+    public String getSummary() {
+        long[] reactionTimes = this.getReactionTimes();
+        Arrays.sort(reactionTimes);
+
+        double medianMs = reactionTimes.length == 0 ? 0 : reactionTimes[(reactionTimes.length - 1) / 2] / 1e6;
+        double meanMs = Arrays.stream(reactionTimes).average().orElse(0) / 1e6;
+
+        return String.format(
+                Locale.ENGLISH,
+                "n=%d felt=%d rt mean=%.0f p50=%.0fms temperature mean=%.1f comfort mean=%.1f",
+                this.size(),
+                reactionTimes.length,
+                meanMs,
+                medianMs,
+                this.getMeanRating(temperatureFelt),
+                this.getMeanRating(comfortLevel)
+        );
+    }
+
+    /**
+     * Returns the mean of the given rating column over all trials whose stimulus was started, or
+     * 0 if there are none.
+     */
+    private double getMeanRating(int[] ratings) {
+        long sum = 0;
+        int count = 0;
+
+        for (int i = 0; i < this.size(); i++) {
+            if (stimulusStarted[i] >= 0) {
+                sum += ratings[i];
+                count++;
+            }
+        }
+
+        return count == 0 ? 0 : (double) sum / count;
+    }
+}
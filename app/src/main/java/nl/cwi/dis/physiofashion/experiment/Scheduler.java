@@ -0,0 +1,35 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+/**
+ * A clock together with a single-threaded event loop on which tasks can be scheduled. All tasks
+ * of a scheduler run one after another on the same thread, in the order of their due times, so
+ * code driven by a scheduler never races with itself. On the device, tasks run on the main thread
+ * in real time; in tests, time can be advanced virtually.
+ */
+public interface Scheduler {
+    /**
+     * Get the current time of the scheduler's clock. The clock is monotonic, but its origin is
+     * arbitrary, so only differences between its values are meaningful.
+     *
+     * @return Current time in nanoseconds
+     */
+    long now();
+
+    /**
+     * Schedules the given task to run on the event loop after the given delay.
+     *
+     * @param task The task to run
+     * @param delayMs Delay in milliseconds
+     */
+    void schedule(Runnable task, long delayMs);
+
+    /**
+     * Schedules the given task to run on the event loop as soon as possible, after all tasks which
+     * are already due.
+     *
+     * @param task The task to run
+     */
+    default void post(Runnable task) {
+        this.schedule(task, 0);
+    }
+}
@@ -0,0 +1,196 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The clock all behavioural timestamps of a session are taken from. The clock is anchored to the
+ * monotonic clock of the tablet when the session starts, and every event is expressed as an
+ * offset in nanoseconds from that anchor. Unlike the wall clock, the monotonic clock does not jump
+ * when the time of the tablet is adjusted, so differences between events, such as reaction times,
+ * are exact. The wall clock time is only read once, at the anchor, so that offsets can still be
+ * related to the time of day. Also note that this class extends the Parcelable interface, so its
+ * instances can be passed between activities as part of the experiment.
+ */
+public class SessionClock implements Parcelable {
+    public static final Parcelable.Creator<SessionClock> CREATOR = new Parcelable.Creator<SessionClock>() {
+        @Override
+        public SessionClock createFromParcel(Parcel in) {
+            return new SessionClock(in);
+        }
+
+        @Override
+        public SessionClock[] newArray(int size) {
+            return new SessionClock[size];
+        }
+    };
+
+    // Largest disagreement between the clocks that is not taken as a reboot of the tablet
+    static final long REBOOT_TOLERANCE_MS = 5_000;
+
+    private final long anchorElapsedNs;
+    private final long anchorWallMs;
+
+    /**
+     * Construct a new SessionClock object from an existing Parcel object.
+     *
+     * @param in Parcel object to construct clock from
+     */
+    private SessionClock(Parcel in) {
+        this.anchorElapsedNs = in.readLong();
+        this.anchorWallMs = in.readLong();
+    }
+
+    /**
+     * Initialise a new clock with the given anchor.
+     *
+     * @param anchorElapsedNs Monotonic time of the anchor, as returned by `SystemClock.elapsedRealtimeNanos()`
+     * @param anchorWallMs Wall clock time of the anchor in milliseconds since the epoch
+     */
+    SessionClock(long anchorElapsedNs, long anchorWallMs) {
+        this.anchorElapsedNs = anchorElapsedNs;
+        this.anchorWallMs = anchorWallMs;
+    }
+
+    /**
+     * Starts a new clock anchored to the current time.
+     *
+     * @return The new session clock
+     */
+    public static SessionClock start() {
+        return new SessionClock(SystemClock.elapsedRealtimeNanos(), System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the clock to continue a session with after the app has been restarted. See
+     * `resume(SessionClock, long, long)`.
+     *
+     * @return The clock to continue the session with
+     */
+    public SessionClock resume() {
+        return resume(this, SystemClock.elapsedRealtimeNanos(), System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the clock to continue a session with after the app has been restarted. The monotonic
+     * clock keeps running when only the process was restarted, so the clock is returned as it is.
+     * If the tablet was rebooted in the meantime, the monotonic clock has started again from zero,
+     * which shows as a disagreement with the wall clock. The anchor is then moved by the wall
+     * clock time that has passed, so that session times continue to increase, albeit only with
+     * the accuracy of the wall clock across the reboot.
+     *
+     * @param clock The clock the session was started with
+     * @param nowElapsedNs Current time of the monotonic clock
+     * @param nowWallMs Current wall clock time in milliseconds since the epoch
+     * @return The clock to continue the session with
+     */
+    static SessionClock resume(SessionClock clock, long nowElapsedNs, long nowWallMs) {
+        long elapsedMs = (nowElapsedNs - clock.anchorElapsedNs) / 1_000_000;
+        long wallMs = nowWallMs - clock.anchorWallMs;
+
+        if (Math.abs(elapsedMs - wallMs) <= REBOOT_TOLERANCE_MS) {
+            return clock;
+        }
+
+        return new SessionClock(nowElapsedNs - wallMs * 1_000_000, clock.anchorWallMs);
+    }
+
+    /**
+     * Write the object to a parcel.
+     *
+     * @param dest Destination parcel
+     * @param flags Flags, ignored
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(anchorElapsedNs);
+        dest.writeLong(anchorWallMs);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Write the object to a snapshot of the experiment it belongs to.
+     *
+     * @param out Destination of the snapshot
+     * @throws IOException If the snapshot could not be written
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        out.writeLong(anchorElapsedNs);
+        out.writeLong(anchorWallMs);
+    }
+
+    /**
+     * Read an object written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @return The clock
+     * @throws IOException If the snapshot could not be read
+     */
+    public static SessionClock readSnapshot(DataInput in) throws IOException {
+        return new SessionClock(in.readLong(), in.readLong());
+    }
+
+    /**
+     * Get the time elapsed since the start of the session.
+     *
+     * @return Session time in nanoseconds
+     */
+    public long now() {
+        return this.toSessionTime(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Converts a time of the monotonic clock of the tablet to session time.
+     *
+     * @param elapsedNs Time as returned by `SystemClock.elapsedRealtimeNanos()`
+     * @return Session time in nanoseconds
+     */
+    public long toSessionTime(long elapsedNs) {
+        return elapsedNs - anchorElapsedNs;
+    }
+
+    /**
+     * Converts a session time to wall clock time. The result is subject to the accuracy of the wall
+     * clock at the start of the session, and is only meant to relate events to the time of day.
+     *
+     * @param sessionNs Session time in nanoseconds
+     * @return Wall clock time in milliseconds since the epoch
+     */
+    public long toWallMillis(long sessionNs) {
+        return anchorWallMs + sessionNs / 1_000_000;
+    }
+
+    /**
+     * Get the wall clock time at which the session started.
+     *
+     * @return Wall clock time in milliseconds since the epoch
+     */
+    public long getAnchorWallMillis() {
+        return anchorWallMs;
+    }
+
+    /**
+     * Get the wall clock time at which the session started as an ISO 8601 string in UTC.
+     *
+     * @return Start of the session, e.g. `2019-05-14T13:02:45.120Z`
+     */
+    public String getAnchorIso() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return format.format(new Date(anchorWallMs));
+    }
+}
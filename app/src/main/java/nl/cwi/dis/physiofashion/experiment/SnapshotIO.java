@@ -0,0 +1,118 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Helpers for writing the values of the snapshot format of an experiment which DataOutput does
+ * not cover itself, i.e. strings which may be `null` and arrays. Arrays are written as their
+ * length followed by their elements.
+ */
+final class SnapshotIO {
+    private SnapshotIO() {
+    }
+
+    /**
+     * Writes a string which may be `null`.
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by `writeString()`.
+     */
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Writes an array of doubles.
+     */
+    static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Reads an array written by `writeDoubles()`.
+     */
+    static double[] readDoubles(DataInput in) throws IOException {
+        double[] values = new double[readLength(in)];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+
+        return values;
+    }
+
+    /**
+     * Writes an array of longs.
+     */
+    static void writeLongs(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    /**
+     * Reads an array written by `writeLongs()`.
+     */
+    static long[] readLongs(DataInput in) throws IOException {
+        long[] values = new long[readLength(in)];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readLong();
+        }
+
+        return values;
+    }
+
+    /**
+     * Writes an array of ints.
+     */
+    static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads an array written by `writeInts()`.
+     */
+    static int[] readInts(DataInput in) throws IOException {
+        int[] values = new int[readLength(in)];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+
+        return values;
+    }
+
+    /**
+     * Reads the length of an array or list, which cannot be negative in a valid snapshot.
+     */
+    static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0) {
+            throw new IOException("Invalid length " + length + " in snapshot");
+        }
+
+        return length;
+    }
+}
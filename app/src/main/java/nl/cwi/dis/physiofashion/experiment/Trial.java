@@ -3,6 +3,10 @@ package nl.cwi.dis.physiofashion.experiment;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * This class encapsulates a trial within an experiment and should be initialised from an experiment
  * object. This class provides accessor methods for all trial properties. Also note that this class
@@ -25,6 +29,7 @@ public class Trial implements Parcelable {
     private String condition;
     private int intensity;
     private String externalCondition;
+    private Waveform waveform;
 
     /**
      * Construct a new Trial object from an existing Parcel object.
@@ -36,6 +41,7 @@ public class Trial implements Parcelable {
         this.condition = in.readString();
         this.intensity = in.readInt();
         this.externalCondition = in.readString();
+        this.waveform = (in.readInt() == 1) ? Waveform.CREATOR.createFromParcel(in) : null;
     }
 
     /**
@@ -48,10 +54,26 @@ public class Trial implements Parcelable {
      * @param externalCondition Name for the external condition that applies for this trial
      */
     public Trial(String audioFile, String condition, int intensity, String externalCondition) {
+        this(audioFile, condition, intensity, externalCondition, null);
+    }
+
+    /**
+     * Initialise new trial object with audio file, heating/cooling condition, temperature
+     * intensity, description of current external condition and a setpoint trajectory. If a
+     * waveform is given, it replaces the single step change given by the intensity.
+     *
+     * @param audioFile Name of the audio file, if any
+     * @param condition Condition to be applied for the heating element
+     * @param intensity Temperature intensity for the condition
+     * @param externalCondition Name for the external condition that applies for this trial
+     * @param waveform Setpoint trajectory for the stimulus, or `null`
+     */
+    public Trial(String audioFile, String condition, int intensity, String externalCondition, Waveform waveform) {
         this.audioFile = audioFile;
         this.condition = condition;
         this.intensity = intensity;
         this.externalCondition = externalCondition;
+        this.waveform = waveform;
     }
 
     /**
@@ -66,6 +88,11 @@ public class Trial implements Parcelable {
         dest.writeString(condition);
         dest.writeInt(intensity);
         dest.writeString(externalCondition);
+        dest.writeInt(waveform != null ? 1 : 0);
+
+        if (waveform != null) {
+            waveform.writeToParcel(dest, flags);
+        }
     }
 
     @Override
@@ -73,6 +100,41 @@ public class Trial implements Parcelable {
         return 0;
     }
 
+    /**
+     * Write the object to a snapshot of the experiment it belongs to.
+     *
+     * @param out Destination of the snapshot
+     * @throws IOException If the snapshot could not be written
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        SnapshotIO.writeString(out, audioFile);
+        SnapshotIO.writeString(out, condition);
+        out.writeInt(intensity);
+        SnapshotIO.writeString(out, externalCondition);
+        out.writeBoolean(waveform != null);
+
+        if (waveform != null) {
+            waveform.writeSnapshot(out);
+        }
+    }
+
+    /**
+     * Read an object written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @return The trial
+     * @throws IOException If the snapshot could not be read
+     */
+    public static Trial readSnapshot(DataInput in) throws IOException {
+        return new Trial(
+                SnapshotIO.readString(in),
+                SnapshotIO.readString(in),
+                in.readInt(),
+                SnapshotIO.readString(in),
+                in.readBoolean() ? Waveform.readSnapshot(in) : null
+        );
+    }
+
     /**
      * Returns whether the trial has an audio file associated to it.
      *
@@ -117,4 +179,22 @@ public class Trial implements Parcelable {
     public String getExternalCondition() {
         return externalCondition;
     }
+
+    /**
+     * Returns whether the trial describes its stimulus as a setpoint trajectory.
+     *
+     * @return Whether the trial has a waveform
+     */
+    public boolean hasWaveform() {
+        return waveform != null;
+    }
+
+    /**
+     * Returns the setpoint trajectory for this trial if available.
+     *
+     * @return The waveform or `null`
+     */
+    public Waveform getWaveform() {
+        return waveform;
+    }
 }
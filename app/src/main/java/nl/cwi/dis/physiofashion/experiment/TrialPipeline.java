@@ -0,0 +1,69 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import android.os.SystemClock;
+
+/**
+ * This class carries state from one trial to the next when transitions are pipelined. At the end
+ * of a stimulus, the heating element is returned to baseline right away and the time it settles at
+ * baseline is kept here, so that the next trial can credit the time already spent at baseline
+ * against its adaptation period. As the activities of subsequent trials are separate instances,
+ * there is a single, process-wide pipeline. Audio files of upcoming trials are prepared by the
+ * PreparedPlayerCache.
+ */
+public class TrialPipeline {
+    private static TrialPipeline instance;
+
+    private long baselineReachedAt;
+
+    /**
+     * Initialises the pipeline.
+     */
+    private TrialPipeline() {
+        this.baselineReachedAt = -1;
+    }
+
+    /**
+     * Returns the shared pipeline, creating it if it does not exist yet.
+     *
+     * @return The shared pipeline
+     */
+    public static synchronized TrialPipeline getInstance() {
+        if (instance == null) {
+            instance = new TrialPipeline();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Marks that the heating element has started returning to baseline. Any time at baseline
+     * recorded before is discarded.
+     */
+    public synchronized void setBaselineRequested() {
+        baselineReachedAt = -1;
+    }
+
+    /**
+     * Marks that the heating element has settled at baseline now.
+     */
+    public synchronized void setBaselineReached() {
+        baselineReachedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the time the heating element has spent at baseline since it last settled there and
+     * resets it, so that the time is only credited once.
+     *
+     * @return Time at baseline in milliseconds, or 0 if the element has not settled at baseline
+     */
+    public synchronized long takeTimeAtBaseline() {
+        if (baselineReachedAt < 0) {
+            return 0;
+        }
+
+        long timeAtBaseline = SystemClock.elapsedRealtime() - baselineReachedAt;
+        baselineReachedAt = -1;
+
+        return timeAtBaseline;
+    }
+}
@@ -0,0 +1,466 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import android.util.Log;
+
+import com.android.volley.VolleyError;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * This class drives the lifecycle of a single trial through its phases: the heating elements are
+ * brought to baseline, the participant adapts for the configured period, the stimulus is applied
+ * and, once it is over, the machine waits for the participant to indicate that they felt it before
+ * moving on to the rating.
+ *
+ * All transitions happen on the event loop of a scheduler. Results of device commands, audio
+ * playback and button presses are posted to the loop as events and every timer is a task on the
+ * loop, so the machine never runs on two threads at once. Every phase entered gets a new
+ * generation, and events belonging to an earlier generation, such as the acknowledgement of a
+ * command which has since been retried, are ignored. Driving the machine with a virtual scheduler
+ * makes a trial reproducible and lets it run in accelerated time.
+ *
+ * The machine does not touch devices or the UI itself, but asks its delegate to do so.
+ */
+public class TrialStateMachine {
+    private static final String LOG_TAG = "TrialStateMachine";
+    private static final long COUNTDOWN_INTERVAL_MS = 1000;
+
+    /**
+     * The phases of a trial, in the order they are entered.
+     */
+    public enum Phase {
+        IDLE,
+        BASELINE,
+        ADAPTATION,
+        STIMULUS,
+        WAIT_FOR_PRESS,
+        RATING
+    }
+
+    /**
+     * Carries out the actions of the machine on the devices and the UI. All methods are called on
+     * the event loop of the scheduler; callbacks passed to them may be invoked from any thread.
+     */
+    public interface Delegate {
+        /**
+         * Called whenever the machine has entered a new phase.
+         *
+         * @param phase The new phase
+         */
+        void onPhaseChanged(Phase phase);
+
+        /**
+         * Called once per second while the adaptation or a timed stimulus is running, and once
+         * with zero when it has elapsed.
+         *
+         * @param remainingMs Time remaining in the phase in milliseconds
+         */
+        void onCountdown(long remainingMs);
+
+        /**
+         * Brings the heating elements to baseline temperature.
+         *
+         * @param onSuccess Callback invoked once the setpoint has been acknowledged
+         * @param onError Callback invoked if the setpoint could not be set
+         */
+        void returnToBaseline(HeatingElement.SuccessCallback onSuccess, HeatingElement.ErrorCallback onError);
+
+        /**
+         * Returns the time the participant should adapt to the baseline temperature.
+         *
+         * @return Adaptation period in milliseconds
+         */
+        long getAdaptationMs();
+
+        /**
+         * Starts the stimulus of the trial, i.e. sets the target temperature or starts the
+         * waveform.
+         *
+         * @param onStarted Callback invoked once the first setpoint has been acknowledged
+         * @param onError Callback invoked if a setpoint could not be set
+         */
+        void startStimulus(HeatingElement.SuccessCallback onStarted, HeatingElement.ErrorCallback onError);
+
+        /**
+         * Called once the stimulus has started.
+         *
+         * @param durationMs Duration of the stimulus, or 0 if it lasts until the target
+         *                   temperature has been reached and the audio clip has been played
+         */
+        void onStimulusStarted(long durationMs);
+
+        /**
+         * Waits until the heating elements have reached the target temperature or the wait has
+         * timed out.
+         *
+         * @param onReached Callback invoked once the wait is over
+         * @param onError Callback invoked if the temperature could not be watched
+         */
+        void awaitTarget(HeatingElement.SuccessCallback onReached, HeatingElement.ErrorCallback onError);
+
+        /**
+         * Loads the audio clip of the trial, if any.
+         *
+         * @return Time after the onset of the stimulus at which the clip should start in
+         * milliseconds, or -1 if the trial has no audio
+         */
+        long prepareAudio();
+
+        /**
+         * Plays the prepared audio clip such that it is heard at the given time. The delegate
+         * is responsible for starting the clip at that time, so that it can use a more accurate
+         * mechanism than a timer on the event loop.
+         *
+         * @param atNs Time of the scheduler's clock at which the clip should start
+         * @param onFinished Callback invoked once the clip has finished playing
+         */
+        void playAudio(long atNs, HeatingElement.SuccessCallback onFinished);
+
+        /**
+         * Called once the stimulus is over, before the machine moves on.
+         */
+        void onStimulusEnded();
+
+        /**
+         * Called when it has been recorded that the participant felt the stimulus.
+         *
+         * @param timeNs Time of the scheduler's clock at which the stimulus was felt
+         */
+        void onStimulusFelt(long timeNs);
+
+        /**
+         * Called if a phase could not be carried out because a device failed.
+         *
+         * @param message Description of the failed step
+         * @param error The error of the device
+         * @param retry Retries the failed phase when run
+         */
+        void onDeviceError(String message, VolleyError error, Runnable retry);
+
+        /**
+         * Called once when the machine has been stopped. Stops everything the delegate still has
+         * running for the trial, such as watches of the temperature, the playback of a waveform
+         * and the audio clip.
+         */
+        void onStopped();
+    }
+
+    private final Scheduler scheduler;
+    private final Delegate delegate;
+    private final long stimulusMs;
+    private final boolean feltAtStimulusEnd;
+    private final long[] phaseStartedAt;
+
+    private Phase phase;
+    private int generation;
+    private boolean stopped;
+    private long stimulusOnset;
+    private long stimulusFelt;
+
+    /**
+     * Initialises a new machine for a trial. The machine does not start until `start()` is called.
+     *
+     * @param scheduler Scheduler providing the clock and the event loop
+     * @param delegate Delegate carrying out the actions of the machine
+     * @param stimulusMs Duration of the stimulus in milliseconds, or 0 if the stimulus lasts
+     *                   until the target temperature has been reached and the audio clip has
+     *                   been played
+     * @param feltAtStimulusEnd Whether the stimulus counts as felt once it is over, rather than
+     *                          when the participant presses a button
+     */
+    public TrialStateMachine(Scheduler scheduler, Delegate delegate, long stimulusMs, boolean feltAtStimulusEnd) {
+        this.scheduler = scheduler;
+        this.delegate = delegate;
+        this.stimulusMs = stimulusMs;
+        this.feltAtStimulusEnd = feltAtStimulusEnd;
+        this.phaseStartedAt = new long[Phase.values().length];
+        this.phase = Phase.IDLE;
+        this.stimulusOnset = -1;
+        this.stimulusFelt = -1;
+
+        Arrays.fill(phaseStartedAt, -1);
+    }
+
+    /**
+     * Starts the trial by bringing the heating elements to baseline.
+     */
+    public void start() {
+        scheduler.post(this::enterBaseline);
+    }
+
+    /**
+     * Stops the machine. Pending timers, device callbacks and button presses are ignored from now
+     * on, and the delegate is asked to stop whatever it still has running. Must be called on the
+     * event loop.
+     */
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+
+        stopped = true;
+        generation++;
+
+        delegate.onStopped();
+    }
+
+    /**
+     * Records that the participant has pressed the button to indicate that they felt the
+     * stimulus. If the stimulus is already over, the machine moves on to the rating. Presses after
+     * the first one are ignored. The time of the press is taken when this method is called, not
+     * when the event is handled on the loop.
+     */
+    public void pressFeelIt() {
+        long pressedAt = scheduler.now();
+
+        scheduler.post(() -> {
+            if (stopped || stimulusFelt >= 0 || phase == Phase.RATING) {
+                return;
+            }
+
+            this.recordFelt(pressedAt);
+
+            if (phase == Phase.WAIT_FOR_PRESS) {
+                this.enter(Phase.RATING);
+            }
+        });
+    }
+
+    /**
+     * Get the phase the machine is currently in.
+     *
+     * @return The current phase
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Get whether the machine has been stopped.
+     *
+     * @return Whether `stop()` has been called
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Get the time at which the given phase was entered.
+     *
+     * @param phase The phase
+     * @return Time of the scheduler's clock in nanoseconds, or -1 if the phase was not entered yet
+     */
+    public long getPhaseStartedAt(Phase phase) {
+        return phaseStartedAt[phase.ordinal()];
+    }
+
+    /**
+     * Get the time at which the first setpoint of the stimulus was acknowledged.
+     *
+     * @return Time of the scheduler's clock in nanoseconds, or -1 if the stimulus has not started
+     */
+    public long getStimulusOnset() {
+        return stimulusOnset;
+    }
+
+    /**
+     * Get the time at which the participant felt the stimulus.
+     *
+     * @return Time of the scheduler's clock in nanoseconds, or -1 if not recorded yet
+     */
+    public long getStimulusFelt() {
+        return stimulusFelt;
+    }
+
+    /**
+     * Enters the given phase, invalidating all events of the previous one.
+     *
+     * @return The generation of the new phase
+     */
+    private int enter(Phase next) {
+        long now = scheduler.now();
+
+        if (phase != Phase.IDLE) {
+            Log.d(LOG_TAG, String.format(
+                    Locale.ENGLISH,
+                    "%s -> %s after %.1fms",
+                    phase,
+                    next,
+                    (now - phaseStartedAt[phase.ordinal()]) / 1e6
+            ));
+        }
+
+        phase = next;
+        phaseStartedAt[next.ordinal()] = now;
+        generation++;
+
+        delegate.onPhaseChanged(next);
+        return generation;
+    }
+
+    /**
+     * Posts the given task to the event loop, where it only runs if the machine is still in the
+     * given generation. Used for events arriving from other threads.
+     */
+    private void post(int gen, Runnable task) {
+        this.schedule(gen, task, 0);
+    }
+
+    /**
+     * Schedules the given task after the given delay, provided the machine is still in the given
+     * generation by then.
+     */
+    private void schedule(int gen, Runnable task, long delayMs) {
+        scheduler.schedule(() -> {
+            if (gen == generation) {
+                task.run();
+            }
+        }, delayMs);
+    }
+
+    /**
+     * Reports the remaining time of a timed phase every second until its deadline. The end of the
+     * phase reports zero itself.
+     */
+    private void countdown(int gen, long deadline) {
+        long remainingMs = (deadline - scheduler.now()) / 1_000_000;
+
+        if (remainingMs <= 0) {
+            return;
+        }
+
+        delegate.onCountdown(remainingMs);
+        this.schedule(gen, () -> this.countdown(gen, deadline), Math.min(COUNTDOWN_INTERVAL_MS, remainingMs));
+    }
+
+    /**
+     * Brings the heating elements to baseline and moves on to the adaptation once they have
+     * acknowledged.
+     */
+    private void enterBaseline() {
+        int gen = this.enter(Phase.BASELINE);
+
+        delegate.returnToBaseline(
+                () -> this.post(gen, this::enterAdaptation),
+                error -> this.post(gen, () -> delegate.onDeviceError(
+                        "Could not set adaptation setpoint",
+                        error,
+                        () -> this.post(gen, this::enterBaseline)
+                ))
+        );
+    }
+
+    /**
+     * Waits for the adaptation period and moves on to the stimulus.
+     */
+    private void enterAdaptation() {
+        int gen = this.enter(Phase.ADAPTATION);
+        long adaptationMs = delegate.getAdaptationMs();
+
+        Log.d(LOG_TAG, "Pausing for adaptation for " + adaptationMs + "ms");
+
+        this.countdown(gen, scheduler.now() + adaptationMs * 1_000_000);
+        this.schedule(gen, () -> {
+            delegate.onCountdown(0);
+            this.enterStimulus();
+        }, adaptationMs);
+    }
+
+    /**
+     * Starts the stimulus. The stimulus period only starts counting once the first setpoint of
+     * the stimulus has been acknowledged.
+     */
+    private void enterStimulus() {
+        int gen = this.enter(Phase.STIMULUS);
+        stimulusOnset = -1;
+
+        delegate.startStimulus(
+                () -> this.post(gen, () -> this.onStimulusStarted(gen)),
+                error -> this.post(gen, () -> {
+                    // Once the stimulus is running, a failed setpoint only affects part of it
+                    if (stimulusOnset >= 0) {
+                        Log.e(LOG_TAG, "Could not set stimulus setpoint: " + error);
+                        return;
+                    }
+
+                    delegate.onDeviceError("Could not start stimulus", error, () -> this.post(gen, this::enterStimulus));
+                })
+        );
+    }
+
+    /**
+     * Handles the onset of the stimulus, scheduling the audio clip and the end of the stimulus, or
+     * waiting for the target temperature if there is no stimulus period.
+     */
+    private void onStimulusStarted(int gen) {
+        if (stimulusOnset >= 0) {
+            return;
+        }
+
+        stimulusOnset = scheduler.now();
+        delegate.onStimulusStarted(stimulusMs);
+
+        // Without a stimulus period, the stimulus lasts until the target has been reached and
+        // the audio clip has been played
+        if (stimulusMs == 0) {
+            this.awaitTarget(gen);
+            return;
+        }
+
+        Log.d(LOG_TAG, "Pausing for stimulus for " + stimulusMs + "ms");
+
+        long audioStartMs = delegate.prepareAudio();
+        if (audioStartMs >= 0) {
+            Log.d(LOG_TAG, "Starting audio playback after " + audioStartMs + "ms");
+            delegate.playAudio(stimulusOnset + audioStartMs * 1_000_000, () -> {});
+        }
+
+        this.countdown(gen, stimulusOnset + stimulusMs * 1_000_000);
+        this.schedule(gen, () -> {
+            delegate.onCountdown(0);
+            this.endStimulus();
+        }, stimulusMs);
+    }
+
+    /**
+     * Waits for the target temperature of an untimed stimulus and plays the audio clip once it has
+     * been reached. If the temperature cannot be watched, the wait is retried on request.
+     */
+    private void awaitTarget(int gen) {
+        delegate.awaitTarget(
+                () -> this.post(gen, () -> {
+                    delegate.prepareAudio();
+                    delegate.playAudio(scheduler.now(), () -> this.post(gen, this::endStimulus));
+                }),
+                error -> this.post(gen, () -> delegate.onDeviceError(
+                        "Could not watch target temperature",
+                        error,
+                        () -> this.post(gen, () -> this.awaitTarget(gen))
+                ))
+        );
+    }
+
+    /**
+     * Ends the stimulus and moves on to the rating if the stimulus was felt already, otherwise
+     * waits for the participant to press the button.
+     */
+    private void endStimulus() {
+        Log.d(LOG_TAG, "Stimulus over");
+        delegate.onStimulusEnded();
+
+        if (feltAtStimulusEnd && stimulusFelt < 0) {
+            this.recordFelt(scheduler.now());
+        }
+
+        this.enter(stimulusFelt >= 0 ? Phase.RATING : Phase.WAIT_FOR_PRESS);
+    }
+
+    /**
+     * Records the given time as the time the stimulus was felt.
+     */
+    private void recordFelt(long timeNs) {
+        stimulusFelt = timeNs;
+        delegate.onStimulusFelt(stimulusFelt);
+    }
+}
@@ -1,108 +1,81 @@
 package nl.cwi.dis.physiofashion.experiment;
 
-import android.os.Parcel;
-import android.os.Parcelable;
-
 /**
- * This class encapsulates a user response to a trial within an experiment object. This class
- * provides accessor methods for all user response properties. Also note that this class
- * extends the Parcelable interface, so its instances can be passed between activities.
+ * This class gives access to the user response to a single trial within an experiment object. It
+ * provides accessor methods for all user response properties, which read and write the columns of
+ * the ResponseTable of the experiment, so a response holds no data of its own. Timestamps are
+ * given in session time, i.e. in nanoseconds since the start of the session as measured by the
+ * SessionClock of the experiment.
  */
-public class UserResponse implements Parcelable {
-    public static final Parcelable.Creator<UserResponse> CREATOR = new Parcelable.Creator<UserResponse>() {
-        @Override
-        public UserResponse createFromParcel(Parcel in) {
-            return new UserResponse(in);
-        }
-
-        @Override
-        public UserResponse[] newArray(int size) {
-            return new UserResponse[size];
-        }
-    };
-
-    private double stimulusStarted;
-    private double stimulusFelt;
-    private int temperatureFelt;
-    private int comfortLevel;
-    private int arousal;
-    private int valence;
+public class UserResponse {
+    private final ResponseTable table;
+    private final int trial;
 
     /**
-     * Construct a new UserResponse object from an existing Parcel object.
+     * Construct a new accessor for the response to the given trial.
      *
-     * @param in Parcel object to construct response from
+     * @param table Table holding the responses
+     * @param trial Index of the trial
      */
-    private UserResponse(Parcel in) {
-        this.stimulusStarted = in.readDouble();
-        this.stimulusFelt = in.readDouble();
-        this.temperatureFelt = in.readInt();
-        this.comfortLevel = in.readInt();
-        this.arousal = in.readInt();
-        this.valence = in.readInt();
+    UserResponse(ResponseTable table, int trial) {
+        this.table = table;
+        this.trial = trial;
     }
 
     /**
-     * Default constructor which initialises all members to their default values.
-     */
-    public UserResponse() {
+     * Gets the timestamp a stimulus has started.
+     *
+     * @return Session time in nanoseconds when the stimulus started, or -1 if not recorded
+     **/
+    public long getStimulusStarted() {
+        return table.stimulusStarted[trial];
     }
 
     /**
-     * Write the object to a parcel.
+     * Sets the timestamp a stimulus has started.
      *
-     * @param dest Destination parcel
-     * @param flags Flags, ignored
-     */
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeDouble(stimulusStarted);
-        dest.writeDouble(stimulusFelt);
-        dest.writeInt(temperatureFelt);
-        dest.writeInt(comfortLevel);
-        dest.writeInt(arousal);
-        dest.writeInt(valence);
-    }
-
-    @Override
-    public int describeContents() {
-        return 0;
+     * @param stimulusStarted Session time in nanoseconds when the stimulus started
+     **/
+    public void setStimulusStarted(long stimulusStarted) {
+        table.stimulusStarted[trial] = stimulusStarted;
     }
 
     /**
-     * Gets the timestamp a stimulus has started.
+     * Gets the timestamp a stimulus was felt.
      *
-     * @return Time when the stimulus started
+     * @return Session time in nanoseconds when the stimulus was felt, or -1 if not recorded
      **/
-    public double getStimulusStarted() {
-        return stimulusStarted;
+    public long getStimulusFelt() {
+        return table.stimulusFelt[trial];
     }
 
     /**
-     * Sets the timestamp a stimulus has started.
+     * Sets the timestamp a stimulus was felt.
      *
-     * @param stimulusStarted Time when the stimulus started
+     * @param stimulusFelt Session time in nanoseconds when the stimulus was felt
      **/
-    public void setStimulusStarted(double stimulusStarted) {
-        this.stimulusStarted = stimulusStarted;
+    public void setStimulusFelt(long stimulusFelt) {
+        table.stimulusFelt[trial] = stimulusFelt;
     }
 
     /**
-     * Gets the timestamp a stimulus was felt.
+     * Gets the timestamp the audio clip of the trial started playing. With the PCM audio engine
+     * this is the time the first frame was presented by the audio output, otherwise the time
+     * playback was started.
      *
-     * @return Time when the stimulus was felt
+     * @return Session time in nanoseconds when the clip started, or -1 if not recorded
      **/
-    public double getStimulusFelt() {
-        return stimulusFelt;
+    public long getAudioOnset() {
+        return table.audioOnset[trial];
     }
 
     /**
-     * Sets the timestamp a stimulus was felt.
+     * Sets the timestamp the audio clip of the trial started playing.
      *
-     * @param stimulusFelt Time when the stimulus was felt
+     * @param audioOnset Session time in nanoseconds when the clip started
      **/
-    public void setStimulusFelt(double stimulusFelt) {
-        this.stimulusFelt = stimulusFelt;
+    public void setAudioOnset(long audioOnset) {
+        table.audioOnset[trial] = audioOnset;
     }
 
     /**
@@ -111,7 +84,7 @@ public class UserResponse implements Parcelable {
      * @return The temperature felt by the user
      */
     public int getTemperatureFelt() {
-        return temperatureFelt;
+        return table.temperatureFelt[trial];
     }
 
     /**
@@ -120,7 +93,7 @@ public class UserResponse implements Parcelable {
      * @param temperatureFelt The temperature felt by the user
      */
     public void setTemperatureFelt(int temperatureFelt) {
-        this.temperatureFelt = temperatureFelt;
+        table.temperatureFelt[trial] = temperatureFelt;
     }
 
     /**
@@ -129,7 +102,7 @@ public class UserResponse implements Parcelable {
      * @return The comfort level felt by the user
      */
     public int getComfortLevel() {
-        return comfortLevel;
+        return table.comfortLevel[trial];
     }
 
     /**
@@ -138,7 +111,7 @@ public class UserResponse implements Parcelable {
      * @param comfortLevel The comfort level felt by the user
      */
     public void setComfortLevel(int comfortLevel) {
-        this.comfortLevel = comfortLevel;
+        table.comfortLevel[trial] = comfortLevel;
     }
 
     /**
@@ -147,7 +120,7 @@ public class UserResponse implements Parcelable {
      * @return The arousal felt
      */
     public int getArousal() {
-        return arousal;
+        return table.arousal[trial];
     }
 
     /**
@@ -156,7 +129,7 @@ public class UserResponse implements Parcelable {
      * @param arousal The arousal felt
      */
     public void setArousal(int arousal) {
-        this.arousal = arousal;
+        table.arousal[trial] = arousal;
     }
 
     /**
@@ -165,7 +138,7 @@ public class UserResponse implements Parcelable {
      * @return The valence felt
      */
     public int getValence() {
-        return valence;
+        return table.valence[trial];
     }
 
     /**
@@ -174,6 +147,6 @@ public class UserResponse implements Parcelable {
      * @param valence The valence felt
      */
     public void setValence(int valence) {
-        this.valence = valence;
+        table.valence[trial] = valence;
     }
 }
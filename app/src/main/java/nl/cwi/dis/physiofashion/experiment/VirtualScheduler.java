@@ -0,0 +1,92 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import java.util.PriorityQueue;
+
+/**
+ * Scheduler with a virtual clock, which only advances when told to. Tasks run on the thread which
+ * advances the clock, in the order of their due times and, for tasks due at the same time, in the
+ * order they were scheduled. This makes runs driven by the scheduler reproducible and allows long
+ * protocols to be run in a fraction of their real duration.
+ */
+public class VirtualScheduler implements Scheduler {
+    /**
+     * A scheduled task together with its due time.
+     */
+    private static class Task implements Comparable<Task> {
+        final long dueNs;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long dueNs, long sequence, Runnable runnable) {
+            this.dueNs = dueNs;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueNs != other.dueNs) {
+                return Long.compare(dueNs, other.dueNs);
+            }
+
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Task> queue;
+    private long now;
+    private long nextSequence;
+
+    /**
+     * Initialises a new scheduler whose clock starts at zero.
+     */
+    public VirtualScheduler() {
+        this.queue = new PriorityQueue<>();
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        queue.add(new Task(now + Math.max(0, delayMs) * 1_000_000, nextSequence++, task));
+    }
+
+    /**
+     * Advances the clock by the given time, running all tasks which become due on the way. The
+     * clock is set to the due time of every task before it runs, so tasks observe the time they
+     * were scheduled for. Tasks scheduled by other tasks run as well if they fall within the
+     * interval.
+     *
+     * @param ms Time to advance in milliseconds
+     */
+    public void advanceBy(long ms) {
+        long target = now + ms * 1_000_000;
+
+        while (!queue.isEmpty() && queue.peek().dueNs <= target) {
+            Task task = queue.poll();
+            now = task.dueNs;
+            task.runnable.run();
+        }
+
+        now = target;
+    }
+
+    /**
+     * Runs all tasks which are due at the current time without advancing the clock.
+     */
+    public void runDue() {
+        this.advanceBy(0);
+    }
+
+    /**
+     * Get the number of tasks waiting to be run.
+     *
+     * @return Number of pending tasks
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+}
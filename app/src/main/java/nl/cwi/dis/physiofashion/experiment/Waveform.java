@@ -0,0 +1,292 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import nl.cwi.dis.physiofashion.device.CommandSchedule;
+
+/**
+ * This class describes a setpoint trajectory for a trial as a list of keyframes. Each keyframe
+ * holds a time in seconds from the start of the stimulus and a temperature difference from
+ * baseline in degrees, which may be fractional. Between keyframes the temperature is interpolated
+ * linearly. Two keyframes at the same time describe a step. Ramps, pulse trains and sinusoids are
+ * converted to keyframes when they are created. Before a trial is run, the waveform is compiled
+ * into a CommandSchedule with a fixed time step. Also note that this class extends the Parcelable
+ * interface, so its instances can be passed between activities.
+ */
+public class Waveform implements Parcelable {
+    public static final double DEFAULT_STEP = 0.25;
+    private static final double SETPOINT_RESOLUTION = 0.01;
+
+    public static final Parcelable.Creator<Waveform> CREATOR = new Parcelable.Creator<Waveform>() {
+        @Override
+        public Waveform createFromParcel(Parcel in) {
+            return new Waveform(in);
+        }
+
+        @Override
+        public Waveform[] newArray(int size) {
+            return new Waveform[size];
+        }
+    };
+
+    private double[] times;
+    private double[] deltas;
+    private double step;
+
+    /**
+     * Construct a new Waveform object from an existing Parcel object.
+     *
+     * @param in Parcel object to construct waveform from
+     */
+    private Waveform(Parcel in) {
+        this.times = in.createDoubleArray();
+        this.deltas = in.createDoubleArray();
+        this.step = in.readDouble();
+    }
+
+    /**
+     * Initialise new waveform from keyframes. Keyframe times need to be non-decreasing.
+     *
+     * @param times Keyframe times in seconds from the start of the stimulus
+     * @param deltas Temperature differences from baseline at the keyframes
+     * @param step Time step in seconds used when compiling the waveform
+     */
+    public Waveform(double[] times, double[] deltas, double step) {
+        if (times.length != deltas.length || times.length == 0) {
+            throw new IllegalArgumentException("Waveform needs the same non-zero number of times and deltas");
+        }
+
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] < times[i - 1]) {
+                throw new IllegalArgumentException("Keyframe times need to be non-decreasing");
+            }
+        }
+
+        this.times = times;
+        this.deltas = deltas;
+        this.step = (step > 0) ? step : DEFAULT_STEP;
+    }
+
+    /**
+     * Creates a waveform which ramps linearly from baseline to the given delta and holds it.
+     *
+     * @param delta Temperature difference from baseline at the end of the ramp
+     * @param duration Duration of the ramp in seconds
+     * @param step Time step in seconds used when compiling the waveform
+     * @return The waveform
+     */
+    public static Waveform ramp(double delta, double duration, double step) {
+        return new Waveform(new double[] { 0, duration }, new double[] { 0, delta }, step);
+    }
+
+    /**
+     * Creates a train of rectangular pulses, each holding the given delta for `width` seconds and
+     * returning to baseline for the rest of the period.
+     *
+     * @param delta Temperature difference from baseline during a pulse
+     * @param width Duration of a pulse in seconds
+     * @param period Time between the starts of two pulses in seconds
+     * @param count Number of pulses
+     * @param step Time step in seconds used when compiling the waveform
+     * @return The waveform
+     */
+    public static Waveform pulses(double delta, double width, double period, int count, double step) {
+        ArrayList<double[]> keyframes = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            double start = i * period;
+
+            keyframes.add(new double[] { start, 0 });
+            keyframes.add(new double[] { start, delta });
+            keyframes.add(new double[] { start + width, delta });
+            keyframes.add(new double[] { start + width, 0 });
+        }
+
+        return fromKeyframes(keyframes, step);
+    }
+
+    /**
+     * Creates a sinusoid around the given offset from baseline. The sinusoid is sampled with the
+     * given time step.
+     *
+     * @param offset Temperature difference from baseline around which the sinusoid oscillates
+     * @param amplitude Amplitude of the sinusoid in degrees
+     * @param period Period of the sinusoid in seconds
+     * @param duration Duration of the waveform in seconds
+     * @param step Time step in seconds used for sampling and compiling the waveform
+     * @return The waveform
+     */
+    public static Waveform sine(double offset, double amplitude, double period, double duration, double step) {
+        ArrayList<double[]> keyframes = new ArrayList<>();
+        double sampleStep = (step > 0) ? step : DEFAULT_STEP;
+        int samples = (int) Math.ceil(duration / sampleStep);
+
+        for (int i = 0; i < samples; i++) {
+            double t = i * sampleStep;
+            keyframes.add(new double[] { t, offset + amplitude * Math.sin(2 * Math.PI * t / period) });
+        }
+        keyframes.add(new double[] { duration, offset + amplitude * Math.sin(2 * Math.PI * duration / period) });
+
+        return fromKeyframes(keyframes, step);
+    }
+
+    /**
+     * Creates a waveform from a list of time/delta pairs.
+     *
+     * @param keyframes List of keyframes, each an array holding time and delta
+     * @param step Time step in seconds used when compiling the waveform
+     * @return The waveform
+     */
+    static Waveform fromKeyframes(ArrayList<double[]> keyframes, double step) {
+        double[] times = new double[keyframes.size()];
+        double[] deltas = new double[keyframes.size()];
+
+        for (int i = 0; i < keyframes.size(); i++) {
+            times[i] = keyframes.get(i)[0];
+            deltas[i] = keyframes.get(i)[1];
+        }
+
+        return new Waveform(times, deltas, step);
+    }
+
+    /**
+     * Write the object to a parcel.
+     *
+     * @param dest Destination parcel
+     * @param flags Flags, ignored
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeDoubleArray(times);
+        dest.writeDoubleArray(deltas);
+        dest.writeDouble(step);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Write the object to a snapshot of the experiment it belongs to.
+     *
+     * @param out Destination of the snapshot
+     * @throws IOException If the snapshot could not be written
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        SnapshotIO.writeDoubles(out, times);
+        SnapshotIO.writeDoubles(out, deltas);
+        out.writeDouble(step);
+    }
+
+    /**
+     * Read an object written by `writeSnapshot()`.
+     *
+     * @param in Source of the snapshot
+     * @return The waveform
+     * @throws IOException If the snapshot could not be read
+     */
+    public static Waveform readSnapshot(DataInput in) throws IOException {
+        return new Waveform(SnapshotIO.readDoubles(in), SnapshotIO.readDoubles(in), in.readDouble());
+    }
+
+    /**
+     * Get the duration of the waveform, i.e. the time of the last keyframe.
+     *
+     * @return Duration in seconds
+     */
+    public double getDuration() {
+        return times[times.length - 1];
+    }
+
+    /**
+     * Returns the temperature difference from baseline at the given time. Steps are
+     * right-continuous, i.e. at the time of a step the value after the step is returned.
+     *
+     * @param t Time in seconds from the start of the stimulus
+     * @return Interpolated temperature difference
+     */
+    public double getDelta(double t) {
+        // Hold the first value before the first keyframe
+        if (t < times[0]) {
+            return deltas[0];
+        }
+
+        // Find last keyframe at or before the given time
+        int i = 0;
+        while (i + 1 < times.length && times[i + 1] <= t) {
+            i++;
+        }
+
+        // Hold the last value after the last keyframe
+        if (i == times.length - 1) {
+            return deltas[i];
+        }
+
+        double fraction = (t - times[i]) / (times[i + 1] - times[i]);
+        return deltas[i] + fraction * (deltas[i + 1] - deltas[i]);
+    }
+
+    /**
+     * Compiles the waveform into a schedule of setpoint commands. The waveform is evaluated at
+     * every time step as well as at every keyframe, so steps are not missed. The delta is added to
+     * the baseline in the given direction, i.e. 1 for warming and -1 for cooling. Setpoints are
+     * rounded to hundredths of a degree and commands which would not change the setpoint are left
+     * out.
+     *
+     * @param baselineTemp The baseline temperature
+     * @param direction 1 for warming, -1 for cooling
+     * @return The compiled command schedule
+     */
+    public CommandSchedule compile(double baselineTemp, int direction) {
+        // Collect all evaluation times in order, merging the time grid with the keyframe times
+        ArrayList<Double> evaluationTimes = new ArrayList<>();
+        int keyframe = 0;
+        int steps = (int) Math.floor(this.getDuration() / step + 1e-9);
+
+        for (int s = 0; s <= steps; s++) {
+            double gridTime = s * step;
+
+            while (keyframe < times.length && times[keyframe] < gridTime) {
+                evaluationTimes.add(times[keyframe++]);
+            }
+
+            evaluationTimes.add(gridTime);
+        }
+
+        while (keyframe < times.length) {
+            evaluationTimes.add(times[keyframe++]);
+        }
+
+        // Evaluate waveform and drop commands which would not change the setpoint
+        long[] offsets = new long[evaluationTimes.size()];
+        float[] setpoints = new float[evaluationTimes.size()];
+        int size = 0;
+
+        for (double t : evaluationTimes) {
+            double setpoint = baselineTemp + direction * this.getDelta(t);
+            setpoint = Math.round(setpoint / SETPOINT_RESOLUTION) * SETPOINT_RESOLUTION;
+
+            if (size > 0 && Math.abs(setpoints[size - 1] - setpoint) < SETPOINT_RESOLUTION / 2) {
+                continue;
+            }
+
+            offsets[size] = Math.round(t * 1e9);
+            setpoints[size] = (float) setpoint;
+            size++;
+        }
+
+        long[] finalOffsets = new long[size];
+        float[] finalSetpoints = new float[size];
+        System.arraycopy(offsets, 0, finalOffsets, 0, size);
+        System.arraycopy(setpoints, 0, finalSetpoints, 0, size);
+
+        return new CommandSchedule(finalOffsets, finalSetpoints);
+    }
+}
@@ -0,0 +1,388 @@
+package nl.cwi.dis.physiofashion.session;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import nl.cwi.dis.physiofashion.experiment.ResponseTable;
+import nl.cwi.dis.physiofashion.experiment.UserResponse;
+
+/**
+ * This class persists the response to every trial as soon as it has been given, so that a session
+ * survives a crash of the app or of the tablet. Responses are appended to a journal file as
+ * records of fixed size, each of which carries the index of its trial and a CRC32 checksum.
+ *
+ * Records are encoded on the calling thread and written on a background thread, so appending a
+ * record costs the caller well below a millisecond. A written record is in the page cache of the
+ * system right away and therefore survives a crash of the app; the file is synced to storage in
+ * batches, at most `SYNC_DELAY_MS` after a record was written, so that it also survives a loss of
+ * power. When the journal is read back, a torn or corrupted record ends the journal, and a later
+ * record for the same trial replaces an earlier one.
+ */
+public class ResponseJournal {
+    private static final String LOG_TAG = "ResponseJournal";
+
+    private static final int MAGIC = 0x50464a31;
+    private static final int HEADER_SIZE = 8;
+    static final int RECORD_SIZE = 48;
+    static final long SYNC_DELAY_MS = 500;
+
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private final CRC32 crc;
+
+    private FileChannel channel;
+    private ScheduledFuture<?> pendingSync;
+
+    private int records;
+    private int syncs;
+    private long maxAppendNs;
+
+    /**
+     * Opens the journal in the given file for appending, creating the file if it does not exist.
+     *
+     * @param file The journal file
+     * @param executor Executor with a single thread on which records are written and synced
+     */
+    ResponseJournal(File file, ScheduledExecutorService executor) {
+        this.file = file;
+        this.executor = executor;
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Get the file the journal is written to.
+     *
+     * @return The journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends the response to the given trial to the journal.
+     *
+     * @param responses Table holding the responses of the session
+     * @param trial Index of the trial
+     */
+    public void append(ResponseTable responses, int trial) {
+        long startedAt = SystemClock.elapsedRealtimeNanos();
+        ByteBuffer record = this.encode(trial, responses.getResponse(trial));
+
+        executor.execute(() -> {
+            try {
+                this.write(record);
+            } catch (IOException ioe) {
+                Log.e(LOG_TAG, "Could not append trial " + trial + " to " + file + ": " + ioe);
+            }
+        });
+
+        synchronized (this) {
+            records++;
+            maxAppendNs = Math.max(maxAppendNs, SystemClock.elapsedRealtimeNanos() - startedAt);
+        }
+    }
+
+    /**
+     * Writes and syncs all pending records and closes the file. Blocks until the journal has been
+     * closed.
+     */
+    public void close() {
+        executor.execute(() -> {
+            try {
+                if (channel != null) {
+                    this.sync();
+                    channel.close();
+                    channel = null;
+                }
+            } catch (IOException ioe) {
+                Log.e(LOG_TAG, "Could not close " + file + ": " + ioe);
+            }
+        });
+
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Log.w(LOG_TAG, "Interrupted while closing " + file);
+        }
+    }
+
+    /**
+     * Logs the number of appended records, the number of syncs and the largest cost of an append
+     * to the caller.
+     */
+    public synchronized void logStatistics() {
+        Log.d(LOG_TAG, String.format(
+                Locale.ENGLISH,
+                "%d records, %d syncs, max append %.3fms",
+                records,
+                syncs,
+                maxAppendNs / 1e6
+        ));
+    }
+
+    /**
+     * Reads the journal in the given file and applies its records to the given table. Reading
+     * stops at the first record which is incomplete, fails its checksum or refers to a trial
+     * beyond the table.
+     *
+     * @param file The journal file
+     * @param responses Table the responses are written to
+     * @return Indices of the trials with a response in the journal, or `null` if the file is not
+     * a journal
+     * @throws IOException If the file could not be read
+     */
+    public static BitSet replay(File file, ResponseTable responses) throws IOException {
+        BitSet applied = new BitSet(responses.size());
+
+        return read(file, responses, applied) < 0 ? null : applied;
+    }
+
+    /**
+     * Replays the journal in the given file like `replay()`, and then cuts off everything after
+     * the last valid record, such as a record torn by a loss of power. Records appended when the
+     * session continues thus directly follow the records that can be read back. A file which is
+     * not a journal is emptied, so that a new journal is started in its place.
+     *
+     * @param file The journal file
+     * @param responses Table the responses are written to
+     * @return Indices of the trials with a response in the journal, or `null` if the file is not
+     * a journal
+     * @throws IOException If the file could not be read or truncated
+     */
+    public static BitSet recover(File file, ResponseTable responses) throws IOException {
+        BitSet applied = new BitSet(responses.size());
+        long validLength = read(file, responses, applied);
+
+        if (validLength != file.length()) {
+            Log.w(LOG_TAG, "Truncating journal " + file + " from " + file.length() + " to " + Math.max(validLength, 0) + " bytes");
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(Math.max(validLength, 0));
+                raf.getFD().sync();
+            }
+        }
+
+        return validLength < 0 ? null : applied;
+    }
+
+    /**
+     * Reads the responses in the journal in the given file without the table of the experiment
+     * they belong to, e.g. because the snapshot of the session cannot be read. The returned table
+     * is just large enough for the highest trial in the journal.
+     *
+     * @param file The journal file
+     * @param applied Set receiving the indices of the trials with a response in the journal
+     * @return The responses, or `null` if the file is not a journal
+     * @throws IOException If the file could not be read
+     */
+    public static ResponseTable readResponses(File file, BitSet applied) throws IOException {
+        byte[] data = readFile(file);
+
+        if (!isJournal(data)) {
+            Log.e(LOG_TAG, "Not a response journal: " + file);
+            return null;
+        }
+
+        // Find the highest trial among the valid records first, so the table can be sized to it
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        int trialCount = 0;
+
+        for (int offset = HEADER_SIZE; offset + RECORD_SIZE <= data.length; offset += RECORD_SIZE) {
+            crc.reset();
+            crc.update(data, offset, RECORD_SIZE - 4);
+
+            int trial = buffer.getInt(offset);
+            if (buffer.getInt(offset + RECORD_SIZE - 4) != (int) crc.getValue() || trial < 0) {
+                break;
+            }
+
+            trialCount = Math.max(trialCount, trial + 1);
+        }
+
+        ResponseTable responses = new ResponseTable(trialCount);
+        read(file, data, responses, applied);
+
+        return responses;
+    }
+
+    /**
+     * Reads the journal in the given file and applies its records to the given table, up to the
+     * first record which is incomplete, fails its checksum or refers to a trial beyond the table.
+     *
+     * @return Length of the valid part of the journal in bytes, or -1 if the file is not a journal
+     */
+    private static long read(File file, ResponseTable responses, BitSet applied) throws IOException {
+        return read(file, readFile(file), responses, applied);
+    }
+
+    /**
+     * Applies the records of the journal with the given contents to the given table, like
+     * `read(File, ResponseTable, BitSet)`. The file is only used in log messages.
+     */
+    private static long read(File file, byte[] data, ResponseTable responses, BitSet applied) {
+        if (!isJournal(data)) {
+            Log.e(LOG_TAG, "Not a response journal: " + file);
+            return -1;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(HEADER_SIZE);
+
+        CRC32 crc = new CRC32();
+
+        while (buffer.remaining() >= RECORD_SIZE) {
+            int offset = buffer.position();
+
+            crc.reset();
+            crc.update(data, offset, RECORD_SIZE - 4);
+
+            int trial = buffer.getInt();
+            long stimulusStarted = buffer.getLong();
+            long stimulusFelt = buffer.getLong();
+            long audioOnset = buffer.getLong();
+            int temperatureFelt = buffer.getInt();
+            int comfortLevel = buffer.getInt();
+            int arousal = buffer.getInt();
+            int valence = buffer.getInt();
+            int checksum = buffer.getInt();
+
+            if (checksum != (int) crc.getValue() || trial < 0 || trial >= responses.size()) {
+                Log.w(LOG_TAG, "Journal " + file + " ends with a corrupted record at " + offset);
+                return offset;
+            }
+
+            UserResponse response = responses.getResponse(trial);
+            response.setStimulusStarted(stimulusStarted);
+            response.setStimulusFelt(stimulusFelt);
+            response.setAudioOnset(audioOnset);
+            response.setTemperatureFelt(temperatureFelt);
+            response.setComfortLevel(comfortLevel);
+            response.setArousal(arousal);
+            response.setValence(valence);
+
+            applied.set(trial);
+        }
+
+        if (buffer.hasRemaining()) {
+            Log.w(LOG_TAG, "Journal " + file + " ends with an incomplete record");
+        }
+
+        return buffer.position();
+    }
+
+    /**
+     * Reads the entire contents of the given file.
+     */
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+
+        return data;
+    }
+
+    /**
+     * Returns whether the given data starts with the header of a journal.
+     */
+    private static boolean isJournal(byte[] data) {
+        ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+        return data.length >= HEADER_SIZE && header.getInt() == MAGIC && header.getInt() == RECORD_SIZE;
+    }
+
+    /**
+     * Encodes the given response as a record with a trailing checksum.
+     */
+    private synchronized ByteBuffer encode(int trial, UserResponse response) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        record.putInt(trial)
+                .putLong(response.getStimulusStarted())
+                .putLong(response.getStimulusFelt())
+                .putLong(response.getAudioOnset())
+                .putInt(response.getTemperatureFelt())
+                .putInt(response.getComfortLevel())
+                .putInt(response.getArousal())
+                .putInt(response.getValence());
+
+        crc.reset();
+        crc.update(record.array(), 0, RECORD_SIZE - 4);
+        record.putInt((int) crc.getValue());
+
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Writes the given record to the end of the file and schedules a sync, unless one is pending
+     * already. Runs on the journal thread.
+     */
+    private void write(ByteBuffer record) throws IOException {
+        if (channel == null) {
+            channel = new FileOutputStream(file, true).getChannel();
+
+            // A new journal starts with a header identifying the format
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(RECORD_SIZE).flip();
+
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+        }
+
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+
+        if (pendingSync == null) {
+            pendingSync = executor.schedule(() -> {
+                try {
+                    this.sync();
+                } catch (IOException ioe) {
+                    Log.e(LOG_TAG, "Could not sync " + file + ": " + ioe);
+                }
+            }, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Syncs the written records to storage. Runs on the journal thread.
+     */
+    private void sync() throws IOException {
+        if (pendingSync != null) {
+            pendingSync.cancel(false);
+            pendingSync = null;
+        }
+
+        if (channel != null) {
+            channel.force(false);
+
+            synchronized (this) {
+                syncs++;
+            }
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package nl.cwi.dis.physiofashion.session;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nl.cwi.dis.physiofashion.experiment.Experiment;
+import nl.cwi.dis.physiofashion.experiment.ResponseTable;
+import nl.cwi.dis.physiofashion.experiment.UserResponse;
+
+/**
+ * This class holds the experiments of all running sessions for the lifetime of the process, so
+ * that activities only pass the ID of a session in their intents rather than the entire
+ * experiment with all of its trials and responses. The activities of a session share the same
+ * Experiment instance and modify it in place.
+ *
+ * Whenever an activity reaches a checkpoint, the experiment of the session is copied on the calling
+ * thread, and a snapshot of the copy is encoded and written to the app's private storage in the
+ * background. In addition, the response to
+ * every trial is appended to the ResponseJournal of the session as soon as it has been given. If
+ * the process is killed while the app is in the background, the session is restored from its
+ * snapshot and journal the next time it is requested. There is a single, process-wide store.
+ */
+public class SessionStore {
+    private static final String LOG_TAG = "SessionStore";
+    public static final String EXTRA_SESSION_ID = "sessionId";
+
+    /**
+     * Type definition for the encoding of experiments into snapshots.
+     */
+    public interface Codec {
+        byte[] encode(Experiment experiment) throws IOException;
+        Experiment decode(byte[] data) throws IOException;
+    }
+
+    /**
+     * Encodes experiments in the snapshot format of `Experiment.writeSnapshot()`, preceded by a
+     * header with a magic number and the version of the format. Unlike parcels, which may change
+     * with every version of Android or of the app, the format only changes along with its version,
+     * so a session can still be restored after the app has been updated. Snapshots of another
+     * version are rejected rather than misread.
+     */
+    private static class SnapshotCodec implements Codec {
+        private static final int MAGIC = 0x50465331;
+        private static final int VERSION = 1;
+
+        @Override
+        public byte[] encode(Experiment experiment) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                experiment.writeSnapshot(out);
+            }
+
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Experiment decode(byte[] data) throws IOException {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a session snapshot");
+                }
+
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+
+                Experiment experiment = Experiment.readSnapshot(in);
+
+                if (in.read() != -1) {
+                    throw new IOException("Unexpected data at the end of the snapshot");
+                }
+
+                return experiment;
+            }
+        }
+    }
+
+    private static SessionStore instance;
+
+    private final File snapshotDir;
+    private final Codec codec;
+    private final ExecutorService executor;
+    private final HashMap<String, Experiment> sessions;
+    private final HashMap<String, ResponseJournal> journals;
+
+    /**
+     * Initialises a new store keeping its snapshots in the given directory.
+     *
+     * @param snapshotDir Directory the snapshots are written to
+     * @param codec Encoding of the snapshots
+     * @param executor Executor with a single thread on which snapshots are written
+     */
+    SessionStore(File snapshotDir, Codec codec, ExecutorService executor) {
+        this.snapshotDir = snapshotDir;
+        this.codec = codec;
+        this.executor = executor;
+        this.sessions = new HashMap<>();
+        this.journals = new HashMap<>();
+    }
+
+    /**
+     * Returns the shared store, creating it if it does not exist yet.
+     *
+     * @param context Context used to locate the app's private storage
+     * @return The shared store
+     */
+    public static synchronized SessionStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new SessionStore(
+                    new File(context.getApplicationContext().getFilesDir(), "sessions"),
+                    new SnapshotCodec(),
+                    Executors.newSingleThreadExecutor()
+            );
+        }
+
+        return instance;
+    }
+
+    /**
+     * Adds the given experiment as a new session and writes its first snapshot.
+     *
+     * @param experiment The experiment of the session
+     * @return ID of the new session
+     */
+    public String open(Experiment experiment) {
+        String sessionId = UUID.randomUUID().toString();
+
+        synchronized (this) {
+            sessions.put(sessionId, experiment);
+        }
+
+        Log.d(LOG_TAG, "Opened session " + sessionId + " for participant " + experiment.getParticipantId());
+        this.checkpoint(sessionId);
+
+        return sessionId;
+    }
+
+    /**
+     * Returns the experiment of the session with the given ID. If the session is not held in
+     * memory, e.g. because the process has been restarted, it is restored from its snapshot.
+     *
+     * @param sessionId ID of the session
+     * @return The experiment, or `null` if there is no such session
+     */
+    public synchronized Experiment get(String sessionId) {
+        if (sessionId == null) {
+            return null;
+        }
+
+        Experiment experiment = sessions.get(sessionId);
+
+        if (experiment == null) {
+            experiment = this.restore(sessionId, new BitSet());
+
+            if (experiment != null) {
+                sessions.put(sessionId, experiment);
+            }
+        }
+
+        return experiment;
+    }
+
+    /**
+     * Writes a snapshot of the session with the given ID. The experiment is copied right away,
+     * so it may be modified again as soon as this method returns, and the copy is encoded and
+     * written in the background.
+     *
+     * @param sessionId ID of the session
+     */
+    public void checkpoint(String sessionId) {
+        Experiment experiment;
+
+        synchronized (this) {
+            experiment = sessions.get(sessionId);
+        }
+
+        if (experiment == null) {
+            Log.w(LOG_TAG, "Cannot checkpoint unknown session " + sessionId);
+            return;
+        }
+
+        Experiment copy = experiment.copy();
+
+        executor.submit(() -> {
+            try {
+                this.writeSnapshot(sessionId, codec.encode(copy));
+            } catch (IOException ioe) {
+                Log.e(LOG_TAG, "Could not write snapshot of session " + sessionId + ": " + ioe);
+            }
+        });
+    }
+
+    /**
+     * Persists the response to the given trial of the session with the given ID, once the
+     * participant has completed it, by appending it to the journal of the session.
+     *
+     * @param sessionId ID of the session
+     * @param trial Index of the completed trial
+     */
+    public void commitTrial(String sessionId, int trial) {
+        Experiment experiment = this.get(sessionId);
+
+        if (experiment == null) {
+            Log.w(LOG_TAG, "Cannot commit trial of unknown session " + sessionId);
+            return;
+        }
+
+        this.getJournal(sessionId).append(experiment.getResponses(), trial);
+    }
+
+    /**
+     * Closes the journal of the session with the given ID and reads the responses back from it,
+     * so that the results of the session are produced from what has been persisted.
+     *
+     * @param sessionId ID of the session
+     * @return Number of trials with a response in the journal, or -1 if it could not be read
+     */
+    public int replayJournal(String sessionId) {
+        Experiment experiment = this.get(sessionId);
+        ResponseJournal journal;
+
+        synchronized (this) {
+            journal = journals.remove(sessionId);
+        }
+
+        if (journal != null) {
+            journal.logStatistics();
+            journal.close();
+        }
+
+        File file = this.getJournalFile(sessionId);
+
+        if (experiment == null || !file.exists()) {
+            return -1;
+        }
+
+        try {
+            BitSet completed = ResponseJournal.replay(file, experiment.getResponses());
+            return completed == null ? -1 : completed.cardinality();
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, "Could not read journal of session " + sessionId + ": " + ioe);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the ID of the most recent session which has not been finished, if its snapshot is
+     * still present from an earlier run of the app, e.g. one that crashed or was killed.
+     *
+     * @return ID of the session, or `null` if there is none
+     */
+    public synchronized String findUnfinished() {
+        File[] snapshots = snapshotDir.listFiles((dir, name) -> name.endsWith(".snapshot"));
+        File latest = null;
+
+        if (snapshots == null) {
+            return null;
+        }
+
+        for (File snapshot : snapshots) {
+            String sessionId = snapshot.getName().replace(".snapshot", "");
+
+            if (!sessions.containsKey(sessionId) && (latest == null || snapshot.lastModified() > latest.lastModified())) {
+                latest = snapshot;
+            }
+        }
+
+        return latest == null ? null : latest.getName().replace(".snapshot", "");
+    }
+
+    /**
+     * Rebuilds the experiment of an unfinished session from its snapshot and journal, and moves
+     * it to the first trial which has no response in the journal. The session is held by the
+     * store again afterwards, so that activities can continue it.
+     *
+     * @param sessionId ID of the session
+     * @return The experiment, or `null` if the session could not be restored
+     */
+    public synchronized Experiment resume(String sessionId) {
+        BitSet completed = new BitSet();
+        Experiment experiment = this.restore(sessionId, completed);
+
+        if (experiment == null) {
+            return null;
+        }
+
+        experiment.resumeAt(completed.nextClearBit(0));
+        sessions.put(sessionId, experiment);
+
+        return experiment;
+    }
+
+    /**
+     * Removes the session with the given ID from the store and deletes its snapshot and journal.
+     * Called once the results of the session have been written.
+     *
+     * @param sessionId ID of the session
+     */
+    public void close(String sessionId) {
+        ResponseJournal journal;
+
+        synchronized (this) {
+            sessions.remove(sessionId);
+            journal = journals.remove(sessionId);
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        // Delete after any pending snapshot of the session has been written
+        executor.submit(() -> {
+            boolean deleted = this.getSnapshotFile(sessionId).delete();
+            deleted |= this.getJournalFile(sessionId).delete();
+
+            if (deleted) {
+                Log.d(LOG_TAG, "Closed session " + sessionId);
+            }
+        });
+    }
+
+    /**
+     * Moves the snapshot and journal of a session which could not be restored out of the way,
+     * without deleting them, so that the session is not offered again but can still be examined.
+     * The journal does not depend on the snapshot, so the responses in it are exported to a CSV
+     * file in the given directory, with the index of every trial that has a response.
+     *
+     * @param sessionId ID of the session
+     * @param exportDir Directory the responses are exported to
+     * @return Path of the exported responses, or `null` if there were none or they could not be
+     * written
+     */
+    public synchronized String setAside(String sessionId, File exportDir) {
+        File snapshot = this.getSnapshotFile(sessionId);
+        File journal = this.getJournalFile(sessionId);
+        File failedJournal = new File(snapshotDir, journal.getName() + ".failed");
+
+        if (!snapshot.renameTo(new File(snapshotDir, snapshot.getName() + ".failed"))) {
+            Log.e(LOG_TAG, "Could not set aside snapshot of session " + sessionId);
+        }
+
+        Log.w(LOG_TAG, "Set aside session " + sessionId + " in " + snapshotDir);
+
+        // Without a journal, no trial of the session has been completed
+        if (!journal.exists()) {
+            return null;
+        }
+
+        if (!journal.renameTo(failedJournal)) {
+            Log.e(LOG_TAG, "Could not set aside journal of session " + sessionId);
+            failedJournal = journal;
+        }
+
+        try {
+            BitSet completed = new BitSet();
+            ResponseTable responses = ResponseJournal.readResponses(failedJournal, completed);
+
+            return (responses == null || completed.isEmpty()) ? null : this.exportResponses(sessionId, responses, completed, exportDir);
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, "Could not export journal of session " + sessionId + ": " + ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given responses of the given trials to a CSV file named after the session.
+     * Timestamps are written in nanoseconds of session time.
+     */
+    private String exportResponses(String sessionId, ResponseTable responses, BitSet trials, File targetDir) throws IOException {
+        File target = new File(targetDir, sessionId + ".csv");
+
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            out.write("\"trialNum\",\"stimulusStartedNs\",\"stimulusFeltNs\",\"audioOnsetNs\",\"temperatureFelt\",\"comfortLevel\",\"arousal\",\"valence\"\n".getBytes());
+
+            for (int i = trials.nextSetBit(0); i >= 0; i = trials.nextSetBit(i + 1)) {
+                UserResponse response = responses.getResponse(i);
+
+                out.write(String.format(
+                        Locale.ENGLISH,
+                        "%d,%d,%d,%d,%d,%d,%d,%d\n",
+                        i + 1,
+                        response.getStimulusStarted(),
+                        response.getStimulusFelt(),
+                        response.getAudioOnset(),
+                        response.getTemperatureFelt(),
+                        response.getComfortLevel(),
+                        response.getArousal(),
+                        response.getValence()
+                ).getBytes());
+            }
+        }
+
+        return target.getAbsolutePath();
+    }
+
+    /**
+     * Returns the journal of the session with the given ID, opening it if necessary.
+     */
+    private synchronized ResponseJournal getJournal(String sessionId) {
+        ResponseJournal journal = journals.get(sessionId);
+
+        if (journal == null) {
+            if (!snapshotDir.exists() && !snapshotDir.mkdirs()) {
+                Log.e(LOG_TAG, "Could not create " + snapshotDir);
+            }
+
+            journal = new ResponseJournal(this.getJournalFile(sessionId), Executors.newSingleThreadScheduledExecutor());
+            journals.put(sessionId, journal);
+        }
+
+        return journal;
+    }
+
+    /**
+     * Writes the given snapshot, replacing the previous one only once it has been written
+     * completely.
+     */
+    private void writeSnapshot(String sessionId, byte[] data) throws IOException {
+        if (!snapshotDir.exists() && !snapshotDir.mkdirs()) {
+            throw new IOException("Could not create " + snapshotDir);
+        }
+
+        File target = this.getSnapshotFile(sessionId);
+        File temp = new File(snapshotDir, sessionId + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+
+        if (!temp.renameTo(target)) {
+            throw new IOException("Could not replace " + target);
+        }
+    }
+
+    /**
+     * Reads the snapshot of the session with the given ID and applies the responses from its
+     * journal, which may be more recent. The journal is cut back to its last valid record, as the
+     * session appends to it when it continues.
+     *
+     * @param sessionId ID of the session
+     * @param completed Set receiving the indices of the trials with a response in the journal
+     * @return The restored experiment, or `null` if there is no readable snapshot
+     */
+    private Experiment restore(String sessionId, BitSet completed) {
+        File file = this.getSnapshotFile(sessionId);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] data = new byte[(int) file.length()];
+            in.readFully(data);
+
+            Experiment experiment = codec.decode(data);
+            File journal = this.getJournalFile(sessionId);
+            BitSet replayed = journal.exists() ? ResponseJournal.recover(journal, experiment.getResponses()) : null;
+
+            if (replayed != null) {
+                completed.or(replayed);
+            }
+
+            Log.d(LOG_TAG, "Restored session " + sessionId + " from snapshot and " + completed.cardinality() + " trials from its journal");
+
+            return experiment;
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Could not restore session " + sessionId + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file holding the journal of the session with the given ID.
+     */
+    private File getJournalFile(String sessionId) {
+        return new File(snapshotDir, sessionId + ".journal");
+    }
+
+    /**
+     * Returns the file holding the snapshot of the session with the given ID.
+     */
+    private File getSnapshotFile(String sessionId) {
+        return new File(snapshotDir, sessionId + ".snapshot");
+    }
+}
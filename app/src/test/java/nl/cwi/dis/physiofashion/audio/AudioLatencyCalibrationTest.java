@@ -0,0 +1,66 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the latency distribution and the test tone of AudioLatencyCalibration.
+ */
+public class AudioLatencyCalibrationTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void computesDistribution() {
+        long[] latencies = new long[20];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = (20 - i) * MS;
+        }
+
+        AudioLatencyCalibration.Result result = new AudioLatencyCalibration.Result("pcm", "Tablet", latencies, 2);
+
+        assertEquals(20, result.getCount());
+        assertEquals(2, result.getFailures());
+        assertEquals(1 * MS, result.getValueAtPercentile(0));
+        assertEquals(10 * MS, result.getValueAtPercentile(0.5));
+        assertEquals(19 * MS, result.getValueAtPercentile(0.95));
+        assertEquals(20 * MS, result.getValueAtPercentile(1));
+        assertEquals(10.5 * MS, result.getMean(), 1e-6);
+        assertEquals(10.0, result.getCorrectionMs(), 1e-9);
+    }
+
+    @Test
+    public void correctionIgnoresOutliers() {
+        long[] latencies = { 30 * MS, 31 * MS, 29 * MS, 250 * MS, 30 * MS };
+        AudioLatencyCalibration.Result result = new AudioLatencyCalibration.Result("mediaplayer", "Tablet", latencies, 0);
+
+        assertEquals(30.0, result.getCorrectionMs(), 1e-9);
+        assertTrue(result.toString().startsWith("mediaplayer on Tablet: n=5 failed=0"));
+    }
+
+    @Test
+    public void emptyDistributionHasNoCorrection() {
+        AudioLatencyCalibration.Result result = new AudioLatencyCalibration.Result("pcm", "Tablet", new long[0], 20);
+
+        assertEquals(0, result.getCount());
+        assertEquals(0, result.getCorrectionMs(), 0);
+    }
+
+    @Test
+    public void toneStartsSilentAndEncodesAsWav() {
+        PcmClip tone = AudioLatencyCalibration.createTone();
+        assertEquals(0, tone.getSamples()[0]);
+        assertEquals(200, tone.getDurationMs());
+
+        byte[] wav = AudioLatencyCalibration.toWav(tone);
+        ByteBuffer buffer = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(44 + tone.getSamples().length * 2, wav.length);
+        assertEquals("RIFF", new String(wav, 0, 4));
+        assertEquals(48000, buffer.getInt(24));
+        assertEquals(tone.getSamples()[100], buffer.getShort(44 + 200));
+    }
+}
@@ -0,0 +1,37 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the conversion between frames and presentation times of PcmAudioEngine.
+ */
+public class PcmAudioEngineTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void findsFrameAtTime() {
+        // At 48 kHz, 10ms after the timestamp is 480 frames further
+        assertEquals(1480, PcmAudioEngine.frameAt(110 * MS, 1000, 100 * MS, 48000));
+        assertEquals(520, PcmAudioEngine.frameAt(90 * MS, 1000, 100 * MS, 48000));
+    }
+
+    @Test
+    public void findsTimeOfFrame() {
+        assertEquals(110 * MS, PcmAudioEngine.timeOfFrame(1480, 1000, 100 * MS, 48000));
+        assertEquals(100 * MS + 22676, PcmAudioEngine.timeOfFrame(1001, 1000, 100 * MS, 44100));
+    }
+
+    @Test
+    public void roundTripsWithinOneFrame() {
+        long stampNs = 123_456_789;
+
+        for (long timeNs = stampNs; timeNs < stampNs + 50 * MS; timeNs += 777_777) {
+            long frame = PcmAudioEngine.frameAt(timeNs, 4096, stampNs, 44100);
+            long presentedAt = PcmAudioEngine.timeOfFrame(frame, 4096, stampNs, 44100);
+
+            assertTrue(Math.abs(presentedAt - timeNs) <= 1_000_000_000L / 44100 / 2 + 1);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package nl.cwi.dis.physiofashion.audio;
+
+import android.media.MediaPlayer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for PreparedPlayerCache, using players which record when they are released.
+ */
+public class PreparedPlayerCacheTest {
+    /**
+     * Player remembering the file it was prepared for and whether it has been released.
+     */
+    private static class FakePlayer extends MediaPlayer {
+        final String path;
+        final List<String> released;
+
+        FakePlayer(String path, List<String> released) {
+            this.path = path;
+            this.released = released;
+        }
+
+        @Override
+        public void release() {
+            released.add(path);
+        }
+    }
+
+    private final List<String> prepared = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> released = Collections.synchronizedList(new ArrayList<>());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private PreparedPlayerCache createCache(int capacity) {
+        return new PreparedPlayerCache(capacity, path -> {
+            if (path.endsWith(".broken")) {
+                throw new IOException("Cannot decode " + path);
+            }
+
+            prepared.add(path);
+            return new FakePlayer(path, released);
+        }, executor);
+    }
+
+    private void drain() throws InterruptedException {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void takesPrefetchedPlayer() throws InterruptedException {
+        PreparedPlayerCache cache = this.createCache(2);
+
+        cache.prefetch("a.mp3");
+        cache.prefetch("a.mp3");
+
+        FakePlayer player = (FakePlayer) cache.take("a.mp3");
+        assertEquals("a.mp3", player.path);
+        assertNull(cache.take("a.mp3"));
+        assertEquals(0, cache.size());
+
+        drain();
+        assertEquals(Collections.singletonList("a.mp3"), prepared);
+        assertTrue(released.isEmpty());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws InterruptedException {
+        PreparedPlayerCache cache = this.createCache(2);
+
+        cache.prefetch("a.mp3");
+        cache.prefetch("b.mp3");
+
+        // Prefetching a again marks it as recently used, so b is evicted
+        cache.prefetch("a.mp3");
+        cache.prefetch("c.mp3");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.take("b.mp3"));
+        assertNotNull(cache.take("a.mp3"));
+
+        drain();
+        assertEquals(Collections.singletonList("b.mp3"), released);
+    }
+
+    @Test
+    public void releasesAllInOrder() throws InterruptedException {
+        PreparedPlayerCache cache = this.createCache(3);
+
+        cache.prefetch("a.mp3");
+        cache.prefetch("b.mp3");
+        cache.prefetch("c.mp3");
+        cache.setCapacity(2);
+        cache.releaseAll();
+
+        assertEquals(0, cache.size());
+
+        drain();
+        assertEquals("[a.mp3, b.mp3, c.mp3]", released.toString());
+    }
+
+    @Test
+    public void failedPreparationYieldsNull() throws InterruptedException {
+        PreparedPlayerCache cache = this.createCache(2);
+
+        cache.prefetch("a.broken");
+        assertNull(cache.take("a.broken"));
+
+        drain();
+        assertTrue(prepared.isEmpty());
+    }
+}
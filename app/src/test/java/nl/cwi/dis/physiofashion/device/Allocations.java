@@ -0,0 +1,50 @@
+package nl.cwi.dis.physiofashion.device;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Helper for tests which make sure that code on a hot path does not allocate, by measuring the
+ * heap memory allocated by the current thread while the code runs many times.
+ */
+final class Allocations {
+    static final int ITERATIONS = 100000;
+
+    // Allow for a few bytes of measurement overhead, but nothing per iteration
+    private static final long TOLERANCE_BYTES = 1024;
+
+    /**
+     * Type definition for one iteration of the code under test.
+     */
+    @FunctionalInterface
+    interface Iteration {
+        void run(int i);
+    }
+
+    private Allocations() {
+    }
+
+    /**
+     * Runs the given code `ITERATIONS` times to warm up, so that it is compiled and any caches are
+     * filled, and then asserts that another `ITERATIONS` runs allocate nothing.
+     *
+     * @param iteration The code under test, receiving the index of the iteration
+     */
+    static void assertNoAllocation(Iteration iteration) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            iteration.run(i);
+        }
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            iteration.run(i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < TOLERANCE_BYTES);
+    }
+}
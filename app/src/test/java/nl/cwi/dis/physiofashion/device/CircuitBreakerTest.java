@@ -0,0 +1,55 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CircuitBreaker.
+ */
+public class CircuitBreakerTest {
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        List<CircuitBreaker.State> changes = new ArrayList<>();
+        CircuitBreaker breaker = new CircuitBreaker("http://device", (hostname, state) -> changes.add(state));
+        breaker.configure(3, 60000);
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void letsSingleProbeThroughAfterOpenPeriod() {
+        CircuitBreaker breaker = new CircuitBreaker("http://device", null);
+        breaker.configure(1, 0);
+
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void backoffGrowsExponentiallyUpToMaximum() {
+        CommandPolicy policy = new CommandPolicy(5, 100, 1000, 2500, 0.95, 50, 5, 5000);
+
+        assertEquals(100, policy.getBackoff(1));
+        assertEquals(400, policy.getBackoff(3));
+        assertEquals(1000, policy.getBackoff(5));
+    }
+}
@@ -0,0 +1,86 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ClockSync, using a simulated device clock with a fixed offset and drift and network
+ * delays which are asymmetric and occasionally much longer than usual.
+ */
+public class ClockSyncTest {
+    private static final long OFFSET_NS = 5_000_000_000L;
+    private static final double DRIFT = 50e-6;
+
+    private static long deviceMicros(long localNs) {
+        return Math.round((localNs + OFFSET_NS + DRIFT * localNs) / 1000.0);
+    }
+
+    /**
+     * Sends a probe every 100ms for the given duration, starting at the given tablet time.
+     */
+    private static long probe(ClockSync clock, Random random, long startNs, long durationNs) {
+        long now = startNs;
+
+        while (now < startNs + durationNs) {
+            // Mostly 2-4ms each way, but every tenth request is queued for up to 80ms
+            long upstream = 2_000_000 + (long) (random.nextDouble() * 2_000_000);
+            long downstream = 2_000_000 + (long) (random.nextDouble() * 2_000_000);
+            if (random.nextInt(10) == 0) {
+                upstream += (long) (random.nextDouble() * 80_000_000);
+            }
+
+            clock.addProbe(now, deviceMicros(now + upstream), now + upstream + downstream);
+            now += 100_000_000L;
+        }
+
+        return now;
+    }
+
+    @Test
+    public void isNotSynchronisedWithoutProbes() {
+        ClockSync clock = new ClockSync();
+
+        assertFalse(clock.isSynchronized());
+        assertEquals(-1, clock.toLocalNanos(1000));
+    }
+
+    @Test
+    public void estimatesOffsetWithinHalfRoundTrip() {
+        ClockSync clock = new ClockSync();
+        long now = probe(clock, new Random(3), 1_000_000_000L, 3_000_000_000L);
+
+        // Over a few seconds, the drift is too small to be estimated
+        assertTrue(clock.isSynchronized());
+        assertEquals(0, clock.getDriftPpm(), 0);
+        assertTrue(clock.getUncertainty() <= 4_000_000);
+        assertEquals(now, clock.toLocalNanos(deviceMicros(now)), clock.getUncertainty() + 1_000_000);
+    }
+
+    @Test
+    public void estimatesDriftOverLongerSessions() {
+        ClockSync clock = new ClockSync();
+        long now = probe(clock, new Random(5), 1_000_000_000L, 120_000_000_000L);
+
+        assertEquals(50, clock.getDriftPpm(), 5);
+
+        // Times mapped back and forth agree with the simulated clock to well below a round trip
+        assertEquals(now, clock.toLocalNanos(deviceMicros(now)), 1_000_000);
+        assertEquals(deviceMicros(now), clock.toDeviceMicros(now), 1000);
+        assertEquals(now - 60_000_000_000L, clock.toLocalNanos(deviceMicros(now - 60_000_000_000L)), 1_000_000);
+    }
+
+    @Test
+    public void ignoresDelayedProbes() {
+        ClockSync clock = new ClockSync();
+
+        // A fast probe followed by one whose request was held up for 500ms
+        clock.addProbe(0, deviceMicros(1_000_000), 2_000_000);
+        clock.addProbe(10_000_000, deviceMicros(510_000_000), 511_000_000);
+
+        assertEquals(OFFSET_NS, clock.getOffset(1_000_000), 1_000_000);
+        assertEquals(1_000_000, clock.getUncertainty());
+    }
+}
@@ -0,0 +1,49 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for HostResolver, using hosts which resolve without a network.
+ */
+public class HostResolverTest {
+    @Test
+    public void rewritesHostToAddress() {
+        HostResolver resolver = new HostResolver();
+
+        assertEquals(
+                "http://127.0.0.1:8080/api/temperature?unit=c",
+                resolver.rewriteUrl("http://localhost:8080/api/temperature?unit=c")
+        );
+    }
+
+    @Test
+    public void keepsAddressesAndHttpsUnchanged() {
+        HostResolver resolver = new HostResolver();
+
+        assertEquals("http://127.0.0.1/api/setpoint", resolver.rewriteUrl("http://127.0.0.1/api/setpoint"));
+        assertEquals("https://localhost/api/setpoint", resolver.rewriteUrl("https://localhost/api/setpoint"));
+        assertEquals("not a url", resolver.rewriteUrl("not a url"));
+    }
+
+    @Test
+    public void cachesUntilInvalidated() {
+        HostResolver resolver = new HostResolver();
+        assertEquals("unresolved", resolver.describe("http://localhost:8080"));
+
+        resolver.resolve("localhost");
+        assertTrue(resolver.describe("http://localhost:8080").startsWith("127.0.0.1"));
+
+        resolver.invalidate("http://localhost:8080");
+        assertEquals("unresolved", resolver.describe("http://localhost:8080"));
+    }
+
+    @Test
+    public void unresolvableHostIsPassedOn() {
+        HostResolver resolver = new HostResolver();
+
+        assertNull(resolver.resolve("no-such-device.invalid"));
+        assertEquals("http://no-such-device.invalid/api/check", resolver.rewriteUrl("http://no-such-device.invalid/api/check"));
+    }
+}
@@ -0,0 +1,72 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for JsonNumberScanner.
+ */
+public class JsonNumberScannerTest {
+    private final JsonNumberScanner scanner = new JsonNumberScanner("temperature");
+
+    private double scan(String json) {
+        return scanner.scan(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsFieldFromResponses() {
+        assertEquals(32.5, this.scan("{ \"temperature\": 32.5 }"), 0);
+        assertEquals(-1.25, this.scan("{\"setpoint\":30,\"temperature\":-1.25}"), 0);
+        assertEquals(31.0, this.scan("{\n  \"temperature\" :\t31\n}"), 0);
+        assertEquals(3250.0, this.scan("{ \"temperature\": 3.25e3 }"), 0);
+        assertEquals(0.001, this.scan("{ \"temperature\": 1E-3 }"), 0);
+    }
+
+    @Test
+    public void returnsNaNWithoutNumber() {
+        assertTrue(Double.isNaN(this.scan("{ \"setpoint\": 32 }")));
+        assertTrue(Double.isNaN(this.scan("{ \"temperature\": null }")));
+        assertTrue(Double.isNaN(this.scan("{ \"temperature\": \"32\" }")));
+        assertTrue(Double.isNaN(this.scan("{ \"temperature\" 32 }")));
+        assertTrue(Double.isNaN(this.scan("{ \"temperature\": 3e }")));
+        assertTrue(Double.isNaN(this.scan("")));
+        assertTrue(Double.isNaN(scanner.scan(null)));
+    }
+
+    @Test
+    public void matchesJdkParsing() {
+        Random random = new Random(7);
+
+        for (int i = 0; i < 100000; i++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(10) - 3);
+            String text = random.nextBoolean()
+                    ? String.format(Locale.ENGLISH, "%." + random.nextInt(8) + "f", value)
+                    : Double.toString(value);
+
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(text, Double.parseDouble(text), JsonNumberScanner.parseNumber(bytes, 0, bytes.length), 0);
+        }
+    }
+
+    @Test
+    public void scanningDoesNotAllocate() {
+        byte[] response = "{ \"setpoint\": 35, \"temperature\": 34.125 }".getBytes(StandardCharsets.UTF_8);
+        double[] sum = { 0 };
+
+        Allocations.assertNoAllocation(i -> sum[0] += scanner.scan(response));
+        assertEquals(2 * Allocations.ITERATIONS * 34.125, sum[0], 1e-6);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < Allocations.ITERATIONS; i++) {
+            sum[0] += scanner.scan(response);
+        }
+        long nsPerResponse = (System.nanoTime() - start) / Allocations.ITERATIONS;
+
+        assertTrue("Took " + nsPerResponse + "ns per response", nsPerResponse < 10000);
+    }
+}
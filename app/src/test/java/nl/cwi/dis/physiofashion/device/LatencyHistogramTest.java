@@ -0,0 +1,67 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverValuesWithBoundedError() {
+        for (long value = 0; value < 60_000_000L; value = value * 5 / 4 + 1) {
+            int index = LatencyHistogram.bucketIndex(value);
+            long lower = LatencyHistogram.lowerBound(index);
+            long upper = LatencyHistogram.upperBound(index);
+
+            assertTrue(value + " below " + lower, value >= lower);
+            assertTrue(value + " above " + upper, value < upper);
+            assertTrue("Bucket of " + value + " too wide", upper - lower <= Math.max(1, lower / 32));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int index = 0; index < LatencyHistogram.bucketIndex(60_000_000L); index++) {
+            assertEquals(LatencyHistogram.upperBound(index), LatencyHistogram.lowerBound(index + 1));
+        }
+    }
+
+    @Test
+    public void computesPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // 1ms to 100ms in steps of 1ms
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1_000_000L);
+        }
+        histogram.recordError();
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getErrorCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_500, histogram.getMean(), 1e-6);
+        assertEquals(50_000, histogram.getValueAtPercentile(0.5), 50_000 / 32);
+        assertEquals(95_000, histogram.getValueAtPercentile(0.95), 95_000 / 32);
+        assertEquals(100_000, histogram.getValueAtPercentile(1.0));
+    }
+
+    @Test
+    public void clampsLatenciesBeyondRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+
+        assertEquals(60_000_000L, histogram.getMax());
+        assertEquals(0, histogram.getMin());
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        Allocations.assertNoAllocation(i -> histogram.record(i * 7919L));
+    }
+}
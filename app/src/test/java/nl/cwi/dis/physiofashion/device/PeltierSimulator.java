@@ -0,0 +1,375 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for a heating element, implementing `PUT /api/setpoint` and
+ * `GET /api/temperature` on top of a simulated Peltier element. The temperature follows the
+ * setpoint as a first-order lag with the configured time constant, limited to the configured
+ * maximum slew rate, and readings carry Gaussian noise. Every request can be delayed by a fixed
+ * latency plus uniform jitter, and dropped with the configured probability, in which case the
+ * connection is closed without a response. The number of requests and the injected latency per
+ * endpoint are recorded, so that polling strategies, retries and dispatch to several devices can
+ * be benchmarked without hardware.
+ */
+public class PeltierSimulator {
+    public static final String SETPOINT_ENDPOINT = "/api/setpoint";
+    public static final String TEMPERATURE_ENDPOINT = "/api/temperature";
+
+    private static final Pattern SETPOINT_PATTERN = Pattern.compile("\"setpoint\"\\s*:\\s*(-?[0-9.]+)");
+    private static final long INTEGRATION_STEP_NS = 1_000_000L;
+
+    /**
+     * Requests and injected behaviour recorded for a single endpoint.
+     */
+    public static class EndpointStats {
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger dropped = new AtomicInteger();
+        private final AtomicLong totalLatencyNs = new AtomicLong();
+        private final AtomicLong maxLatencyNs = new AtomicLong();
+
+        void record(long latencyNs, boolean wasDropped) {
+            requests.incrementAndGet();
+            totalLatencyNs.addAndGet(latencyNs);
+            maxLatencyNs.accumulateAndGet(latencyNs, Math::max);
+
+            if (wasDropped) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        public int getRequests() {
+            return requests.get();
+        }
+
+        public int getDropped() {
+            return dropped.get();
+        }
+
+        public double getMeanLatencyMs() {
+            int count = requests.get();
+            return count == 0 ? 0 : totalLatencyNs.get() / 1e6 / count;
+        }
+
+        public double getMaxLatencyMs() {
+            return maxLatencyNs.get() / 1e6;
+        }
+    }
+
+    private final Random random = new Random(42);
+    private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+
+    private double timeConstantS = 4.0;
+    private double maxSlewRate = 2.0;
+    private double noise = 0.0;
+    private long latencyMs = 0;
+    private long jitterMs = 0;
+    private double lossRate = 0.0;
+
+    private double temperature;
+    private double setpoint;
+    private long lastUpdateNs;
+    private long startedAt;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Initialises a new simulator with the element resting at the given temperature.
+     *
+     * @param initialTemperature Temperature of the element and initial setpoint
+     */
+    public PeltierSimulator(double initialTemperature) {
+        this.temperature = initialTemperature;
+        this.setpoint = initialTemperature;
+    }
+
+    /**
+     * Sets the time constant of the first-order lag.
+     *
+     * @param timeConstantS Time constant in seconds
+     * @return This simulator
+     */
+    public PeltierSimulator setTimeConstant(double timeConstantS) {
+        this.timeConstantS = timeConstantS;
+        return this;
+    }
+
+    /**
+     * Sets the maximum rate at which the temperature changes.
+     *
+     * @param maxSlewRate Maximum rate in degrees per second
+     * @return This simulator
+     */
+    public PeltierSimulator setMaxSlewRate(double maxSlewRate) {
+        this.maxSlewRate = maxSlewRate;
+        return this;
+    }
+
+    /**
+     * Sets the standard deviation of the noise added to temperature readings.
+     *
+     * @param noise Standard deviation in degrees
+     * @return This simulator
+     */
+    public PeltierSimulator setNoise(double noise) {
+        this.noise = noise;
+        return this;
+    }
+
+    /**
+     * Sets the delay injected before every response, as a fixed latency plus uniform jitter.
+     *
+     * @param latencyMs Fixed latency in milliseconds
+     * @param jitterMs Maximum additional jitter in milliseconds
+     * @return This simulator
+     */
+    public PeltierSimulator setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * Sets the probability with which a request is dropped without a response.
+     *
+     * @param lossRate Probability between 0 and 1
+     * @return This simulator
+     */
+    public PeltierSimulator setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    /**
+     * Starts serving on an ephemeral port of the loopback interface.
+     *
+     * @return The hostname under which the simulator can be reached
+     */
+    public String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+
+        server.createContext(SETPOINT_ENDPOINT, exchange -> this.handle(exchange, SETPOINT_ENDPOINT));
+        server.createContext(TEMPERATURE_ENDPOINT, exchange -> this.handle(exchange, TEMPERATURE_ENDPOINT));
+        server.setExecutor(executor);
+
+        synchronized (this) {
+            lastUpdateNs = System.nanoTime();
+            startedAt = lastUpdateNs;
+        }
+
+        server.start();
+        return this.getHostname();
+    }
+
+    /**
+     * Stops serving and shuts down the request threads.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the hostname under which the simulator can be reached.
+     *
+     * @return The hostname, including scheme and port
+     */
+    public String getHostname() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Get the true, noise-free temperature of the simulated element.
+     *
+     * @return Temperature in degrees
+     */
+    public synchronized double getTemperature() {
+        this.advance();
+        return temperature;
+    }
+
+    /**
+     * Get the setpoint last sent to the simulated element.
+     *
+     * @return Setpoint in degrees
+     */
+    public synchronized double getSetpoint() {
+        return setpoint;
+    }
+
+    /**
+     * Get the statistics of the given endpoint.
+     *
+     * @param endpoint Path of the endpoint
+     * @return Statistics of the endpoint
+     */
+    public EndpointStats getStats(String endpoint) {
+        return stats.computeIfAbsent(endpoint, e -> new EndpointStats());
+    }
+
+    /**
+     * Get the mean number of requests per second to the given endpoint since the simulator was
+     * started.
+     *
+     * @param endpoint Path of the endpoint
+     * @return Request rate in requests per second
+     */
+    public double getRequestRate(String endpoint) {
+        double elapsed;
+
+        synchronized (this) {
+            elapsed = (System.nanoTime() - startedAt) / 1e9;
+        }
+
+        return elapsed > 0 ? this.getStats(endpoint).getRequests() / elapsed : 0;
+    }
+
+    /**
+     * Returns a summary of the requests to all endpoints.
+     *
+     * @return Human-readable statistics
+     */
+    public String getSummary() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            EndpointStats endpoint = entry.getValue();
+
+            builder.append(String.format(
+                    Locale.ENGLISH,
+                    "%s: %d requests (%.1f/s), %d dropped, latency mean %.1fms, max %.1fms; ",
+                    entry.getKey(),
+                    endpoint.getRequests(),
+                    this.getRequestRate(entry.getKey()),
+                    endpoint.getDropped(),
+                    endpoint.getMeanLatencyMs(),
+                    endpoint.getMaxLatencyMs()
+            ));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Integrates the thermal model up to the current time in small steps.
+     */
+    private void advance() {
+        long now = System.nanoTime();
+
+        while (lastUpdateNs < now) {
+            long step = Math.min(INTEGRATION_STEP_NS, now - lastUpdateNs);
+            double rate = (setpoint - temperature) / timeConstantS;
+            rate = Math.max(-maxSlewRate, Math.min(maxSlewRate, rate));
+
+            temperature += rate * step / 1e9;
+            lastUpdateNs += step;
+        }
+    }
+
+    private void handle(HttpExchange exchange, String endpoint) throws IOException {
+        long receivedAt = System.nanoTime();
+
+        // Contexts match by prefix, so reject anything but the exact endpoint, e.g. streams
+        if (!exchange.getRequestURI().getPath().equals(endpoint)) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        boolean drop;
+        long delay;
+
+        synchronized (random) {
+            drop = random.nextDouble() < lossRate;
+            delay = latencyMs + (jitterMs > 0 ? (long) (random.nextDouble() * jitterMs) : 0);
+        }
+
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (drop) {
+            this.getStats(endpoint).record(System.nanoTime() - receivedAt, true);
+            exchange.close();
+            return;
+        }
+
+        String response;
+        int status = 200;
+
+        if (endpoint.equals(SETPOINT_ENDPOINT)) {
+            Matcher matcher = SETPOINT_PATTERN.matcher(this.readBody(exchange));
+
+            if ("PUT".equals(exchange.getRequestMethod()) && matcher.find()) {
+                synchronized (this) {
+                    this.advance();
+                    setpoint = Double.parseDouble(matcher.group(1));
+                }
+
+                response = "{ \"setpoint\": " + matcher.group(1) + " }";
+            } else {
+                status = 400;
+                response = "{ \"error\": \"invalid setpoint\" }";
+            }
+        } else {
+            double reading;
+
+            synchronized (this) {
+                this.advance();
+                reading = temperature;
+            }
+
+            synchronized (random) {
+                reading += random.nextGaussian() * noise;
+            }
+
+            response = String.format(Locale.ENGLISH, "{ \"temperature\": %.3f }", reading);
+        }
+
+        // Record before responding, so the statistics are complete once the client has its answer
+        this.getStats(endpoint).record(System.nanoTime() - receivedAt, false);
+
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[256];
+            StringBuilder builder = new StringBuilder();
+            int read;
+
+            while ((read = in.read(buffer)) > 0) {
+                builder.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end benchmarks against the simulated heating element. Requests are sent over HTTP just
+ * like the app does, so request counts and latencies recorded by the simulator reflect what a
+ * real device would see.
+ */
+public class PeltierSimulatorTest {
+    private final List<PeltierSimulator> simulators = new ArrayList<>();
+
+    private PeltierSimulator startSimulator(PeltierSimulator simulator) throws IOException {
+        simulator.start();
+        simulators.add(simulator);
+
+        return simulator;
+    }
+
+    @After
+    public void stopSimulators() {
+        for (PeltierSimulator simulator : simulators) {
+            simulator.stop();
+        }
+    }
+
+    private static int putSetpoint(String hostname, double setpoint) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(hostname + PeltierSimulator.SETPOINT_ENDPOINT).openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(("{ \"setpoint\": " + setpoint + " }").getBytes(StandardCharsets.UTF_8));
+        }
+
+        int status = connection.getResponseCode();
+        connection.disconnect();
+
+        return status;
+    }
+
+    private static double readTemperature(String hostname) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(hostname + PeltierSimulator.TEMPERATURE_ENDPOINT).openConnection();
+        connection.setReadTimeout(1000);
+
+        try (InputStream in = connection.getInputStream(); Scanner scanner = new Scanner(in, "UTF-8")) {
+            String body = scanner.useDelimiter("\\A").next();
+            return SseTemperatureStream.parseSample(body);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Polls the simulator at a fixed interval until the temperature has reached the target.
+     *
+     * @return Number of polls and time in milliseconds until the target was detected
+     */
+    private static long[] pollUntil(String hostname, double target, long intervalMs) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long polls = 0;
+
+        while (true) {
+            polls++;
+
+            if (readTemperature(hostname) >= target) {
+                return new long[] { polls, (System.nanoTime() - start) / 1_000_000 };
+            }
+
+            Thread.sleep(intervalMs);
+        }
+    }
+
+    @Test
+    public void stepResponseFollowsLagAndSlewLimit() throws IOException, InterruptedException {
+        PeltierSimulator simulator = startSimulator(new PeltierSimulator(32).setTimeConstant(0.3).setMaxSlewRate(5));
+
+        assertEquals(200, putSetpoint(simulator.getHostname(), 35));
+        long[] result = pollUntil(simulator.getHostname(), 34.9, 10);
+
+        // Slew-limited for 1.5 degrees (0.3s), then exponential from 1.5 to 0.1 degrees (0.81s)
+        assertEquals(1110, result[1], 250);
+        assertEquals(35, simulator.getSetpoint(), 1e-9);
+    }
+
+    @Test
+    public void rejectsUnknownEndpointsAndInvalidBodies() throws IOException {
+        PeltierSimulator simulator = startSimulator(new PeltierSimulator(32));
+
+        HttpURLConnection stream = (HttpURLConnection) new URL(simulator.getHostname() + "/api/temperature/stream").openConnection();
+        assertEquals(404, stream.getResponseCode());
+
+        HttpURLConnection setpoint = (HttpURLConnection) new URL(simulator.getHostname() + PeltierSimulator.SETPOINT_ENDPOINT).openConnection();
+        assertEquals(400, setpoint.getResponseCode());
+    }
+
+    @Test
+    public void benchmarksPollingIntervals() throws IOException, InterruptedException {
+        PeltierSimulator dense = startSimulator(new PeltierSimulator(32).setTimeConstant(0.3).setMaxSlewRate(5));
+        PeltierSimulator sparse = startSimulator(new PeltierSimulator(32).setTimeConstant(0.3).setMaxSlewRate(5));
+
+        putSetpoint(dense.getHostname(), 35);
+        long[] denseResult = pollUntil(dense.getHostname(), 34.5, 20);
+
+        putSetpoint(sparse.getHostname(), 35);
+        long[] sparseResult = pollUntil(sparse.getHostname(), 34.5, 100);
+
+        // Slew-limited for 1.5 degrees (0.3s), then exponential from 1.5 to 0.5 degrees (0.33s)
+        assertEquals(630, denseResult[1], 250);
+        assertEquals(630, sparseResult[1], 350);
+
+        // The simulator sees exactly the requests the client sent
+        assertEquals(denseResult[0], dense.getStats(PeltierSimulator.TEMPERATURE_ENDPOINT).getRequests());
+        assertEquals(sparseResult[0], sparse.getStats(PeltierSimulator.TEMPERATURE_ENDPOINT).getRequests());
+
+        // Sparse polling trades fewer requests for a later detection of at most one interval
+        assertTrue(sparseResult[0] < denseResult[0]);
+        assertTrue(sparseResult[1] <= denseResult[1] + 150);
+    }
+
+    @Test
+    public void injectsLatencyAndLoss() throws IOException {
+        PeltierSimulator simulator = startSimulator(new PeltierSimulator(32).setLatency(20, 10).setLossRate(0.5).setNoise(0.05));
+        int succeeded = 0;
+
+        // Retry every read until it succeeds
+        for (int i = 0; i < 20; i++) {
+            for (int attempt = 0; attempt < 20; attempt++) {
+                try {
+                    assertEquals(32, readTemperature(simulator.getHostname()), 0.5);
+                    succeeded++;
+                    break;
+                } catch (IOException ioe) {
+                    // Dropped by the simulator, try again
+                }
+            }
+        }
+
+        PeltierSimulator.EndpointStats stats = simulator.getStats(PeltierSimulator.TEMPERATURE_ENDPOINT);
+
+        assertEquals(20, succeeded);
+        assertEquals(20, stats.getRequests() - stats.getDropped());
+        assertTrue(stats.getDropped() > 0);
+        assertTrue(stats.getMeanLatencyMs() >= 20);
+    }
+
+    @Test
+    public void dispatchesToSeveralDevicesInParallel() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            PeltierSimulator simulator = startSimulator(new PeltierSimulator(32).setLatency(50, 0));
+
+            threads.add(new Thread(() -> {
+                try {
+                    putSetpoint(simulator.getHostname(), 34.5);
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        // Sent in parallel, the dispatch takes about as long as a single device rather than the
+        // sum of all devices
+        assertTrue("Dispatch took " + elapsedMs + "ms", elapsedMs < 3 * 50);
+
+        for (PeltierSimulator simulator : simulators) {
+            assertEquals(34.5, simulator.getSetpoint(), 1e-9);
+            assertEquals(1, simulator.getStats(PeltierSimulator.SETPOINT_ENDPOINT).getRequests());
+        }
+    }
+}
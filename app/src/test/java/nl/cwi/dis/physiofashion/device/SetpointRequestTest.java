@@ -0,0 +1,39 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SetpointRequest.
+ */
+public class SetpointRequestTest {
+    private static String body(double setpoint) {
+        return new String(SetpointRequest.encode(setpoint), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void formatsSetpoints() {
+        assertEquals("{ \"setpoint\": 32 }", body(32));
+        assertEquals("{ \"setpoint\": 35.50 }", body(35.5));
+        assertEquals("{ \"setpoint\": 33.33 }", body(33.333));
+        assertEquals("{ \"setpoint\": 120 }", body(120));
+        assertEquals("{ \"setpoint\": -2.25 }", body(-2.25));
+    }
+
+    @Test
+    public void reusesEncodedPayloads() {
+        assertSame(SetpointRequest.encode(34.75), SetpointRequest.encode(34.75));
+        assertNotSame(SetpointRequest.encode(150), SetpointRequest.encode(150));
+    }
+
+    @Test
+    public void encodingCachedSetpointsDoesNotAllocate() {
+        long[] length = { 0 };
+
+        Allocations.assertNoAllocation(i -> length[0] += SetpointRequest.encode(30 + (i % 64) * 0.25).length);
+        assertTrue(length[0] > 0);
+    }
+}
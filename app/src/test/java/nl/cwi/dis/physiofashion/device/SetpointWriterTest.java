@@ -0,0 +1,149 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SetpointWriter, sending commands to a sink which holds them until the test completes
+ * them. Callbacks run synchronously.
+ */
+public class SetpointWriterTest {
+    /**
+     * Request factory which remembers the setpoint it was created for.
+     */
+    private static class SetpointFactory implements CommandExecutor.RequestFactory {
+        final double setpoint;
+
+        SetpointFactory(double setpoint) {
+            this.setpoint = setpoint;
+        }
+
+        @Override
+        public Request<String> create(Response.Listener<String> onResponse, Response.ErrorListener onError) {
+            throw new UnsupportedOperationException("Requests are not created by the sink");
+        }
+    }
+
+    /**
+     * A command sent by the writer, waiting to be completed by the test.
+     */
+    private static class Command {
+        final double setpoint;
+        final Response.Listener<String> onSuccess;
+        final Response.ErrorListener onError;
+
+        Command(double setpoint, Response.Listener<String> onSuccess, Response.ErrorListener onError) {
+            this.setpoint = setpoint;
+            this.onSuccess = onSuccess;
+            this.onError = onError;
+        }
+    }
+
+    private List<Command> sent;
+    private List<String> results;
+    private SetpointWriter writer;
+
+    @Before
+    public void setUp() {
+        sent = new ArrayList<>();
+        results = new ArrayList<>();
+        writer = new SetpointWriter(
+                null,
+                "http://device",
+                (factory, onSuccess, onError) -> sent.add(new Command(((SetpointFactory) factory).setpoint, onSuccess, onError)),
+                Runnable::run
+        );
+    }
+
+    /**
+     * Requests the given setpoint and records its outcome as `<setpoint>:<response or error>`.
+     */
+    private void write(double setpoint) {
+        writer.write(
+                setpoint,
+                new SetpointFactory(setpoint),
+                response -> results.add(setpoint + ":" + response),
+                error -> results.add(setpoint + ":" + error.getMessage())
+        );
+    }
+
+    @Test
+    public void skipsAcknowledgedSetpoint() {
+        this.write(30);
+        sent.get(0).onSuccess.onResponse("ok");
+
+        this.write(30);
+
+        assertEquals(1, sent.size());
+        assertEquals(Arrays.asList("30.0:ok", "30.0:" + SetpointWriter.SKIPPED), results);
+        assertEquals(1, writer.getSaved());
+    }
+
+    @Test
+    public void coalescesSetpointInFlight() {
+        this.write(30);
+        this.write(30);
+
+        assertEquals(1, sent.size());
+        assertTrue(results.isEmpty());
+
+        sent.get(0).onSuccess.onResponse("ok");
+
+        assertEquals(Arrays.asList("30.0:ok", "30.0:ok"), results);
+        assertEquals(1, writer.getSaved());
+    }
+
+    @Test
+    public void latestHeldBackSetpointSupersedesEarlierOne() {
+        this.write(30);
+        this.write(32);
+        this.write(34);
+
+        assertEquals(1, sent.size());
+
+        // Only the latest setpoint is sent once the outstanding one has completed
+        sent.get(0).onSuccess.onResponse("ok");
+
+        assertEquals(2, sent.size());
+        assertEquals(34, sent.get(1).setpoint, 0);
+        assertEquals(Arrays.asList("30.0:ok"), results);
+
+        // The caller of the superseded setpoint is notified with the write that replaced it
+        sent.get(1).onSuccess.onResponse("ok");
+
+        assertEquals(Arrays.asList("30.0:ok", "32.0:ok", "34.0:ok"), results);
+        assertEquals(34, writer.getAcknowledgedSetpoint(), 0);
+        assertEquals(1, writer.getSaved());
+    }
+
+    @Test
+    public void resendsSetpointAfterError() {
+        this.write(30);
+        sent.get(0).onError.onErrorResponse(new VolleyError("timeout"));
+
+        assertEquals(Arrays.asList("30.0:timeout"), results);
+        assertTrue(Double.isNaN(writer.getAcknowledgedSetpoint()));
+
+        // The state of the device is unknown, so the same setpoint is not skipped
+        this.write(30);
+
+        assertEquals(2, sent.size());
+        assertEquals(30, sent.get(1).setpoint, 0);
+
+        sent.get(1).onSuccess.onResponse("ok");
+
+        assertEquals(Arrays.asList("30.0:timeout", "30.0:ok"), results);
+        assertEquals(2, writer.getSent());
+        assertEquals(0, writer.getSaved());
+    }
+}
@@ -0,0 +1,158 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SseTemperatureStream, run against a local stand-in for the heating element which
+ * streams a temperature ramp as server-sent events.
+ */
+public class SseTemperatureStreamTest {
+    private static final int NUM_SAMPLES = 20;
+
+    private HttpServer server;
+    private AtomicInteger requestCount;
+    private String hostname;
+
+    @Before
+    public void startServer() throws IOException {
+        requestCount = new AtomicInteger();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+
+        // Stream a ramp from 32 to 35.8 degrees, one sample every 10ms
+        server.createContext("/api/temperature/stream", exchange -> {
+            requestCount.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < NUM_SAMPLES; i++) {
+                    String event = "event: temperature\ndata: { \"temperature\": " + (32 + i * 0.2) + " }\n\n";
+                    out.write(event.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        server.start();
+        hostname = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void receivesAllSamplesWithSingleRequest() throws InterruptedException {
+        List<Double> samples = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        TemperatureStream stream = new SseTemperatureStream(hostname, new TemperatureStream.Listener() {
+            @Override
+            public void onSample(double temperature) {
+                samples.add(temperature);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                done.countDown();
+            }
+        });
+
+        stream.open();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(NUM_SAMPLES, samples.size());
+        assertEquals(32.0, samples.get(0), 1e-9);
+        assertEquals(35.8, samples.get(NUM_SAMPLES - 1), 1e-9);
+        assertEquals(1, requestCount.get());
+    }
+
+    @Test
+    public void detectsTargetCrossingOnFirstSampleBeyondTarget() throws InterruptedException {
+        AtomicReference<Double> crossing = new AtomicReference<>();
+        AtomicInteger samplesBeforeCrossing = new AtomicInteger();
+        CountDownLatch crossed = new CountDownLatch(1);
+
+        TemperatureStream stream = new SseTemperatureStream(hostname, new TemperatureStream.Listener() {
+            @Override
+            public void onSample(double temperature) {
+                if (crossing.get() != null) {
+                    return;
+                }
+
+                if (temperature >= 35) {
+                    crossing.set(temperature);
+                    crossed.countDown();
+                } else {
+                    samplesBeforeCrossing.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        });
+
+        stream.open();
+        assertTrue(crossed.await(5, TimeUnit.SECONDS));
+        stream.close();
+
+        // The ramp reaches 35 degrees with the 16th sample
+        assertEquals(15, samplesBeforeCrossing.get());
+        assertEquals(35.0, crossing.get(), 1e-9);
+    }
+
+    @Test
+    public void reportsUnsupportedStream() throws InterruptedException {
+        AtomicReference<Exception> error = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        TemperatureStream stream = new SseTemperatureStream(hostname + "/missing", new TemperatureStream.Listener() {
+            @Override
+            public void onSample(double temperature) {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+
+        stream.open();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof StreamingUnsupportedException);
+    }
+
+    @Test
+    public void parsesSampleLines() {
+        assertEquals(32.5, SseTemperatureStream.parseSample("data: { \"temperature\": 32.5 }"), 1e-9);
+        assertEquals(-1.25, SseTemperatureStream.parseSample("{\"temperature\":-1.25}"), 1e-9);
+        assertEquals(31.0, SseTemperatureStream.parseSample("data:31"), 1e-9);
+        assertTrue(Double.isNaN(SseTemperatureStream.parseSample("event: temperature")));
+        assertTrue(Double.isNaN(SseTemperatureStream.parseSample(": keep-alive")));
+        assertTrue(Double.isNaN(SseTemperatureStream.parseSample("")));
+        assertTrue(Double.isNaN(SseTemperatureStream.parseSample("data: { \"setpoint\": 32 }")));
+    }
+}
@@ -0,0 +1,70 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for TelemetryRecorder.
+ */
+public class TelemetryRecorderTest {
+    @Test
+    public void keepsNewestSamplesWhenFull() {
+        TelemetryRecorder recorder = new TelemetryRecorder(4);
+
+        for (int i = 0; i < 6; i++) {
+            recorder.record(i, 30 + i);
+        }
+
+        List<Long> timestamps = new ArrayList<>();
+        recorder.forEach((timestampNs, temperature, setpoint, trial) -> timestamps.add(timestampNs));
+
+        assertEquals(4, recorder.size());
+        assertEquals(2L, (long) timestamps.get(0));
+        assertEquals(5L, (long) timestamps.get(3));
+    }
+
+    @Test
+    public void storesSetpointAndTrialWithSamples() {
+        TelemetryRecorder recorder = new TelemetryRecorder(8);
+
+        recorder.setTrial(0);
+        recorder.setSetpoint(32);
+        recorder.record(1, 31.5);
+        recorder.setTrial(1);
+        recorder.setSetpoint(35.5);
+        recorder.record(2, 32.25);
+        recorder.record(3, 33.0);
+
+        List<Float> setpoints = new ArrayList<>();
+        recorder.forEach(1, (timestampNs, temperature, setpoint, trial) -> setpoints.add(setpoint));
+
+        assertEquals(2, setpoints.size());
+        assertEquals(35.5, setpoints.get(0), 1e-6);
+    }
+
+    @Test
+    public void reportsLatestSample() {
+        TelemetryRecorder recorder = new TelemetryRecorder(2);
+
+        assertTrue(Float.isNaN(recorder.getLatestTemperature()));
+        assertEquals(-1, recorder.getLatestTimestamp());
+
+        for (int i = 0; i < 3; i++) {
+            recorder.record(100 + i, 30 + i);
+        }
+
+        assertEquals(32, recorder.getLatestTemperature(), 1e-6);
+        assertEquals(102, recorder.getLatestTimestamp());
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        TelemetryRecorder recorder = new TelemetryRecorder(1024);
+
+        Allocations.assertNoAllocation(i -> recorder.record(i, 32.0 + i * 1e-4));
+    }
+}
@@ -0,0 +1,113 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for TemperatureReader, sending its requests to a sink from which the test answers them.
+ */
+public class TemperatureReaderTest {
+    private final List<TemperatureRequest> sent = new ArrayList<>();
+    private final List<String> results = new ArrayList<>();
+
+    /**
+     * Creates a reader which drops an outstanding read once it is older than the given age.
+     */
+    private TemperatureReader createReader(long maxReadAgeMs) {
+        TemperatureReader.RequestSink sink = new TemperatureReader.RequestSink() {
+            @Override
+            public void add(Request<?> request) {
+                sent.add((TemperatureRequest) request);
+            }
+
+            @Override
+            public void onRequestFailed(VolleyError error) {
+            }
+        };
+
+        return new TemperatureReader("http://device", sink, new TelemetryRecorder(), new LatencyHistogram(), new ClockSync(), maxReadAgeMs);
+    }
+
+    /**
+     * Reads the temperature and records the outcome with the given name of the caller.
+     */
+    private void read(TemperatureReader reader, String caller) {
+        reader.read(
+                temperature -> results.add(caller + ":" + temperature),
+                error -> results.add(caller + ":" + error.getMessage())
+        );
+    }
+
+    @Test
+    public void waitersShareOutstandingRead() {
+        TemperatureReader reader = this.createReader(1000);
+
+        this.read(reader, "a");
+        this.read(reader, "b");
+        this.read(reader, "c");
+
+        assertEquals(1, sent.size());
+        assertTrue(results.isEmpty());
+
+        sent.get(0).deliverResponse(31.5);
+
+        assertEquals("[a:31.5, b:31.5, c:31.5]", results.toString());
+        assertEquals(1, reader.getIssuedReads());
+        assertEquals(2, reader.getCoalescedReads());
+
+        // The next read is a new request
+        this.read(reader, "d");
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void waitersShareOutstandingError() {
+        TemperatureReader reader = this.createReader(1000);
+
+        this.read(reader, "a");
+        this.read(reader, "b");
+        sent.get(0).deliverError(new VolleyError("timeout"));
+
+        assertEquals("[a:timeout, b:timeout]", results.toString());
+    }
+
+    @Test
+    public void staleReadIsCancelledAndCountedAsDropped() {
+        // A negative maximum age makes every outstanding read stale
+        TemperatureReader reader = this.createReader(-1);
+
+        this.read(reader, "a");
+        this.read(reader, "b");
+
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(0).isCanceled());
+        assertFalse(sent.get(1).isCanceled());
+        assertEquals(2, reader.getIssuedReads());
+        assertEquals(1, reader.getDroppedReads());
+        assertEquals(0, reader.getCoalescedReads());
+    }
+
+    @Test
+    public void lateResponseOfDroppedReadIsIgnored() {
+        TemperatureReader reader = this.createReader(-1);
+
+        this.read(reader, "a");
+        this.read(reader, "b");
+
+        // The dropped read is answered after all, which must not reach the waiters
+        sent.get(0).deliverResponse(20.0);
+        sent.get(0).deliverError(new VolleyError("cancelled"));
+        assertTrue(results.isEmpty());
+
+        // Both waiters receive the result of the fresh read, exactly once
+        sent.get(1).deliverResponse(32.0);
+        assertEquals("[a:32.0, b:32.0]", results.toString());
+    }
+}
@@ -0,0 +1,81 @@
+package nl.cwi.dis.physiofashion.device;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ThermalModel.
+ */
+public class ThermalModelTest {
+    private static final double TAU = 4.0;
+    private static final double MAX_RATE = 1.5;
+    private static final long STEP_NS = 100_000_000L;
+
+    /**
+     * Simulates a first-order lag with rate limit driven towards the given setpoint, feeds every
+     * sample to the model and returns the time the temperature first reached the target.
+     */
+    private static double simulate(ThermalModel model, double[] temp, long[] time, float setpoint, double target) {
+        double reachedAt = -1;
+        long start = time[0];
+
+        for (int i = 0; i < 300; i++) {
+            double rate = (setpoint - temp[0]) / TAU;
+            rate = Math.max(-MAX_RATE, Math.min(MAX_RATE, rate));
+
+            temp[0] += rate * STEP_NS / 1e9;
+            time[0] += STEP_NS;
+            model.accept(time[0], (float) temp[0], setpoint, 0);
+
+            if (reachedAt < 0 && Math.abs(setpoint - temp[0]) <= Math.abs(setpoint - target)) {
+                reachedAt = (time[0] - start) / 1e9;
+            }
+        }
+
+        return reachedAt;
+    }
+
+    @Test
+    public void fitsTimeConstantAndRateLimit() {
+        ThermalModel model = new ThermalModel();
+        double[] temp = { 32 };
+        long[] time = { 0 };
+
+        // Alternate between large steps, so both the rate-limited and the first-order phase are seen
+        for (int i = 0; i < 4; i++) {
+            simulate(model, temp, time, (i % 2 == 0) ? 40 : 30, 0);
+        }
+
+        assertTrue(model.isFitted());
+        assertEquals(TAU, model.getTimeConstant(), 0.5);
+        assertEquals(MAX_RATE, model.getMaxRate(), 0.2);
+    }
+
+    @Test
+    public void predictsTimeToTarget() {
+        ThermalModel model = new ThermalModel();
+        double[] temp = { 32 };
+        long[] time = { 0 };
+
+        for (int i = 0; i < 4; i++) {
+            simulate(model, temp, time, (i % 2 == 0) ? 40 : 30, 0);
+        }
+
+        // Predict a step from the current temperature to 2 degrees below a new setpoint
+        double start = temp[0];
+        double predicted = model.predictTimeToReach(start, 38, 36);
+        double actual = simulate(new ThermalModel(), new double[] { start }, new long[] { 0 }, 38, 36);
+
+        assertEquals(actual, predicted, 0.5);
+    }
+
+    @Test
+    public void fallsBackUntilFitted() {
+        ThermalModel model = new ThermalModel();
+
+        assertFalse(model.isFitted());
+        assertEquals(10000, model.estimateTimeout(32, 35, 35, 10000));
+        assertEquals(0, model.predictTimeToReach(35, 35, 35), 0);
+    }
+}
@@ -0,0 +1,204 @@
+package nl.cwi.dis.physiofashion.device;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for UdpTemperatureStream, run against a local stand-in for the heating element which
+ * accepts the subscription over HTTP and then sends datagrams with a gap, a reordered datagram
+ * and a duplicate.
+ */
+public class UdpTemperatureStreamTest {
+    private static final Pattern PORT_PATTERN = Pattern.compile("\"port\"\\s*:\\s*([0-9]+)");
+
+    // Datagram 3 is overtaken by 4, 6 and 7 never arrive and 5 is sent twice
+    private static final int[] SEQUENCES = { 0, 1, 2, 4, 3, 5, 5, 8, 9 };
+
+    private HttpServer server;
+    private CountDownLatch unsubscribed;
+    private String hostname;
+
+    @Before
+    public void startServer() throws IOException {
+        unsubscribed = new CountDownLatch(1);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+
+        server.createContext("/api/telemetry/udp", exchange -> {
+            if ("DELETE".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                unsubscribed.countDown();
+                return;
+            }
+
+            Matcher matcher = PORT_PATTERN.matcher(readBody(exchange.getRequestBody()));
+            if (!matcher.find()) {
+                exchange.sendResponseHeaders(400, -1);
+                exchange.close();
+                return;
+            }
+
+            int port = Integer.parseInt(matcher.group(1));
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+
+            // Push the datagrams from a thread of its own, as the device would
+            new Thread(() -> sendDatagrams(port)).start();
+        });
+
+        server.start();
+        hostname = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void deliversSamplesInOrderAndTracksLoss() throws InterruptedException {
+        List<Double> samples = new CopyOnWriteArrayList<>();
+        CountDownLatch lastSample = new CountDownLatch(1);
+
+        UdpTemperatureStream stream = new UdpTemperatureStream(hostname, new TemperatureStream.Listener() {
+            @Override
+            public void onSample(double temperature) {
+                samples.add(temperature);
+
+                if (samples.size() == 7) {
+                    lastSample.countDown();
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        });
+
+        stream.open();
+        assertTrue(lastSample.await(5, TimeUnit.SECONDS));
+        stream.close();
+        assertTrue(unsubscribed.await(5, TimeUnit.SECONDS));
+
+        // Sequences 0, 1, 2, 4, 5, 8 and 9, with the temperature encoding the sequence
+        assertEquals(32.0, samples.get(0), 1e-4);
+        assertEquals(32.4, samples.get(3), 1e-4);
+        assertEquals(32.9, samples.get(6), 1e-4);
+
+        assertEquals(8, stream.getReceived());
+        assertEquals(2, stream.getLost());
+        assertEquals(1, stream.getReordered());
+        assertEquals(1, stream.getDuplicates());
+        assertEquals(9000, stream.getLastDeviceTimestampUs());
+    }
+
+    @Test
+    public void tracksSequencesAcrossLargeGaps() {
+        UdpTemperatureStream stream = new UdpTemperatureStream(hostname, null);
+
+        assertTrue(stream.accept(10, 0));
+        assertTrue(stream.accept(1000, 0));
+        assertFalse(stream.accept(999, 0));
+        assertFalse(stream.accept(999, 0));
+
+        assertEquals(3, stream.getReceived());
+        assertEquals(988, stream.getLost());
+        assertEquals(1, stream.getReordered());
+        assertEquals(1, stream.getDuplicates());
+    }
+
+    @Test
+    public void startsOverWhenDeviceRestarts() {
+        UdpTemperatureStream stream = new UdpTemperatureStream(hostname, null);
+
+        for (int sequence = 500; sequence <= 600; sequence++) {
+            assertTrue(stream.accept(sequence, 1_000_000 + sequence * 20_000L));
+        }
+
+        // The device restarted, its sequence and clock start from zero
+        assertTrue(stream.accept(0, 500));
+        assertTrue(stream.accept(1, 20_500));
+        assertFalse(stream.accept(1, 20_500));
+
+        // A short run is followed by another restart, which only shows in the clock
+        assertTrue(stream.accept(0, 400));
+
+        assertEquals(2, stream.getRestarts());
+        assertEquals(0, stream.getLost());
+        assertEquals(1, stream.getDuplicates());
+        assertEquals(400, stream.getLastDeviceTimestampUs());
+    }
+
+    @Test
+    public void reportsUnsupportedTelemetry() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Exception[] error = new Exception[1];
+
+        TemperatureStream stream = new UdpTemperatureStream(hostname + "/missing", new TemperatureStream.Listener() {
+            @Override
+            public void onSample(double temperature) {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+
+        stream.open();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(error[0] instanceof StreamingUnsupportedException);
+    }
+
+    private static void sendDatagrams(int port) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            InetAddress address = InetAddress.getLoopbackAddress();
+            ByteBuffer buffer = ByteBuffer.allocate(UdpTemperatureStream.DATAGRAM_SIZE);
+
+            for (int sequence : SEQUENCES) {
+                buffer.clear();
+                buffer.putInt(sequence);
+                buffer.putLong(sequence * 1000L);
+                buffer.putFloat(32 + sequence * 0.1f);
+
+                socket.send(new DatagramPacket(buffer.array(), buffer.capacity(), address, port));
+                Thread.sleep(5);
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        byte[] buffer = new byte[256];
+        StringBuilder builder = new StringBuilder();
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            builder.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+        }
+
+        return builder.toString();
+    }
+}
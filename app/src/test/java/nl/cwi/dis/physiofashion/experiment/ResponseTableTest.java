@@ -0,0 +1,123 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ResponseTable and the UserResponse accessors reading and writing its columns.
+ */
+public class ResponseTableTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void startsWithoutResponses() {
+        ResponseTable table = new ResponseTable(3);
+        UserResponse response = table.getResponse(2);
+
+        assertEquals(3, table.size());
+        assertEquals(-1, response.getStimulusStarted());
+        assertEquals(-1, response.getStimulusFelt());
+        assertEquals(-1, response.getAudioOnset());
+        assertEquals(0, response.getTemperatureFelt());
+        assertEquals(0, table.getReactionTimes().length);
+    }
+
+    @Test
+    public void responsesWriteToColumns() {
+        ResponseTable table = new ResponseTable(2);
+
+        UserResponse first = table.getResponse(0);
+        first.setStimulusStarted(100 * MS);
+        first.setStimulusFelt(350 * MS);
+        first.setTemperatureFelt(4);
+        first.setComfortLevel(2);
+
+        table.getResponse(1).setArousal(7);
+        table.getResponse(1).setValence(3);
+
+        // A new accessor for the same trial sees the same values
+        UserResponse again = table.getResponse(0);
+        assertEquals(100 * MS, again.getStimulusStarted());
+        assertEquals(350 * MS, again.getStimulusFelt());
+        assertEquals(4, again.getTemperatureFelt());
+        assertEquals(2, again.getComfortLevel());
+        assertEquals(0, again.getArousal());
+
+        assertEquals(7, table.getResponse(1).getArousal());
+        assertEquals(3, table.getResponse(1).getValence());
+        assertEquals(-1, table.getResponse(1).getStimulusStarted());
+    }
+
+    @Test
+    public void summarisesReactionTimes() {
+        ResponseTable table = new ResponseTable(4);
+        long[] reactionMs = { 300, 100, -1, 200 };
+
+        for (int i = 0; i < reactionMs.length; i++) {
+            table.getResponse(i).setStimulusStarted(i * 10_000 * MS);
+
+            if (reactionMs[i] >= 0) {
+                table.getResponse(i).setStimulusFelt((i * 10_000 + reactionMs[i]) * MS);
+            }
+        }
+
+        assertArrayEquals(new long[] { 300 * MS, 100 * MS, 200 * MS }, table.getReactionTimes());
+        assertTrue(table.getSummary().startsWith("n=4 felt=3 rt mean=200 p50=200ms"));
+    }
+
+    @Test
+    public void averagesRatingsOfTrialsRunOnly() {
+        ResponseTable table = new ResponseTable(4);
+
+        // Two trials have been run and rated, the session was interrupted before the others
+        for (int i = 0; i < 2; i++) {
+            table.getResponse(i).setStimulusStarted(i * 10_000 * MS);
+            table.getResponse(i).setTemperatureFelt(4 + i);
+            table.getResponse(i).setComfortLevel(2);
+        }
+
+        assertTrue(table.getSummary().endsWith("temperature mean=4.5 comfort mean=2.0"));
+        assertTrue(new ResponseTable(3).getSummary().endsWith("temperature mean=0.0 comfort mean=0.0"));
+    }
+
+    @Test
+    public void readsBackSnapshot() throws IOException {
+        ResponseTable table = new ResponseTable(2);
+        table.getResponse(1).setStimulusStarted(100 * MS);
+        table.getResponse(1).setAudioOnset(250 * MS);
+        table.getResponse(1).setValence(6);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeSnapshot(new DataOutputStream(bytes));
+        ResponseTable restored = ResponseTable.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(2, restored.size());
+        assertEquals(-1, restored.getResponse(0).getStimulusStarted());
+        assertEquals(100 * MS, restored.getResponse(1).getStimulusStarted());
+        assertEquals(250 * MS, restored.getResponse(1).getAudioOnset());
+        assertEquals(6, restored.getResponse(1).getValence());
+    }
+
+    @Test
+    public void copyDoesNotChangeWithTable() {
+        ResponseTable table = new ResponseTable(2);
+        table.getResponse(0).setComfortLevel(3);
+
+        ResponseTable copy = table.copy();
+        table.getResponse(0).setComfortLevel(5);
+
+        assertEquals(3, copy.getResponse(0).getComfortLevel());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsTrialsBeyondTable() {
+        new ResponseTable(2).getResponse(2);
+    }
+}
@@ -0,0 +1,62 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SessionClock, using fixed anchors.
+ */
+public class SessionClockTest {
+    private static final long ANCHOR_ELAPSED_NS = 123_456_789_012L;
+    private static final long ANCHOR_WALL_MS = 1_557_838_965_120L;
+
+    @Test
+    public void sessionTimeIsRelativeToAnchor() {
+        SessionClock clock = new SessionClock(ANCHOR_ELAPSED_NS, ANCHOR_WALL_MS);
+
+        assertEquals(0, clock.toSessionTime(ANCHOR_ELAPSED_NS));
+        assertEquals(1_500_250L, clock.toSessionTime(ANCHOR_ELAPSED_NS + 1_500_250L));
+        assertEquals(-1_000L, clock.toSessionTime(ANCHOR_ELAPSED_NS - 1_000L));
+    }
+
+    @Test
+    public void reactionTimeKeepsSubMillisecondPrecision() {
+        SessionClock clock = new SessionClock(ANCHOR_ELAPSED_NS, ANCHOR_WALL_MS);
+
+        long started = clock.toSessionTime(ANCHOR_ELAPSED_NS + 3_600_000_000_000L);
+        long felt = clock.toSessionTime(ANCHOR_ELAPSED_NS + 3_600_000_000_000L + 412_345_678L);
+
+        assertEquals(412_345_678L, felt - started);
+    }
+
+    @Test
+    public void convertsToWallClock() {
+        SessionClock clock = new SessionClock(ANCHOR_ELAPSED_NS, ANCHOR_WALL_MS);
+
+        assertEquals(ANCHOR_WALL_MS, clock.getAnchorWallMillis());
+        assertEquals(ANCHOR_WALL_MS + 2_500, clock.toWallMillis(2_500_000_000L));
+        assertEquals("2019-05-14T13:02:45.120Z", clock.getAnchorIso());
+    }
+
+    @Test
+    public void resumeKeepsAnchorWithinSameBoot() {
+        SessionClock clock = new SessionClock(ANCHOR_ELAPSED_NS, ANCHOR_WALL_MS);
+
+        // The process was restarted ten minutes later, the wall clock was adjusted by a second
+        SessionClock resumed = SessionClock.resume(clock, ANCHOR_ELAPSED_NS + 600_000_000_000L, ANCHOR_WALL_MS + 601_000);
+
+        assertSame(clock, resumed);
+    }
+
+    @Test
+    public void resumeRebasesAnchorAfterReboot() {
+        SessionClock clock = new SessionClock(ANCHOR_ELAPSED_NS, ANCHOR_WALL_MS);
+
+        // The tablet was rebooted, its monotonic clock reads 30 seconds ten minutes later
+        SessionClock resumed = SessionClock.resume(clock, 30_000_000_000L, ANCHOR_WALL_MS + 600_000);
+
+        assertEquals(600_000_000_000L, resumed.toSessionTime(30_000_000_000L));
+        assertEquals(ANCHOR_WALL_MS, resumed.getAnchorWallMillis());
+    }
+}
@@ -0,0 +1,288 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import com.android.volley.VolleyError;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for TrialStateMachine, driven by a virtual scheduler and a delegate simulating heating
+ * elements which acknowledge setpoints after a fixed delay.
+ */
+public class TrialStateMachineTest {
+    private static final long ACK_MS = 40;
+    private static final long ADAPTATION_MS = 5000;
+    private static final long STIMULUS_MS = 3000;
+    private static final long MS = 1_000_000;
+
+    /**
+     * Delegate recording everything the machine asks it to do.
+     */
+    private static class FakeDelegate implements TrialStateMachine.Delegate {
+        final VirtualScheduler scheduler;
+        final List<String> events = new ArrayList<>();
+        final List<Long> countdowns = new ArrayList<>();
+
+        int failBaseline;
+        int failTarget;
+        long audioStartMs = -1;
+        long audioDurationMs;
+        long targetReachedAfterMs;
+        long audioStartedAt = -1;
+        long feltAt = -1;
+        Runnable retry;
+
+        FakeDelegate(VirtualScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onPhaseChanged(TrialStateMachine.Phase phase) {
+            events.add(phase.toString());
+        }
+
+        @Override
+        public void onCountdown(long remainingMs) {
+            countdowns.add(remainingMs);
+        }
+
+        @Override
+        public void returnToBaseline(HeatingElement.SuccessCallback onSuccess, HeatingElement.ErrorCallback onError) {
+            if (failBaseline > 0) {
+                failBaseline--;
+                scheduler.schedule(() -> onError.apply(new VolleyError("timeout")), ACK_MS);
+                return;
+            }
+
+            scheduler.schedule(onSuccess::apply, ACK_MS);
+        }
+
+        @Override
+        public long getAdaptationMs() {
+            return ADAPTATION_MS;
+        }
+
+        @Override
+        public void startStimulus(HeatingElement.SuccessCallback onStarted, HeatingElement.ErrorCallback onError) {
+            scheduler.schedule(onStarted::apply, ACK_MS);
+        }
+
+        @Override
+        public void onStimulusStarted(long durationMs) {
+            events.add("started");
+        }
+
+        @Override
+        public void awaitTarget(HeatingElement.SuccessCallback onReached, HeatingElement.ErrorCallback onError) {
+            if (failTarget > 0) {
+                failTarget--;
+                scheduler.schedule(() -> onError.apply(new VolleyError("stream closed")), ACK_MS);
+                return;
+            }
+
+            scheduler.schedule(onReached::apply, targetReachedAfterMs);
+        }
+
+        @Override
+        public long prepareAudio() {
+            return audioStartMs;
+        }
+
+        @Override
+        public void playAudio(long atNs, HeatingElement.SuccessCallback onFinished) {
+            audioStartedAt = atNs;
+            scheduler.schedule(onFinished::apply, (atNs - scheduler.now()) / MS + audioDurationMs);
+        }
+
+        @Override
+        public void onStimulusEnded() {
+            events.add("ended");
+        }
+
+        @Override
+        public void onStimulusFelt(long timeNs) {
+            feltAt = timeNs;
+        }
+
+        @Override
+        public void onDeviceError(String message, VolleyError error, Runnable retry) {
+            events.add("error");
+            this.retry = retry;
+        }
+
+        @Override
+        public void onStopped() {
+            events.add("stopped");
+        }
+    }
+
+    @Test
+    public void runsTimedTrialWithExactPhaseTimes() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+        delegate.audioStartMs = 1000;
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, STIMULUS_MS, false);
+        machine.start();
+
+        // Participant presses the button halfway through the stimulus
+        scheduler.advanceBy(ACK_MS + ADAPTATION_MS + ACK_MS + 1500);
+        machine.pressFeelIt();
+        scheduler.advanceBy(10_000);
+
+        assertEquals(TrialStateMachine.Phase.RATING, machine.getPhase());
+        assertEquals("[BASELINE, ADAPTATION, STIMULUS, started, ended, RATING]", delegate.events.toString());
+
+        assertEquals(0, machine.getPhaseStartedAt(TrialStateMachine.Phase.BASELINE));
+        assertEquals(ACK_MS * MS, machine.getPhaseStartedAt(TrialStateMachine.Phase.ADAPTATION));
+        assertEquals((ACK_MS + ADAPTATION_MS) * MS, machine.getPhaseStartedAt(TrialStateMachine.Phase.STIMULUS));
+
+        long onset = (2 * ACK_MS + ADAPTATION_MS) * MS;
+        assertEquals(onset, machine.getStimulusOnset());
+        assertEquals(onset + 1000 * MS, delegate.audioStartedAt);
+        assertEquals(onset + 1500 * MS, machine.getStimulusFelt());
+        assertEquals(onset + STIMULUS_MS * MS, machine.getPhaseStartedAt(TrialStateMachine.Phase.RATING));
+        assertEquals(-1, machine.getPhaseStartedAt(TrialStateMachine.Phase.WAIT_FOR_PRESS));
+    }
+
+    @Test
+    public void countsDownEverySecond() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, STIMULUS_MS, false);
+        machine.start();
+        scheduler.advanceBy(20_000);
+
+        assertEquals("[5000, 4000, 3000, 2000, 1000, 0, 3000, 2000, 1000, 0]", delegate.countdowns.toString());
+        assertEquals(TrialStateMachine.Phase.WAIT_FOR_PRESS, machine.getPhase());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void waitsForPressAfterStimulus() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, STIMULUS_MS, false);
+        machine.start();
+        scheduler.advanceBy(20_000);
+
+        assertEquals(TrialStateMachine.Phase.WAIT_FOR_PRESS, machine.getPhase());
+        assertEquals(-1, delegate.feltAt);
+
+        machine.pressFeelIt();
+        machine.pressFeelIt();
+        scheduler.runDue();
+
+        assertEquals(TrialStateMachine.Phase.RATING, machine.getPhase());
+        assertEquals(20_000 * MS, delegate.feltAt);
+        assertEquals(1, delegate.events.stream().filter(e -> e.equals("RATING")).count());
+    }
+
+    @Test
+    public void untimedStimulusLastsUntilTargetAndClip() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+        delegate.audioStartMs = 0;
+        delegate.targetReachedAfterMs = 7000;
+        delegate.audioDurationMs = 2500;
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, 0, true);
+        machine.start();
+        scheduler.advanceBy(60_000);
+
+        long onset = (2 * ACK_MS + ADAPTATION_MS) * MS;
+        assertEquals(TrialStateMachine.Phase.RATING, machine.getPhase());
+        assertEquals(onset + 7000 * MS, delegate.audioStartedAt);
+        assertEquals(onset + 9500 * MS, delegate.feltAt);
+    }
+
+    @Test
+    public void retriesFailedWaitForTarget() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+        delegate.audioStartMs = 0;
+        delegate.targetReachedAfterMs = 7000;
+        delegate.failTarget = 1;
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, 0, true);
+        machine.start();
+        scheduler.advanceBy(60_000);
+
+        // The trial waits for the experimenter instead of stalling silently
+        assertEquals(TrialStateMachine.Phase.STIMULUS, machine.getPhase());
+        assertEquals("error", delegate.events.get(delegate.events.size() - 1));
+        assertEquals(-1, delegate.audioStartedAt);
+
+        delegate.retry.run();
+        scheduler.advanceBy(10_000);
+
+        assertEquals(TrialStateMachine.Phase.RATING, machine.getPhase());
+        assertEquals(1, delegate.events.stream().filter(e -> e.equals("started")).count());
+    }
+
+    @Test
+    public void retriesFailedBaselineAndIgnoresStaleEvents() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+        delegate.failBaseline = 1;
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, STIMULUS_MS, false);
+        machine.start();
+        scheduler.advanceBy(1000);
+
+        // The machine waits for the experimenter instead of moving on
+        assertEquals(TrialStateMachine.Phase.BASELINE, machine.getPhase());
+        assertEquals("[BASELINE, error]", delegate.events.toString());
+
+        delegate.retry.run();
+        scheduler.advanceBy(ACK_MS);
+
+        assertEquals(TrialStateMachine.Phase.ADAPTATION, machine.getPhase());
+
+        // Retrying once more is stale, since the machine has moved on
+        delegate.retry.run();
+        scheduler.advanceBy(ACK_MS);
+
+        assertEquals(TrialStateMachine.Phase.ADAPTATION, machine.getPhase());
+    }
+
+    @Test
+    public void stopIgnoresPendingTimers() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, STIMULUS_MS, false);
+        machine.start();
+        scheduler.advanceBy(1000);
+
+        machine.stop();
+        machine.pressFeelIt();
+        scheduler.advanceBy(60_000);
+
+        assertEquals(TrialStateMachine.Phase.ADAPTATION, machine.getPhase());
+        assertEquals(-1, delegate.feltAt);
+    }
+
+    @Test
+    public void stopAsksDelegateToStopOnce() {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeDelegate delegate = new FakeDelegate(scheduler);
+
+        TrialStateMachine machine = new TrialStateMachine(scheduler, delegate, STIMULUS_MS, false);
+        machine.start();
+        scheduler.advanceBy(ACK_MS + ADAPTATION_MS + ACK_MS);
+
+        machine.stop();
+        machine.stop();
+
+        assertEquals(1, Collections.frequency(delegate.events, "stopped"));
+        assertEquals("stopped", delegate.events.get(delegate.events.size() - 1));
+    }
+}
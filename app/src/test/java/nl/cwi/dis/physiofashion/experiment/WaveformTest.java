@@ -0,0 +1,63 @@
+package nl.cwi.dis.physiofashion.experiment;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import nl.cwi.dis.physiofashion.device.CommandSchedule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for Waveform.
+ */
+public class WaveformTest {
+    @Test
+    public void compilesRampIntoFractionalSetpoints() {
+        CommandSchedule schedule = Waveform.ramp(1, 1, 0.25).compile(32, 1);
+
+        assertEquals(5, schedule.size());
+        assertEquals(32.25, schedule.getSetpoint(1), 1e-4);
+        assertEquals(33.0, schedule.getSetpoint(4), 1e-4);
+        assertEquals(1_000_000_000L, schedule.getDuration());
+    }
+
+    @Test
+    public void keepsStepsBetweenGridPoints() {
+        CommandSchedule schedule = Waveform.pulses(2, 0.3, 1, 2, 0.25).compile(32, -1);
+
+        // Steps at 0, 0.3, 1 and 1.3 seconds, unchanged setpoints are left out
+        assertEquals(4, schedule.size());
+        assertEquals(30.0, schedule.getSetpoint(0), 1e-4);
+        assertEquals(300_000_000L, schedule.getOffset(1));
+        assertEquals(32.0, schedule.getSetpoint(1), 1e-4);
+        assertEquals(1_000_000_000L, schedule.getOffset(2));
+    }
+
+    @Test
+    public void holdsValuesOutsideKeyframes() {
+        Waveform waveform = new Waveform(new double[] { 1, 2 }, new double[] { 0.5, 1.5 }, 0);
+
+        assertEquals(0.5, waveform.getDelta(0), 1e-9);
+        assertEquals(1.0, waveform.getDelta(1.5), 1e-9);
+        assertEquals(1.5, waveform.getDelta(3), 1e-9);
+    }
+
+    @Test
+    public void readsBackSnapshot() throws IOException {
+        Waveform waveform = new Waveform(new double[] { 0, 1, 1 }, new double[] { 0, 0.75, -0.5 }, 0.1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        waveform.writeSnapshot(new DataOutputStream(bytes));
+        Waveform restored = Waveform.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(1.0, restored.getDuration(), 1e-9);
+        assertEquals(0.375, restored.getDelta(0.5), 1e-9);
+        assertEquals(-0.5, restored.getDelta(2), 1e-9);
+        assertEquals(waveform.compile(32, 1).size(), restored.compile(32, 1).size());
+    }
+}
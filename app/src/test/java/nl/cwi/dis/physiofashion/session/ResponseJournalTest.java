@@ -0,0 +1,175 @@
+package nl.cwi.dis.physiofashion.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+
+import nl.cwi.dis.physiofashion.experiment.ResponseTable;
+import nl.cwi.dis.physiofashion.experiment.UserResponse;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ResponseJournal, writing journals to temporary files and reading them back.
+ */
+public class ResponseJournalTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("responses", ".journal");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private ResponseJournal open() {
+        return new ResponseJournal(file, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    private static void respond(ResponseTable table, int trial, int rating) {
+        UserResponse response = table.getResponse(trial);
+        response.setStimulusStarted(trial * 1_000_000_000L);
+        response.setStimulusFelt(trial * 1_000_000_000L + 250_000_000L);
+        response.setTemperatureFelt(rating);
+        response.setComfortLevel(rating + 1);
+    }
+
+    @Test
+    public void replaysAppendedRecords() throws IOException {
+        ResponseTable table = new ResponseTable(3);
+        ResponseJournal journal = this.open();
+
+        respond(table, 0, 4);
+        journal.append(table, 0);
+        respond(table, 1, 6);
+        journal.append(table, 1);
+        journal.close();
+
+        assertEquals(8 + 2 * ResponseJournal.RECORD_SIZE, file.length());
+
+        ResponseTable replayed = new ResponseTable(3);
+        assertEquals("{0, 1}", ResponseJournal.replay(file, replayed).toString());
+
+        assertEquals(250_000_000L, replayed.getResponse(0).getStimulusFelt());
+        assertEquals(4, replayed.getResponse(0).getTemperatureFelt());
+        assertEquals(7, replayed.getResponse(1).getComfortLevel());
+        assertEquals(-1, replayed.getResponse(2).getStimulusStarted());
+    }
+
+    @Test
+    public void reopenedJournalAppendsAndLaterRecordWins() throws IOException {
+        ResponseTable table = new ResponseTable(2);
+
+        ResponseJournal journal = this.open();
+        respond(table, 0, 1);
+        journal.append(table, 0);
+        journal.close();
+
+        // The trial is answered again after the app was restarted
+        journal = this.open();
+        respond(table, 0, 3);
+        journal.append(table, 0);
+        journal.close();
+
+        ResponseTable replayed = new ResponseTable(2);
+        assertEquals("{0}", ResponseJournal.replay(file, replayed).toString());
+        assertEquals(3, replayed.getResponse(0).getTemperatureFelt());
+    }
+
+    @Test
+    public void stopsAtTornOrCorruptedRecord() throws IOException {
+        ResponseTable table = new ResponseTable(3);
+        ResponseJournal journal = this.open();
+
+        for (int i = 0; i < 3; i++) {
+            respond(table, i, i);
+            journal.append(table, i);
+        }
+
+        journal.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Flip a byte in the second record and cut the third one short
+            raf.seek(8 + ResponseJournal.RECORD_SIZE + 10);
+            raf.write(0x7f);
+            raf.setLength(file.length() - 5);
+        }
+
+        ResponseTable replayed = new ResponseTable(3);
+        assertEquals("{0}", ResponseJournal.replay(file, replayed).toString());
+        assertEquals(-1, replayed.getResponse(1).getStimulusStarted());
+    }
+
+    @Test
+    public void appendsAfterTornRecordOnceRecovered() throws IOException {
+        ResponseTable table = new ResponseTable(3);
+        ResponseJournal journal = this.open();
+
+        for (int i = 0; i < 3; i++) {
+            respond(table, i, i);
+            journal.append(table, i);
+        }
+
+        journal.close();
+
+        // Power was lost while the last record was written
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 5);
+        }
+
+        ResponseTable recovered = new ResponseTable(3);
+        assertEquals("{0, 1}", ResponseJournal.recover(file, recovered).toString());
+        assertEquals(8 + 2 * ResponseJournal.RECORD_SIZE, file.length());
+
+        // The session continues with the trial that was lost
+        journal = this.open();
+        respond(recovered, 2, 5);
+        journal.append(recovered, 2);
+        journal.close();
+
+        ResponseTable replayed = new ResponseTable(3);
+        assertEquals("{0, 1, 2}", ResponseJournal.replay(file, replayed).toString());
+        assertEquals(5, replayed.getResponse(2).getTemperatureFelt());
+    }
+
+    @Test
+    public void readsResponsesWithoutTable() throws IOException {
+        ResponseTable table = new ResponseTable(6);
+        ResponseJournal journal = this.open();
+
+        respond(table, 1, 2);
+        journal.append(table, 1);
+        respond(table, 4, 6);
+        journal.append(table, 4);
+        journal.close();
+
+        // The table is sized to the highest trial in the journal
+        BitSet completed = new BitSet();
+        ResponseTable responses = ResponseJournal.readResponses(file, completed);
+
+        assertEquals(5, responses.size());
+        assertEquals("{1, 4}", completed.toString());
+        assertEquals(2, responses.getResponse(1).getTemperatureFelt());
+        assertEquals(7, responses.getResponse(4).getComfortLevel());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeBytes("trialNum,participant\n");
+        }
+
+        assertNull(ResponseJournal.replay(file, new ResponseTable(1)));
+        assertNull(ResponseJournal.readResponses(file, new BitSet()));
+    }
+}